@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import net.mtrop.doom.enums.MapFormat;
+import net.mtrop.utility.doom.common.WadWriter;
+import net.mtrop.utility.doom.wadgen.MapGenerator;
+import net.mtrop.utility.doom.wadgen.TextureGenerator;
+
+import com.blackrook.commons.Common;
+
+/**
+ * Makes the synthetic files that the benchmarks run on, with WadGen's generators.
+ * Everything is made from a seeded {@link Random}, so the same seed always makes the same bytes.
+ * @author Matthew Tropiano
+ */
+public final class Fixtures
+{
+	/** Seed used by all benchmarks. */
+	public static final long SEED = 0x00D00DL;
+
+	/** ASCII charset. */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private Fixtures() {}
+
+	/**
+	 * Creates a new, empty temporary directory.
+	 * @param prefix the directory name prefix.
+	 * @return the directory.
+	 * @throws IOException if it could not be created.
+	 */
+	public static File createDirectory(String prefix) throws IOException
+	{
+		File out = File.createTempFile(prefix, "");
+		if (!out.delete() || !out.mkdirs())
+			throw new IOException("Could not create " + out.getPath());
+		return out;
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything in it.
+	 * @param f the file.
+	 */
+	public static void delete(File f)
+	{
+		if (f == null)
+			return;
+		File[] files = f.listFiles();
+		if (files != null) for (File x : files)
+			delete(x);
+		f.delete();
+	}
+
+	/**
+	 * Writes bytes to a file.
+	 * @param f the file.
+	 * @param data the data.
+	 * @throws IOException if it could not be written.
+	 */
+	public static void write(File f, byte[] data) throws IOException
+	{
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(f);
+			fos.write(data);
+		} finally {
+			Common.close(fos);
+		}
+	}
+
+	/**
+	 * Makes a texture list for TEXtract.
+	 * @param textures the texture names.
+	 * @param flats the flat names.
+	 * @return the list, as TexSpy would print it with "-textract".
+	 */
+	public static String getTextureList(String[] textures, String[] flats)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("-texture\n");
+		for (String s : textures)
+			sb.append(s).append('\n');
+		sb.append("-flat\n");
+		for (String s : flats)
+			sb.append(s).append('\n');
+		sb.append("-end\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Makes a 16-bit PCM WAV of a tone with some noise.
+	 * @param random the random source.
+	 * @param sampleRate the sample rate.
+	 * @param channels the amount of channels.
+	 * @param frames the amount of sample frames.
+	 * @return the WAV.
+	 */
+	public static byte[] createWAV(Random random, int sampleRate, int channels, int frames)
+	{
+		int dataLength = frames * channels * 2;
+		ByteBuffer out = ByteBuffer.allocate(44 + dataLength).order(ByteOrder.LITTLE_ENDIAN);
+		out.put("RIFF".getBytes(ASCII));
+		out.putInt(36 + dataLength);
+		out.put("WAVE".getBytes(ASCII));
+		out.put("fmt ".getBytes(ASCII));
+		out.putInt(16);
+		out.putShort((short)1);
+		out.putShort((short)channels);
+		out.putInt(sampleRate);
+		out.putInt(sampleRate * channels * 2);
+		out.putShort((short)(channels * 2));
+		out.putShort((short)16);
+		out.put("data".getBytes(ASCII));
+		out.putInt(dataLength);
+
+		double tone = 110.0 + random.nextInt(880);
+		for (int f = 0; f < frames; f++)
+		{
+			double v = 0.5 * Math.sin(2.0 * Math.PI * tone * f / sampleRate) + 0.1 * (random.nextDouble() * 2.0 - 1.0);
+			for (int c = 0; c < channels; c++)
+				out.putShort((short)(v * 32767.0));
+		}
+		return out.array();
+	}
+
+	/**
+	 * Writes a WAD with only a PLAYPAL and a COLORMAP.
+	 * @param f the file to write.
+	 * @param random the random source.
+	 * @throws IOException if the WAD could not be written.
+	 */
+	public static void writePaletteWAD(File f, Random random) throws IOException
+	{
+		WadWriter wad = new WadWriter(f);
+		try {
+			new TextureGenerator(random).writePalette(wad);
+			wad.finish();
+		} finally {
+			wad.abort();
+		}
+	}
+
+	/**
+	 * Writes a WAD of maps, named MAP01, MAP02, and so on.
+	 * @param f the file to write.
+	 * @param random the random source.
+	 * @param maps the amount of maps (up to 99).
+	 * @param things the amount of things in each map.
+	 * @param sidedefs the amount of sidedefs (and linedefs and vertices) in each map.
+	 * @param sectors the amount of sectors in each map.
+	 * @param format the map format.
+	 * @param textures the texture names to use on sidedefs.
+	 * @param flats the flat names to use on sectors.
+	 * @throws IOException if the WAD could not be written.
+	 */
+	public static void writeMapWAD(File f, Random random, int maps, int things, int sidedefs, int sectors, MapFormat format, String[] textures, String[] flats) throws IOException
+	{
+		MapGenerator generator = new MapGenerator(random, textures, flats);
+		WadWriter wad = new WadWriter(f);
+		try {
+			for (int m = 1; m <= maps; m++)
+				generator.writeMap(wad, MapGenerator.getMapName(m), format, things, sidedefs, sectors);
+			wad.finish();
+		} finally {
+			wad.abort();
+		}
+	}
+
+	/**
+	 * Writes a WAD of textures: PLAYPAL, COLORMAP, PNAMES, TEXTUREx, patches, flats,
+	 * and ANIMATED and SWITCHES lumps that animate the first few textures and flats.
+	 * @param f the file to write.
+	 * @param random the random source.
+	 * @param textures the texture names. The first 8 are animated in groups of 4.
+	 * @param flats the flat names. The first 8 are animated in groups of 4.
+	 * @param patchPrefix the prefix for patch names (up to 3 characters).
+	 * @param switches the amount of switch texture pairs to add (named "SW1" and "SW2", the patch prefix, and a number).
+	 * @throws IOException if the WAD could not be written.
+	 */
+	public static void writeTextureWAD(File f, Random random, String[] textures, String[] flats, String patchPrefix, int switches) throws IOException
+	{
+		WadWriter wad = new WadWriter(f);
+		try {
+			new TextureGenerator(random).writeTextures(wad, textures, flats, patchPrefix, switches);
+			wad.finish();
+		} finally {
+			wad.abort();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+import net.mtrop.utility.doom.common.LumpCache;
+
+import com.blackrook.utility.Utility;
+
+/**
+ * Runs a whole utility, as its program would, with its output thrown away.
+ * The shared lump cache is turned off, so every run does all of its work.
+ * @author Matthew Tropiano
+ */
+public final class ToolRunner
+{
+	/** Stream that throws everything away. */
+	private static final PrintStream NULL_STREAM = new PrintStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+			// thrown away.
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			// thrown away.
+		}
+	});
+
+	static
+	{
+		LumpCache.setShared(null);
+	}
+
+	private ToolRunner() {}
+
+	/**
+	 * Runs a utility.
+	 * @param type the utility class.
+	 * @param input the utility's standard input, or null for none.
+	 * @param args the utility's arguments.
+	 * @return the utility's exit code.
+	 * @throws IllegalStateException if the utility returns an error, since a benchmark of a failed run is no good.
+	 */
+	public static int run(Class<? extends Utility<?>> type, String input, String... args)
+	{
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		InputStream in = System.in;
+		System.setOut(NULL_STREAM);
+		System.setErr(NULL_STREAM);
+		System.setIn(new ByteArrayInputStream(input != null ? input.getBytes(Charset.forName("US-ASCII")) : new byte[0]));
+		int code;
+		try {
+			// made after the streams are set, since utilities keep System.out.
+			code = type.getConstructor().newInstance().go(args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+			System.setIn(in);
+		}
+		if (code != 0)
+			throw new IllegalStateException(type.getSimpleName() + " returned " + code + ".");
+		return code;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+import net.mtrop.utility.doom.wadgen.DemoGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DemoSpy: analysis of one long 4-player demo in memory, and a full JSON run
+ * over 64 single-player demos of five minutes each.
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DemoSpyBenchmark
+{
+	/** Tics in five minutes. */
+	private static final int FIVE_MINUTES = 35 * 60 * 5;
+
+	private File directory;
+	private byte[] demo;
+	private String[] args;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(Fixtures.SEED);
+		directory = Fixtures.createDirectory("demospy");
+		DemoGenerator demos = new DemoGenerator(random);
+		demo = demos.createDemo(109, 4, FIVE_MINUTES * 6);
+
+		args = new String[65];
+		for (int i = 0; i < 64; i++)
+		{
+			File f = new File(directory, String.format("demo%02d.lmp", i));
+			Fixtures.write(f, demos.createDemo(109, 1, FIVE_MINUTES));
+			args[i] = f.getPath();
+		}
+		args[64] = "-json";
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.delete(directory);
+	}
+
+	@Benchmark
+	public DemoInfo analyze() throws IOException
+	{
+		return DemoInfo.read(new ByteArrayInputStream(demo));
+	}
+
+	@Benchmark
+	public int run()
+	{
+		return ToolRunner.run(DemoSpy.class, null, args);
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.doom.enums.MapFormat;
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+import net.mtrop.utility.doom.wadgen.TextureGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DoomMerge: merging a map WAD and a texture WAD, saved as a WAD and as a PK3.
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DoomMergeBenchmark
+{
+	private File directory;
+	private String wadScript;
+	private String pk3Script;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(Fixtures.SEED);
+		directory = Fixtures.createDirectory("doommerge");
+		File maps = new File(directory, "maps.wad");
+		File textures = new File(directory, "textures.wad");
+
+		String[] textureNames = TextureGenerator.getNames("TX", 256);
+		String[] flatNames = TextureGenerator.getNames("FL", 64);
+		Fixtures.writeMapWAD(maps, random, 32, 1000, 2000, 200, MapFormat.DOOM, textureNames, flatNames);
+		Fixtures.writeTextureWAD(textures, random, textureNames, flatNames, "PT", 8);
+
+		String merge = "clearout\nin \"" + maps.getPath() + "\"\nin \"" + textures.getPath() + "\"\nmerge\n";
+		wadScript = merge + "save \"" + new File(directory, "out.wad").getPath() + "\"\nend\n";
+		pk3Script = merge + "savepk3 \"" + new File(directory, "out.pk3").getPath() + "\"\nend\n";
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.delete(directory);
+	}
+
+	@Benchmark
+	public int mergeWAD()
+	{
+		return ToolRunner.run(DoomMerge.class, wadScript);
+	}
+
+	@Benchmark
+	public int mergePK3()
+	{
+		return ToolRunner.run(DoomMerge.class, pk3Script);
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomsnd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DoomSND: conversion of one 10-second stereo WAV in memory (with and without resampling),
+ * and a full run that converts 32 WAVs into one WAD.
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SoundConvertBenchmark
+{
+	/** Output rate (0 is the WAV's own rate). */
+	@Param({"0", "11025"})
+	public int rate;
+
+	private File directory;
+	private byte[] wav;
+	private String[] args;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(Fixtures.SEED);
+		directory = Fixtures.createDirectory("doomsnd");
+		wav = Fixtures.createWAV(random, 44100, 2, 44100 * 10);
+
+		File sounds = new File(directory, "sounds");
+		sounds.mkdirs();
+		for (int i = 0; i < 32; i++)
+			Fixtures.write(new File(sounds, String.format("sound%02d.wav", i)), Fixtures.createWAV(random, 22050, 1, 22050 * 2));
+		if (rate != 0)
+			args = new String[]{sounds.getPath(), "-wad", new File(directory, "sounds.wad").getPath(), "-rate", String.valueOf(rate)};
+		else
+			args = new String[]{sounds.getPath(), "-wad", new File(directory, "sounds.wad").getPath()};
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.delete(directory);
+	}
+
+	@Benchmark
+	public int convert() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(wav.length / 4);
+		SoundConvert.writeSound(new WAVReader(new ByteArrayInputStream(wav)), out, rate, 1f);
+		return out.size();
+	}
+
+	@Benchmark
+	public int run()
+	{
+		return ToolRunner.run(SoundConvert.class, null, args);
+	}
+
+}
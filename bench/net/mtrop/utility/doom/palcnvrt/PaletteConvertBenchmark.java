@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.palcnvrt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+import net.mtrop.utility.doom.wadgen.TextureGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * PalCnvrt: matching all 256 colors of one palette to another, and converting 
+ * 64 patches (remade before each run, since they are converted in place).
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PaletteConvertBenchmark
+{
+	private int[] sourceColors;
+	private boolean[] sourceBrightmask;
+	private byte[][] targetPalette;
+	private boolean[] targetBrightmask;
+
+	/**
+	 * Palette WADs and patch files for full conversions.
+	 */
+	@State(Scope.Benchmark)
+	public static class Files
+	{
+		private File directory;
+		private File patches;
+		private String[] args;
+
+		@Setup
+		public void setup() throws IOException
+		{
+			Random random = new Random(Fixtures.SEED);
+			directory = Fixtures.createDirectory("palcnvrt");
+			patches = new File(directory, "patches");
+			File source = new File(directory, "source.wad");
+			File target = new File(directory, "target.wad");
+			Fixtures.writePaletteWAD(source, random);
+			Fixtures.writePaletteWAD(target, random);
+			args = new String[]{patches.getPath(), "-patch", "-srcwad", source.getPath(), "-trgwad", target.getPath()};
+		}
+
+		@Setup(Level.Invocation)
+		public void setupPatches() throws IOException
+		{
+			Fixtures.delete(patches);
+			patches.mkdirs();
+			Random random = new Random(Fixtures.SEED);
+			for (int i = 0; i < 64; i++)
+				Fixtures.write(new File(patches, String.format("patch%02d.lmp", i)), new TextureGenerator(random).createPicture(128, 128));
+		}
+
+		@TearDown
+		public void tearDown()
+		{
+			Fixtures.delete(directory);
+		}
+	}
+
+	@Setup
+	public void setup()
+	{
+		// same layout as the fixture colormaps: the last 16 colors are fullbright.
+		Random random = new Random(Fixtures.SEED);
+		byte[] palette = new TextureGenerator(random).createPalette();
+		sourceColors = new int[256];
+		sourceBrightmask = new boolean[256];
+		targetPalette = new byte[256][];
+		targetBrightmask = new boolean[256];
+		for (int i = 0; i < 256; i++)
+		{
+			sourceColors[i] = 0xff000000 | (random.nextInt() & 0x00ffffff);
+			sourceBrightmask[i] = i >= 240;
+			targetPalette[i] = new byte[]{palette[i * 3], palette[i * 3 + 1], palette[i * 3 + 2]};
+			targetBrightmask[i] = i >= 240;
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void matchColor(Blackhole blackhole)
+	{
+		for (int i = 0; i < 256; i++)
+			blackhole.consume(PaletteConvert.matchColor(sourceColors[i], targetPalette, targetBrightmask, sourceBrightmask[i], true));
+	}
+
+	@Benchmark
+	public int convert(Files files)
+	{
+		return ToolRunner.run(PaletteConvert.class, null, files.args);
+	}
+
+}
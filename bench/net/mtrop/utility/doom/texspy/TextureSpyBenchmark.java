@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.texspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.doom.enums.MapFormat;
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+import net.mtrop.utility.doom.wadgen.TextureGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TexSpy: texture and flat scanning over a WAD of 32 maps.
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextureSpyBenchmark
+{
+	/** Map format (a {@link MapFormat} name). */
+	@Param({"doom", "udmf"})
+	public String format;
+
+	private File directory;
+	private File wad;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(Fixtures.SEED);
+		directory = Fixtures.createDirectory("texspy");
+		wad = new File(directory, "maps.wad");
+		Fixtures.writeMapWAD(wad, random, 32, 1000, 8000, 1000, MapFormat.valueOf(format.toUpperCase()), TextureGenerator.getNames("TX", 512), TextureGenerator.getNames("FL", 128));
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.delete(directory);
+	}
+
+	@Benchmark
+	public int scan()
+	{
+		return ToolRunner.run(TextureSpy.class, null, wad.getPath(), "-nomsg");
+	}
+
+}
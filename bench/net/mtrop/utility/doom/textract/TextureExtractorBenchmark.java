@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.textract;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.mtrop.utility.doom.bench.Fixtures;
+import net.mtrop.utility.doom.bench.ToolRunner;
+import net.mtrop.utility.doom.wadgen.TextureGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TEXtract: scanning a texture WAD and a base WAD (with an empty list), 
+ * and scanning and extracting every texture and flat.
+ * @author Matthew Tropiano
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextureExtractorBenchmark
+{
+	private File directory;
+	private File base;
+	private File textures;
+	private File output;
+	private String list;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(Fixtures.SEED);
+		directory = Fixtures.createDirectory("textract");
+		base = new File(directory, "base.wad");
+		textures = new File(directory, "textures.wad");
+		output = new File(directory, "out.wad");
+
+		String[] textureNames = TextureGenerator.getNames("TX", 512);
+		String[] flatNames = TextureGenerator.getNames("FL", 128);
+		Fixtures.writeTextureWAD(base, random, TextureGenerator.getNames("BT", 64), TextureGenerator.getNames("BF", 32), "BP", 4);
+		Fixtures.writeTextureWAD(textures, random, textureNames, flatNames, "PT", 16);
+		list = Fixtures.getTextureList(textureNames, flatNames);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Fixtures.delete(directory);
+	}
+
+	@Benchmark
+	public int scan()
+	{
+		return ToolRunner.run(TextureExtractor.class, "-end\n", textures.getPath(), "-base", base.getPath(), "-o", output.getPath(), "-owrite");
+	}
+
+	@Benchmark
+	public int extract()
+	{
+		return ToolRunner.run(TextureExtractor.class, list, textures.getPath(), "-base", base.getPath(), "-o", output.getPath(), "-owrite");
+	}
+
+}
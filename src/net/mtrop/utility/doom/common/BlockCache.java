@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.blackrook.commons.hash.HashMap;
+
+/**
+ * A least-recently-used cache of fixed-size blocks of file data.
+ * <p>
+ * Files are split into blocks of the same size, and each block is kept by the
+ * file's {@link Source} and its block index. A file's source is found by its
+ * canonical path, length, and modified date, so everything that reads the same
+ * file through one cache at the same time shares its blocks. A source is only kept
+ * while something references it: when the last reference is released, it and its
+ * blocks are dropped. When the cache gets bigger than its capacity, the blocks that
+ * were used longest ago are dropped. One cache can be shared by many files (and
+ * threads): all methods are synchronized.
+ * @author Matthew Tropiano
+ */
+public class BlockCache
+{
+	/** Default block size in bytes. */
+	public static final int DEFAULT_BLOCK_SIZE = 65536;
+	/** Default capacity in bytes. */
+	public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+
+	/** The shared cache. */
+	private static BlockCache shared = null;
+
+	/** Block size in bytes. */
+	private int blockSize;
+	/** Capacity in bytes. */
+	private long capacity;
+	/** Bytes in the cache. */
+	private long size;
+	/** Blocks, by key, in order of use (oldest first). */
+	private LinkedHashMap<BlockKey, byte[]> blocks;
+	/** Referenced sources, by canonical path. */
+	private HashMap<String, Source> sources;
+
+	/** Blocks found. */
+	private long hits;
+	/** Blocks not found. */
+	private long misses;
+
+	/**
+	 * Creates a new cache with the default block size and capacity.
+	 */
+	public BlockCache()
+	{
+		this(DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param blockSize the block size in bytes.
+	 * @param capacity the most bytes to keep.
+	 * @throws IllegalArgumentException if the block size or capacity is less than 1.
+	 */
+	public BlockCache(int blockSize, long capacity)
+	{
+		if (blockSize < 1 || capacity < 1)
+			throw new IllegalArgumentException("Block size and capacity must be positive.");
+		this.blockSize = blockSize;
+		this.capacity = capacity;
+		this.size = 0;
+		this.blocks = new LinkedHashMap<BlockKey, byte[]>(256, 0.75f, true);
+		this.sources = new HashMap<String, Source>();
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * @return the cache shared by everything in this program.
+	 */
+	public static synchronized BlockCache getShared()
+	{
+		if (shared == null)
+			shared = new BlockCache();
+		return shared;
+	}
+
+	/**
+	 * @return the block size in bytes.
+	 */
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Gets the source for a file, for reading its blocks, and adds a reference to it.
+	 * While a file's source is referenced, a file that has the same length and
+	 * modified date gets the same source (and its blocks). A file that changed gets
+	 * a new source, and the old one stops keeping blocks (its blocks are dropped
+	 * once it is released).
+	 * @param f the file.
+	 * @return the file's source.
+	 * @throws IOException if the file's canonical path could not be found.
+	 */
+	public synchronized Source acquire(File f) throws IOException
+	{
+		String path = f.getCanonicalPath();
+		long length = f.length();
+		long modified = f.lastModified();
+		Source out = sources.get(path);
+		if (out != null && (out.length != length || out.modified != modified))
+		{
+			sources.removeUsingKey(path);
+			out.stale = true;
+			out = null;
+		}
+		if (out == null)
+		{
+			out = new Source(f, path, length, modified);
+			sources.put(path, out);
+		}
+		out.references++;
+		return out;
+	}
+
+	/**
+	 * Removes a reference to a source. When nothing references it anymore,
+	 * it and its blocks are dropped.
+	 * @param source the source.
+	 */
+	public synchronized void release(Source source)
+	{
+		if (--source.references > 0)
+			return;
+		if (!source.stale)
+		{
+			source.stale = true;
+			sources.removeUsingKey(source.path);
+		}
+		drop(source);
+	}
+
+	/**
+	 * Gets a block.
+	 * @param source the source.
+	 * @param index the block index.
+	 * @return the block, or null if it is not in the cache.
+	 */
+	public synchronized byte[] get(Source source, long index)
+	{
+		byte[] out = blocks.get(new BlockKey(source, index));
+		if (out != null)
+			hits++;
+		else
+			misses++;
+		return out;
+	}
+
+	/**
+	 * Adds a block, dropping the least-recently-used blocks if the cache is full.
+	 * @param source the source.
+	 * @param index the block index.
+	 * @param block the block data (the last block of a file can be short).
+	 */
+	public synchronized void put(Source source, long index, byte[] block)
+	{
+		if (source.stale)
+			return;
+		byte[] old = blocks.put(new BlockKey(source, index), block);
+		if (old != null)
+			size -= old.length;
+		size += block.length;
+
+		Iterator<Map.Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+		while (size > capacity && it.hasNext())
+		{
+			size -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drops all blocks.
+	 */
+	public synchronized void clear()
+	{
+		blocks.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the amount of bytes in the cache.
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the amount of times a block was found.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the amount of times a block was not found.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	// Drops all blocks of a source.
+	private void drop(Source source)
+	{
+		Iterator<Map.Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<BlockKey, byte[]> entry = it.next();
+			if (entry.getKey().source == source)
+			{
+				size -= entry.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	/** A block key: a source and a block index. */
+	private static final class BlockKey
+	{
+		private Source source;
+		private long index;
+
+		private BlockKey(Source source, long index)
+		{
+			this.source = source;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(source) * 31 + (int)(index ^ (index >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof BlockKey))
+				return false;
+			BlockKey other = (BlockKey)obj;
+			return source == other.source && index == other.index;
+		}
+	}
+
+	/**
+	 * A file whose blocks are kept in a cache.
+	 */
+	public static final class Source
+	{
+		/** File. */
+		private File file;
+		/** Canonical path. */
+		private String path;
+		/** Length when acquired. */
+		private long length;
+		/** Modified date when acquired. */
+		private long modified;
+		/** References. */
+		private int references;
+		/** True if the file changed or the source was released, and its blocks are no longer kept. */
+		private boolean stale;
+
+		private Source(File file, String path, long length, long modified)
+		{
+			this.file = file;
+			this.path = path;
+			this.length = length;
+			this.modified = modified;
+			this.references = 0;
+			this.stale = false;
+		}
+
+		/**
+		 * @return the file's length when this source was acquired.
+		 */
+		public long getLength()
+		{
+			return length;
+		}
+
+		/**
+		 * @return true if the file's length or modified date is not what it was when this source was acquired.
+		 */
+		public boolean isChanged()
+		{
+			return file.length() != length || file.lastModified() != modified;
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Makes keys for things read from files and kept in memory, so that
+ * a program that reads the same file many times in one JVM can read it once.
+ * @author Matthew Tropiano
+ */
+public final class FileIdentity
+{
+	private FileIdentity() {}
+
+	/**
+	 * Gets the identity of a file: its real path, size, modified time, and file key
+	 * (where the platform has one). A file that is changed or replaced gets a new identity.
+	 * @param f the file.
+	 * @return the identity, or null if the file can't be read.
+	 */
+	public static String get(File f)
+	{
+		try {
+			Path path = f.toPath().toRealPath();
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return path.toString() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+}
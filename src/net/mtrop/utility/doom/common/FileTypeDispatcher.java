@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.list.List;
+
+/**
+ * Sends files to handlers by their type, found from their first few bytes.
+ * <p>
+ * The start of each file is read once, and each detector is checked against it
+ * in the order that they were added. The first match gets the file. This replaces
+ * opening a file as a zip, catching the exception, and opening it again as a WAD.
+ * <p>
+ * Detectors for the common types are here as constants, and new ones can be made
+ * for any other type (like demos, which have no real magic number).
+ * @author Matthew Tropiano
+ */
+public class FileTypeDispatcher
+{
+	/** Bytes read from the start of a file for detectors. */
+	public static final int HEADER_LENGTH = 16;
+
+	/** Detects zip files (and PK3s): "PK\3\4", or "PK\5\6" for an empty zip. */
+	public static final Detector ZIP = new Detector()
+	{
+		@Override
+		public boolean detect(byte[] header, int length)
+		{
+			return length >= 4 && header[0] == 'P' && header[1] == 'K'
+				&& ((header[2] == 3 && header[3] == 4) || (header[2] == 5 && header[3] == 6));
+		}
+	};
+
+	/** Detects WAD files: "IWAD" or "PWAD". */
+	public static final Detector WAD = new Detector()
+	{
+		@Override
+		public boolean detect(byte[] header, int length)
+		{
+			return length >= 12 && (header[0] == 'I' || header[0] == 'P')
+				&& header[1] == 'W' && header[2] == 'A' && header[3] == 'D';
+		}
+	};
+
+	/** Detects RIFF files (like WAVs): "RIFF". */
+	public static final Detector RIFF = new Detector()
+	{
+		@Override
+		public boolean detect(byte[] header, int length)
+		{
+			return length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F';
+		}
+	};
+
+	/**
+	 * Decides if a file is of a certain type, from its first bytes.
+	 */
+	public interface Detector
+	{
+		/**
+		 * Checks the start of a file.
+		 * @param header the first bytes of the file.
+		 * @param length the amount of bytes in the header (less than {@link #HEADER_LENGTH} for short files).
+		 * @return true if the file is of this type, false if not.
+		 */
+		public boolean detect(byte[] header, int length);
+	}
+
+	/**
+	 * Does something with a file of a certain type.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Handles a file.
+		 * @param f the file.
+		 * @throws IOException if the file could not be read.
+		 */
+		public void handle(File f) throws IOException;
+	}
+
+	/** Detectors. */
+	private List<Detector> detectors;
+	/** Handlers, by detector index. */
+	private List<Handler> handlers;
+	/** Handler for files that no detector matches. */
+	private Handler defaultHandler;
+
+	/**
+	 * Creates a new dispatcher with no detectors.
+	 */
+	public FileTypeDispatcher()
+	{
+		this.detectors = new List<Detector>(4);
+		this.handlers = new List<Handler>(4);
+		this.defaultHandler = null;
+	}
+
+	/**
+	 * Adds a detector and the handler for the files that it matches.
+	 * @param detector the detector.
+	 * @param handler the handler.
+	 * @return this dispatcher.
+	 */
+	public FileTypeDispatcher add(Detector detector, Handler handler)
+	{
+		detectors.add(detector);
+		handlers.add(handler);
+		return this;
+	}
+
+	/**
+	 * Sets the handler for files that no detector matches.
+	 * @param handler the handler, or null for none.
+	 * @return this dispatcher.
+	 */
+	public FileTypeDispatcher setDefault(Handler handler)
+	{
+		this.defaultHandler = handler;
+		return this;
+	}
+
+	/**
+	 * Reads the start of a file, and sends it to the handler of the first detector that matches.
+	 * @param f the file.
+	 * @return true if a handler got the file, false if nothing matched (and there is no default handler).
+	 * @throws IOException if the file could not be read, or the handler throws it.
+	 */
+	public boolean dispatch(File f) throws IOException
+	{
+		byte[] header = new byte[HEADER_LENGTH];
+		int length = readHeader(f, header);
+		for (int i = 0; i < detectors.size(); i++)
+		{
+			if (detectors.getByIndex(i).detect(header, length))
+			{
+				handlers.getByIndex(i).handle(f);
+				return true;
+			}
+		}
+		if (defaultHandler != null)
+		{
+			defaultHandler.handle(f);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the start of a file.
+	 * @param f the file.
+	 * @param header the array to read into.
+	 * @return the amount of bytes read (less than the array length if the file is shorter).
+	 * @throws IOException if the file could not be read.
+	 */
+	public static int readHeader(File f, byte[] header) throws IOException
+	{
+		InputStream in = null;
+		try {
+			in = Stats.countInput(new FileInputStream(f));
+			Stats.addFile();
+			int total = 0;
+			int n;
+			while (total < header.length && (n = in.read(header, total, header.length - total)) > 0)
+				total += n;
+			return total;
+		} finally {
+			Common.close(in);
+		}
+	}
+
+}
@@ -0,0 +1,511 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.mtrop.doom.Wad;
+import net.mtrop.doom.WadEntry;
+import net.mtrop.doom.WadMap;
+import net.mtrop.doom.util.MapUtils;
+
+import com.blackrook.commons.Common;
+
+/**
+ * An on-disk cache of things decoded from lumps (like map header lists, parsed
+ * TEXTUREx/PNAMES, and texture name sets), shared by every tool run that uses
+ * the same directory.
+ * <p>
+ * Each entry is kept in its own file, named by a hash of its key. A key is made from
+ * the identity of the source file (path, length, and modified time), the offset and
+ * size of the lump in it, and the kind of thing stored, so a changed file never gets
+ * old entries. When the directory gets bigger than its capacity, the entries that
+ * were used longest ago are deleted. Entries are written to a temporary file and
+ * moved into place, so many programs can use the same directory at once.
+ * <p>
+ * The cache is off unless the {@value #DIRECTORY_VARIABLE} environment variable
+ * is set to a directory (see {@link #getShared()}). Errors are never thrown from
+ * it: an entry that can't be read or written is just not cached. Map header lists
+ * are also kept in memory, whether or not the cache is on (see {@link #getMapHeaders(File, Wad)}).
+ * @author Matthew Tropiano
+ */
+public class LumpCache
+{
+	/** Environment variable for the cache directory. */
+	public static final String DIRECTORY_VARIABLE = "DOOM_LUMP_CACHE";
+	/** Environment variable for the cache capacity, in megabytes. */
+	public static final String CAPACITY_VARIABLE = "DOOM_LUMP_CACHE_SIZE";
+	/** Default capacity in bytes. */
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	/** Entry file extension. */
+	private static final String EXTENSION = ".lump";
+	/** Entry file magic number. */
+	private static final byte[] MAGIC = {'L', 'M', 'P', 'C', 0, 0, 0, 1};
+	/** Key text charset. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Hex digits. */
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/** Accepts entry files. */
+	private static final FileFilter ENTRY_FILTER = new FileFilter()
+	{
+		@Override
+		public boolean accept(File f)
+		{
+			return f.isFile() && f.getName().endsWith(EXTENSION);
+		}
+	};
+
+	/** Most map header lists kept in memory. */
+	private static final int MAP_HEADERS_CAPACITY = 4096;
+
+	/** Map header lists kept in memory, by file identity, in order of use (oldest first). */
+	private static final LinkedHashMap<String, String[]> MAP_HEADERS = new LinkedHashMap<String, String[]>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 4315730184526103946L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest)
+		{
+			return size() > MAP_HEADERS_CAPACITY;
+		}
+	};
+
+	/** The shared cache. */
+	private static LumpCache shared = null;
+	/** Was the shared cache looked for? */
+	private static boolean sharedChecked = false;
+
+	/** Cache directory. */
+	private File directory;
+	/** Capacity in bytes. */
+	private long capacity;
+	/** Bytes in the directory, or -1 if not counted yet. */
+	private long size;
+
+	/** Entries found. */
+	private long hits;
+	/** Entries not found. */
+	private long misses;
+
+	/**
+	 * Creates a new cache.
+	 * @param directory the directory to keep entries in (made if it does not exist).
+	 * @param capacity the most bytes to keep.
+	 * @throws IllegalArgumentException if the capacity is less than 1.
+	 */
+	public LumpCache(File directory, long capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.directory = directory;
+		this.capacity = capacity;
+		this.size = -1;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Gets the cache shared by everything in this program, made from the
+	 * {@value #DIRECTORY_VARIABLE} and {@value #CAPACITY_VARIABLE} environment variables.
+	 * @return the shared cache, or null if the cache is not turned on.
+	 */
+	public static synchronized LumpCache getShared()
+	{
+		if (!sharedChecked)
+		{
+			sharedChecked = true;
+			String path = System.getenv(DIRECTORY_VARIABLE);
+			if (!Common.isEmpty(path))
+			{
+				long capacity = DEFAULT_CAPACITY;
+				String megs = System.getenv(CAPACITY_VARIABLE);
+				if (!Common.isEmpty(megs)) try {
+					capacity = Math.max(Long.parseLong(megs.trim()), 1L) * 1024 * 1024;
+				} catch (NumberFormatException e) {
+					// keep default.
+				}
+				shared = new LumpCache(new File(path), capacity);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Sets the cache shared by everything in this program.
+	 * @param cache the cache, or null to turn the shared cache off.
+	 */
+	public static synchronized void setShared(LumpCache cache)
+	{
+		shared = cache;
+		sharedChecked = true;
+	}
+
+	/**
+	 * Makes a key for something decoded from part of a file.
+	 * @param f the source file.
+	 * @param offset the offset of the decoded data in the file.
+	 * @param length the length of the decoded data.
+	 * @param kind the kind of thing decoded (like "texspy.textures"). Change this if its format changes.
+	 * @return the key.
+	 */
+	public static String getKey(File f, long offset, long length, String kind)
+	{
+		File file = f.getAbsoluteFile();
+		try {
+			file = file.getCanonicalFile();
+		} catch (IOException e) {
+			// keep absolute path.
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(file.getPath()).append('\n');
+		sb.append(file.length()).append('\n');
+		sb.append(file.lastModified()).append('\n');
+		sb.append(offset).append('\n');
+		sb.append(length).append('\n');
+		sb.append(kind);
+
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(UTF8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is not available.", e);
+		}
+
+		char[] out = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++)
+		{
+			out[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0f];
+			out[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0f];
+		}
+		return new String(out);
+	}
+
+	/**
+	 * Makes a key for something decoded from a lump in a WAD file.
+	 * @param f the WAD file.
+	 * @param entry the lump entry.
+	 * @param kind the kind of thing decoded.
+	 * @return the key.
+	 */
+	public static String getKey(File f, WadEntry entry, String kind)
+	{
+		return getKey(f, entry.getOffset(), entry.getSize(), kind);
+	}
+
+	/**
+	 * @return the cache directory.
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return the capacity in bytes.
+	 */
+	public long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Gets an entry, and marks it as just used.
+	 * @param key the entry key.
+	 * @return the entry data, or null if it is not in the cache.
+	 */
+	public byte[] get(String key)
+	{
+		File f = getEntryFile(key);
+		byte[] out = null;
+		InputStream in = null;
+		try {
+			in = Stats.countInput(new FileInputStream(f));
+			Stats.addFile();
+			byte[] data = Common.getBinaryContents(in);
+			if (data.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC))
+				out = Arrays.copyOfRange(data, MAGIC.length, data.length);
+		} catch (IOException e) {
+			// not cached.
+		} finally {
+			Common.close(in);
+		}
+
+		if (out != null)
+			f.setLastModified(System.currentTimeMillis());
+		synchronized (this)
+		{
+			if (out != null)
+				hits++;
+			else
+				misses++;
+		}
+		return out;
+	}
+
+	/**
+	 * Adds an entry, deleting the least-recently-used entries if the cache is full.
+	 * @param key the entry key.
+	 * @param data the entry data.
+	 */
+	public void put(String key, byte[] data)
+	{
+		File target = getEntryFile(key);
+		long oldLength = target.length();
+		File temp = null;
+		try {
+			if (!directory.exists() && !directory.mkdirs() && !directory.exists())
+				return;
+			temp = File.createTempFile(key + ".", ".tmp", directory);
+			OutputStream out = null;
+			try {
+				out = new BufferedOutputStream(Stats.countOutput(new FileOutputStream(temp)));
+				Stats.addFile();
+				out.write(MAGIC);
+				out.write(data);
+			} finally {
+				Common.close(out);
+			}
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			return;
+		} finally {
+			if (temp != null && temp.exists())
+				temp.delete();
+		}
+
+		synchronized (this)
+		{
+			if (size < 0)
+				size = countSize();
+			else
+				size += MAGIC.length + data.length - oldLength;
+			if (size > capacity)
+				evict();
+		}
+	}
+
+	/**
+	 * Gets a list of strings.
+	 * @param key the entry key.
+	 * @return the strings, or null if they are not in the cache.
+	 * @see #putStrings(String, String[])
+	 */
+	public String[] getStrings(String key)
+	{
+		byte[] data = get(key);
+		if (data == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			String[] out = new String[in.readInt()];
+			for (int i = 0; i < out.length; i++)
+				out[i] = in.readUTF();
+			return out;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a list of strings.
+	 * @param key the entry key.
+	 * @param values the strings.
+	 */
+	public void putStrings(String key, String[] values)
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeInt(values.length);
+			for (String s : values)
+				out.writeUTF(s);
+			out.flush();
+		} catch (IOException e) {
+			return;
+		}
+		put(key, bos.toByteArray());
+	}
+
+	/**
+	 * Gets the map headers in a WAD file, opening it only if they are not kept in memory.
+	 * @param f the WAD file.
+	 * @return the map header names.
+	 * @throws IOException if the WAD could not be read.
+	 * @see #getMapHeaders(File, Wad)
+	 */
+	public static String[] getMapHeaders(File f) throws IOException
+	{
+		String[] out = getKeptMapHeaders(FileIdentity.get(f));
+		if (out != null)
+			return out;
+		WadMap wm = new WadMap(f);
+		Stats.addFile();
+		return getMapHeaders(f, wm);
+	}
+
+	/**
+	 * Gets the map headers in a WAD. If the WAD is a file, the headers are kept in memory
+	 * by file identity (see {@link FileIdentity}), so a program that runs many utilities in one JVM
+	 * finds them once per file, and from the shared cache if it is on.
+	 * The headers are kept for the whole file, since they depend on every entry.
+	 * @param f the WAD file, or null if the WAD is not a file (like a WAD in a zip).
+	 * @param wad the opened WAD.
+	 * @return the map header names.
+	 * @throws IOException if the WAD could not be read.
+	 */
+	public static String[] getMapHeaders(File f, Wad wad) throws IOException
+	{
+		if (f == null)
+			return MapUtils.getAllMapHeaders(wad);
+
+		String identity = FileIdentity.get(f);
+		String[] out = getKeptMapHeaders(identity);
+		if (out != null)
+			return out;
+
+		LumpCache cache = getShared();
+		if (cache == null)
+			out = MapUtils.getAllMapHeaders(wad);
+		else
+		{
+			String key = getKey(f, 0L, f.length(), "mapheaders");
+			out = cache.getStrings(key);
+			if (out == null)
+			{
+				out = MapUtils.getAllMapHeaders(wad);
+				cache.putStrings(key, out);
+			}
+		}
+
+		if (identity != null) synchronized (MAP_HEADERS)
+		{
+			MAP_HEADERS.put(identity, out.clone());
+		}
+		return out;
+	}
+
+	// Gets a copy of the map headers kept in memory for a file identity, or null if none are kept.
+	private static String[] getKeptMapHeaders(String identity)
+	{
+		if (identity == null)
+			return null;
+		synchronized (MAP_HEADERS)
+		{
+			String[] out = MAP_HEADERS.get(identity);
+			return out != null ? out.clone() : null;
+		}
+	}
+
+	/**
+	 * Deletes all entries.
+	 */
+	public synchronized void clear()
+	{
+		File[] files = directory.listFiles(ENTRY_FILTER);
+		if (files != null) for (File f : files)
+			f.delete();
+		size = 0;
+	}
+
+	/**
+	 * @return the amount of times an entry was found.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the amount of times an entry was not found.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	// Gets the file for an entry.
+	private File getEntryFile(String key)
+	{
+		return new File(directory, key + EXTENSION);
+	}
+
+	// Counts the bytes in the directory. Other programs can add to it, so this is only a guess between counts.
+	private long countSize()
+	{
+		long out = 0;
+		File[] files = directory.listFiles(ENTRY_FILTER);
+		if (files != null) for (File f : files)
+			out += f.length();
+		return out;
+	}
+
+	// Deletes the oldest entries until the directory is down to three-quarters of the capacity (so this isn't done on every put).
+	private void evict()
+	{
+		File[] files = directory.listFiles(ENTRY_FILTER);
+		if (files == null)
+			return;
+
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		long total = 0;
+		for (int i = 0; i < files.length; i++)
+		{
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+			total += files[i].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(modified[a], modified[b]);
+			}
+		});
+
+		long target = capacity / 4 * 3;
+		for (int i = 0; i < order.length && total > target; i++)
+		{
+			File f = files[order[i]];
+			long length = f.length();
+			if (f.delete())
+				total -= length;
+		}
+		size = total;
+	}
+
+}
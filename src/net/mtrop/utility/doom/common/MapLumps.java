@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import net.mtrop.doom.Wad;
+
+import com.blackrook.commons.hash.CaseInsensitiveHash;
+
+/**
+ * The lumps that make up a map, and where a map ends in a list of entries.
+ * @author Matthew Tropiano
+ */
+public final class MapLumps
+{
+	/** Lumps that can follow a map header. */
+	private static final CaseInsensitiveHash MAP_LUMPS = new CaseInsensitiveHash()
+	{{
+		put("THINGS");
+		put("LINEDEFS");
+		put("SIDEDEFS");
+		put("VERTEXES");
+		put("SEGS");
+		put("SSECTORS");
+		put("NODES");
+		put("SECTORS");
+		put("REJECT");
+		put("BLOCKMAP");
+		put("BEHAVIOR");
+		put("SCRIPTS");
+		put("TEXTMAP");
+		put("ZNODES");
+		put("DIALOGUE");
+		put("ENDMAP");
+	}};
+
+	/**
+	 * A list of entry names, like a WAD directory.
+	 */
+	public interface Directory
+	{
+		/**
+		 * @return the amount of entries.
+		 */
+		int getEntryCount();
+
+		/**
+		 * @param index the entry index.
+		 * @return the name of the entry.
+		 */
+		String getEntryName(int index);
+	}
+
+	private MapLumps()
+	{
+	}
+
+	/**
+	 * Checks if a lump name is one that can follow a map header.
+	 * GL node lumps (GL_*) are not included, since they come after a map's own lumps.
+	 * @param name the lump name.
+	 * @return true if so, false if not.
+	 */
+	public static boolean isMapLump(String name)
+	{
+		return MAP_LUMPS.contains(name);
+	}
+
+	/**
+	 * Returns the index after the last entry of a map in a WAD.
+	 * @param wad the WAD.
+	 * @param headerIndex the index of the map header.
+	 * @return the index after the map's last entry.
+	 */
+	public static int getMapEnd(final Wad wad, int headerIndex)
+	{
+		return getMapEnd(new Directory()
+		{
+			@Override
+			public int getEntryCount()
+			{
+				return wad.getSize();
+			}
+
+			@Override
+			public String getEntryName(int index)
+			{
+				return wad.getEntry(index).getName();
+			}
+		}, headerIndex);
+	}
+
+	/**
+	 * Returns the index after the last entry of a map in a list of entries.
+	 * UDMF maps end after ENDMAP. Binary maps end at the first entry that is not
+	 * a map lump or a GL node lump.
+	 * @param dir the entries.
+	 * @param headerIndex the index of the map header.
+	 * @return the index after the map's last entry.
+	 */
+	public static int getMapEnd(Directory dir, int headerIndex)
+	{
+		int count = dir.getEntryCount();
+		int i = headerIndex + 1;
+		if (i < count && dir.getEntryName(i).equalsIgnoreCase("TEXTMAP"))
+		{
+			while (i < count && !dir.getEntryName(i).equalsIgnoreCase("ENDMAP"))
+				i++;
+			return Math.min(i + 1, count);
+		}
+
+		while (i < count)
+		{
+			String name = dir.getEntryName(i);
+			if (!MAP_LUMPS.contains(name) && !name.startsWith("GL_"))
+				break;
+			i++;
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,686 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * One node in a {@link ResourceTree}: a directory, a file, a zip entry, or a WAD lump.
+ * <p>
+ * Files and entries that are WADs or zips (found by their first bytes) are also
+ * containers, and their lumps or entries are their children, so archives in
+ * archives can be walked like directories. Children are only found when first
+ * asked for, and data is only read when asked for.
+ * <p>
+ * Data in files on disk (including the lumps of WADs on disk) is read through
+ * the tree's {@link BlockCache}. Entries in zips are inflated as they are read. WADs and
+ * zips inside of zips are read into memory once, when their children are first
+ * asked for.
+ * @author Matthew Tropiano
+ */
+public class Resource
+{
+	/** Container type: not checked yet. */
+	private static final int CONTAINER_UNKNOWN = -1;
+	/** Container type: not a container. */
+	private static final int CONTAINER_NONE = 0;
+	/** Container type: directory (on disk, or in a zip). */
+	private static final int CONTAINER_DIRECTORY = 1;
+	/** Container type: WAD. */
+	private static final int CONTAINER_WAD = 2;
+	/** Container type: zip. */
+	private static final int CONTAINER_ZIP = 3;
+
+	/** Owning tree. */
+	private ResourceTree tree;
+	/** Parent (null if a root). */
+	private Resource parent;
+	/** Name. */
+	private String name;
+	/** File on disk (null if in an archive). */
+	private File file;
+	/** Data (null if a directory). */
+	private Data data;
+	/** Container type. */
+	private int containerType;
+	/** Children (null until found). */
+	private List<Resource> children;
+
+	// Creates a resource for a file or directory on disk.
+	Resource(ResourceTree tree, Resource parent, File file)
+	{
+		this.tree = tree;
+		this.parent = parent;
+		this.name = parent != null ? file.getName() : file.getPath();
+		this.file = file;
+		this.data = file.isDirectory() ? null : new FileData(tree, file);
+		this.containerType = file.isDirectory() ? CONTAINER_DIRECTORY : CONTAINER_UNKNOWN;
+		this.children = null;
+	}
+
+	// Creates a resource in an archive.
+	private Resource(Resource parent, String name, Data data, int containerType)
+	{
+		this.tree = parent.tree;
+		this.parent = parent;
+		this.name = name;
+		this.file = null;
+		this.data = data;
+		this.containerType = containerType;
+		this.children = data == null ? new List<Resource>() : null;
+	}
+
+	/**
+	 * @return the name of this resource: a file name, entry name, or lump name (or the path given, for a root).
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the parent of this resource, or null if it is a root.
+	 */
+	public Resource getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * Gets the full path of this resource. Files on disk have their own path,
+	 * things in a WAD or zip have the archive's path, a colon, and then their
+	 * path in the archive (like "maps.pk3:maps/map01.wad:THINGS").
+	 * @return the path.
+	 */
+	public String getPath()
+	{
+		if (file != null)
+			return file.getPath();
+		else if (parent.data != null)
+			return parent.getPath() + ":" + name;
+		else
+			return parent.getPath() + "/" + name;
+	}
+
+	/**
+	 * @return the file on disk for this resource, or null if it is in an archive.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return true if this resource has data (is not a directory), false if not.
+	 */
+	public boolean hasData()
+	{
+		return data != null;
+	}
+
+	/**
+	 * @return the length of the data in bytes (0 for directories).
+	 */
+	public long getSize()
+	{
+		return data != null ? data.length() : 0L;
+	}
+
+	/**
+	 * Reads part of the data.
+	 * @param position the position in the data.
+	 * @param b the array to read into.
+	 * @param offset the offset into the array.
+	 * @param length the most bytes to read.
+	 * @return the amount of bytes read (less than length only at the end of the data).
+	 * @throws IOException if the data could not be read.
+	 */
+	public int read(long position, byte[] b, int offset, int length) throws IOException
+	{
+		if (data == null)
+			return 0;
+		length = (int)Math.max(0L, Math.min(length, data.length() - position));
+		return length > 0 ? data.read(position, b, offset, length) : 0;
+	}
+
+	/**
+	 * Reads all of the data.
+	 * @return the data (empty for directories).
+	 * @throws IOException if the data could not be read, or is over 2 GB.
+	 */
+	public byte[] getData() throws IOException
+	{
+		long length = getSize();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException(getPath() + " is too big to read into memory.");
+		byte[] out = new byte[(int)length];
+		if (read(0L, out, 0, out.length) < out.length)
+			throw new IOException("Unexpected end of " + getPath() + ".");
+		Stats.addLump();
+		return out;
+	}
+
+	/**
+	 * @return a stream over the data.
+	 * @throws IOException if the data could not be read.
+	 */
+	public InputStream getInputStream() throws IOException
+	{
+		if (data instanceof ZipEntryData)
+			return Stats.countInput(((ZipEntryData)data).open());
+		return new ResourceInputStream();
+	}
+
+	/**
+	 * Checks if this resource has children: if it is a directory, WAD, or zip.
+	 * Only files and zip entries are checked (by their first bytes); WAD lumps never are.
+	 * @return true if so, false if not.
+	 * @throws IOException if the data could not be read.
+	 */
+	public synchronized boolean isContainer() throws IOException
+	{
+		if (containerType == CONTAINER_UNKNOWN)
+		{
+			byte[] header = new byte[FileTypeDispatcher.HEADER_LENGTH];
+			int length = read(0L, header, 0, header.length);
+			if (FileTypeDispatcher.WAD.detect(header, length))
+				containerType = CONTAINER_WAD;
+			else if (FileTypeDispatcher.ZIP.detect(header, length))
+				containerType = CONTAINER_ZIP;
+			else
+				containerType = CONTAINER_NONE;
+		}
+		return containerType != CONTAINER_NONE;
+	}
+
+	/**
+	 * Gets the children of this resource, finding them if they were not found yet.
+	 * @return the children, in directory or archive order (empty if not a container).
+	 * @throws IOException if the children could not be read.
+	 */
+	public synchronized List<Resource> getChildren() throws IOException
+	{
+		if (children == null)
+		{
+			List<Resource> out = new List<Resource>();
+			if (isContainer())
+			{
+				switch (containerType)
+				{
+					case CONTAINER_DIRECTORY:
+						readDirectory(out);
+						break;
+					case CONTAINER_WAD:
+						readWad(out);
+						break;
+					case CONTAINER_ZIP:
+						readZip(out);
+						break;
+				}
+			}
+			children = out;
+		}
+		return children;
+	}
+
+	/**
+	 * Gets the first child with a name.
+	 * @param name the name (case-insensitive).
+	 * @return the child, or null if there is none.
+	 * @throws IOException if the children could not be read.
+	 */
+	public Resource getChild(String name) throws IOException
+	{
+		for (Resource r : getChildren())
+			if (r.name.equalsIgnoreCase(name))
+				return r;
+		return null;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getPath();
+	}
+
+	// Finds the files in a directory, sorted by name.
+	private void readDirectory(List<Resource> out)
+	{
+		File[] files = file.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File f : files)
+			out.add(new Resource(tree, this, f));
+	}
+
+	// Reads a WAD's lump directory.
+	private void readWad(List<Resource> out) throws IOException
+	{
+		// a WAD in a zip is read into memory, so its lumps aren't inflated over and over.
+		if (data instanceof ZipEntryData)
+			data = new MemoryData(getData());
+
+		byte[] header = new byte[12];
+		if (read(0L, header, 0, 12) < 12)
+			throw new IOException("Unexpected end of WAD " + getPath() + ".");
+		ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		int count = hb.getInt(4);
+		long directoryOffset = hb.getInt(8) & 0x0FFFFFFFFL;
+		if (count < 0 || directoryOffset + count * 16L > data.length())
+			throw new IOException("Bad lump directory in WAD " + getPath() + ".");
+
+		byte[] directory = new byte[count * 16];
+		read(directoryOffset, directory, 0, directory.length);
+		ByteBuffer db = ByteBuffer.wrap(directory).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++)
+		{
+			long offset = db.getInt() & 0x0FFFFFFFFL;
+			long size = db.getInt() & 0x0FFFFFFFFL;
+			int nameLength = 0;
+			while (nameLength < 8 && directory[i * 16 + 8 + nameLength] != 0)
+				nameLength++;
+			String lumpName = new String(directory, i * 16 + 8, nameLength, "ASCII");
+			db.position(db.position() + 8);
+			if (offset + size > data.length())
+				throw new IOException("Lump " + lumpName + " is past the end of WAD " + getPath() + ".");
+			out.add(new Resource(this, lumpName, new RangeData(data, offset, size), CONTAINER_NONE));
+		}
+	}
+
+	// Reads a zip's entries, making resources for the folders in their names.
+	private void readZip(List<Resource> out) throws IOException
+	{
+		HashMap<String, Resource> folders = new HashMap<String, Resource>();
+		if (file != null)
+		{
+			ZipFile zf = tree.openZip(file);
+			Enumeration<? extends ZipEntry> en = zf.entries();
+			while (en.hasMoreElements())
+			{
+				ZipEntry ze = en.nextElement();
+				if (!ze.isDirectory())
+					addZipEntry(out, folders, ze.getName(), new ZipEntryData(zf, ze));
+			}
+		}
+		else
+		{
+			// a zip in a zip (or a WAD) can't be opened as a ZipFile, so its entries are read into memory.
+			ZipInputStream zin = new ZipInputStream(getInputStream());
+			try {
+				ZipEntry ze;
+				byte[] buffer = new byte[8192];
+				while ((ze = zin.getNextEntry()) != null)
+				{
+					if (ze.isDirectory())
+						continue;
+					ByteArrayOutputStream bos = new ByteArrayOutputStream(ze.getSize() > 0 ? (int)ze.getSize() : 8192);
+					int n;
+					while ((n = zin.read(buffer)) > 0)
+						bos.write(buffer, 0, n);
+					addZipEntry(out, folders, ze.getName(), new MemoryData(bos.toByteArray()));
+				}
+			} finally {
+				Common.close(zin);
+			}
+		}
+	}
+
+	// Adds a zip entry under its folders.
+	private void addZipEntry(List<Resource> out, HashMap<String, Resource> folders, String path, Data entryData)
+	{
+		Resource folder = this;
+		List<Resource> list = out;
+		int start = 0;
+		int slash;
+		while ((slash = path.indexOf('/', start)) >= 0)
+		{
+			String folderPath = path.substring(0, slash);
+			Resource next = folders.get(folderPath);
+			if (next == null)
+			{
+				next = new Resource(folder, path.substring(start, slash), null, CONTAINER_DIRECTORY);
+				folders.put(folderPath, next);
+				list.add(next);
+			}
+			folder = next;
+			list = next.children;
+			start = slash + 1;
+		}
+		list.add(new Resource(folder, path.substring(start), entryData, CONTAINER_UNKNOWN));
+	}
+
+	/** A stream over data, read through its read method. */
+	private class ResourceInputStream extends InputStream
+	{
+		private long position = 0L;
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? (b[0] & 0x0ff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException
+		{
+			int n = Resource.this.read(position, b, offset, length);
+			if (n <= 0)
+				return length == 0 ? 0 : -1;
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			n = Math.max(0L, Math.min(n, getSize() - position));
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int)Math.min(Integer.MAX_VALUE, getSize() - position);
+		}
+	}
+
+	/** Random-access resource data. */
+	interface Data
+	{
+		/**
+		 * @return the length of the data in bytes.
+		 */
+		long length();
+
+		/**
+		 * Reads data. The range is always inside the data.
+		 * @param position the position in the data.
+		 * @param b the array to read into.
+		 * @param offset the offset into the array.
+		 * @param length the amount of bytes to read.
+		 * @return the amount of bytes read.
+		 * @throws IOException if the data could not be read.
+		 */
+		int read(long position, byte[] b, int offset, int length) throws IOException;
+	}
+
+	/** Data in memory. */
+	private static class MemoryData implements Data
+	{
+		private byte[] bytes;
+
+		private MemoryData(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		@Override
+		public long length()
+		{
+			return bytes.length;
+		}
+
+		@Override
+		public int read(long position, byte[] b, int offset, int length)
+		{
+			System.arraycopy(bytes, (int)position, b, offset, length);
+			return length;
+		}
+	}
+
+	/** Part of other data (a WAD lump). */
+	private static class RangeData implements Data
+	{
+		private Data source;
+		private long start;
+		private long length;
+
+		private RangeData(Data source, long start, long length)
+		{
+			this.source = source;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public long length()
+		{
+			return length;
+		}
+
+		@Override
+		public int read(long position, byte[] b, int offset, int length) throws IOException
+		{
+			return source.read(start + position, b, offset, length);
+		}
+	}
+
+	/**
+	 * A zip entry, inflated as it is read. The stream is kept open between reads,
+	 * so reading an entry from start to end inflates it once; it is only opened
+	 * again when a read goes backwards.
+	 */
+	private static class ZipEntryData implements Data
+	{
+		private ZipFile zip;
+		private ZipEntry entry;
+		private InputStream in;
+		private long inPosition;
+
+		private ZipEntryData(ZipFile zip, ZipEntry entry)
+		{
+			this.zip = zip;
+			this.entry = entry;
+			this.in = null;
+			this.inPosition = 0L;
+		}
+
+		private InputStream open() throws IOException
+		{
+			return zip.getInputStream(entry);
+		}
+
+		@Override
+		public long length()
+		{
+			return entry.getSize();
+		}
+
+		@Override
+		public synchronized int read(long position, byte[] b, int offset, int length) throws IOException
+		{
+			try {
+				if (in == null || position < inPosition)
+				{
+					Common.close(in);
+					in = open();
+					inPosition = 0L;
+				}
+				while (inPosition < position)
+				{
+					long n = in.skip(position - inPosition);
+					if (n <= 0)
+						throw new IOException("Unexpected end of zip entry " + entry.getName() + ".");
+					inPosition += n;
+				}
+				int total = 0;
+				int n;
+				while (total < length && (n = in.read(b, offset + total, length - total)) > 0)
+					total += n;
+				inPosition += total;
+				Stats.addBytesRead(total);
+				// done with the entry: don't hold on to its inflater.
+				if (inPosition >= entry.getSize())
+				{
+					Common.close(in);
+					in = null;
+				}
+				return total;
+			} catch (IOException e) {
+				Common.close(in);
+				in = null;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * A file on disk, read a block at a time through the tree's cache.
+	 * The file is opened when first read, and may be closed by the tree
+	 * (and opened again) to keep the amount of open files down.
+	 */
+	static class FileData implements Data
+	{
+		private ResourceTree tree;
+		private File file;
+		private long length;
+		private BlockCache.Source source;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+
+		private FileData(ResourceTree tree, File file)
+		{
+			this.tree = tree;
+			this.file = file;
+			this.length = file.length();
+			this.source = null;
+			this.raf = null;
+			this.channel = null;
+		}
+
+		@Override
+		public long length()
+		{
+			return length;
+		}
+
+		@Override
+		public int read(long position, byte[] b, int offset, int length) throws IOException
+		{
+			BlockCache cache = tree.getCache();
+			BlockCache.Source source = getSource();
+			int blockSize = cache.getBlockSize();
+			int total = 0;
+			while (total < length)
+			{
+				long index = position / blockSize;
+				int blockOffset = (int)(position % blockSize);
+				byte[] block = cache.get(source, index);
+				if (block == null)
+				{
+					block = loadBlock(source, index, blockSize);
+					cache.put(source, index, block);
+				}
+				int n = Math.min(length - total, block.length - blockOffset);
+				if (n <= 0)
+					break;
+				System.arraycopy(block, blockOffset, b, offset + total, n);
+				total += n;
+				position += n;
+			}
+			return total;
+		}
+
+		// Gets the file's source in the cache, acquiring it on the first read (or the first one after the tree was closed).
+		private synchronized BlockCache.Source getSource() throws IOException
+		{
+			if (source == null)
+			{
+				BlockCache.Source s = tree.getCache().acquire(file);
+				if (s.getLength() != length)
+				{
+					tree.getCache().release(s);
+					throw new IOException(file.getPath() + " changed while being read.");
+				}
+				source = s;
+				tree.acquired(this);
+			}
+			return source;
+		}
+
+		// Reads a block from the file.
+		private byte[] loadBlock(BlockCache.Source source, long index, int blockSize) throws IOException
+		{
+			long start = index * blockSize;
+			byte[] out = new byte[(int)Math.min(blockSize, length - start)];
+			FileData evicted = null;
+			try {
+				synchronized (this)
+				{
+					if (channel == null)
+					{
+						// blocks of a file that changed since it was first read would not match the cached ones.
+						if (source.isChanged())
+							throw new IOException(file.getPath() + " changed while being read.");
+						raf = new RandomAccessFile(file, "r");
+						channel = raf.getChannel();
+						Stats.addFile();
+						evicted = tree.opened(this);
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(out);
+					while (buffer.hasRemaining())
+					{
+						if (channel.read(buffer, start + buffer.position()) < 0)
+							throw new IOException("Unexpected end of " + file.getPath() + ".");
+					}
+					Stats.addBytesRead(out.length);
+				}
+			} finally {
+				// closed outside of this lock, so two files can't wait on each other.
+				if (evicted != null)
+					evicted.close();
+			}
+			return out;
+		}
+
+		/**
+		 * Closes the file, if it is open. It is opened again on the next read.
+		 */
+		synchronized void close()
+		{
+			if (raf != null)
+			{
+				Common.close(raf);
+				tree.closed(this);
+			}
+			raf = null;
+			channel = null;
+		}
+
+		/**
+		 * Releases the file's source in the cache, if it has one.
+		 * It is acquired again on the next read.
+		 */
+		synchronized void release()
+		{
+			if (source != null)
+				tree.getCache().release(source);
+			source = null;
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.zip.ZipFile;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.list.List;
+
+/**
+ * A read-only tree of resources over directories, WADs, and zips (PK3s),
+ * including WADs and zips inside of other zips.
+ * <p>
+ * Each file or directory added is a root {@link Resource}. Files on disk are
+ * read through a {@link BlockCache} (the shared one, unless another is given),
+ * and only a limited amount of them are kept open at once.
+ * <p>
+ * Close the tree when done with it, to close the files that it opened.
+ * @author Matthew Tropiano
+ */
+public class ResourceTree implements Closeable
+{
+	/** Most files kept open at once (zips not counted). */
+	private static final int MAX_OPEN_FILES = 64;
+
+	/** Block cache. */
+	private BlockCache cache;
+	/** Roots. */
+	private List<Resource> roots;
+	/** Open files, oldest first. */
+	private LinkedHashMap<Resource.FileData, Boolean> openFiles;
+	/** Files that have a source in the block cache. */
+	private List<Resource.FileData> cachedFiles;
+	/** Open zips. */
+	private List<ZipFile> openZips;
+
+	/**
+	 * Creates a new tree that reads through the shared block cache.
+	 */
+	public ResourceTree()
+	{
+		this(BlockCache.getShared());
+	}
+
+	/**
+	 * Creates a new tree.
+	 * @param cache the block cache to read files through.
+	 */
+	public ResourceTree(BlockCache cache)
+	{
+		this.cache = cache;
+		this.roots = new List<Resource>();
+		this.openFiles = new LinkedHashMap<Resource.FileData, Boolean>();
+		this.cachedFiles = new List<Resource.FileData>();
+		this.openZips = new List<ZipFile>();
+	}
+
+	/**
+	 * @return the block cache that files are read through.
+	 */
+	public BlockCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Adds a file or directory as a new root.
+	 * @param f the file or directory.
+	 * @return the new root resource.
+	 * @throws FileNotFoundException if the file does not exist.
+	 */
+	public synchronized Resource add(File f) throws FileNotFoundException
+	{
+		if (!f.exists())
+			throw new FileNotFoundException(f.getPath() + " does not exist.");
+		Resource out = new Resource(this, null, f);
+		roots.add(out);
+		return out;
+	}
+
+	/**
+	 * @return the roots, in the order that they were added.
+	 */
+	public synchronized List<Resource> getRoots()
+	{
+		return roots;
+	}
+
+	/**
+	 * Closes all open files and zips, and releases this tree's files in the
+	 * block cache (see {@link BlockCache#release(BlockCache.Source)}).
+	 * Resources that are read after this open their files again (but zip
+	 * entries can't be read).
+	 */
+	@Override
+	public void close()
+	{
+		Resource.FileData[] files;
+		Resource.FileData[] cached;
+		synchronized (this)
+		{
+			files = new Resource.FileData[openFiles.size()];
+			openFiles.keySet().toArray(files);
+			cached = new Resource.FileData[cachedFiles.size()];
+			cachedFiles.toArray(cached);
+			cachedFiles.clear();
+			for (ZipFile zf : openZips)
+				Common.close(zf);
+			openZips.clear();
+		}
+		// closed outside of this lock, since closing a file calls back into this.
+		for (Resource.FileData fd : files)
+			fd.close();
+		for (Resource.FileData fd : cached)
+			fd.release();
+	}
+
+	// Opens a zip, to be closed with this tree.
+	synchronized ZipFile openZip(File f) throws IOException
+	{
+		ZipFile out = new ZipFile(f);
+		Stats.addFile();
+		openZips.add(out);
+		return out;
+	}
+
+	// Notes a newly opened file. Returns a file that should be closed to keep the open amount down, or null.
+	synchronized Resource.FileData opened(Resource.FileData fd)
+	{
+		openFiles.put(fd, Boolean.TRUE);
+		if (openFiles.size() <= MAX_OPEN_FILES)
+			return null;
+		Resource.FileData eldest = openFiles.keySet().iterator().next();
+		openFiles.remove(eldest);
+		return eldest;
+	}
+
+	// Notes a file that acquired a source in the block cache.
+	synchronized void acquired(Resource.FileData fd)
+	{
+		cachedFiles.add(fd);
+	}
+
+	// Notes a closed file.
+	synchronized void closed(Resource.FileData fd)
+	{
+		openFiles.remove(fd);
+	}
+
+}
@@ -0,0 +1,627 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * Timing and I/O counts for one run of a utility, split into phases.
+ * <p>
+ * A run is started with {@link #begin(String)} and ended with {@link #end()} (or both are done,
+ * along with checking and printing the stats format, by {@link #run(String, String, PrintStream, Task)}).
+ * While it runs,
+ * {@link #phase(String)} ends the last phase and starts a new one, and the count methods
+ * (like {@link #addBytesRead(long)}) add to the current phase and to the run's total.
+ * The run is kept for the thread that began it and for threads started by that thread
+ * (like the workers of a thread pool made by a utility), so many utilities can run at once
+ * in one JVM, each with its own counts. Phases should only be started by the thread that
+ * began the run. Anything done before the first call to {@link #phase(String)} is counted in a
+ * "Setup" phase. When no run is going, all of the static methods do nothing.
+ * <p>
+ * Each phase records its wall time, the CPU time and heap bytes allocated (where the JVM can
+ * measure them), and the bytes read and written, lumps decoded, and files opened by all threads
+ * during it. CPU time and allocated bytes are those of the thread that ran the phase, plus
+ * those of the pool tasks wrapped with {@link #wrap(Callable)} that finished during it. If the JVM has Flight Recorder, each phase is
+ * also committed as a Flight Recorder event, so phases show up in recordings of any run.
+ * @author Matthew Tropiano
+ */
+public final class Stats
+{
+	/** Stats format setting. */
+	public static final String SETTING_STATS = "stats";
+	/** Switch: print stats in a format (next argument). */
+	public static final String SWITCH_STATS = "-stats";
+	/** Stats format: table. */
+	public static final String FORMAT_TABLE = "table";
+	/** Stats format: JSON. */
+	public static final String FORMAT_JSON = "json";
+	/** Name of the phase before the first named one. */
+	public static final String PHASE_SETUP = "Setup";
+
+	/** Counter: bytes read. */
+	private static final int BYTES_READ = 0;
+	/** Counter: bytes written. */
+	private static final int BYTES_WRITTEN = 1;
+	/** Counter: lumps decoded. */
+	private static final int LUMPS = 2;
+	/** Counter: files opened. */
+	private static final int FILES = 3;
+	/** Counter: CPU time of wrapped tasks. */
+	private static final int TASK_CPU = 4;
+	/** Counter: bytes allocated by wrapped tasks. */
+	private static final int TASK_ALLOCATED = 5;
+	/** Counter count. */
+	private static final int COUNTERS = 6;
+
+	/** Run for the current thread. */
+	private static final InheritableThreadLocal<Stats> CURRENT = new InheritableThreadLocal<Stats>();
+	/** Thread bean. */
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	/** Can thread CPU time be measured? */
+	private static final boolean CPU_TIME = isCPUTimeSupported();
+	/** Can thread allocation be measured? */
+	private static final boolean ALLOCATION = isAllocationSupported();
+	/** Is Flight Recorder in this JVM? */
+	private static final boolean FLIGHT_RECORDER = isFlightRecorderSupported();
+
+	/** Utility name. */
+	private String utility;
+	/** Thread that began the run. */
+	private Thread owner;
+	/** Run that this one is inside of, on this thread, if any. */
+	private Stats previous;
+	/** Finished phases, in order. */
+	private List<Phase> phases;
+	/** Current phase. */
+	private volatile Phase phase;
+	/** Whole run. */
+	private Phase total;
+
+	/**
+	 * One phase of a run.
+	 */
+	public static class Phase
+	{
+		/** Phase name. */
+		private String name;
+		/** Wall time at start. */
+		private long startNanos;
+		/** Wall time in nanoseconds. */
+		private long wallNanos;
+		/** Thread CPU time at start. */
+		private long startCPU;
+		/** Thread CPU time in nanoseconds, not counting wrapped tasks (-1 if unknown). */
+		private long cpuNanos;
+		/** Thread allocated bytes at start. */
+		private long startAllocated;
+		/** Bytes allocated by the thread, not counting wrapped tasks (-1 if unknown). */
+		private long allocatedBytes;
+		/** Counters, added to by any thread. */
+		private AtomicLongArray counters;
+		/** Flight Recorder event, if any. */
+		private Object event;
+
+		private Phase(String name)
+		{
+			this.name = name;
+			this.counters = new AtomicLongArray(COUNTERS);
+			// event first, so that loading Flight Recorder isn't counted.
+			this.event = FLIGHT_RECORDER ? StatsEvent.start() : null;
+			this.startNanos = System.nanoTime();
+			this.startCPU = getThreadCPUTime();
+			this.startAllocated = getThreadAllocatedBytes();
+		}
+
+		// Stops the clocks of this phase.
+		private void stop()
+		{
+			wallNanos = System.nanoTime() - startNanos;
+			cpuNanos = startCPU < 0 ? -1L : getThreadCPUTime() - startCPU;
+			allocatedBytes = startAllocated < 0 ? -1L : getThreadAllocatedBytes() - startAllocated;
+		}
+
+		// Commits the Flight Recorder event of this stopped phase, if any.
+		private void commit(String utility)
+		{
+			if (event != null)
+				StatsEvent.commit(event, utility, this);
+		}
+
+		/** @return the phase name. */
+		public String getName()
+		{
+			return name;
+		}
+
+		/** @return the wall time in nanoseconds. */
+		public long getWallNanos()
+		{
+			return wallNanos;
+		}
+
+		/** @return the CPU time of the thread that ran the phase and of its wrapped tasks in nanoseconds, or -1 if the JVM can't measure it. */
+		public long getCPUNanos()
+		{
+			return cpuNanos < 0 ? -1L : cpuNanos + counters.get(TASK_CPU);
+		}
+
+		/** @return the heap bytes allocated by the thread that ran the phase and by its wrapped tasks, or -1 if the JVM can't measure it. */
+		public long getAllocatedBytes()
+		{
+			return allocatedBytes < 0 ? -1L : allocatedBytes + counters.get(TASK_ALLOCATED);
+		}
+
+		/** @return the bytes read. */
+		public long getBytesRead()
+		{
+			return counters.get(BYTES_READ);
+		}
+
+		/** @return the bytes written. */
+		public long getBytesWritten()
+		{
+			return counters.get(BYTES_WRITTEN);
+		}
+
+		/** @return the lumps decoded. */
+		public long getLumps()
+		{
+			return counters.get(LUMPS);
+		}
+
+		/** @return the files opened. */
+		public long getFiles()
+		{
+			return counters.get(FILES);
+		}
+	}
+
+	/**
+	 * The work of a utility, for {@link Stats#run(String, String, PrintStream, Task)}.
+	 */
+	public interface Task
+	{
+		/**
+		 * Does the work.
+		 * @return the utility's exit code.
+		 */
+		int run();
+
+		/**
+		 * Called instead of {@link #run()} if the stats format is not known,
+		 * after the error is printed.
+		 * @return the utility's exit code.
+		 */
+		int badFormat();
+	}
+
+	private Stats(String utility)
+	{
+		this.utility = utility;
+		this.phases = new List<Phase>();
+		this.total = new Phase("Total");
+		this.phase = new Phase(PHASE_SETUP);
+	}
+
+	/**
+	 * Starts a run on the current thread.
+	 * @param utility the utility name, like "MapCount".
+	 * @return the new run.
+	 */
+	public static Stats begin(String utility)
+	{
+		Stats out = new Stats(utility);
+		out.owner = Thread.currentThread();
+		out.previous = CURRENT.get();
+		CURRENT.set(out);
+		return out;
+	}
+
+	/**
+	 * Runs a utility's work as a run, and prints its stats to STDERR when it ends.
+	 * If the stats format is not known, an error is printed and the work is not run.
+	 * @param utility the utility name, like "MapCount".
+	 * @param format the stats format (see {@link #isFormat(String)}), or null to not print stats.
+	 * @param out the stream to print a bad format error to.
+	 * @param task the work.
+	 * @return the exit code from the task.
+	 */
+	public static int run(String utility, String format, PrintStream out, Task task)
+	{
+		if (format != null && !isFormat(format))
+		{
+			out.printf("ERROR: Bad stats format: %s. Must be \"table\" or \"json\".\n", format);
+			return task.badFormat();
+		}
+
+		Stats stats = begin(utility);
+		try {
+			return task.run();
+		} finally {
+			stats.end();
+			if (format != null)
+				stats.print(System.err, format);
+		}
+	}
+
+	/**
+	 * Wraps a task for a thread pool, so that the CPU time and bytes allocated by the
+	 * thread that runs it are added to the current thread's run, in the phase that is
+	 * going when it finishes. Tasks should finish before the run ends.
+	 * @param task the task.
+	 * @return the wrapped task, or the same task if no run is going or nothing can be measured.
+	 */
+	public static <T> Callable<T> wrap(final Callable<T> task)
+	{
+		final Stats s = CURRENT.get();
+		if (s == null || (!CPU_TIME && !ALLOCATION))
+			return task;
+		return new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				// the run's own thread is already counted.
+				if (Thread.currentThread() == s.owner)
+					return task.call();
+				long startCPU = getThreadCPUTime();
+				long startAllocated = getThreadAllocatedBytes();
+				try {
+					return task.call();
+				} finally {
+					if (startCPU >= 0)
+						add(s, TASK_CPU, getThreadCPUTime() - startCPU);
+					if (startAllocated >= 0)
+						add(s, TASK_ALLOCATED, getThreadAllocatedBytes() - startAllocated);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Ends the current phase (if any) and the run, and sets the current thread
+	 * back to the run that was going before this one was started, if any.
+	 */
+	public void end()
+	{
+		// stopped first, so that committing the last phase isn't counted.
+		total.stop();
+		nextPhase(null);
+		total.commit(utility);
+		if (previous != null)
+			CURRENT.set(previous);
+		else
+			CURRENT.remove();
+	}
+
+	// Ends the current phase, if any, and starts the next one, if any.
+	// The next phase starts before the ended one is committed, so no time falls between phases.
+	private synchronized void nextPhase(String name)
+	{
+		Phase p = phase;
+		if (p != null)
+			p.stop();
+		phase = name != null ? new Phase(name) : null;
+		if (p == null)
+			return;
+		p.commit(utility);
+		phases.add(p);
+	}
+
+	/**
+	 * Ends the current phase of the current thread's run and starts a new one.
+	 * Does nothing if no run is going.
+	 * @param name the phase name, like "Reading maps".
+	 */
+	public static void phase(String name)
+	{
+		Stats s = CURRENT.get();
+		if (s == null)
+			return;
+		s.nextPhase(name);
+	}
+
+	/**
+	 * Adds to the bytes read.
+	 * @param n the amount of bytes.
+	 */
+	public static void addBytesRead(long n)
+	{
+		add(CURRENT.get(), BYTES_READ, n);
+	}
+
+	/**
+	 * Adds to the bytes written.
+	 * @param n the amount of bytes.
+	 */
+	public static void addBytesWritten(long n)
+	{
+		add(CURRENT.get(), BYTES_WRITTEN, n);
+	}
+
+	/**
+	 * Adds a decoded lump.
+	 */
+	public static void addLump()
+	{
+		add(CURRENT.get(), LUMPS, 1);
+	}
+
+	/**
+	 * Adds a decoded lump, and its bytes to the bytes read.
+	 * This is for lumps read by the Doom library, where the reads themselves can't be counted.
+	 * @param length the lump length in bytes.
+	 */
+	public static void addLumpRead(long length)
+	{
+		Stats s = CURRENT.get();
+		add(s, LUMPS, 1);
+		add(s, BYTES_READ, length);
+	}
+
+	/**
+	 * Adds an opened file.
+	 */
+	public static void addFile()
+	{
+		add(CURRENT.get(), FILES, 1);
+	}
+
+	// Adds to a counter of the run and its current phase.
+	private static void add(Stats s, int counter, long n)
+	{
+		if (s == null)
+			return;
+		s.total.counters.addAndGet(counter, n);
+		Phase p = s.phase;
+		if (p != null)
+			p.counters.addAndGet(counter, n);
+	}
+
+	/**
+	 * Counts the bytes read from a stream. This does not count a file opened; see {@link #addFile()}.
+	 * @param in the input stream.
+	 * @return a stream that counts bytes read, or the same stream if no run is going.
+	 */
+	public static InputStream countInput(InputStream in)
+	{
+		final Stats s = CURRENT.get();
+		if (s == null)
+			return in;
+		return new FilterInputStream(in)
+		{
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b >= 0)
+					add(s, BYTES_READ, 1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int n = super.read(b, off, len);
+				if (n > 0)
+					add(s, BYTES_READ, n);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Counts the bytes written to a stream. This does not count a file opened; see {@link #addFile()}.
+	 * @param out the output stream.
+	 * @return a stream that counts bytes written, or the same stream if no run is going.
+	 */
+	public static OutputStream countOutput(OutputStream out)
+	{
+		final Stats s = CURRENT.get();
+		if (s == null)
+			return out;
+		return new FilterOutputStream(out)
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+				add(s, BYTES_WRITTEN, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+				add(s, BYTES_WRITTEN, len);
+			}
+		};
+	}
+
+	/**
+	 * Checks if a stats format is known.
+	 * @param format the format name.
+	 * @return true if it is {@link #FORMAT_TABLE} or {@link #FORMAT_JSON} (in any case), false if not.
+	 */
+	public static boolean isFormat(String format)
+	{
+		return FORMAT_TABLE.equalsIgnoreCase(format) || FORMAT_JSON.equalsIgnoreCase(format);
+	}
+
+	/**
+	 * @return the finished phases, in order. The run should be ended first.
+	 */
+	public Phase[] getPhases()
+	{
+		Phase[] out = new Phase[phases.size()];
+		phases.toArray(out);
+		return out;
+	}
+
+	/**
+	 * @return the whole run. The run should be ended first.
+	 */
+	public Phase getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * Prints the stats of an ended run.
+	 * @param out the stream to print to.
+	 * @param format {@link #FORMAT_TABLE} or {@link #FORMAT_JSON}.
+	 */
+	public void print(PrintStream out, String format)
+	{
+		if (FORMAT_JSON.equalsIgnoreCase(format))
+			printJSON(out);
+		else
+			printTable(out);
+	}
+
+	// Prints a table, one row per phase.
+	private void printTable(PrintStream out)
+	{
+		out.printf("%s stats:\n", utility);
+		out.printf("%-32s %10s %10s %14s %14s %8s %6s %14s\n", "Phase", "Wall ms", "CPU ms", "Read", "Written", "Lumps", "Files", "Alloc bytes");
+		for (Phase p : phases)
+			printRow(out, p);
+		printRow(out, total);
+		if (total.cpuNanos >= 0 || total.allocatedBytes >= 0)
+			out.println("CPU time and bytes allocated are for the thread that ran each phase and its pool tasks.");
+	}
+
+	// Prints one table row.
+	private static void printRow(PrintStream out, Phase p)
+	{
+		out.printf("%-32s %10.3f %10s %14d %14d %8d %6d %14s\n",
+			p.name.length() > 32 ? p.name.substring(0, 32) : p.name,
+			p.wallNanos / 1000000.0,
+			p.getCPUNanos() < 0 ? "-" : String.format("%.3f", p.getCPUNanos() / 1000000.0),
+			p.getBytesRead(),
+			p.getBytesWritten(),
+			p.getLumps(),
+			p.getFiles(),
+			p.getAllocatedBytes() < 0 ? "-" : String.valueOf(p.getAllocatedBytes())
+		);
+	}
+
+	// Prints one JSON object, on one line.
+	private void printJSON(PrintStream out)
+	{
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"utility\":").append(jsonString(utility));
+		sb.append(",\"phases\":[");
+		boolean first = true;
+		for (Phase p : phases)
+		{
+			if (!first)
+				sb.append(',');
+			appendJSON(sb, p);
+			first = false;
+		}
+		sb.append("],\"total\":");
+		appendJSON(sb, total);
+		sb.append('}');
+		out.println(sb.toString());
+	}
+
+	// Appends one phase as a JSON object. Unknown times and allocations are null.
+	private static void appendJSON(StringBuilder sb, Phase p)
+	{
+		sb.append("{\"name\":").append(jsonString(p.name));
+		sb.append(",\"wallNanos\":").append(p.wallNanos);
+		sb.append(",\"cpuNanos\":").append(p.getCPUNanos() < 0 ? "null" : String.valueOf(p.getCPUNanos()));
+		sb.append(",\"bytesRead\":").append(p.getBytesRead());
+		sb.append(",\"bytesWritten\":").append(p.getBytesWritten());
+		sb.append(",\"lumps\":").append(p.getLumps());
+		sb.append(",\"files\":").append(p.getFiles());
+		sb.append(",\"allocatedBytes\":").append(p.getAllocatedBytes() < 0 ? "null" : String.valueOf(p.getAllocatedBytes()));
+		sb.append('}');
+	}
+
+	// Makes a JSON string literal.
+	private static String jsonString(String s)
+	{
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+	// Gets the current thread's CPU time, or -1 if unknown.
+	private static long getThreadCPUTime()
+	{
+		return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1L;
+	}
+
+	// Gets the current thread's allocated bytes, or -1 if unknown.
+	private static long getThreadAllocatedBytes()
+	{
+		return ALLOCATION ? ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()) : -1L;
+	}
+
+	private static boolean isCPUTimeSupported()
+	{
+		try {
+			return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	// Not all JVMs have HotSpot's com.sun.management extensions.
+	private static boolean isAllocationSupported()
+	{
+		try {
+			if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+				return false;
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)THREADS;
+			return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+		} catch (LinkageError e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	// Flight Recorder's API is in Java 11 and later, and in Java 8 from update 262.
+	private static boolean isFlightRecorderSupported()
+	{
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+}
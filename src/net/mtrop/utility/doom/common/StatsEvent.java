@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one phase of a utility run.
+ * This class is only loaded by {@link Stats} if the JVM has Flight Recorder,
+ * so it is only ever used through the static methods, which take and return Objects.
+ * @author Matthew Tropiano
+ */
+@Name("net.mtrop.utility.doom.Phase")
+@Label("Utility Phase")
+@Category({"Doom Utilities"})
+@Description("One phase of a utility run.")
+final class StatsEvent extends Event
+{
+	@Label("Utility")
+	String utility;
+
+	@Label("Phase")
+	String phase;
+
+	@Label("CPU Time")
+	@Description("CPU time of the thread that ran the phase and of its pool tasks.")
+	@Timespan(Timespan.NANOSECONDS)
+	long cpuTime;
+
+	@Label("Bytes Read")
+	@DataAmount(DataAmount.BYTES)
+	long bytesRead;
+
+	@Label("Bytes Written")
+	@DataAmount(DataAmount.BYTES)
+	long bytesWritten;
+
+	@Label("Bytes Allocated")
+	@Description("Heap bytes allocated by the thread that ran the phase and by its pool tasks.")
+	@DataAmount(DataAmount.BYTES)
+	long allocated;
+
+	@Label("Lumps Decoded")
+	long lumps;
+
+	@Label("Files Opened")
+	long files;
+
+	/**
+	 * Starts a new event.
+	 * @return the event.
+	 */
+	static Object start()
+	{
+		StatsEvent out = new StatsEvent();
+		out.begin();
+		return out;
+	}
+
+	/**
+	 * Ends and commits an event, if it is enabled.
+	 * @param event the event made by {@link #start()}.
+	 * @param utility the utility name.
+	 * @param phase the ended phase.
+	 */
+	static void commit(Object event, String utility, Stats.Phase phase)
+	{
+		StatsEvent e = (StatsEvent)event;
+		e.end();
+		if (!e.shouldCommit())
+			return;
+		e.utility = utility;
+		e.phase = phase.getName();
+		e.cpuTime = phase.getCPUNanos();
+		e.bytesRead = phase.getBytesRead();
+		e.bytesWritten = phase.getBytesWritten();
+		e.allocated = phase.getAllocatedBytes();
+		e.lumps = phase.getLumps();
+		e.files = phase.getFiles();
+		e.commit();
+	}
+
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import net.mtrop.doom.Wad;
+import net.mtrop.doom.texture.CommonTexture;
+import net.mtrop.doom.texture.CommonTextureList;
+import net.mtrop.doom.texture.DoomTextureList;
+import net.mtrop.doom.texture.PatchNames;
+import net.mtrop.doom.texture.StrifeTextureList;
+import net.mtrop.doom.texture.TextureSet;
+import net.mtrop.doom.util.WadUtils;
+
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.list.List;
+
+/**
+ * The textures defined by a WAD's TEXTURE1, TEXTURE2 and PNAMES lumps, with
+ * the patch numbers in the texture lumps already turned into patch names.
+ * <p>
+ * WAD files are read through the shared {@link LumpCache}, if it is on, so
+ * runs that read the same WAD one after another (like textract runs over the
+ * same base WAD) only parse its texture lumps once.
+ * @author Matthew Tropiano
+ */
+public final class TextureLumps
+{
+	/** Cache entry kind. Change this if the entry format changes. */
+	private static final String CACHE_KIND = "textures.1";
+	/** Cache entry for a WAD without TEXTURE1. */
+	private static final TextureLumps NONE = new TextureLumps();
+
+	/** True if the texture lumps are in Strife format. */
+	private boolean strife;
+	/** Names in TEXTURE1, in order. */
+	private List<String> texture1Names;
+	/** Amount of entries in TEXTURE2, or -1 if there is no TEXTURE2. */
+	private int texture2Count;
+	/** Amount of entries in PNAMES. */
+	private int patchNameCount;
+	/** The textures, in TEXTURE1 and then TEXTURE2 order. */
+	private List<TextureDef> textures;
+
+	/** A texture, with its patches by name. */
+	private static class TextureDef
+	{
+		String name;
+		int width;
+		int height;
+		String[] patchNames;
+		int[] originX;
+		int[] originY;
+	}
+
+	private TextureLumps()
+	{
+		this.strife = false;
+		this.texture1Names = new List<String>();
+		this.texture2Count = -1;
+		this.patchNameCount = 0;
+		this.textures = new List<TextureDef>();
+	}
+
+	/**
+	 * Reads the texture lumps of an opened WAD, from the shared cache if it is
+	 * on and the WAD is a file.
+	 * The entry is kept for the whole file, since it depends on three lumps.
+	 * @param f the WAD file, or null if the WAD is not a file (like a WAD in memory).
+	 * @param wad the opened WAD.
+	 * @return the texture lumps, or null if the WAD has no TEXTURE1.
+	 * @throws IOException if the WAD could not be read, or it has a TEXTUREx without a PNAMES.
+	 */
+	public static TextureLumps read(File f, Wad wad) throws IOException
+	{
+		LumpCache cache = LumpCache.getShared();
+		String key = cache != null && f != null ? LumpCache.getKey(f, 0L, f.length(), CACHE_KIND) : null;
+		TextureLumps out = key != null ? fromBytes(cache.get(key)) : null;
+		if (out != null)
+			return out != NONE ? out : null;
+		return readAndCache(cache, key, wad);
+	}
+
+	/**
+	 * @return true if the texture lumps are in Strife format, false if Doom format.
+	 */
+	public boolean isStrife()
+	{
+		return strife;
+	}
+
+	/**
+	 * @return the amount of entries in TEXTURE1.
+	 */
+	public int getTexture1Count()
+	{
+		return texture1Names.size();
+	}
+
+	/**
+	 * @return a new set of the names in TEXTURE1.
+	 */
+	public Hash<String> getTexture1Names()
+	{
+		Hash<String> out = new Hash<String>(texture1Names.size());
+		for (String name : texture1Names)
+			out.put(name);
+		return out;
+	}
+
+	/**
+	 * @return true if the WAD has a TEXTURE2, false if not.
+	 */
+	public boolean hasTexture2()
+	{
+		return texture2Count >= 0;
+	}
+
+	/**
+	 * @return the amount of entries in TEXTURE2, or 0 if there is no TEXTURE2.
+	 */
+	public int getTexture2Count()
+	{
+		return Math.max(texture2Count, 0);
+	}
+
+	/**
+	 * @return the amount of entries in PNAMES.
+	 */
+	public int getPatchNameCount()
+	{
+		return patchNameCount;
+	}
+
+	/**
+	 * Makes a new texture set with all of the textures. Each call makes a new
+	 * set, so it can be changed without changing what this holds.
+	 * @return the new texture set.
+	 */
+	public TextureSet getTextureSet()
+	{
+		TextureSet out = new TextureSet(new PatchNames(), new DoomTextureList());
+		for (TextureDef def : textures)
+		{
+			if (out.contains(def.name))
+				out.removeTextureByName(def.name);
+			TextureSet.Texture tex = out.createTexture(def.name);
+			tex.setWidth(def.width);
+			tex.setHeight(def.height);
+			for (int i = 0; i < def.patchNames.length; i++)
+			{
+				TextureSet.Patch patch = tex.createPatch(def.patchNames[i]);
+				patch.setOriginX(def.originX[i]);
+				patch.setOriginY(def.originY[i]);
+			}
+		}
+		return out;
+	}
+
+	// Parses the texture lumps and adds them to the cache (if there is a key).
+	private static TextureLumps readAndCache(LumpCache cache, String key, Wad wad) throws IOException
+	{
+		TextureLumps out = parse(wad);
+		if (key != null)
+			cache.put(key, toBytes(out));
+		return out;
+	}
+
+	// Parses the texture lumps of a WAD.
+	private static TextureLumps parse(Wad wad) throws IOException
+	{
+		int index = wad.getIndexOf("TEXTURE1");
+		if (index < 0)
+			return null;
+
+		TextureLumps out = new TextureLumps();
+		byte[] textureData = wad.getData(index);
+		Stats.addLumpRead(textureData.length);
+		// figure out if Strife or Doom texture lump.
+		out.strife = WadUtils.isStrifeTextureData(textureData);
+		CommonTextureList<?> textureList1 = createTextureList(textureData, out.strife);
+		for (CommonTexture<?> ct : textureList1)
+			out.texture1Names.add(ct.getName());
+
+		CommonTextureList<?> textureList2 = null;
+		index = wad.getIndexOf("TEXTURE2");
+		if (index >= 0)
+		{
+			textureData = wad.getData(index);
+			Stats.addLumpRead(textureData.length);
+			textureList2 = createTextureList(textureData, WadUtils.isStrifeTextureData(textureData));
+			out.texture2Count = textureList2.size();
+		}
+
+		index = wad.getIndexOf("PNAMES");
+		if (index < 0)
+			throw new IOException("TEXTUREx without PNAMES!");
+		textureData = wad.getData(index);
+		Stats.addLumpRead(textureData.length);
+		PatchNames patchNames = PatchNames.create(textureData);
+		out.patchNameCount = patchNames.size();
+
+		TextureSet set = textureList2 != null
+			? new TextureSet(patchNames, textureList1, textureList2)
+			: new TextureSet(patchNames, textureList1);
+		for (TextureSet.Texture tex : set)
+		{
+			TextureDef def = new TextureDef();
+			def.name = tex.getName();
+			def.width = tex.getWidth();
+			def.height = tex.getHeight();
+			def.patchNames = new String[tex.getPatchCount()];
+			def.originX = new int[def.patchNames.length];
+			def.originY = new int[def.patchNames.length];
+			for (int i = 0; i < def.patchNames.length; i++)
+			{
+				TextureSet.Patch p = tex.getPatch(i);
+				def.patchNames[i] = p.getName();
+				def.originX[i] = p.getOriginX();
+				def.originY[i] = p.getOriginY();
+			}
+			out.textures.add(def);
+		}
+		return out;
+	}
+
+	// Creates a texture list from lump data.
+	private static CommonTextureList<?> createTextureList(byte[] data, boolean strife) throws IOException
+	{
+		if (strife)
+			return StrifeTextureList.create(data);
+		else
+			return DoomTextureList.create(data);
+	}
+
+	// Writes a cache entry (lumps is null for a WAD without TEXTURE1).
+	private static byte[] toBytes(TextureLumps lumps)
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		try {
+			out.writeBoolean(lumps != null);
+			if (lumps == null)
+				return bos.toByteArray();
+
+			out.writeBoolean(lumps.strife);
+			out.writeInt(lumps.texture2Count);
+			out.writeInt(lumps.patchNameCount);
+			out.writeInt(lumps.texture1Names.size());
+			for (String name : lumps.texture1Names)
+				out.writeUTF(name);
+			out.writeInt(lumps.textures.size());
+			for (TextureDef def : lumps.textures)
+			{
+				out.writeUTF(def.name);
+				out.writeInt(def.width);
+				out.writeInt(def.height);
+				out.writeInt(def.patchNames.length);
+				for (int i = 0; i < def.patchNames.length; i++)
+				{
+					out.writeUTF(def.patchNames[i]);
+					out.writeInt(def.originX[i]);
+					out.writeInt(def.originY[i]);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// can't happen with a byte array.
+		}
+		return bos.toByteArray();
+	}
+
+	// Reads a cache entry. Returns NONE for a WAD without TEXTURE1, or null if there is no entry or it can't be read.
+	private static TextureLumps fromBytes(byte[] data)
+	{
+		if (data == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			if (!in.readBoolean())
+				return NONE;
+			TextureLumps out = new TextureLumps();
+			out.strife = in.readBoolean();
+			out.texture2Count = in.readInt();
+			out.patchNameCount = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				out.texture1Names.add(in.readUTF());
+			count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				TextureDef def = new TextureDef();
+				def.name = in.readUTF();
+				def.width = in.readInt();
+				def.height = in.readInt();
+				def.patchNames = new String[in.readInt()];
+				def.originX = new int[def.patchNames.length];
+				def.originY = new int[def.patchNames.length];
+				for (int p = 0; p < def.patchNames.length; p++)
+				{
+					def.patchNames[p] = in.readUTF();
+					def.originX[p] = in.readInt();
+					def.originY[p] = in.readInt();
+				}
+				out.textures.add(def);
+			}
+			return out;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import com.blackrook.commons.Common;
+
+/**
+ * A {@link FileTypeDispatcher} for utilities that look at every WAD they are given,
+ * by itself or in a PK3.
+ * <p>
+ * WAD files go to one handler. PK3s are read through a {@link ResourceTree}, and
+ * each WAD in them (and in the PK3s in them) goes to another handler, as a stream.
+ * An entry that can't be read is reported to an output stream, and skipped.
+ * @author Matthew Tropiano
+ */
+public class WadDispatcher extends FileTypeDispatcher
+{
+	/**
+	 * Does something with a WAD in a PK3.
+	 */
+	public interface EntryHandler
+	{
+		/**
+		 * Handles a WAD in a PK3.
+		 * @param path the entry's path in the PK3.
+		 * @param in the entry's data. It is closed after this returns.
+		 * @throws IOException if the entry could not be read.
+		 */
+		public void handle(String path, InputStream in) throws IOException;
+	}
+
+	/** WAD entry handler. */
+	private EntryHandler entryHandler;
+	/** Stream for entry errors. */
+	private PrintStream out;
+
+	/**
+	 * Creates a new dispatcher.
+	 * @param wadHandler the handler for WAD files.
+	 * @param entryHandler the handler for WADs in PK3s.
+	 * @param out the stream to report entries that can't be read to.
+	 */
+	public WadDispatcher(Handler wadHandler, EntryHandler entryHandler, PrintStream out)
+	{
+		this.entryHandler = entryHandler;
+		this.out = out;
+		add(ZIP, new Handler()
+		{
+			@Override
+			public void handle(File f) throws IOException
+			{
+				handlePK3(f);
+			}
+		});
+		add(WAD, wadHandler);
+	}
+
+	// Handles a PK3 file.
+	private void handlePK3(File f) throws IOException
+	{
+		ResourceTree tree = new ResourceTree();
+		try {
+			handleFolder(tree.add(f));
+		} finally {
+			tree.close();
+		}
+	}
+
+	// Handles the WADs and PK3s in a PK3 (or a folder in one).
+	private void handleFolder(Resource folder) throws IOException
+	{
+		for (Resource r : folder.getChildren())
+		{
+			String name = r.getName().toLowerCase();
+			if (!r.hasData())
+			{
+				handleFolder(r);
+			}
+			else if (name.endsWith(".wad"))
+			{
+				InputStream zin = null;
+				try {
+					zin = r.getInputStream();
+					entryHandler.handle(r.getPath(), zin);
+				} catch (IOException e) {
+					out.println("ERROR: Could not read entry "+r.getPath()+".");
+				} finally {
+					Common.close(zin);
+				}
+			}
+			else if (name.endsWith(".pk3"))
+			{
+				try {
+					handleFolder(r);
+				} catch (IOException e) {
+					out.println("ERROR: Could not read entry "+r.getPath()+".");
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.blackrook.commons.hash.CaseInsensitiveHash;
+import com.blackrook.commons.list.List;
+
+/**
+ * Writes a new PWAD from start to end: lumps are written as they are added,
+ * and the directory is written at the end, so the WAD is written in one pass.
+ * Big lumps can be written a piece at a time, between {@link #beginLump(String)}
+ * and {@link #endLump()}.
+ * <p>
+ * The WAD is written to a temporary file next to the target, which replaces
+ * the target when finished.
+ * @author Matthew Tropiano
+ */
+public class WadWriter
+{
+	/** Header length in bytes. */
+	private static final int HEADER_LENGTH = 12;
+	/** Directory entry length in bytes. */
+	private static final int ENTRY_LENGTH = 16;
+
+	/** Target file. */
+	private File target;
+	/** Temporary file. */
+	private File temp;
+	/** Output stream. */
+	private FileOutputStream out;
+	/** Output channel. */
+	private FileChannel channel;
+
+	/** Entry names. */
+	private List<String> names;
+	/** Entry offsets. */
+	private List<Integer> offsets;
+	/** Entry sizes. */
+	private List<Integer> sizes;
+	/** Names used so far. */
+	private CaseInsensitiveHash usedNames;
+	/** Current offset. */
+	private long offset;
+	/** Name of the lump being written, or null if none. */
+	private String lumpName;
+	/** Offset of the lump being written. */
+	private long lumpOffset;
+
+	/**
+	 * Starts a new WAD.
+	 * @param target the WAD file to write.
+	 * @throws IOException if the temporary file could not be created.
+	 */
+	public WadWriter(File target) throws IOException
+	{
+		this.target = target.getAbsoluteFile();
+		this.temp = File.createTempFile(this.target.getName() + ".", ".tmp", this.target.getParentFile());
+		this.out = new FileOutputStream(temp);
+		this.channel = out.getChannel();
+		Stats.addFile();
+		this.names = new List<String>();
+		this.offsets = new List<Integer>();
+		this.sizes = new List<Integer>();
+		this.usedNames = new CaseInsensitiveHash();
+		this.lumpName = null;
+
+		// header is filled in at the end.
+		write(ByteBuffer.allocate(HEADER_LENGTH));
+		this.offset = HEADER_LENGTH;
+	}
+
+	/**
+	 * Checks if a lump name was already added.
+	 * @param name the name.
+	 * @return true if so, false if not.
+	 */
+	public boolean contains(String name)
+	{
+		return usedNames.contains(name);
+	}
+
+	/**
+	 * Adds a lump to the end of the WAD.
+	 * @param name the lump name (up to 8 characters).
+	 * @param data the lump data.
+	 * @throws IOException if the data could not be written.
+	 * @throws IllegalArgumentException if the name is too long, or the WAD is too big.
+	 * @throws IllegalStateException if a lump started with {@link #beginLump(String)} is not ended.
+	 */
+	public void addLump(String name, byte[] data) throws IOException
+	{
+		beginLump(name);
+		writeLump(ByteBuffer.wrap(data));
+		endLump();
+	}
+
+	/**
+	 * Starts a lump at the end of the WAD, for writing a piece at a time with
+	 * {@link #writeLump(ByteBuffer)}, so big lumps never have to be in memory.
+	 * The lump is added with {@link #endLump()}.
+	 * @param name the lump name (up to 8 characters).
+	 * @throws IllegalArgumentException if the name is too long.
+	 * @throws IllegalStateException if another lump is not ended.
+	 */
+	public void beginLump(String name)
+	{
+		if (lumpName != null)
+			throw new IllegalStateException("Lump " + lumpName + " is not ended.");
+		if (name.length() > 8)
+			throw new IllegalArgumentException("Lump name is too long: " + name);
+		lumpName = name;
+		lumpOffset = offset;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer to the lump being written.
+	 * @param buffer the buffer to write.
+	 * @throws IOException if the data could not be written.
+	 * @throws IllegalArgumentException if the WAD is too big.
+	 * @throws IllegalStateException if no lump was started.
+	 */
+	public void writeLump(ByteBuffer buffer) throws IOException
+	{
+		if (lumpName == null)
+			throw new IllegalStateException("No lump was started.");
+		if (offset + buffer.remaining() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("WAD is too big (over 2 GB).");
+		offset += buffer.remaining();
+		write(buffer);
+	}
+
+	/**
+	 * Ends the lump being written, and adds it to the directory.
+	 * @throws IllegalStateException if no lump was started.
+	 */
+	public void endLump()
+	{
+		if (lumpName == null)
+			throw new IllegalStateException("No lump was started.");
+		names.add(lumpName.toUpperCase());
+		offsets.add((int)lumpOffset);
+		sizes.add((int)(offset - lumpOffset));
+		usedNames.put(lumpName);
+		lumpName = null;
+	}
+
+	/**
+	 * @return the amount of lumps added.
+	 */
+	public int getLumpCount()
+	{
+		return names.size();
+	}
+
+	/**
+	 * Writes the directory and header, and replaces the target file with the new WAD.
+	 * @throws IOException if the WAD could not be written.
+	 * @throws IllegalStateException if a lump started with {@link #beginLump(String)} is not ended.
+	 */
+	public void finish() throws IOException
+	{
+		try {
+			if (lumpName != null)
+				throw new IllegalStateException("Lump " + lumpName + " is not ended.");
+			int count = names.size();
+			ByteBuffer directory = ByteBuffer.allocate(count * ENTRY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < count; i++)
+			{
+				directory.putInt(offsets.getByIndex(i));
+				directory.putInt(sizes.getByIndex(i));
+				String name = names.getByIndex(i);
+				for (int j = 0; j < 8; j++)
+					directory.put(j < name.length() ? (byte)name.charAt(j) : 0);
+			}
+			directory.flip();
+			write(directory);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte)'P').put((byte)'W').put((byte)'A').put((byte)'D');
+			header.putInt(count);
+			header.putInt((int)offset);
+			header.flip();
+			while (header.hasRemaining())
+				Stats.addBytesWritten(channel.write(header, header.position()));
+			channel.force(false);
+			out.close();
+
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Stops writing, and deletes the temporary file (if it is still there).
+	 */
+	public void abort()
+	{
+		try {
+			out.close();
+		} catch (IOException e) {
+			// nothing to do.
+		}
+		if (temp.exists())
+			temp.delete();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			Stats.addBytesWritten(channel.write(buffer));
+	}
+
+}
@@ -0,0 +1,686 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * A catalog of demo information, stored on disk by column, so that
+ * demos can be searched without reading them again.
+ * <p>
+ * Rows are kept sorted by episode, map, and tics, with an index of where
+ * each episode/map starts, so searches for one map only look at its rows.
+ * <p>
+ * Zip entries that are not demos are kept too (apart from the rows), so that
+ * unchanged ones are not read again to find out that they are not demos.
+ * @author Matthew Tropiano
+ */
+public class DemoCatalog
+{
+	/** File magic number and format version. */
+	private static final byte[] MAGIC = {'D', 'S', 'P', 'Y', 'C', 'A', 'T', '2'};
+	/** File magic number of the first format version, which has no skipped entries. */
+	private static final byte[] MAGIC_1 = {'D', 'S', 'P', 'Y', 'C', 'A', 'T', '1'};
+
+	/** Flag: fast monsters. */
+	public static final int FLAG_FAST = 0x01;
+	/** Flag: respawning monsters. */
+	public static final int FLAG_RESPAWN = 0x02;
+	/** Flag: no monsters. */
+	public static final int FLAG_NOMONSTERS = 0x04;
+
+	/** Row count. */
+	private int size;
+
+	/** Column: demo file path (or zip path, ":", entry name). */
+	private String[] paths;
+	/** Column: demo length in bytes. */
+	private long[] lengths;
+	/** Column: demo modified time (or zip entry time). */
+	private long[] modified;
+	/** Column: CRC32 of the demo data. */
+	private int[] hashes;
+	/** Column: demo version. */
+	private short[] versions;
+	/** Column: episode. */
+	private byte[] episodes;
+	/** Column: map. */
+	private byte[] maps;
+	/** Column: skill. */
+	private byte[] skills;
+	/** Column: players. */
+	private byte[] players;
+	/** Column: flags. */
+	private byte[] flags;
+	/** Column: speedrun behavior. */
+	private byte[] speedRunBehaviors;
+	/** Column: tics. */
+	private int[] tics;
+	/** Rows that are removed (until written). */
+	private boolean[] removed;
+
+	/** Path to row. */
+	private HashMap<String, Integer> pathIndex;
+
+	/** Index: row ranges for each episode/map, as episode << 8 | map. Null if rows were changed since reading. */
+	private int[] groupKeys;
+	/** Index: first row of each group. */
+	private int[] groupStarts;
+	/** Index: row count of each group. */
+	private int[] groupCounts;
+
+	/** Zip entries that are not demos, by path. */
+	private HashMap<String, Skipped> skipped;
+	/** True if anything was changed since reading. */
+	private boolean changed;
+
+	/** A zip entry that is not a demo. */
+	private static class Skipped
+	{
+		/** Entry length in bytes. */
+		long length;
+		/** Entry modified time. */
+		long modified;
+		/** CRC32 of the entry data. */
+		int hash;
+	}
+
+	/**
+	 * Creates a new, empty catalog.
+	 */
+	public DemoCatalog()
+	{
+		this.size = 0;
+		this.pathIndex = new HashMap<String, Integer>();
+		this.groupKeys = null;
+		this.skipped = new HashMap<String, Skipped>();
+		setCapacity(64);
+	}
+
+	// Resizes all columns.
+	private void setCapacity(int capacity)
+	{
+		paths = paths == null ? new String[capacity] : Arrays.copyOf(paths, capacity);
+		lengths = lengths == null ? new long[capacity] : Arrays.copyOf(lengths, capacity);
+		modified = modified == null ? new long[capacity] : Arrays.copyOf(modified, capacity);
+		hashes = hashes == null ? new int[capacity] : Arrays.copyOf(hashes, capacity);
+		versions = versions == null ? new short[capacity] : Arrays.copyOf(versions, capacity);
+		episodes = episodes == null ? new byte[capacity] : Arrays.copyOf(episodes, capacity);
+		maps = maps == null ? new byte[capacity] : Arrays.copyOf(maps, capacity);
+		skills = skills == null ? new byte[capacity] : Arrays.copyOf(skills, capacity);
+		players = players == null ? new byte[capacity] : Arrays.copyOf(players, capacity);
+		flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+		speedRunBehaviors = speedRunBehaviors == null ? new byte[capacity] : Arrays.copyOf(speedRunBehaviors, capacity);
+		tics = tics == null ? new int[capacity] : Arrays.copyOf(tics, capacity);
+		removed = removed == null ? new boolean[capacity] : Arrays.copyOf(removed, capacity);
+	}
+
+	/**
+	 * Reads a catalog from a file.
+	 * @param f the file.
+	 * @return the read catalog, or a new empty catalog if the file does not exist.
+	 * @throws IOException if the file could not be read, or is not a catalog.
+	 */
+	public static DemoCatalog read(File f) throws IOException
+	{
+		DemoCatalog out = new DemoCatalog();
+		if (!f.exists())
+			return out;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(Stats.countInput(new FileInputStream(f)), 65536));
+			Stats.addFile();
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			boolean hasSkipped = Arrays.equals(magic, MAGIC);
+			if (!hasSkipped && !Arrays.equals(magic, MAGIC_1))
+				throw new IOException(f.getPath() + " is not a demo catalog.");
+
+			int count = in.readInt();
+			if (count < 0)
+				throw new IOException(f.getPath() + " is corrupt.");
+			out.setCapacity(Math.max(count, 64));
+			out.size = count;
+
+			for (int i = 0; i < count; i++)
+				out.paths[i] = in.readUTF();
+			for (int i = 0; i < count; i++)
+				out.lengths[i] = in.readLong();
+			for (int i = 0; i < count; i++)
+				out.modified[i] = in.readLong();
+			for (int i = 0; i < count; i++)
+				out.hashes[i] = in.readInt();
+			for (int i = 0; i < count; i++)
+				out.versions[i] = in.readShort();
+			in.readFully(out.episodes, 0, count);
+			in.readFully(out.maps, 0, count);
+			in.readFully(out.skills, 0, count);
+			in.readFully(out.players, 0, count);
+			in.readFully(out.flags, 0, count);
+			in.readFully(out.speedRunBehaviors, 0, count);
+			for (int i = 0; i < count; i++)
+				out.tics[i] = in.readInt();
+
+			int groups = in.readInt();
+			out.groupKeys = new int[groups];
+			out.groupStarts = new int[groups];
+			out.groupCounts = new int[groups];
+			for (int i = 0; i < groups; i++)
+			{
+				out.groupKeys[i] = in.readUnsignedShort();
+				out.groupStarts[i] = in.readInt();
+				out.groupCounts[i] = in.readInt();
+			}
+
+			for (int i = 0; i < count; i++)
+				out.pathIndex.put(out.paths[i], i);
+
+			int skippedCount = hasSkipped ? in.readInt() : 0;
+			for (int i = 0; i < skippedCount; i++)
+			{
+				Skipped entry = new Skipped();
+				String path = in.readUTF();
+				entry.length = in.readLong();
+				entry.modified = in.readLong();
+				entry.hash = in.readInt();
+				out.skipped.put(path, entry);
+			}
+		} finally {
+			Common.close(in);
+		}
+		return out;
+	}
+
+	/**
+	 * Writes this catalog to a file, sorted and indexed.
+	 * The catalog is written to a temporary file that then replaces the target.
+	 * @param f the file.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void write(File f) throws IOException
+	{
+		final int[] order = getSortedRows();
+		int count = order.length;
+
+		File target = f.getAbsoluteFile();
+		File temp = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+		try {
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(Stats.countOutput(new FileOutputStream(temp)), 65536));
+				Stats.addFile();
+				out.write(MAGIC);
+				out.writeInt(count);
+				for (int r : order)
+					out.writeUTF(paths[r]);
+				for (int r : order)
+					out.writeLong(lengths[r]);
+				for (int r : order)
+					out.writeLong(modified[r]);
+				for (int r : order)
+					out.writeInt(hashes[r]);
+				for (int r : order)
+					out.writeShort(versions[r]);
+				for (int r : order)
+					out.writeByte(episodes[r]);
+				for (int r : order)
+					out.writeByte(maps[r]);
+				for (int r : order)
+					out.writeByte(skills[r]);
+				for (int r : order)
+					out.writeByte(players[r]);
+				for (int r : order)
+					out.writeByte(flags[r]);
+				for (int r : order)
+					out.writeByte(speedRunBehaviors[r]);
+				for (int r : order)
+					out.writeInt(tics[r]);
+
+				// index
+				int groups = 0;
+				for (int i = 0; i < count; i++)
+					if (i == 0 || getGroupKey(order[i]) != getGroupKey(order[i - 1]))
+						groups++;
+				out.writeInt(groups);
+				int start = 0;
+				for (int i = 1; i <= count; i++)
+				{
+					if (i == count || getGroupKey(order[i]) != getGroupKey(order[start]))
+					{
+						out.writeShort(getGroupKey(order[start]));
+						out.writeInt(start);
+						out.writeInt(i - start);
+						start = i;
+					}
+				}
+
+				// skipped entries
+				out.writeInt(skipped.size());
+				Iterator<String> it = skipped.keyIterator();
+				while (it.hasNext())
+				{
+					String path = it.next();
+					Skipped entry = skipped.get(path);
+					out.writeUTF(path);
+					out.writeLong(entry.length);
+					out.writeLong(entry.modified);
+					out.writeInt(entry.hash);
+				}
+			} finally {
+				Common.close(out);
+			}
+
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			if (temp.exists())
+				temp.delete();
+		}
+	}
+
+	// Returns the rows that are not removed, sorted by episode, map, tics, then path.
+	private int[] getSortedRows()
+	{
+		int count = 0;
+		for (int i = 0; i < size; i++)
+			if (!removed[i])
+				count++;
+
+		Integer[] rows = new Integer[count];
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			if (!removed[i])
+				rows[n++] = i;
+
+		Arrays.sort(rows, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				int c = Integer.compare(getGroupKey(a), getGroupKey(b));
+				if (c == 0)
+					c = Integer.compare(tics[a], tics[b]);
+				if (c == 0)
+					c = paths[a].compareTo(paths[b]);
+				return c;
+			}
+		});
+
+		int[] out = new int[count];
+		for (int i = 0; i < count; i++)
+			out[i] = rows[i];
+		return out;
+	}
+
+	// Returns the index key for a row.
+	private int getGroupKey(int row)
+	{
+		return ((episodes[row] & 0x0ff) << 8) | (maps[row] & 0x0ff);
+	}
+
+	/**
+	 * Checks if a demo in the catalog is the same as what is on disk.
+	 * @param path the demo path.
+	 * @param length the current demo length.
+	 * @param modifiedTime the current modified time.
+	 * @param hash the current CRC32 of the demo, or -1 if not known (not checked).
+	 * @return true if the catalog has this demo, and it has not changed.
+	 */
+	public boolean isCurrent(String path, long length, long modifiedTime, long hash)
+	{
+		Integer row = pathIndex.get(path);
+		if (row == null || removed[row])
+			return false;
+		return lengths[row] == length && modified[row] == modifiedTime && (hash < 0 || hashes[row] == (int)hash);
+	}
+
+	/**
+	 * Adds or replaces a demo in the catalog.
+	 * @param path the demo path.
+	 * @param length the demo length in bytes.
+	 * @param modifiedTime the demo modified time.
+	 * @param hash the CRC32 of the demo.
+	 * @param info the demo information.
+	 * @return true if the demo was added, false if it replaced one.
+	 */
+	public boolean put(String path, long length, long modifiedTime, int hash, DemoInfo info)
+	{
+		Integer existing = pathIndex.get(path);
+		int row;
+		if (existing != null)
+		{
+			row = existing;
+		}
+		else
+		{
+			if (size == paths.length)
+				setCapacity(paths.length * 2);
+			row = size++;
+			pathIndex.put(path, row);
+		}
+
+		paths[row] = path;
+		lengths[row] = length;
+		modified[row] = modifiedTime;
+		hashes[row] = hash;
+		versions[row] = (short)info.getVersion();
+		episodes[row] = (byte)info.getEpisode();
+		maps[row] = (byte)info.getMap();
+		skills[row] = (byte)info.getSkill();
+		players[row] = (byte)info.getPlayers();
+		flags[row] = (byte)(
+			(info.getFastMonsters() ? FLAG_FAST : 0)
+			| (info.getMonsterRespawn() ? FLAG_RESPAWN : 0)
+			| (info.getNoMonsters() ? FLAG_NOMONSTERS : 0)
+		);
+		speedRunBehaviors[row] = (byte)info.getSpeedRunBehavior();
+		tics[row] = info.getTicCount();
+		removed[row] = false;
+		groupKeys = null;
+		changed = true;
+		return existing == null;
+	}
+
+	/**
+	 * Removes a demo from the catalog.
+	 * @param path the demo path.
+	 * @return true if it was in the catalog, false if not.
+	 */
+	public boolean remove(String path)
+	{
+		Integer row = pathIndex.get(path);
+		if (row == null)
+			return false;
+		removeRow(row);
+		return true;
+	}
+
+	// Marks a row as removed.
+	private void removeRow(int row)
+	{
+		removed[row] = true;
+		pathIndex.removeUsingKey(paths[row]);
+		groupKeys = null;
+		changed = true;
+	}
+
+	/**
+	 * Checks if a zip entry is known to not be a demo, and has not changed since.
+	 * @param path the entry path (zip path, ":", entry name).
+	 * @param length the current entry length.
+	 * @param modifiedTime the current entry modified time.
+	 * @param hash the current CRC32 of the entry.
+	 * @return true if so, false if not.
+	 */
+	public boolean isSkipped(String path, long length, long modifiedTime, long hash)
+	{
+		Skipped entry = skipped.get(path);
+		return entry != null && entry.length == length && entry.modified == modifiedTime && entry.hash == (int)hash;
+	}
+
+	/**
+	 * Records a zip entry that is not a demo, removing the demo at that path, if any.
+	 * @param path the entry path (zip path, ":", entry name).
+	 * @param length the entry length in bytes.
+	 * @param modifiedTime the entry modified time.
+	 * @param hash the CRC32 of the entry.
+	 * @return true if a demo was removed, false if not.
+	 */
+	public boolean putSkipped(String path, long length, long modifiedTime, int hash)
+	{
+		Skipped entry = new Skipped();
+		entry.length = length;
+		entry.modified = modifiedTime;
+		entry.hash = hash;
+		skipped.put(path, entry);
+		changed = true;
+		return remove(path);
+	}
+
+	/**
+	 * Removes the demos (and skipped entries) from scanned files (or zip files)
+	 * that were not seen in the last scan. Each row is looked at once.
+	 * @param sources the scanned file paths.
+	 * @param seen the demo and entry paths that were seen.
+	 * @return the amount of demos removed.
+	 */
+	public int removeMissing(Hash<String> sources, Hash<String> seen)
+	{
+		int out = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (removed[i] || seen.contains(paths[i]))
+				continue;
+			if (isFromSource(paths[i], sources))
+			{
+				removeRow(i);
+				out++;
+			}
+		}
+
+		List<String> missing = new List<String>();
+		Iterator<String> it = skipped.keyIterator();
+		while (it.hasNext())
+		{
+			String path = it.next();
+			if (!seen.contains(path) && isFromSource(path, sources))
+				missing.add(path);
+		}
+		for (String path : missing)
+			skipped.removeUsingKey(path);
+		if (!missing.isEmpty())
+			changed = true;
+		return out;
+	}
+
+	// Checks if a demo path is a scanned file, or an entry in one.
+	private static boolean isFromSource(String path, Hash<String> sources)
+	{
+		if (sources.contains(path))
+			return true;
+		for (int i = path.indexOf(':'); i >= 0; i = path.indexOf(':', i + 1))
+			if (sources.contains(path.substring(0, i)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return true if demos or skipped entries were added, changed or removed since this was read.
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+
+	/**
+	 * @return the amount of demos in the catalog.
+	 */
+	public int size()
+	{
+		int out = 0;
+		for (int i = 0; i < size; i++)
+			if (!removed[i])
+				out++;
+		return out;
+	}
+
+	/**
+	 * Finds the demos that match a query, sorted as the query says.
+	 * If the query is for one episode and map, only that map's rows are searched.
+	 * @param query the query.
+	 * @return the matching rows.
+	 */
+	public int[] find(final DemoQuery query)
+	{
+		int start = 0;
+		int end = size;
+		int episode = query.getEpisode();
+		int map = query.getMap();
+		if (groupKeys != null && episode >= 0 && map >= 0)
+		{
+			int g = Arrays.binarySearch(groupKeys, (episode << 8) | map);
+			if (g < 0)
+				return new int[0];
+			start = groupStarts[g];
+			end = start + groupCounts[g];
+		}
+
+		int[] matches = new int[end - start];
+		int count = 0;
+		for (int row = start; row < end; row++)
+			if (!removed[row] && query.matches(this, row))
+				matches[count++] = row;
+
+		if (!query.isSorted())
+			return Arrays.copyOf(matches, count);
+
+		Integer[] rows = new Integer[count];
+		for (int i = 0; i < count; i++)
+			rows[i] = matches[i];
+		Arrays.sort(rows, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return query.compare(DemoCatalog.this, a, b);
+			}
+		});
+		int[] out = new int[count];
+		for (int i = 0; i < count; i++)
+			out[i] = rows[i];
+		return out;
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the demo information (without player statistics).
+	 */
+	public DemoInfo getInfo(int row)
+	{
+		return DemoInfo.create(
+			getVersion(row), getSkill(row), getEpisode(row), getMap(row), getPlayers(row),
+			(flags[row] & FLAG_FAST) != 0, (flags[row] & FLAG_RESPAWN) != 0, (flags[row] & FLAG_NOMONSTERS) != 0,
+			getTics(row), getSpeedRunBehavior(row)
+		);
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the demo path.
+	 */
+	public String getPath(int row)
+	{
+		return paths[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the CRC32 of the demo.
+	 */
+	public int getHash(int row)
+	{
+		return hashes[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the demo version.
+	 */
+	public int getVersion(int row)
+	{
+		return versions[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the episode.
+	 */
+	public int getEpisode(int row)
+	{
+		return episodes[row] & 0x0ff;
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the map.
+	 */
+	public int getMap(int row)
+	{
+		return maps[row] & 0x0ff;
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the skill (0-based).
+	 */
+	public int getSkill(int row)
+	{
+		return skills[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the player count.
+	 */
+	public int getPlayers(int row)
+	{
+		return players[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the flag bits (FLAG constants).
+	 */
+	public int getFlags(int row)
+	{
+		return flags[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the speedrun behavior (DemoInfo.SR_BEHAVIOR constants).
+	 */
+	public int getSpeedRunBehavior(int row)
+	{
+		return speedRunBehaviors[row];
+	}
+
+	/**
+	 * @param row the row.
+	 * @return the tic count.
+	 */
+	public int getTics(int row)
+	{
+		return tics[row];
+	}
+
+}
@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A streaming Doom demo decoder. The header is read on creation, and then
+ * each game tic is read with {@link #nextTic()}, into reused arrays, so
+ * decoding a demo of any length uses the same (small) amount of memory.
+ * <p>
+ * Reads Doom 1.2 (no version byte), Doom 1.4 to 1.9 (versions 104 to 111,
+ * 111 being "longtics"), and Boom/MBF/PrBoom (versions 200 to 214, 214 being
+ * PrBoom+ "longtics") demos.
+ * @author Matthew Tropiano
+ */
+public class DemoDecoder
+{
+	/** Demo end marker. */
+	private static final int DEMO_END = 0x80;
+
+	/** Boom/MBF game option block length. */
+	private static final int BOOM_OPTIONS_LENGTH = 64;
+	/** Boom/MBF player flag block length. */
+	private static final int BOOM_PLAYERS_LENGTH = 32;
+	/** Vanilla player flag block length. */
+	private static final int VANILLA_PLAYERS_LENGTH = 4;
+
+	/** Offset of "respawn" in the Boom option block. */
+	private static final int BOOM_OPTION_RESPAWN = 6;
+	/** Offset of "fast" in the Boom option block. */
+	private static final int BOOM_OPTION_FAST = 7;
+	/** Offset of "nomonsters" in the Boom option block. */
+	private static final int BOOM_OPTION_NOMONSTERS = 8;
+
+	/** Button: attack. */
+	public static final int BUTTON_ATTACK = 0x01;
+	/** Button: use. */
+	public static final int BUTTON_USE = 0x02;
+	/** Button flag: special (pause, save), not a player action. */
+	public static final int BUTTON_SPECIAL = 0x80;
+
+	/** Input stream. */
+	private InputStream in;
+
+	/** Demo version (0 for Doom 1.2 demos). */
+	private int version;
+	/** Skill (0-based). */
+	private int skill;
+	/** Episode. */
+	private int episode;
+	/** Map. */
+	private int map;
+	/** Deathmatch mode. */
+	private int deathmatch;
+	/** Fast monsters. */
+	private boolean fastMonsters;
+	/** Respawning monsters. */
+	private boolean monsterRespawn;
+	/** No monsters. */
+	private boolean noMonsters;
+	/** Player slots that are in the game. */
+	private boolean[] playerInGame;
+	/** Amount of players in the game. */
+	private int players;
+	/** Bytes per player tic. */
+	private int ticLength;
+
+	/** Game tics read. */
+	private int ticCount;
+	/** Reached the end? */
+	private boolean ended;
+
+	/** Tic record buffer (all players). */
+	private byte[] ticBuffer;
+	/** Forward movement, per player. */
+	private int[] forward;
+	/** Strafe (right) movement, per player. */
+	private int[] strafe;
+	/** Turn (angle delta, 16-bit units, positive is left), per player. */
+	private int[] turn;
+	/** Buttons, per player. */
+	private int[] buttons;
+
+	/**
+	 * Creates a new decoder and reads the demo header.
+	 * @param in the input stream to read from. It is read as needed, and not closed.
+	 * @throws IOException if the header can't be read, or this is not a (known) demo.
+	 */
+	public DemoDecoder(InputStream in) throws IOException
+	{
+		this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 8192);
+		this.ticCount = 0;
+		this.ended = false;
+		readHeader();
+
+		this.ticBuffer = new byte[players * ticLength];
+		this.forward = new int[players];
+		this.strafe = new int[players];
+		this.turn = new int[players];
+		this.buttons = new int[players];
+	}
+
+	/**
+	 * Checks if the start of some data looks like a demo header that this can read.
+	 * @param data the data.
+	 * @param length the amount of bytes in data to check.
+	 * @return true if so, false if not.
+	 */
+	public static boolean isDemoHeader(byte[] data, int length)
+	{
+		if (length < 1)
+			return false;
+		int v = data[0] & 0x0ff;
+		if (v <= 4)
+			return length >= 7 && validHeaderBytes(data[1], data[2]) && validPlayers(data, 3, VANILLA_PLAYERS_LENGTH);
+		else if (v >= 104 && v <= 111)
+			return length >= 13 && (data[1] & 0x0ff) <= 4 && validHeaderBytes(data[2], data[3]) && validPlayers(data, 9, VANILLA_PLAYERS_LENGTH);
+		else if (v >= 200 && v <= 214)
+			return length >= 9 && (data[1] & 0x0ff) == 0x1d && (data[8] & 0x0ff) <= 4;
+		return false;
+	}
+
+	// Checks episode and map.
+	private static boolean validHeaderBytes(byte episode, byte map)
+	{
+		return (episode & 0x0ff) <= 9 && (map & 0x0ff) <= 99;
+	}
+
+	// Checks for at least one player, and only 0/1 flags.
+	private static boolean validPlayers(byte[] data, int offset, int count)
+	{
+		boolean any = false;
+		for (int i = 0; i < count; i++)
+		{
+			int b = data[offset + i] & 0x0ff;
+			if (b > 1)
+				return false;
+			any = any || b == 1;
+		}
+		return any;
+	}
+
+	// Reads the header.
+	private void readHeader() throws IOException
+	{
+		int v = readByte();
+		if (v <= 4)
+		{
+			// Doom 1.2 and earlier: no version, starts with skill.
+			version = 0;
+			skill = v;
+			episode = readByte();
+			map = readByte();
+			readPlayers(VANILLA_PLAYERS_LENGTH);
+			ticLength = 4;
+		}
+		else if (v >= 104 && v <= 111)
+		{
+			version = v;
+			skill = readByte();
+			episode = readByte();
+			map = readByte();
+			deathmatch = readByte();
+			monsterRespawn = readByte() != 0;
+			fastMonsters = readByte() != 0;
+			noMonsters = readByte() != 0;
+			readByte(); // console player
+			readPlayers(VANILLA_PLAYERS_LENGTH);
+			ticLength = v == 111 ? 5 : 4;
+		}
+		else if (v >= 200 && v <= 214)
+		{
+			version = v;
+			if (readByte() != 0x1d)
+				throw new IOException("Bad Boom/MBF demo signature.");
+			skip(5); // rest of signature
+			readByte(); // compatibility
+			skill = readByte();
+			episode = readByte();
+			map = readByte();
+			deathmatch = readByte();
+			readByte(); // console player
+
+			byte[] options = new byte[BOOM_OPTIONS_LENGTH];
+			readFully(options);
+			monsterRespawn = options[BOOM_OPTION_RESPAWN] != 0;
+			fastMonsters = options[BOOM_OPTION_FAST] != 0;
+			noMonsters = options[BOOM_OPTION_NOMONSTERS] != 0;
+
+			readPlayers(BOOM_PLAYERS_LENGTH);
+			ticLength = v == 214 ? 5 : 4;
+		}
+		else
+		{
+			throw new IOException("Unsupported demo version: " + v);
+		}
+
+		if (skill > 4)
+			throw new IOException("Bad skill in demo header: " + skill);
+		if (players == 0)
+			throw new IOException("No players in demo.");
+	}
+
+	// Reads the player flags.
+	private void readPlayers(int count) throws IOException
+	{
+		playerInGame = new boolean[count];
+		players = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (playerInGame[i] = readByte() != 0)
+				players++;
+		}
+	}
+
+	/**
+	 * Reads the next game tic (one command for each player).
+	 * @return true if a tic was read, false if the demo ended.
+	 * @throws IOException if the demo could not be read, or ends in the middle of a tic.
+	 */
+	public boolean nextTic() throws IOException
+	{
+		if (ended)
+			return false;
+
+		int first = in.read();
+		if (first < 0 || first == DEMO_END)
+		{
+			ended = true;
+			return false;
+		}
+
+		ticBuffer[0] = (byte)first;
+		readFully(ticBuffer, 1, ticBuffer.length - 1);
+
+		int p = 0;
+		for (int i = 0; i < players; i++)
+		{
+			forward[i] = ticBuffer[p];
+			strafe[i] = ticBuffer[p + 1];
+			if (ticLength == 5)
+			{
+				turn[i] = (short)((ticBuffer[p + 2] & 0x0ff) | ((ticBuffer[p + 3] & 0x0ff) << 8));
+				buttons[i] = ticBuffer[p + 4] & 0x0ff;
+			}
+			else
+			{
+				turn[i] = (short)((ticBuffer[p + 2] & 0x0ff) << 8);
+				buttons[i] = ticBuffer[p + 3] & 0x0ff;
+			}
+			p += ticLength;
+		}
+
+		ticCount++;
+		return true;
+	}
+
+	/**
+	 * @return the demo version (0 for Doom 1.2 and earlier).
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the skill level (0 is ITYTD, 4 is NM).
+	 */
+	public int getSkill()
+	{
+		return skill;
+	}
+
+	/**
+	 * @return the episode.
+	 */
+	public int getEpisode()
+	{
+		return episode;
+	}
+
+	/**
+	 * @return the map.
+	 */
+	public int getMap()
+	{
+		return map;
+	}
+
+	/**
+	 * @return the deathmatch mode (0 is co-op).
+	 */
+	public int getDeathmatch()
+	{
+		return deathmatch;
+	}
+
+	/**
+	 * @return true if fast monsters was on.
+	 */
+	public boolean getFastMonsters()
+	{
+		return fastMonsters;
+	}
+
+	/**
+	 * @return true if respawning monsters was on.
+	 */
+	public boolean getMonsterRespawn()
+	{
+		return monsterRespawn;
+	}
+
+	/**
+	 * @return true if no monsters was on.
+	 */
+	public boolean getNoMonsters()
+	{
+		return noMonsters;
+	}
+
+	/**
+	 * @return the amount of players in the demo.
+	 */
+	public int getPlayers()
+	{
+		return players;
+	}
+
+	/**
+	 * @return true if turning is recorded at full (16-bit) precision.
+	 */
+	public boolean isLongTics()
+	{
+		return ticLength == 5;
+	}
+
+	/**
+	 * @return the amount of game tics read so far.
+	 */
+	public int getTicCount()
+	{
+		return ticCount;
+	}
+
+	/**
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the forward movement of the player in the last read tic (negative is backward).
+	 */
+	public int getForwardMovement(int player)
+	{
+		return forward[player];
+	}
+
+	/**
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the strafe movement of the player in the last read tic (negative is left).
+	 */
+	public int getRightStrafe(int player)
+	{
+		return strafe[player];
+	}
+
+	/**
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the turn of the player in the last read tic, in 1/65536ths of a circle (negative is right).
+	 */
+	public int getTurn(int player)
+	{
+		return turn[player];
+	}
+
+	/**
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the button bits of the player in the last read tic.
+	 */
+	public int getButtons(int player)
+	{
+		return buttons[player];
+	}
+
+	/**
+	 * Gets the whole command of a player in the last read tic, packed into one value,
+	 * so that commands can be compared and stored cheaply.
+	 * Bits 32-39 are forward movement, 24-31 are strafe, 8-23 are turn, and 0-7 are buttons.
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the packed command.
+	 * @see #unpackForwardMovement(long)
+	 * @see #unpackRightStrafe(long)
+	 * @see #unpackTurn(long)
+	 * @see #unpackButtons(long)
+	 */
+	public long getCommand(int player)
+	{
+		return ((long)(forward[player] & 0x0ff) << 32)
+			| ((long)(strafe[player] & 0x0ff) << 24)
+			| ((long)(turn[player] & 0x0ffff) << 8)
+			| (buttons[player] & 0x0ff);
+	}
+
+	/**
+	 * @param command a packed command.
+	 * @return the forward movement in the command.
+	 * @see #getCommand(int)
+	 */
+	public static int unpackForwardMovement(long command)
+	{
+		return (byte)(command >>> 32);
+	}
+
+	/**
+	 * @param command a packed command.
+	 * @return the strafe movement in the command.
+	 * @see #getCommand(int)
+	 */
+	public static int unpackRightStrafe(long command)
+	{
+		return (byte)(command >>> 24);
+	}
+
+	/**
+	 * @param command a packed command.
+	 * @return the turn in the command.
+	 * @see #getCommand(int)
+	 */
+	public static int unpackTurn(long command)
+	{
+		return (short)(command >>> 8);
+	}
+
+	/**
+	 * @param command a packed command.
+	 * @return the buttons in the command.
+	 * @see #getCommand(int)
+	 */
+	public static int unpackButtons(long command)
+	{
+		return (int)(command & 0x0ff);
+	}
+
+	private int readByte() throws IOException
+	{
+		int b = in.read();
+		if (b < 0)
+			throw new EOFException("Unexpected end of demo.");
+		return b;
+	}
+
+	private void readFully(byte[] b) throws IOException
+	{
+		readFully(b, 0, b.length);
+	}
+
+	private void readFully(byte[] b, int offset, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			int n = in.read(b, offset, length);
+			if (n < 0)
+				throw new EOFException("Unexpected end of demo.");
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void skip(int n) throws IOException
+	{
+		while (n-- > 0)
+			readByte();
+	}
+
+}
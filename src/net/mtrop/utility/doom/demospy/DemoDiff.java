@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * The differences between two demos, found by reading both one tic at a time,
+ * side by side, and comparing each player's packed tic command.
+ * <p>
+ * A divergent tic is one where any player's command is different. Runs of
+ * divergent tics are kept as regions. Tics are counted from 0.
+ * @author Matthew Tropiano
+ */
+public class DemoDiff
+{
+	/** Header differences, as "field: first / second". */
+	private List<String> headerDifferences;
+
+	/** First demo tic count. */
+	private int ticCountA;
+	/** Second demo tic count. */
+	private int ticCountB;
+	/** Players compared. */
+	private int players;
+
+	/** First divergent tic, or -1 if none. */
+	private int firstTic;
+	/** Commands of each player in the first demo at the first divergent tic. */
+	private long[] firstCommandsA;
+	/** Commands of each player in the second demo at the first divergent tic. */
+	private long[] firstCommandsB;
+
+	/** Region start tics. */
+	private int[] regionStarts;
+	/** Region end tics (exclusive). */
+	private int[] regionEnds;
+	/** Region count. */
+	private int regionCount;
+	/** Amount of divergent tics. */
+	private int divergentTics;
+
+	private DemoDiff()
+	{
+		this.headerDifferences = new List<String>();
+		this.firstTic = -1;
+		this.regionStarts = new int[16];
+		this.regionEnds = new int[16];
+		this.regionCount = 0;
+		this.divergentTics = 0;
+	}
+
+	/**
+	 * Compares two demos. Only the players that both demos have are compared.
+	 * @param a the first demo (not closed).
+	 * @param b the second demo (not closed).
+	 * @return the differences.
+	 * @throws IOException if either demo could not be read, or is not a demo.
+	 */
+	public static DemoDiff compare(InputStream a, InputStream b) throws IOException
+	{
+		DemoDecoder da = new DemoDecoder(a);
+		DemoDecoder db = new DemoDecoder(b);
+		DemoDiff out = new DemoDiff();
+
+		out.addHeaderDifference("version", da.getVersion(), db.getVersion());
+		out.addHeaderDifference("skill", da.getSkill() + 1, db.getSkill() + 1);
+		out.addHeaderDifference("episode", da.getEpisode(), db.getEpisode());
+		out.addHeaderDifference("map", da.getMap(), db.getMap());
+		out.addHeaderDifference("players", da.getPlayers(), db.getPlayers());
+		out.addHeaderDifference("deathmatch", da.getDeathmatch(), db.getDeathmatch());
+		out.addHeaderDifference("fast", da.getFastMonsters(), db.getFastMonsters());
+		out.addHeaderDifference("respawn", da.getMonsterRespawn(), db.getMonsterRespawn());
+		out.addHeaderDifference("nomonsters", da.getNoMonsters(), db.getNoMonsters());
+		out.addHeaderDifference("longtics", da.isLongTics(), db.isLongTics());
+
+		int players = Math.min(da.getPlayers(), db.getPlayers());
+		out.players = players;
+		long[] commandsA = new long[players];
+		long[] commandsB = new long[players];
+
+		int tic = 0;
+		int regionStart = -1;
+		while (da.nextTic() && db.nextTic())
+		{
+			boolean divergent = false;
+			for (int p = 0; p < players; p++)
+			{
+				commandsA[p] = da.getCommand(p);
+				commandsB[p] = db.getCommand(p);
+				divergent = divergent || commandsA[p] != commandsB[p];
+			}
+
+			if (divergent)
+			{
+				if (out.firstTic < 0)
+				{
+					out.firstTic = tic;
+					out.firstCommandsA = Arrays.copyOf(commandsA, players);
+					out.firstCommandsB = Arrays.copyOf(commandsB, players);
+				}
+				if (regionStart < 0)
+					regionStart = tic;
+				out.divergentTics++;
+			}
+			else if (regionStart >= 0)
+			{
+				out.addRegion(regionStart, tic);
+				regionStart = -1;
+			}
+			tic++;
+		}
+		if (regionStart >= 0)
+			out.addRegion(regionStart, tic);
+
+		// the shorter demo ended: count the rest of the longer one.
+		while (da.nextTic()) ;
+		while (db.nextTic()) ;
+		out.ticCountA = da.getTicCount();
+		out.ticCountB = db.getTicCount();
+		return out;
+	}
+
+	private void addHeaderDifference(String name, Object a, Object b)
+	{
+		if (!a.equals(b))
+			headerDifferences.add(name + ": " + a + " / " + b);
+	}
+
+	private void addRegion(int start, int end)
+	{
+		if (regionCount == regionStarts.length)
+		{
+			regionStarts = Arrays.copyOf(regionStarts, regionCount * 2);
+			regionEnds = Arrays.copyOf(regionEnds, regionCount * 2);
+		}
+		regionStarts[regionCount] = start;
+		regionEnds[regionCount] = end;
+		regionCount++;
+	}
+
+	/**
+	 * @return true if the demos have the same header, length, and commands.
+	 */
+	public boolean isSame()
+	{
+		return headerDifferences.isEmpty() && firstTic < 0 && ticCountA == ticCountB;
+	}
+
+	/**
+	 * @return the header differences, each as "field: first / second".
+	 */
+	public List<String> getHeaderDifferences()
+	{
+		return headerDifferences;
+	}
+
+	/**
+	 * @return the tic count of the first demo.
+	 */
+	public int getTicCountA()
+	{
+		return ticCountA;
+	}
+
+	/**
+	 * @return the tic count of the second demo.
+	 */
+	public int getTicCountB()
+	{
+		return ticCountB;
+	}
+
+	/**
+	 * @return the amount of players compared (the smaller player count).
+	 */
+	public int getPlayers()
+	{
+		return players;
+	}
+
+	/**
+	 * @return the first divergent tic, or -1 if the demos never diverge (while both have tics).
+	 */
+	public int getFirstTic()
+	{
+		return firstTic;
+	}
+
+	/**
+	 * @param player the player.
+	 * @return the packed command of that player in the first demo at the first divergent tic.
+	 * @see DemoDecoder#getCommand(int)
+	 */
+	public long getFirstCommandA(int player)
+	{
+		return firstCommandsA[player];
+	}
+
+	/**
+	 * @param player the player.
+	 * @return the packed command of that player in the second demo at the first divergent tic.
+	 * @see DemoDecoder#getCommand(int)
+	 */
+	public long getFirstCommandB(int player)
+	{
+		return firstCommandsB[player];
+	}
+
+	/**
+	 * @return the amount of divergent regions.
+	 */
+	public int getRegionCount()
+	{
+		return regionCount;
+	}
+
+	/**
+	 * @param index the region index.
+	 * @return the first tic of the region.
+	 */
+	public int getRegionStart(int index)
+	{
+		return regionStarts[index];
+	}
+
+	/**
+	 * @param index the region index.
+	 * @return the tic after the last tic of the region.
+	 */
+	public int getRegionEnd(int index)
+	{
+		return regionEnds[index];
+	}
+
+	/**
+	 * @return the amount of divergent tics.
+	 */
+	public int getDivergentTics()
+	{
+		return divergentTics;
+	}
+
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Information about a demo, gathered in one streaming pass over it.
+ * @author Matthew Tropiano
+ */
+public class DemoInfo
+{
+	/** Tics per second. */
+	public static final double TICRATE = 35.0;
+
+	/** Speedrun behavior: none. */
+	public static final int SR_BEHAVIOR_NONE = 0;
+	/** Speedrun behavior: SR40 (forward 50 with strafe 40). */
+	public static final int SR_BEHAVIOR_40 = 1;
+	/** Speedrun behavior: SR50 (forward 50 with strafe 50). */
+	public static final int SR_BEHAVIOR_50 = 2;
+	/** Speedrun behavior: no strafing at all. */
+	public static final int SR_BEHAVIOR_STROLL = 3;
+
+	/** Amount of SR40/SR50 tics needed to call it so. */
+	private static final int SR_TIC_THRESHOLD = 5;
+
+	/** Demo version. */
+	private int version;
+	/** Skill (0-based). */
+	private int skill;
+	/** Episode. */
+	private int episode;
+	/** Map. */
+	private int map;
+	/** Player count. */
+	private int players;
+	/** Fast monsters. */
+	private boolean fastMonsters;
+	/** Respawning monsters. */
+	private boolean monsterRespawn;
+	/** No monsters. */
+	private boolean noMonsters;
+	/** Game tic count. */
+	private int ticCount;
+	/** Speedrun behavior. */
+	private int speedRunBehavior;
+	/** Input statistics, per player. */
+	private DemoStats[] playerStats;
+
+	private DemoInfo()
+	{
+	}
+
+	/**
+	 * Reads a demo, one tic at a time, and gathers its information.
+	 * @param in the input stream to read from (not closed).
+	 * @return the demo information.
+	 * @throws IOException if the demo could not be read, or is not a demo.
+	 */
+	public static DemoInfo read(InputStream in) throws IOException
+	{
+		DemoDecoder decoder = new DemoDecoder(in);
+		DemoInfo out = new DemoInfo();
+		out.version = decoder.getVersion();
+		out.skill = decoder.getSkill();
+		out.episode = decoder.getEpisode();
+		out.map = decoder.getMap();
+		out.players = decoder.getPlayers();
+		out.fastMonsters = decoder.getFastMonsters();
+		out.monsterRespawn = decoder.getMonsterRespawn();
+		out.noMonsters = decoder.getNoMonsters();
+		out.playerStats = new DemoStats[out.players];
+		for (int p = 0; p < out.players; p++)
+			out.playerStats[p] = new DemoStats();
+		boolean longTics = decoder.isLongTics();
+
+		// speedrun behavior: the first of SR40/SR50 to be seen in 5 player tics wins.
+		boolean stroll = true;
+		int srTics = 0;
+		int sr = SR_BEHAVIOR_NONE;
+		while (decoder.nextTic())
+		{
+			for (int p = 0; p < out.players; p++)
+			{
+				int fwd = Math.abs(decoder.getForwardMovement(p));
+				int strf = Math.abs(decoder.getRightStrafe(p));
+				if (sr == SR_BEHAVIOR_NONE && fwd == 50 && (strf == 50 || strf == 40))
+				{
+					if (++srTics == SR_TIC_THRESHOLD)
+						sr = strf == 50 ? SR_BEHAVIOR_50 : SR_BEHAVIOR_40;
+				}
+				if (strf != 0)
+					stroll = false;
+				out.playerStats[p].addTic(decoder.getForwardMovement(p), decoder.getRightStrafe(p), decoder.getTurn(p), decoder.getButtons(p), longTics);
+			}
+		}
+
+		out.ticCount = decoder.getTicCount();
+		out.speedRunBehavior = sr != SR_BEHAVIOR_NONE ? sr : (stroll ? SR_BEHAVIOR_STROLL : SR_BEHAVIOR_NONE);
+		return out;
+	}
+
+	/**
+	 * Creates demo information from stored values (for example, from a catalog).
+	 * The created info has no player statistics.
+	 */
+	static DemoInfo create(int version, int skill, int episode, int map, int players, boolean fastMonsters, boolean monsterRespawn, boolean noMonsters, int ticCount, int speedRunBehavior)
+	{
+		DemoInfo out = new DemoInfo();
+		out.version = version;
+		out.skill = skill;
+		out.episode = episode;
+		out.map = map;
+		out.players = players;
+		out.fastMonsters = fastMonsters;
+		out.monsterRespawn = monsterRespawn;
+		out.noMonsters = noMonsters;
+		out.ticCount = ticCount;
+		out.speedRunBehavior = speedRunBehavior;
+		out.playerStats = null;
+		return out;
+	}
+
+	/**
+	 * @return the demo version (0 for Doom 1.2 and earlier).
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the skill level (0 is ITYTD, 4 is NM).
+	 */
+	public int getSkill()
+	{
+		return skill;
+	}
+
+	/**
+	 * @return the episode.
+	 */
+	public int getEpisode()
+	{
+		return episode;
+	}
+
+	/**
+	 * @return the map.
+	 */
+	public int getMap()
+	{
+		return map;
+	}
+
+	/**
+	 * @return the amount of players.
+	 */
+	public int getPlayers()
+	{
+		return players;
+	}
+
+	/**
+	 * @return true if fast monsters was on.
+	 */
+	public boolean getFastMonsters()
+	{
+		return fastMonsters;
+	}
+
+	/**
+	 * @return true if respawning monsters was on.
+	 */
+	public boolean getMonsterRespawn()
+	{
+		return monsterRespawn;
+	}
+
+	/**
+	 * @return true if no monsters was on.
+	 */
+	public boolean getNoMonsters()
+	{
+		return noMonsters;
+	}
+
+	/**
+	 * @return the amount of game tics.
+	 */
+	public int getTicCount()
+	{
+		return ticCount;
+	}
+
+	/**
+	 * @return the length of the demo in seconds.
+	 */
+	public double getLength()
+	{
+		return ticCount / TICRATE;
+	}
+
+	/**
+	 * @param player the player (0 to {@link #getPlayers()} - 1).
+	 * @return the input statistics for that player, or null if this info has no statistics.
+	 */
+	public DemoStats getPlayerStats(int player)
+	{
+		return playerStats != null ? playerStats[player] : null;
+	}
+
+	/**
+	 * @return the detected speedrun behavior (one of the SR_BEHAVIOR constants).
+	 */
+	public int getSpeedRunBehavior()
+	{
+		return speedRunBehavior;
+	}
+
+}
@@ -0,0 +1,505 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
+
+/**
+ * A search over a {@link DemoCatalog}: a set of terms that all need to match,
+ * and an optional sort order.
+ * <p>
+ * Terms are separated by spaces, and look like <code>key=value</code>,
+ * using one of <code>= != &lt; &lt;= &gt; &gt;=</code>, or <code>~</code> (contains)
+ * for file names. Flags can be given alone, like <code>fast</code> or <code>!fast</code>.
+ * For example: <code>map=E1M1 skill=UV time&lt;1:00 sr=SR50</code>.
+ * @author Matthew Tropiano
+ */
+public class DemoQuery
+{
+	private static final int COLUMN_FILE = 0;
+	private static final int COLUMN_VERSION = 1;
+	private static final int COLUMN_EPISODE = 2;
+	private static final int COLUMN_MAP = 3;
+	private static final int COLUMN_SKILL = 4;
+	private static final int COLUMN_PLAYERS = 5;
+	private static final int COLUMN_TICS = 6;
+	/** Tics, times 1000 (so it can be compared to milliseconds times 35). */
+	private static final int COLUMN_TIME = 7;
+	private static final int COLUMN_FAST = 8;
+	private static final int COLUMN_RESPAWN = 9;
+	private static final int COLUMN_NOMONSTERS = 10;
+	private static final int COLUMN_SR = 11;
+	/** Episode, then map. For sorting only. */
+	private static final int COLUMN_LEVEL = 12;
+
+	private static final int OP_EQUAL = 0;
+	private static final int OP_NOT_EQUAL = 1;
+	private static final int OP_LESS = 2;
+	private static final int OP_LESS_EQUAL = 3;
+	private static final int OP_GREATER = 4;
+	private static final int OP_GREATER_EQUAL = 5;
+	private static final int OP_CONTAINS = 6;
+
+	/** Query column names. */
+	private static final CaseInsensitiveHashMap<Integer> COLUMN_NAMES = new CaseInsensitiveHashMap<Integer>()
+	{{
+		put("file", COLUMN_FILE);
+		put("version", COLUMN_VERSION);
+		put("episode", COLUMN_EPISODE);
+		put("map", COLUMN_MAP);
+		put("skill", COLUMN_SKILL);
+		put("players", COLUMN_PLAYERS);
+		put("tics", COLUMN_TICS);
+		put("time", COLUMN_TIME);
+		put("fast", COLUMN_FAST);
+		put("respawn", COLUMN_RESPAWN);
+		put("nomonsters", COLUMN_NOMONSTERS);
+		put("sr", COLUMN_SR);
+	}};
+
+	/** Sort column names. */
+	private static final CaseInsensitiveHashMap<Integer> SORT_NAMES = new CaseInsensitiveHashMap<Integer>()
+	{{
+		put("file", COLUMN_FILE);
+		put("version", COLUMN_VERSION);
+		put("map", COLUMN_LEVEL);
+		put("skill", COLUMN_SKILL);
+		put("players", COLUMN_PLAYERS);
+		put("tics", COLUMN_TICS);
+		put("time", COLUMN_TICS);
+		put("sr", COLUMN_SR);
+	}};
+
+	/** Skill names (as DemoSpy prints them). */
+	private static final String[] SKILL_NAMES = {"ITYTD", "HNTR", "HMP", "UV", "NM"};
+	/** Speedrun behavior names, per DemoInfo.SR_BEHAVIOR constant. */
+	private static final String[] SR_NAMES = {"NONE", "SR40", "SR50", "STROLL"};
+
+	/** Term pattern: optional "!", key, then optional operator and value. */
+	private static final Pattern TERM_PATTERN = Pattern.compile("(!?)([A-Za-z]+)(?:(<=|>=|!=|=|<|>|~)(.*))?");
+	/** ExMy pattern. */
+	private static final Pattern EPISODE_MAP_PATTERN = Pattern.compile("E([0-9])M([0-9]{1,2})", Pattern.CASE_INSENSITIVE);
+	/** MAPxx pattern. */
+	private static final Pattern MAP_PATTERN = Pattern.compile("MAP([0-9]{1,2})", Pattern.CASE_INSENSITIVE);
+	/** Time pattern: [minutes:]seconds[.fraction]. */
+	private static final Pattern TIME_PATTERN = Pattern.compile("(?:([0-9]+):)?([0-9]+)(?:\\.([0-9]{1,3}))?");
+
+	/** Thrown if a query or sort can't be understood. */
+	public static class ParseException extends Exception
+	{
+		private static final long serialVersionUID = -3917415040357216625L;
+
+		public ParseException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/** Term columns. */
+	private int[] columns;
+	/** Term operators. */
+	private int[] operators;
+	/** Term values. */
+	private long[] values;
+	/** Term text values (for files), lower case for contains. */
+	private String[] texts;
+	/** Term count. */
+	private int count;
+
+	/** Episode that this must match, or -1 if any. */
+	private int episode;
+	/** Map that this must match, or -1 if any. */
+	private int map;
+
+	/** Sort column, or -1 if unsorted. */
+	private int sortColumn;
+	/** Sort descending. */
+	private boolean sortDescending;
+
+	private DemoQuery()
+	{
+		this.columns = new int[8];
+		this.operators = new int[8];
+		this.values = new long[8];
+		this.texts = new String[8];
+		this.count = 0;
+		this.episode = -1;
+		this.map = -1;
+		this.sortColumn = -1;
+		this.sortDescending = false;
+	}
+
+	/**
+	 * Parses a query.
+	 * @param query the query terms (can be null or empty for all demos).
+	 * @param sort the sort key, with an optional ":desc" suffix (can be null for catalog order).
+	 * @return the parsed query.
+	 * @throws ParseException if a term or the sort key is not understood.
+	 */
+	public static DemoQuery parse(String query, String sort) throws ParseException
+	{
+		DemoQuery out = new DemoQuery();
+		if (query != null)
+		{
+			for (String term : query.trim().split("\\s+"))
+			{
+				if (term.length() > 0)
+					out.parseTerm(term);
+			}
+		}
+
+		if (sort != null)
+		{
+			String key = sort;
+			int colon = sort.indexOf(':');
+			if (colon >= 0)
+			{
+				key = sort.substring(0, colon);
+				String order = sort.substring(colon + 1);
+				if (order.equalsIgnoreCase("desc"))
+					out.sortDescending = true;
+				else if (!order.equalsIgnoreCase("asc"))
+					throw new ParseException("Bad sort order: " + order);
+			}
+			Integer column = SORT_NAMES.get(key);
+			if (column == null)
+				throw new ParseException("Can't sort by: " + key);
+			out.sortColumn = column;
+		}
+		return out;
+	}
+
+	// Parses one term.
+	private void parseTerm(String term) throws ParseException
+	{
+		Matcher m = TERM_PATTERN.matcher(term);
+		if (!m.matches())
+			throw new ParseException("Bad term: " + term);
+
+		boolean not = m.group(1).length() > 0;
+		String key = m.group(2);
+		String operator = m.group(3);
+		String value = m.group(4);
+
+		Integer column = COLUMN_NAMES.get(key);
+		if (column == null)
+			throw new ParseException("Unknown key: " + key);
+
+		// bare flags.
+		if (operator == null)
+		{
+			if (!isFlag(column))
+				throw new ParseException("Expected a value: " + term);
+			addTerm(column, not ? OP_EQUAL : OP_NOT_EQUAL, 0, null);
+			return;
+		}
+		if (not)
+			throw new ParseException("Bad term: " + term);
+
+		int op = parseOperator(operator);
+		if (value.length() == 0)
+			throw new ParseException("Expected a value: " + term);
+		if (op == OP_CONTAINS && column != COLUMN_FILE)
+			throw new ParseException("Only file can use ~: " + term);
+
+		switch (column)
+		{
+			case COLUMN_FILE:
+				if (op != OP_EQUAL && op != OP_NOT_EQUAL && op != OP_CONTAINS)
+					throw new ParseException("Only =, != and ~ work with file: " + term);
+				addTerm(column, op, 0, op == OP_CONTAINS ? value.toLowerCase() : value);
+				break;
+
+			case COLUMN_MAP:
+			{
+				Matcher em = EPISODE_MAP_PATTERN.matcher(value);
+				Matcher mm = MAP_PATTERN.matcher(value);
+				if (em.matches())
+				{
+					if (op != OP_EQUAL)
+						throw new ParseException("Only = works with ExMy: " + term);
+					addTerm(COLUMN_EPISODE, OP_EQUAL, Integer.parseInt(em.group(1)), null);
+					addTerm(COLUMN_MAP, OP_EQUAL, Integer.parseInt(em.group(2)), null);
+				}
+				else if (mm.matches())
+					addTerm(column, op, Integer.parseInt(mm.group(1)), null);
+				else
+					addTerm(column, op, parseNumber(term, value), null);
+				break;
+			}
+
+			case COLUMN_SKILL:
+			{
+				int skill = indexOf(SKILL_NAMES, value);
+				if (skill < 0)
+				{
+					skill = (int)parseNumber(term, value) - 1;
+					if (skill < 0 || skill >= SKILL_NAMES.length)
+						throw new ParseException("Bad skill: " + term);
+				}
+				addTerm(column, op, skill, null);
+				break;
+			}
+
+			case COLUMN_SR:
+			{
+				int sr = indexOf(SR_NAMES, value);
+				if (sr < 0)
+					throw new ParseException("Bad speedrun behavior (expected NONE, SR40, SR50, or STROLL): " + term);
+				if (op != OP_EQUAL && op != OP_NOT_EQUAL)
+					throw new ParseException("Only = and != work with sr: " + term);
+				addTerm(column, op, sr, null);
+				break;
+			}
+
+			case COLUMN_TIME:
+			{
+				Matcher tm = TIME_PATTERN.matcher(value);
+				if (!tm.matches())
+					throw new ParseException("Bad time (expected m:ss.fff): " + term);
+				long millis = Long.parseLong(tm.group(2)) * 1000L;
+				if (tm.group(1) != null)
+					millis += Long.parseLong(tm.group(1)) * 60000L;
+				if (tm.group(3) != null)
+				{
+					String fraction = (tm.group(3) + "00").substring(0, 3);
+					millis += Long.parseLong(fraction);
+				}
+				addTerm(column, op, millis * (long)DemoInfo.TICRATE, null);
+				break;
+			}
+
+			case COLUMN_FAST:
+			case COLUMN_RESPAWN:
+			case COLUMN_NOMONSTERS:
+			{
+				if (op != OP_EQUAL && op != OP_NOT_EQUAL)
+					throw new ParseException("Only = and != work with flags: " + term);
+				addTerm(column, op, parseBoolean(term, value) ? 1 : 0, null);
+				break;
+			}
+
+			default:
+				addTerm(column, op, parseNumber(term, value), null);
+				break;
+		}
+	}
+
+	private void addTerm(int column, int op, long value, String text)
+	{
+		if (count == columns.length)
+		{
+			int capacity = count * 2;
+			columns = Arrays.copyOf(columns, capacity);
+			operators = Arrays.copyOf(operators, capacity);
+			values = Arrays.copyOf(values, capacity);
+			texts = Arrays.copyOf(texts, capacity);
+		}
+		columns[count] = column;
+		operators[count] = op;
+		values[count] = value;
+		texts[count] = text;
+		count++;
+
+		if (op == OP_EQUAL && column == COLUMN_EPISODE)
+			episode = (int)value;
+		else if (op == OP_EQUAL && column == COLUMN_MAP)
+			map = (int)value;
+	}
+
+	private static boolean isFlag(int column)
+	{
+		return column == COLUMN_FAST || column == COLUMN_RESPAWN || column == COLUMN_NOMONSTERS;
+	}
+
+	private static int parseOperator(String operator)
+	{
+		if (operator.equals("="))
+			return OP_EQUAL;
+		else if (operator.equals("!="))
+			return OP_NOT_EQUAL;
+		else if (operator.equals("<"))
+			return OP_LESS;
+		else if (operator.equals("<="))
+			return OP_LESS_EQUAL;
+		else if (operator.equals(">"))
+			return OP_GREATER;
+		else if (operator.equals(">="))
+			return OP_GREATER_EQUAL;
+		else
+			return OP_CONTAINS;
+	}
+
+	private static long parseNumber(String term, String value) throws ParseException
+	{
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new ParseException("Expected a number: " + term);
+		}
+	}
+
+	private static boolean parseBoolean(String term, String value) throws ParseException
+	{
+		if (value.equals("1") || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on"))
+			return true;
+		else if (value.equals("0") || value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off"))
+			return false;
+		throw new ParseException("Expected true or false: " + term);
+	}
+
+	private static int indexOf(String[] names, String value)
+	{
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equalsIgnoreCase(value))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the episode that this query needs, or -1 if any episode.
+	 */
+	public int getEpisode()
+	{
+		return episode;
+	}
+
+	/**
+	 * @return the map that this query needs, or -1 if any map.
+	 */
+	public int getMap()
+	{
+		return map;
+	}
+
+	/**
+	 * @return true if this query sorts its results.
+	 */
+	public boolean isSorted()
+	{
+		return sortColumn >= 0;
+	}
+
+	// Gets a numeric column value for a row.
+	private static long getValue(DemoCatalog catalog, int column, int row)
+	{
+		switch (column)
+		{
+			case COLUMN_VERSION:
+				return catalog.getVersion(row);
+			case COLUMN_EPISODE:
+				return catalog.getEpisode(row);
+			case COLUMN_MAP:
+				return catalog.getMap(row);
+			case COLUMN_SKILL:
+				return catalog.getSkill(row);
+			case COLUMN_PLAYERS:
+				return catalog.getPlayers(row);
+			case COLUMN_TICS:
+				return catalog.getTics(row);
+			case COLUMN_TIME:
+				return catalog.getTics(row) * 1000L;
+			case COLUMN_FAST:
+				return (catalog.getFlags(row) & DemoCatalog.FLAG_FAST) != 0 ? 1 : 0;
+			case COLUMN_RESPAWN:
+				return (catalog.getFlags(row) & DemoCatalog.FLAG_RESPAWN) != 0 ? 1 : 0;
+			case COLUMN_NOMONSTERS:
+				return (catalog.getFlags(row) & DemoCatalog.FLAG_NOMONSTERS) != 0 ? 1 : 0;
+			case COLUMN_SR:
+				return catalog.getSpeedRunBehavior(row);
+			case COLUMN_LEVEL:
+				return (catalog.getEpisode(row) << 8) | catalog.getMap(row);
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Checks if a catalog row matches all terms of this query.
+	 * @param catalog the catalog.
+	 * @param row the row.
+	 * @return true if so, false if not.
+	 */
+	public boolean matches(DemoCatalog catalog, int row)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			boolean match;
+			if (columns[i] == COLUMN_FILE)
+			{
+				String path = catalog.getPath(row);
+				switch (operators[i])
+				{
+					case OP_EQUAL:
+						match = path.equals(texts[i]);
+						break;
+					case OP_NOT_EQUAL:
+						match = !path.equals(texts[i]);
+						break;
+					default:
+						match = path.toLowerCase().contains(texts[i]);
+						break;
+				}
+			}
+			else
+			{
+				long v = getValue(catalog, columns[i], row);
+				switch (operators[i])
+				{
+					case OP_EQUAL:
+						match = v == values[i];
+						break;
+					case OP_NOT_EQUAL:
+						match = v != values[i];
+						break;
+					case OP_LESS:
+						match = v < values[i];
+						break;
+					case OP_LESS_EQUAL:
+						match = v <= values[i];
+						break;
+					case OP_GREATER:
+						match = v > values[i];
+						break;
+					default:
+						match = v >= values[i];
+						break;
+				}
+			}
+			if (!match)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compares two catalog rows by this query's sort order (ties go by path).
+	 * @param catalog the catalog.
+	 * @param a the first row.
+	 * @param b the second row.
+	 * @return less than 0, 0, or greater than 0, like a comparator.
+	 */
+	public int compare(DemoCatalog catalog, int a, int b)
+	{
+		int c = 0;
+		if (sortColumn == COLUMN_FILE)
+			c = catalog.getPath(a).compareTo(catalog.getPath(b));
+		else if (sortColumn >= 0)
+			c = Long.compare(getValue(catalog, sortColumn, a), getValue(catalog, sortColumn, b));
+		if (sortDescending)
+			c = -c;
+		if (c == 0)
+			c = catalog.getPath(a).compareTo(catalog.getPath(b));
+		return c;
+	}
+
+}
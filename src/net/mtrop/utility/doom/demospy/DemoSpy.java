@@ -7,18 +7,32 @@
  ******************************************************************************/
 package net.mtrop.utility.doom.demospy;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
-import net.mtrop.doom.struct.Demo;
+import net.mtrop.utility.doom.common.FileTypeDispatcher;
+import net.mtrop.utility.doom.common.Stats;
 
 import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.linkedlist.Queue;
 import com.blackrook.commons.list.List;
 import com.blackrook.utility.Context;
 import com.blackrook.utility.Settings;
@@ -32,7 +46,7 @@ import com.blackrook.utility.Version;
  */
 public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 {
-	private static final Version VERSION = new Version(2,0,0,0);
+	private static final Version VERSION = new Version(2,1,0,0);
 
 	private static final String[] SKILL_NAMES = new String[]{
 		"ITYTD",
@@ -42,6 +56,7 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 		"NM",
 	};
 	
+	/** Names for each DemoInfo.SR_BEHAVIOR constant. */
 	private static final String[] SR_NAMES = new String[]{
 		"",
 		"SR40",
@@ -49,11 +64,6 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 		"STROLL",
 	};	
 
-	private static final int SR_BEHAVIOR_NONE = 	0;
-	private static final int SR_BEHAVIOR_40 = 		1;
-	private static final int SR_BEHAVIOR_50 = 		2;
-	private static final int SR_BEHAVIOR_STROLL = 	3;
-	
 	/** Output type setting key. */
 	public static final String SETTING_OUTPUT_TYPE = "output";
 	/** Output type setting. */
@@ -62,18 +72,119 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 	public static final int SETTING_OUTPUT_TYPE_NORMAL = 0;
 	/** Output type setting. */
 	public static final int SETTING_OUTPUT_TYPE_LONG = 1;
+	/** Output type setting. */
+	public static final int SETTING_OUTPUT_TYPE_CSV = 2;
+	/** Output type setting. */
+	public static final int SETTING_OUTPUT_TYPE_JSON = 3;
 	/** File path. */
 	public static final String SETTING_FILE_PATHS = "file";
+	/** Catalog file path. */
+	public static final String SETTING_CATALOG = "catalog";
+	/** Catalog query. */
+	public static final String SETTING_QUERY = "query";
+	/** Catalog query sort. */
+	public static final String SETTING_SORT = "sort";
+	/** Compare two demos. */
+	public static final String SETTING_DIFF = "diff";
 
 	/** Switch: normal output. */
 	public static final String SWITCH_NORMAL = "-n";
 	/** Switch: long output. */
 	public static final String SWITCH_LONG = "-l";
+	/** Switch: CSV output, with player statistics. */
+	public static final String SWITCH_CSV = "-csv";
+	/** Switch: JSON output (one object per line), with player statistics. */
+	public static final String SWITCH_JSON = "-json";
+	/** Switch: catalog file to update or query (next argument). */
+	public static final String SWITCH_CATALOG = "-catalog";
+	/** Switch: catalog query (next argument). */
+	public static final String SWITCH_QUERY = "-query";
+	/** Switch: catalog query sort (next argument). */
+	public static final String SWITCH_SORT = "-sort";
+	/** Switch: compare two demos. */
+	public static final String SWITCH_DIFF = "-diff";
 	
+	/** CSV column names. */
+	private static final String CSV_HEADER = 
+		"file,version,players,episode,map,skill,tics,seconds,flags,sr," +
+		"player,player_tics,sr40_tics,sr50_tics,sr50_ratio," +
+		"turn_slow_tics,turn_normal_tics,turn_fast_tics,turn_other_tics," +
+		"fire_presses,fire_tics,use_presses,use_tics,input_changes,tics_per_input_change,error";
+	/** CSV column names for catalog queries. */
+	private static final String CSV_CATALOG_HEADER = 
+		"file,version,players,episode,map,skill,tics,seconds,flags,sr,crc32";
+
+	/** Output type for catalog updates: only errors are printed. */
+	private static final int OUTPUT_TYPE_CATALOG = 4;
+
+	/** Amount of bytes read from a zip entry to see if it is a demo. */
+	private static final int SNIFF_LENGTH = 16;
+	/** Amount of demos that can be waiting to be printed, per thread. */
+	private static final int PENDING_PER_THREAD = 16;
+	/** Amount of divergent regions listed by a diff. */
+	private static final int DIFF_REGION_LIMIT = 50;
 	
 	public static class DemoSpyContext implements Context
 	{
-		// NOTHING.
+		/** Output type. */
+		private int outputType;
+		/** Decoding threads. */
+		private ExecutorService executor;
+		/** Thread count. */
+		private int threads;
+		/** Results that are not printed yet, in input order. */
+		private Queue<PendingDemo> pending;
+
+		/** Catalog being updated (null if not updating one). */
+		private DemoCatalog catalog;
+		/** Demo paths seen while updating the catalog. */
+		private Hash<String> seen;
+		/** Catalog demos added. */
+		private int added;
+		/** Catalog demos updated. */
+		private int updated;
+		/** Catalog demos unchanged. */
+		private int unchanged;
+		/** Catalog demos removed. */
+		private int removed;
+		
+		private DemoSpyContext()
+		{
+			this.threads = Runtime.getRuntime().availableProcessors();
+			this.pending = new Queue<PendingDemo>();
+			this.catalog = null;
+			this.seen = new Hash<String>();
+		}
+	}
+	
+	/** A demo that is not printed yet. */
+	private static class PendingDemo
+	{
+		/** Demo path, for errors. */
+		private String name;
+		/** The result, when done. */
+		private Future<DemoResult> result;
+		/** Zip to close once this is printed (set on a zip's last entry), or null. */
+		private ZipFile zip;
+	}
+
+	/** The result of reading one demo. */
+	private static class DemoResult
+	{
+		/** Demo path. */
+		private String name;
+		/** Printed output. */
+		private byte[] output;
+		/** Demo info (null if it could not be read, or is not a demo). */
+		private DemoInfo info;
+		/** Demo length in bytes. */
+		private long length;
+		/** Demo modified time. */
+		private long modified;
+		/** Demo CRC32. */
+		private int hash;
+		/** True if this is a zip entry that does not start with a demo header. */
+		private boolean notDemo;
 	}
 
 	@Override
@@ -88,12 +199,32 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 		List<String> files = new List<String>();
 		Settings out = new Settings();
 
+		String next = null;
 		for (String a : args)
 		{
-			if (a.equalsIgnoreCase(SWITCH_NORMAL))
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_CATALOG))
+				next = SETTING_CATALOG;
+			else if (a.equalsIgnoreCase(SWITCH_QUERY))
+				next = SETTING_QUERY;
+			else if (a.equalsIgnoreCase(SWITCH_SORT))
+				next = SETTING_SORT;
+			else if (a.equalsIgnoreCase(SWITCH_DIFF))
+				out.put(SETTING_DIFF, true);
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+				next = Stats.SETTING_STATS;
+			else if (a.equalsIgnoreCase(SWITCH_NORMAL))
 				out.put(SETTING_OUTPUT_TYPE, SETTING_OUTPUT_TYPE_NORMAL);
 			else if (a.equalsIgnoreCase(SWITCH_LONG))
 				out.put(SETTING_OUTPUT_TYPE, SETTING_OUTPUT_TYPE_LONG);
+			else if (a.equalsIgnoreCase(SWITCH_CSV))
+				out.put(SETTING_OUTPUT_TYPE, SETTING_OUTPUT_TYPE_CSV);
+			else if (a.equalsIgnoreCase(SWITCH_JSON))
+				out.put(SETTING_OUTPUT_TYPE, SETTING_OUTPUT_TYPE_JSON);
 			else
 				files.add(a);
 		}
@@ -111,103 +242,275 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 		return new DemoSpyContext();
 	}
 
-	private void processFile(File f, int outputType)
+	// Adds a demo task, and prints the oldest results, if too many are waiting. Returns the added task.
+	private PendingDemo submit(DemoSpyContext context, String name, Callable<DemoResult> task)
+	{
+		PendingDemo pending = new PendingDemo();
+		pending.name = name;
+		pending.result = context.executor.submit(Stats.wrap(task));
+		context.pending.enqueue(pending);
+		while (context.pending.size() > context.threads * PENDING_PER_THREAD)
+			printNext(context);
+		return pending;
+	}
+	
+	// Waits for and prints the oldest result, and adds it to the catalog, if updating one.
+	private void printNext(DemoSpyContext context)
 	{
-		FileInputStream fis = null;
+		PendingDemo pending = context.pending.dequeue();
+		Future<DemoResult> result = pending.result;
 		try {
-			fis = new FileInputStream(f);
-			processDemoData(fis, f.getPath(), outputType);
-		} catch (IOException e) {
-			out.printf("ERROR: Couldn't open %s for reading.\n", f.getPath());
+			DemoResult demo = result.get();
+			out.write(demo.output, 0, demo.output.length);
+			if (context.catalog != null)
+			{
+				if (demo.notDemo)
+				{
+					if (context.catalog.putSkipped(demo.name, demo.length, demo.modified, demo.hash))
+						context.removed++;
+				}
+				else if (demo.info == null)
+				{
+					if (context.catalog.remove(demo.name))
+						context.removed++;
+				}
+				else if (context.catalog.put(demo.name, demo.length, demo.modified, demo.hash, demo.info))
+					context.added++;
+				else
+					context.updated++;
+			}
+		} catch (ExecutionException e) {
+			out.printf("ERROR: %s: %s\n", pending.name, e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
 		} finally {
-			Common.close(fis);
+			closeZip(pending);
 		}
 	}
 	
-	private void processZipFile(File f, int outputType) throws ZipException, IOException
+	// Prints all waiting results.
+	private void printPending(DemoSpyContext context)
 	{
-		ZipFile zf = new ZipFile(f);
-		
-		@SuppressWarnings("unchecked")
-		Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
-		while (en.hasMoreElements())
+		while (!context.pending.isEmpty())
+			printNext(context);
+	}
+
+	// Drops all waiting results, closing their zips.
+	private void dropPending(DemoSpyContext context)
+	{
+		while (!context.pending.isEmpty())
 		{
-			ZipEntry ze = en.nextElement();
-			if (ze.isDirectory())
-				continue;
-			
-			InputStream zin = zf.getInputStream(ze);
-			processDemoData(zin, f.getPath()+":"+ze.getName(), outputType);
-			Common.close(zin);
+			PendingDemo pending = context.pending.dequeue();
+			pending.result.cancel(true);
+			closeZip(pending);
+		}
+	}
+
+	// Closes the zip that a waiting result holds open, if any.
+	private static void closeZip(PendingDemo pending)
+	{
+		if (pending.zip == null)
+			return;
+		try {
+			pending.zip.close();
+		} catch (IOException e) {
+			// nothing to do.
+		}
+		pending.zip = null;
+	}
+	
+	private void processFile(DemoSpyContext context, final File f)
+	{
+		final int outputType = context.outputType;
+		final long length = f.length();
+		final long modified = f.lastModified();
+		if (context.catalog != null)
+		{
+			context.seen.put(f.getPath());
+			if (context.catalog.isCurrent(f.getPath(), length, modified, -1L))
+			{
+				context.unchanged++;
+				return;
+			}
 		}
 		
-		zf.close();
+		submit(context, f.getPath(), new Callable<DemoResult>()
+		{
+			@Override
+			public DemoResult call()
+			{
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+				PrintStream out = new PrintStream(bos, true);
+				DemoResult result = new DemoResult();
+				result.name = f.getPath();
+				result.length = length;
+				result.modified = modified;
+				CheckedInputStream cin = null;
+				try {
+					cin = new CheckedInputStream(Stats.countInput(new FileInputStream(f)), new CRC32());
+					Stats.addFile();
+					InputStream in = new BufferedInputStream(cin, 8192);
+					result.info = processDemoData(out, in, f.getPath(), outputType);
+					// the hash is of the whole file, not just the demo part.
+					byte[] buffer = new byte[8192];
+					while (in.read(buffer) > 0) ;
+					result.hash = (int)cin.getChecksum().getValue();
+				} catch (IOException e) {
+					result.info = null;
+					printOpenError(out, f.getPath(), outputType);
+				} finally {
+					Common.close(cin);
+				}
+				result.output = bos.toByteArray();
+				return result;
+			}
+		});
 	}
 	
-	// Processes demo data.
-	private void processDemoData(InputStream in, String name, int outputType)
+	private void processZipFile(DemoSpyContext context, File f) throws ZipException, IOException
 	{
-		Demo demo = null;
+		final ZipFile zf = new ZipFile(f);
+		Stats.addFile();
+		final int outputType = context.outputType;
+		
+		// the zip needs to stay open until its entries are read, so the last one closes it when printed.
+		PendingDemo last = null;
 		try {
-			demo = Demo.read(in);
+			@SuppressWarnings("unchecked")
+			Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
+			while (en.hasMoreElements())
+			{
+				final ZipEntry ze = en.nextElement();
+				if (ze.isDirectory())
+					continue;
+				
+				final String name = f.getPath()+":"+ze.getName();
+				if (context.catalog != null)
+				{
+					context.seen.put(name);
+					if (context.catalog.isCurrent(name, ze.getSize(), ze.getTime(), ze.getCrc()))
+					{
+						context.unchanged++;
+						continue;
+					}
+					if (context.catalog.isSkipped(name, ze.getSize(), ze.getTime(), ze.getCrc()))
+						continue;
+				}
+				
+				last = submit(context, name, new Callable<DemoResult>()
+				{
+					@Override
+					public DemoResult call() throws IOException
+					{
+						ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+						PrintStream out = new PrintStream(bos, true);
+						DemoResult result = new DemoResult();
+						result.name = name;
+						result.length = ze.getSize();
+						result.modified = ze.getTime();
+						result.hash = (int)ze.getCrc();
+						InputStream zin = null;
+						try {
+							zin = new BufferedInputStream(Stats.countInput(zf.getInputStream(ze)), 8192);
+							// skip entries that aren't demos without decoding them.
+							if (isDemo(zin))
+								result.info = processDemoData(out, zin, name, outputType);
+							else
+								result.notDemo = true;
+						} finally {
+							Common.close(zin);
+						}
+						result.output = bos.toByteArray();
+						return result;
+					}
+				});
+			}
+		} finally {
+			if (last != null)
+				last.zip = zf;
+			else
+				zf.close();
+		}
+	}
+	
+	// Checks the start of a stream for a demo header, and rewinds it.
+	private static boolean isDemo(InputStream in) throws IOException
+	{
+		byte[] header = new byte[SNIFF_LENGTH];
+		in.mark(SNIFF_LENGTH);
+		int length = 0;
+		int n;
+		while (length < SNIFF_LENGTH && (n = in.read(header, length, SNIFF_LENGTH - length)) > 0)
+			length += n;
+		in.reset();
+		return DemoDecoder.isDemoHeader(header, length);
+	}
+	
+	// Prints a file open error.
+	private void printOpenError(PrintStream out, String name, int outputType)
+	{
+		switch (outputType)
+		{
+			case SETTING_OUTPUT_TYPE_CSV:
+				out.printf("%s,,,,,,,,,,,,,,,,,,,,,,,,,%s\n", csvString(name), "Couldn't open for reading.");
+				break;
+			case SETTING_OUTPUT_TYPE_JSON:
+				out.printf("{\"file\":%s,\"error\":%s}\n", jsonString(name), jsonString("Couldn't open for reading."));
+				break;
+			default:
+				out.printf("ERROR: Couldn't open %s for reading.\n", name);
+				break;
+		}
+	}
+	
+	// Processes demo data. Returns the demo info, or null if it could not be read.
+	private DemoInfo processDemoData(PrintStream out, InputStream in, String name, int outputType)
+	{
+		DemoInfo demo = null;
+		try {
+			demo = DemoInfo.read(in);
 		} catch (IOException e) {
 			switch (outputType)
 			{
 				case SETTING_OUTPUT_TYPE_NORMAL:
+				case OUTPUT_TYPE_CATALOG:
 					out.printf("%s: %s\n", name, e.getMessage());
 					break;
 				case SETTING_OUTPUT_TYPE_LONG:
 					out.printf("%s (%s)\n", name, e.getMessage());
 					break;
+				case SETTING_OUTPUT_TYPE_CSV:
+					out.printf("%s,,,,,,,,,,,,,,,,,,,,,,,,,%s\n", csvString(name), csvString(e.getMessage()));
+					break;
+				case SETTING_OUTPUT_TYPE_JSON:
+					out.printf("{\"file\":%s,\"error\":%s}\n", jsonString(name), jsonString(e.getMessage()));
+					break;
 			}
-			return;
+			return null;
 		}
+		Stats.addLump();
 				
 		switch (outputType)
 		{
 			case SETTING_OUTPUT_TYPE_NORMAL:
-				printDemo(name, demo);
+				printDemo(out, name, demo);
 				break;
 			case SETTING_OUTPUT_TYPE_LONG:
-				printDemoLong(name, demo);
+				printDemoLong(out, name, demo);
+				break;
+			case SETTING_OUTPUT_TYPE_CSV:
+				printDemoCSV(out, name, demo);
+				break;
+			case SETTING_OUTPUT_TYPE_JSON:
+				printDemoJSON(out, name, demo);
 				break;
 		}
+		return demo;
 	}
 
-	// Detects special or interesting speedrun behavior.
-	private int detectSpeedRunBehavior(Demo demo)
-	{
-		boolean stroll = true;
-		int ticscan = 0;
-		for (int i = 0; i < demo.getTicCount(); i++)
-		{
-			Demo.Tic tic = demo.getTic(i);
-			int fwd = Math.abs(tic.getForwardMovement());
-			int strf = Math.abs(tic.getRightStrafe());
-			if (fwd == 50 && strf == 50)
-			{
-				ticscan++;
-				if (ticscan == 5)
-					return SR_BEHAVIOR_50;
-			}
-			else if (fwd == 50 && strf == 40)
-			{
-				ticscan++;
-				if (ticscan == 5)
-					return SR_BEHAVIOR_40;
-			}
-			if (strf != 0)
-				stroll = false; 
-		}
-		
-		if (stroll)
-			return SR_BEHAVIOR_STROLL;
-		
-		return SR_BEHAVIOR_NONE;
-	}
-	
 	// Detects relevant flags for boasting rights.
-	private String detectRelevantFlags(Demo demo)
+	private String detectRelevantFlags(DemoInfo demo)
 	{
 		StringBuilder sb = new StringBuilder();
 		if (demo.getFastMonsters())
@@ -220,7 +523,7 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 		return sb.toString();
 	}
 	
-	private void printDemo(String name, Demo demo)
+	private void printDemo(PrintStream out, String name, DemoInfo demo)
 	{
 		out.println(name);
 		out.printf("\tVersion: %d\n", demo.getVersion());
@@ -232,10 +535,10 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 				(int)(demo.getLength()) % 60,
 				(int)((demo.getLength() % 1.0) * 1000)
 				);
-		out.printf("\t%s%s\n", detectRelevantFlags(demo), SR_NAMES[detectSpeedRunBehavior(demo)]);
+		out.printf("\t%s%s\n", detectRelevantFlags(demo), SR_NAMES[demo.getSpeedRunBehavior()]);
 	}
 	
-	private void printDemoLong(String name, Demo demo)
+	private void printDemoLong(PrintStream out, String name, DemoInfo demo)
 	{
 		out.printf("%s %d %d %d %d %s %d %d:%02d.%03d %s%s\n", 
 			name,
@@ -249,25 +552,408 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 			(int)(demo.getLength()) % 60,
 			(int)((demo.getLength() % 1.0) * 1000),
 			detectRelevantFlags(demo), 
-			SR_NAMES[detectSpeedRunBehavior(demo)]
+			SR_NAMES[demo.getSpeedRunBehavior()]
 			);
 	}
 	
+	// Prints one CSV row per player.
+	private void printDemoCSV(PrintStream out, String name, DemoInfo demo)
+	{
+		for (int p = 0; p < demo.getPlayers(); p++)
+		{
+			DemoStats stats = demo.getPlayerStats(p);
+			out.printf(Locale.US, "%s,%d,%d,%d,%d,%s,%d,%.3f,%s,%s,%d,%d,%d,%d,%.4f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.2f,\n",
+				csvString(name),
+				demo.getVersion(),
+				demo.getPlayers(),
+				demo.getEpisode(),
+				demo.getMap(),
+				SKILL_NAMES[demo.getSkill()],
+				demo.getTicCount(),
+				demo.getLength(),
+				detectRelevantFlags(demo).trim(),
+				SR_NAMES[demo.getSpeedRunBehavior()],
+				p + 1,
+				stats.getTics(),
+				stats.getSR40Tics(),
+				stats.getSR50Tics(),
+				stats.getSR50Ratio(),
+				stats.getTurnSlowTics(),
+				stats.getTurnNormalTics(),
+				stats.getTurnFastTics(),
+				stats.getTurnOtherTics(),
+				stats.getFirePresses(),
+				stats.getFireTics(),
+				stats.getUsePresses(),
+				stats.getUseTics(),
+				stats.getInputChanges(),
+				stats.getTicsPerInputChange()
+			);
+		}
+	}
+	
+	// Prints one JSON object (on one line) per demo.
+	private void printDemoJSON(PrintStream out, String name, DemoInfo demo)
+	{
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"file\":").append(jsonString(name));
+		sb.append(",\"version\":").append(demo.getVersion());
+		sb.append(",\"players\":").append(demo.getPlayers());
+		sb.append(",\"episode\":").append(demo.getEpisode());
+		sb.append(",\"map\":").append(demo.getMap());
+		sb.append(",\"skill\":").append(jsonString(SKILL_NAMES[demo.getSkill()]));
+		sb.append(",\"tics\":").append(demo.getTicCount());
+		sb.append(",\"seconds\":").append(String.format(Locale.US, "%.3f", demo.getLength()));
+		sb.append(",\"fast\":").append(demo.getFastMonsters());
+		sb.append(",\"respawn\":").append(demo.getMonsterRespawn());
+		sb.append(",\"nomonsters\":").append(demo.getNoMonsters());
+		sb.append(",\"sr\":").append(jsonString(SR_NAMES[demo.getSpeedRunBehavior()]));
+		sb.append(",\"playerStats\":[");
+		for (int p = 0; p < demo.getPlayers(); p++)
+		{
+			DemoStats stats = demo.getPlayerStats(p);
+			if (p > 0)
+				sb.append(',');
+			sb.append("{\"player\":").append(p + 1);
+			sb.append(",\"tics\":").append(stats.getTics());
+			sb.append(",\"sr40Tics\":").append(stats.getSR40Tics());
+			sb.append(",\"sr50Tics\":").append(stats.getSR50Tics());
+			sb.append(",\"sr50Ratio\":").append(String.format(Locale.US, "%.4f", stats.getSR50Ratio()));
+			sb.append(",\"turnSlowTics\":").append(stats.getTurnSlowTics());
+			sb.append(",\"turnNormalTics\":").append(stats.getTurnNormalTics());
+			sb.append(",\"turnFastTics\":").append(stats.getTurnFastTics());
+			sb.append(",\"turnOtherTics\":").append(stats.getTurnOtherTics());
+			sb.append(",\"firePresses\":").append(stats.getFirePresses());
+			sb.append(",\"fireTics\":").append(stats.getFireTics());
+			sb.append(",\"usePresses\":").append(stats.getUsePresses());
+			sb.append(",\"useTics\":").append(stats.getUseTics());
+			sb.append(",\"inputChanges\":").append(stats.getInputChanges());
+			sb.append(",\"ticsPerInputChange\":").append(String.format(Locale.US, "%.2f", stats.getTicsPerInputChange()));
+			sb.append(",\"forward\":");
+			appendHistogram(sb, stats, 0);
+			sb.append(",\"strafe\":");
+			appendHistogram(sb, stats, 1);
+			sb.append(",\"turn\":");
+			appendHistogram(sb, stats, 2);
+			sb.append('}');
+		}
+		sb.append("]}");
+		out.println(sb);
+	}
+	
+	// Prints one catalog row.
+	private void printCatalogRow(DemoCatalog catalog, int row, int outputType)
+	{
+		String name = catalog.getPath(row);
+		DemoInfo demo = catalog.getInfo(row);
+		switch (outputType)
+		{
+			case SETTING_OUTPUT_TYPE_NORMAL:
+				printDemo(out, name, demo);
+				break;
+			case SETTING_OUTPUT_TYPE_LONG:
+				printDemoLong(out, name, demo);
+				break;
+			case SETTING_OUTPUT_TYPE_CSV:
+				out.printf(Locale.US, "%s,%d,%d,%d,%d,%s,%d,%.3f,%s,%s,%08x\n",
+					csvString(name),
+					demo.getVersion(),
+					demo.getPlayers(),
+					demo.getEpisode(),
+					demo.getMap(),
+					SKILL_NAMES[demo.getSkill()],
+					demo.getTicCount(),
+					demo.getLength(),
+					detectRelevantFlags(demo).trim(),
+					SR_NAMES[demo.getSpeedRunBehavior()],
+					catalog.getHash(row)
+				);
+				break;
+			case SETTING_OUTPUT_TYPE_JSON:
+			{
+				StringBuilder sb = new StringBuilder(256);
+				sb.append("{\"file\":").append(jsonString(name));
+				sb.append(",\"version\":").append(demo.getVersion());
+				sb.append(",\"players\":").append(demo.getPlayers());
+				sb.append(",\"episode\":").append(demo.getEpisode());
+				sb.append(",\"map\":").append(demo.getMap());
+				sb.append(",\"skill\":").append(jsonString(SKILL_NAMES[demo.getSkill()]));
+				sb.append(",\"tics\":").append(demo.getTicCount());
+				sb.append(",\"seconds\":").append(String.format(Locale.US, "%.3f", demo.getLength()));
+				sb.append(",\"fast\":").append(demo.getFastMonsters());
+				sb.append(",\"respawn\":").append(demo.getMonsterRespawn());
+				sb.append(",\"nomonsters\":").append(demo.getNoMonsters());
+				sb.append(",\"sr\":").append(jsonString(SR_NAMES[demo.getSpeedRunBehavior()]));
+				sb.append(",\"crc32\":").append(jsonString(String.format("%08x", catalog.getHash(row))));
+				sb.append('}');
+				out.println(sb);
+				break;
+			}
+		}
+	}
+	
+	// Formats a tic as a time.
+	private static String formatTime(int tic)
+	{
+		double seconds = tic / DemoInfo.TICRATE;
+		return String.format("%d:%02d.%03d", (int)(seconds / 60), (int)seconds % 60, (int)((seconds % 1.0) * 1000));
+	}
+	
+	// Formats a packed command.
+	private static String formatCommand(long command)
+	{
+		return String.format("forward %d, strafe %d, turn %d, buttons 0x%02x", 
+			DemoDecoder.unpackForwardMovement(command),
+			DemoDecoder.unpackRightStrafe(command),
+			DemoDecoder.unpackTurn(command),
+			DemoDecoder.unpackButtons(command)
+		);
+	}
+	
+	// Prints the differences between two demos.
+	private void printDiff(String nameA, String nameB, DemoDiff diff)
+	{
+		out.printf("%s / %s\n", nameA, nameB);
+		if (diff.isSame())
+		{
+			out.printf("\tSame: %d tics, %s\n", diff.getTicCountA(), formatTime(diff.getTicCountA()));
+			return;
+		}
+		
+		for (String s : diff.getHeaderDifferences())
+			out.printf("\tHeader %s\n", s);
+		if (diff.getTicCountA() != diff.getTicCountB())
+		{
+			out.printf("\tTics: %d (%s) / %d (%s)\n", 
+				diff.getTicCountA(), formatTime(diff.getTicCountA()), 
+				diff.getTicCountB(), formatTime(diff.getTicCountB())
+			);
+		}
+		
+		int tic = diff.getFirstTic();
+		if (tic < 0)
+		{
+			out.printf("\tNo divergent tics in the first %d tics.\n", Math.min(diff.getTicCountA(), diff.getTicCountB()));
+			return;
+		}
+		
+		out.printf("\tFirst divergent tic: %d (%s)\n", tic, formatTime(tic));
+		for (int p = 0; p < diff.getPlayers(); p++)
+		{
+			long a = diff.getFirstCommandA(p);
+			long b = diff.getFirstCommandB(p);
+			if (a != b)
+			{
+				out.printf("\t\tPlayer %d: %s\n", p + 1, formatCommand(a));
+				out.printf("\t\t       / %s\n", formatCommand(b));
+			}
+		}
+		
+		out.printf("\t%d divergent tic(s) in %d region(s):\n", diff.getDivergentTics(), diff.getRegionCount());
+		int regions = Math.min(diff.getRegionCount(), DIFF_REGION_LIMIT);
+		for (int i = 0; i < regions; i++)
+		{
+			int start = diff.getRegionStart(i);
+			int end = diff.getRegionEnd(i);
+			out.printf("\t\t%d - %d (%s - %s), %d tic(s)\n", start, end - 1, formatTime(start), formatTime(end - 1), end - start);
+		}
+		if (diff.getRegionCount() > regions)
+			out.printf("\t\t...and %d more.\n", diff.getRegionCount() - regions);
+	}
+	
+	// Compares two demo files.
+	private int executeDiff(String[] filePaths)
+	{
+		if (filePaths == null || filePaths.length != 2)
+		{
+			out.println("ERROR: -diff needs two demo files.");
+			printUsage();
+			return 2;
+		}
+		
+		Stats.phase("Comparing demos");
+		InputStream a = null;
+		InputStream b = null;
+		try {
+			try {
+				a = Stats.countInput(new FileInputStream(filePaths[0]));
+				Stats.addFile();
+			} catch (IOException e) {
+				out.printf("ERROR: Couldn't open %s for reading.\n", filePaths[0]);
+				return 1;
+			}
+			try {
+				b = Stats.countInput(new FileInputStream(filePaths[1]));
+				Stats.addFile();
+			} catch (IOException e) {
+				out.printf("ERROR: Couldn't open %s for reading.\n", filePaths[1]);
+				return 1;
+			}
+			
+			try {
+				printDiff(filePaths[0], filePaths[1], DemoDiff.compare(a, b));
+			} catch (IOException e) {
+				out.printf("ERROR: %s\n", e.getMessage());
+				return 1;
+			}
+		} finally {
+			Common.close(a);
+			Common.close(b);
+		}
+		
+		return 0;
+	}
+	
+	// Appends a histogram as a JSON object of value to count, leaving out zero counts.
+	private static void appendHistogram(StringBuilder sb, DemoStats stats, int type)
+	{
+		sb.append('{');
+		boolean first = true;
+		for (int v = -128; v < 128; v++)
+		{
+			int count;
+			switch (type)
+			{
+				case 0:
+					count = stats.getForwardCount(v);
+					break;
+				case 1:
+					count = stats.getStrafeCount(v);
+					break;
+				default:
+					count = stats.getTurnCount(v);
+					break;
+			}
+			if (count == 0)
+				continue;
+			if (!first)
+				sb.append(',');
+			sb.append('"').append(v).append("\":").append(count);
+			first = false;
+		}
+		sb.append('}');
+	}
+	
+	// Quotes a CSV value, if needed.
+	private static String csvString(String s)
+	{
+		if (s == null)
+			return "";
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+			return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+	
+	// Makes a JSON string literal.
+	private static String jsonString(String s)
+	{
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int)c));
+					else
+						sb.append(c);
+					break;
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
 	// Prints the usage message.
 	private void printUsage()
 	{
 		out.printf("Demo Spy v%s by Matt Tropiano\n", getVersion());
-		out.println("Usage: demospy [file] [outputswitch]");
+		out.println("Usage: demospy [file] [outputswitch] [-catalog [catfile] [-query [query]] [-sort [key]]]");
+		out.println("       demospy -diff [file1] [file2]");
 		out.println("    [file]        :    A valid Doom/Boom/MBF demo file, or zip file.");
-		out.println("                       Accepts wildcards.");
+		out.println("                       Accepts wildcards. Files that are not demos");
+		out.println("                       are skipped inside zip files.");
 		out.println("    [outputswitch]: -n Normal out. Assumed if no switch specified.");
 		out.println("                    -l Long out. Prints info on one line, for GREP-ing.");
+		out.println("                    -csv CSV out, with one row per player in each");
+		out.println("                         demo, including input statistics.");
+		out.println("                    -json JSON out, with one object per line for each");
+		out.println("                          demo, including input statistics and");
+		out.println("                          movement and turning histograms.");
+		out.println("    -catalog [catfile]: Adds the demos in [file] to a catalog file, or");
+		out.println("                        updates the ones that changed. With no [file],");
+		out.println("                        or with -query or -sort, prints the matching");
+		out.println("                        demos from the catalog without reading them.");
+		out.println("    -query [query]:     Catalog search terms, all of which must match, as");
+		out.println("                        one argument: key=value, with = != < <= > >=,");
+		out.println("                        for file version episode map skill players tics");
+		out.println("                        time sr, \"file~text\" for a path containing text,");
+		out.println("                        and fast, respawn, nomonsters, or !fast, etc.");
+		out.println("                        Example: \"map=E1M1 skill=UV time<1:00 sr=SR50\"");
+		out.println("    -sort [key]:        Sorts the query by file, version, map, skill,");
+		out.println("                        players, tics, time, or sr. Add \":desc\" to");
+		out.println("                        reverse, like \"time:desc\".");
+		out.println("    -diff:              Compares two demos, tic by tic, and prints the");
+		out.println("                        first divergent tic and each divergent region.");
+		out.println("    -stats [format]:    Prints time and I/O stats for each phase to");
+		out.println("                        STDERR when done, as a \"table\" or \"json\".");
 	}
 	
 	@Override
-	public int execute(DemoSpyContext context, Settings settings)
+	public int execute(final DemoSpyContext context, final Settings settings)
+	{
+		return Stats.run("DemoSpy", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return spy(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Reads demos, or does a catalog or diff.
+	private int spy(DemoSpyContext context, Settings settings)
 	{
 		String[] filePaths = (String[])settings.get(SETTING_FILE_PATHS);
+		String catalogPath = settings.getString(SETTING_CATALOG);
+		
+		if (settings.getBoolean(SETTING_DIFF))
+			return executeDiff(filePaths);
+		if (catalogPath != null)
+			return executeCatalog(context, settings, catalogPath, filePaths);
+		if (settings.containsKey(SETTING_QUERY) || settings.containsKey(SETTING_SORT))
+		{
+			out.println("ERROR: -query and -sort need a -catalog file.");
+			printUsage();
+			return 2;
+		}
 		
 		if (filePaths == null || filePaths.length == 0)
 		{
@@ -276,21 +962,135 @@ public class DemoSpy extends Utility<DemoSpy.DemoSpyContext>
 			return 2;
 		}
 		
-		int outputType = settings.getInteger(SETTING_OUTPUT_TYPE);
+		context.outputType = settings.getInteger(SETTING_OUTPUT_TYPE);
+		context.executor = Executors.newFixedThreadPool(context.threads);
+		
+		if (context.outputType == SETTING_OUTPUT_TYPE_CSV)
+			out.println(CSV_HEADER);
+		
+		Stats.phase("Reading demos");
+		try {
+			processFiles(context, filePaths);
+		} finally {
+			context.executor.shutdownNow();
+			dropPending(context);
+		}
+
+		return 0;
+	}
+	
+	// Reads all demo files (and zip files), printing in order.
+	private void processFiles(final DemoSpyContext context, String[] filePaths)
+	{
+		// zips by their first bytes; anything else is decoded as a demo, which reports what's wrong with it.
+		FileTypeDispatcher dispatcher = new FileTypeDispatcher()
+			.add(FileTypeDispatcher.ZIP, new FileTypeDispatcher.Handler()
+			{
+				@Override
+				public void handle(File f) throws IOException
+				{
+					processZipFile(context, f);
+				}
+			})
+			.setDefault(new FileTypeDispatcher.Handler()
+			{
+				@Override
+				public void handle(File f)
+				{
+					processFile(context, f);
+				}
+			});
 		
+		Hash<String> sources = new Hash<String>();
 		for (String f : filePaths)
 		{
+			sources.put(new File(f).getPath());
 			try {
-				// try the ZipFile route.
-				processZipFile(new File(f), outputType);
-			} catch (ZipException e) {
-				// try the regular file route.
-				processFile(new File(f), outputType);
+				dispatcher.dispatch(new File(f));
 			} catch (IOException e) {
-				out.printf("ERROR: Couldn't open %s for reading.\n", f);
-			} 
+				printPending(context);
+				printOpenError(out, f, context.outputType);
+			}
 		}
-
+		printPending(context);
+		
+		// demos that were in the scanned files, but aren't anymore.
+		if (context.catalog != null)
+			context.removed += context.catalog.removeMissing(sources, context.seen);
+	}
+	
+	// Updates and/or queries a catalog.
+	private int executeCatalog(DemoSpyContext context, Settings settings, String catalogPath, String[] filePaths)
+	{
+		File catalogFile = new File(catalogPath);
+		int outputType = settings.getInteger(SETTING_OUTPUT_TYPE);
+		boolean update = filePaths != null && filePaths.length > 0;
+		
+		DemoQuery query = null;
+		if (!update || settings.containsKey(SETTING_QUERY) || settings.containsKey(SETTING_SORT))
+		{
+			try {
+				query = DemoQuery.parse(settings.getString(SETTING_QUERY), settings.getString(SETTING_SORT));
+			} catch (DemoQuery.ParseException e) {
+				out.printf("ERROR: Bad query: %s\n", e.getMessage());
+				return 1;
+			}
+		}
+		
+		Stats.phase("Reading catalog");
+		DemoCatalog catalog;
+		try {
+			catalog = DemoCatalog.read(catalogFile);
+		} catch (IOException e) {
+			out.printf("ERROR: Couldn't read catalog %s: %s\n", catalogPath, e.getMessage());
+			return 1;
+		}
+		
+		if (update)
+		{
+			context.outputType = OUTPUT_TYPE_CATALOG;
+			context.catalog = catalog;
+			context.executor = Executors.newFixedThreadPool(context.threads);
+			Stats.phase("Reading demos");
+			try {
+				processFiles(context, filePaths);
+			} finally {
+				context.executor.shutdownNow();
+				dropPending(context);
+				context.catalog = null;
+			}
+			
+			if (catalog.isChanged())
+			{
+				Stats.phase("Writing catalog");
+				try {
+					catalog.write(catalogFile);
+					// read back sorted and indexed, for the query.
+					if (query != null)
+						catalog = DemoCatalog.read(catalogFile);
+				} catch (IOException e) {
+					out.printf("ERROR: Couldn't write or re-read catalog %s: %s\n", catalogPath, e.getMessage());
+					return 1;
+				}
+			}
+			
+			// don't mix the summary into machine-readable query output.
+			if (query == null || outputType == SETTING_OUTPUT_TYPE_NORMAL || outputType == SETTING_OUTPUT_TYPE_LONG)
+			{
+				out.printf("Catalog %s: %d added, %d updated, %d unchanged, %d removed, %d total.\n", 
+					catalogPath, context.added, context.updated, context.unchanged, context.removed, catalog.size());
+			}
+		}
+		
+		if (query != null)
+		{
+			Stats.phase("Querying catalog");
+			if (outputType == SETTING_OUTPUT_TYPE_CSV)
+				out.println(CSV_CATALOG_HEADER);
+			for (int row : catalog.find(query))
+				printCatalogRow(catalog, row, outputType);
+		}
+		
 		return 0;
 	}
 	
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.demospy;
+
+/**
+ * Input statistics for one player in a demo, gathered one tic at a time.
+ * All counts are kept in primitive fields and arrays.
+ * @author Matthew Tropiano
+ */
+public class DemoStats
+{
+	/** Histogram bucket count (one per signed byte value). */
+	public static final int HISTOGRAM_SIZE = 256;
+
+	/** Slow keyboard turn (first tics of a turn), long tics. */
+	private static final int TURN_SLOW_LONG = 320;
+	/** Normal keyboard turn, long tics. */
+	private static final int TURN_NORMAL_LONG = 640;
+	/** Fast (running) keyboard turn, long tics. */
+	private static final int TURN_FAST_LONG = 1280;
+
+	// Short tics store (turn + 128) >> 8, which rounds left and right turns differently.
+	/** Slow keyboard turn left, as stored in short tics. */
+	private static final int TURN_SLOW_LEFT_SHORT = toShortTic(TURN_SLOW_LONG);
+	/** Normal keyboard turn left, as stored in short tics. */
+	private static final int TURN_NORMAL_LEFT_SHORT = toShortTic(TURN_NORMAL_LONG);
+	/** Fast (running) keyboard turn left, as stored in short tics. */
+	private static final int TURN_FAST_LEFT_SHORT = toShortTic(TURN_FAST_LONG);
+	/** Slow keyboard turn right, as stored in short tics. */
+	private static final int TURN_SLOW_RIGHT_SHORT = toShortTic(-TURN_SLOW_LONG);
+	/** Normal keyboard turn right, as stored in short tics. */
+	private static final int TURN_NORMAL_RIGHT_SHORT = toShortTic(-TURN_NORMAL_LONG);
+	/** Fast (running) keyboard turn right, as stored in short tics. */
+	private static final int TURN_FAST_RIGHT_SHORT = toShortTic(-TURN_FAST_LONG);
+
+	static
+	{
+		assert checkKeyboardTurns() : "Keyboard turns in short tic demos are not all counted as keyboard turns.";
+	}
+
+	/** Player tics. */
+	private int tics;
+	/** Forward movement histogram, indexed by value + 128. */
+	private int[] forward;
+	/** Strafe movement histogram, indexed by value + 128. */
+	private int[] strafe;
+	/** Turn histogram, indexed by (turn >> 8) + 128. */
+	private int[] turn;
+
+	/** Tics with forward 50 and strafe 40. */
+	private int sr40Tics;
+	/** Tics with forward 50 and strafe 50. */
+	private int sr50Tics;
+
+	/** Tics with a slow keyboard turn. */
+	private int turnSlowTics;
+	/** Tics with a normal keyboard turn. */
+	private int turnNormalTics;
+	/** Tics with a fast keyboard turn. */
+	private int turnFastTics;
+	/** Tics with any other turn (mouse, or turbo). */
+	private int turnOtherTics;
+
+	/** Tics with fire held. */
+	private int fireTics;
+	/** Times fire was pressed. */
+	private int firePresses;
+	/** Tics with use held. */
+	private int useTics;
+	/** Times use was pressed. */
+	private int usePresses;
+
+	/** Times the input changed from the tic before. */
+	private int inputChanges;
+
+	/** Last tic input (for change detection). */
+	private int lastForward;
+	private int lastStrafe;
+	private int lastTurn;
+	private int lastButtons;
+
+	DemoStats()
+	{
+		this.forward = new int[HISTOGRAM_SIZE];
+		this.strafe = new int[HISTOGRAM_SIZE];
+		this.turn = new int[HISTOGRAM_SIZE];
+	}
+
+	// Returns a turn as a short tic demo stores it (and as DemoDecoder reads it back).
+	private static int toShortTic(int turn)
+	{
+		return (short)(((turn + 128) >> 8) << 8);
+	}
+
+	// Checks that left and right keyboard turns of a non-longtic demo are all counted as
+	// normal turns. Run when assertions are on (-ea).
+	private static boolean checkKeyboardTurns()
+	{
+		DemoStats stats = new DemoStats();
+		for (int i = 0; i < 35; i++)
+		{
+			stats.addTic(0, 0, toShortTic(TURN_NORMAL_LONG), 0, false);
+			stats.addTic(0, 0, toShortTic(-TURN_NORMAL_LONG), 0, false);
+		}
+		return stats.turnNormalTics == 70 && stats.turnOtherTics == 0;
+	}
+
+	/**
+	 * Adds one tic of input.
+	 * @param fwd the forward movement.
+	 * @param side the strafe movement.
+	 * @param angle the turn.
+	 * @param buttons the button bits.
+	 * @param longTics true if turning is at full precision.
+	 */
+	void addTic(int fwd, int side, int angle, int buttons, boolean longTics)
+	{
+		forward[(fwd + 128) & 0x0ff]++;
+		strafe[(side + 128) & 0x0ff]++;
+		turn[((angle >> 8) + 128) & 0x0ff]++;
+
+		int absForward = Math.abs(fwd);
+		int absStrafe = Math.abs(side);
+		if (absForward == 50 && absStrafe == 50)
+			sr50Tics++;
+		else if (absForward == 50 && absStrafe == 40)
+			sr40Tics++;
+
+		if (angle != 0)
+		{
+			if (longTics ? Math.abs(angle) == TURN_SLOW_LONG : angle == TURN_SLOW_LEFT_SHORT || angle == TURN_SLOW_RIGHT_SHORT)
+				turnSlowTics++;
+			else if (longTics ? Math.abs(angle) == TURN_NORMAL_LONG : angle == TURN_NORMAL_LEFT_SHORT || angle == TURN_NORMAL_RIGHT_SHORT)
+				turnNormalTics++;
+			else if (longTics ? Math.abs(angle) == TURN_FAST_LONG : angle == TURN_FAST_LEFT_SHORT || angle == TURN_FAST_RIGHT_SHORT)
+				turnFastTics++;
+			else
+				turnOtherTics++;
+		}
+
+		// special tics (pause, save game) are not player actions.
+		int actions = (buttons & DemoDecoder.BUTTON_SPECIAL) != 0 ? 0 : buttons;
+		int lastActions = (lastButtons & DemoDecoder.BUTTON_SPECIAL) != 0 ? 0 : lastButtons;
+		if ((actions & DemoDecoder.BUTTON_ATTACK) != 0)
+		{
+			fireTics++;
+			if ((lastActions & DemoDecoder.BUTTON_ATTACK) == 0)
+				firePresses++;
+		}
+		if ((actions & DemoDecoder.BUTTON_USE) != 0)
+		{
+			useTics++;
+			if ((lastActions & DemoDecoder.BUTTON_USE) == 0)
+				usePresses++;
+		}
+
+		if (tics > 0 && (fwd != lastForward || side != lastStrafe || angle != lastTurn || buttons != lastButtons))
+			inputChanges++;
+
+		lastForward = fwd;
+		lastStrafe = side;
+		lastTurn = angle;
+		lastButtons = buttons;
+		tics++;
+	}
+
+	/**
+	 * @return the amount of tics for this player.
+	 */
+	public int getTics()
+	{
+		return tics;
+	}
+
+	/**
+	 * @param value a forward movement value (-128 to 127).
+	 * @return the amount of tics with that forward movement.
+	 */
+	public int getForwardCount(int value)
+	{
+		return forward[(value + 128) & 0x0ff];
+	}
+
+	/**
+	 * @param value a strafe movement value (-128 to 127).
+	 * @return the amount of tics with that strafe movement.
+	 */
+	public int getStrafeCount(int value)
+	{
+		return strafe[(value + 128) & 0x0ff];
+	}
+
+	/**
+	 * @param value a turn value, in 256ths of the recorded turn (-128 to 127).
+	 * @return the amount of tics with that turn.
+	 */
+	public int getTurnCount(int value)
+	{
+		return turn[(value + 128) & 0x0ff];
+	}
+
+	/**
+	 * @return the amount of tics with forward 50 and strafe 40.
+	 */
+	public int getSR40Tics()
+	{
+		return sr40Tics;
+	}
+
+	/**
+	 * @return the amount of tics with forward 50 and strafe 50.
+	 */
+	public int getSR50Tics()
+	{
+		return sr50Tics;
+	}
+
+	/**
+	 * @return the part of all tics (0 to 1) that are SR50.
+	 */
+	public double getSR50Ratio()
+	{
+		return tics > 0 ? (double)sr50Tics / tics : 0.0;
+	}
+
+	/**
+	 * @return the amount of tics with a slow keyboard turn.
+	 */
+	public int getTurnSlowTics()
+	{
+		return turnSlowTics;
+	}
+
+	/**
+	 * @return the amount of tics with a normal keyboard turn.
+	 */
+	public int getTurnNormalTics()
+	{
+		return turnNormalTics;
+	}
+
+	/**
+	 * @return the amount of tics with a fast (running) keyboard turn.
+	 */
+	public int getTurnFastTics()
+	{
+		return turnFastTics;
+	}
+
+	/**
+	 * @return the amount of tics with any other turn (mouse or turbo).
+	 */
+	public int getTurnOtherTics()
+	{
+		return turnOtherTics;
+	}
+
+	/**
+	 * @return the amount of tics with fire held.
+	 */
+	public int getFireTics()
+	{
+		return fireTics;
+	}
+
+	/**
+	 * @return the amount of times that fire was pressed.
+	 */
+	public int getFirePresses()
+	{
+		return firePresses;
+	}
+
+	/**
+	 * @return the amount of tics with use held.
+	 */
+	public int getUseTics()
+	{
+		return useTics;
+	}
+
+	/**
+	 * @return the amount of times that use was pressed.
+	 */
+	public int getUsePresses()
+	{
+		return usePresses;
+	}
+
+	/**
+	 * @return the amount of times that the input changed from one tic to the next.
+	 */
+	public int getInputChanges()
+	{
+		return inputChanges;
+	}
+
+	/**
+	 * @return the average amount of tics that one input is held for.
+	 */
+	public double getTicsPerInputChange()
+	{
+		return tics > 0 ? (double)tics / (inputChanges + 1) : 0.0;
+	}
+
+}
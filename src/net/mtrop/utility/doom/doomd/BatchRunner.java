@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.linkedlist.Queue;
+import com.blackrook.commons.list.List;
+import com.blackrook.utility.Utility;
+
+/**
+ * Runs a list of utility command lines in this JVM, one after another, or many at once.
+ * <p>
+ * Each line of a batch is a utility name and its arguments, split on whitespace
+ * (double quotes group words). Blank lines and lines that start with "#" are skipped.
+ * Runs get no standard input, so utilities that read it (like DoomMerge) can't be in a batch.
+ * <p>
+ * When runs are done at once, two lines that name the same file are still run in
+ * the order that they appear, so a line that reads a WAD that an earlier line writes
+ * sees the written WAD. An argument names a file if it is not a switch (it does not start
+ * with "-"), and it is an existing file or looks like a file name (it has a dot or a
+ * path separator in it). Each run's output is kept until it is done, and all output is
+ * printed in batch order.
+ * @author Matthew Tropiano
+ */
+public class BatchRunner
+{
+	/** Most runs waiting to be printed, per thread. */
+	private static final int PENDING_PER_THREAD = 4;
+
+	/**
+	 * Thrown if a batch could not be parsed.
+	 */
+	public static class ParseException extends Exception
+	{
+		private static final long serialVersionUID = -2230187411520316594L;
+
+		ParseException(int line, String message)
+		{
+			super("Line " + line + ": " + message);
+		}
+	}
+
+	/**
+	 * A single utility run.
+	 */
+	public static class Command
+	{
+		/** Line number in the batch. */
+		private int line;
+		/** Utility name, then its arguments. */
+		private String[] args;
+
+		private Command(int line, String[] args)
+		{
+			this.line = line;
+			this.args = args;
+		}
+
+		/**
+		 * @return the line number in the batch.
+		 */
+		public int getLine()
+		{
+			return line;
+		}
+
+		/**
+		 * @return the utility name, then its arguments.
+		 */
+		public String[] getArgs()
+		{
+			return args;
+		}
+	}
+
+	/** Output of a run. */
+	private static class Result
+	{
+		Command command;
+		byte[] output;
+		byte[] error;
+		int code;
+	}
+
+	/** Output stream. */
+	private PrintStream out;
+	/** Error stream. */
+	private PrintStream err;
+	/** Thread count. */
+	private int threads;
+
+	/**
+	 * Creates a new runner.
+	 * @param out the stream for the runs' standard output (and errors about the batch).
+	 * @param err the stream for the runs' standard error.
+	 * @param threads the most runs to do at once.
+	 */
+	public BatchRunner(PrintStream out, PrintStream err, int threads)
+	{
+		this.out = out;
+		this.err = err;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Reads and parses a full batch.
+	 * @param in the input stream to read.
+	 * @return the commands, in batch order.
+	 * @throws IOException if the stream could not be read.
+	 * @throws ParseException if a line names an unknown utility, a utility that reads standard input, or has a missing quote.
+	 */
+	public static List<Command> parse(InputStream in) throws IOException, ParseException
+	{
+		List<Command> out = new List<Command>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+
+		String line;
+		int lineNumber = 0;
+		while ((line = br.readLine()) != null)
+		{
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+
+			String[] tokens = tokenize(lineNumber, line);
+			if (!Tools.exists(tokens[0]))
+				throw new ParseException(lineNumber, "Unknown utility \"" + tokens[0] + "\".");
+			if (Tools.readsStandardInput(tokens[0]))
+				throw new ParseException(lineNumber, "Utility \"" + tokens[0] + "\" reads standard input, so it can't be run in a batch.");
+			out.add(new Command(lineNumber, tokens));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Runs all of the commands, and prints their output in order.
+	 * @param commands the commands.
+	 * @return true if every run returned 0, false if not.
+	 */
+	public boolean run(List<Command> commands)
+	{
+		StreamRouter.install();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Queue<Future<Result>> pending = new Queue<Future<Result>>();
+		HashMap<String, Future<Result>> lastUse = new HashMap<String, Future<Result>>();
+		boolean success = true;
+		try {
+			for (Command command : commands)
+			{
+				// runs that must finish first.
+				List<Future<Result>> before = new List<Future<Result>>();
+				Hash<String> files = getFiles(command.args);
+				for (String file : files)
+				{
+					Future<Result> f = lastUse.get(file);
+					if (f != null)
+						before.add(f);
+				}
+
+				Future<Result> future = executor.submit(createTask(command, before));
+				for (String file : files)
+					lastUse.put(file, future);
+
+				pending.enqueue(future);
+				while (pending.size() > threads * PENDING_PER_THREAD)
+					success = printNext(pending) && success;
+			}
+			while (!pending.isEmpty())
+				success = printNext(pending) && success;
+		} finally {
+			executor.shutdownNow();
+		}
+		return success;
+	}
+
+	// Creates a task that waits for other runs, then does a run.
+	private static Callable<Result> createTask(final Command command, final List<Future<Result>> before)
+	{
+		return new Callable<Result>()
+		{
+			@Override
+			public Result call() throws Exception
+			{
+				for (Future<Result> f : before)
+				{
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						// it failed, but it's done.
+					}
+				}
+				return runCommand(command);
+			}
+		};
+	}
+
+	// Runs a command with its output going to memory.
+	private static Result runCommand(Command command)
+	{
+		ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+		PrintStream stdout = new PrintStream(outBytes, true);
+		PrintStream stderr = new PrintStream(errBytes, true);
+
+		Result out = new Result();
+		out.command = command;
+		StreamRouter.set(stdout, stderr, new ByteArrayInputStream(new byte[0]));
+		try {
+			Utility<?> utility = Tools.create(command.args[0]);
+			out.code = utility.go(Arrays.copyOfRange(command.args, 1, command.args.length));
+		} catch (Throwable t) {
+			t.printStackTrace(stderr);
+			out.code = -1;
+		} finally {
+			StreamRouter.clear();
+		}
+		stdout.flush();
+		stderr.flush();
+		out.output = outBytes.toByteArray();
+		out.error = errBytes.toByteArray();
+		return out;
+	}
+
+	// Waits for and prints the oldest run. Returns true if it returned 0.
+	private boolean printNext(Queue<Future<Result>> pending)
+	{
+		Future<Result> future = pending.dequeue();
+		Result result;
+		try {
+			result = future.get();
+		} catch (ExecutionException e) {
+			out.printf("ERROR: %s\n", e.getCause().getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		out.write(result.output, 0, result.output.length);
+		out.flush();
+		err.write(result.error, 0, result.error.length);
+		err.flush();
+		if (result.code != 0)
+		{
+			out.printf("ERROR: Line %d: %s returned %d.\n", result.command.line, result.command.args[0], result.code);
+			return false;
+		}
+		return true;
+	}
+
+	// Gets the canonical paths of the arguments that look like files.
+	private static Hash<String> getFiles(String[] args)
+	{
+		Hash<String> out = new Hash<String>();
+		for (int i = 1; i < args.length; i++)
+		{
+			String a = args[i];
+			if (a.length() == 0 || a.charAt(0) == '-')
+				continue;
+			File f = new File(a);
+			if (f.isFile() || a.indexOf('.') >= 0 || a.indexOf('/') >= 0 || a.indexOf(File.separatorChar) >= 0)
+				out.put(DaemonServer.getCanonicalFile(f).getPath());
+		}
+		return out;
+	}
+
+	// Splits a line into words. Double quotes group words.
+	private static String[] tokenize(int lineNumber, String line) throws ParseException
+	{
+		List<String> out = new List<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		boolean inToken = false;
+
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (quoted)
+			{
+				if (c == '"')
+					quoted = false;
+				else
+					sb.append(c);
+			}
+			else if (c == '"')
+			{
+				quoted = true;
+				inToken = true;
+			}
+			else if (Character.isWhitespace(c))
+			{
+				if (inToken)
+				{
+					out.add(sb.toString());
+					sb.delete(0, sb.length());
+					inToken = false;
+				}
+			}
+			else
+			{
+				sb.append(c);
+				inToken = true;
+			}
+		}
+
+		if (quoted)
+			throw new ParseException(lineNumber, "Missing closing quote.");
+		if (inToken)
+			out.add(sb.toString());
+
+		String[] tokens = new String[out.size()];
+		out.toArray(tokens);
+		return tokens;
+	}
+
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.blackrook.commons.Common;
+
+/**
+ * Sends requests to a running {@link DaemonServer}, found through its info file.
+ * @author Matthew Tropiano
+ */
+public class DaemonClient
+{
+	/** Info file. */
+	private File infoFile;
+	/** Reason for the last refused request. */
+	private String refusedReason;
+	/** Standard input read for the last request. */
+	private byte[] input;
+
+	/**
+	 * Creates a new client.
+	 * @param infoFile the server's info file.
+	 */
+	public DaemonClient(File infoFile)
+	{
+		this.infoFile = infoFile;
+		this.refusedReason = null;
+		this.input = null;
+	}
+
+	/**
+	 * Runs a utility on the server, copying its output to the given streams as it comes.
+	 * If the utility reads standard input, all of it is read and sent first.
+	 * @param args the utility name, then its arguments.
+	 * @param out the stream for standard output.
+	 * @param err the stream for standard error.
+	 * @return the exit code, or null if there is no server or it refused
+	 * 		(see {@link #getRefusedReason()}), so the utility should be run here instead.
+	 * @throws IOException if the connection is lost while the utility runs.
+	 */
+	public Integer run(String[] args, PrintStream out, PrintStream err) throws IOException
+	{
+		refusedReason = null;
+		input = null;
+		Socket socket = connect();
+		if (socket == null)
+			return null;
+
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			dos.writeUTF(readInfo()[1]);
+			dos.writeByte(DaemonServer.REQUEST_RUN);
+			dos.writeUTF(DaemonServer.getCanonicalFile(new File(".")).getPath());
+			dos.writeInt(args.length);
+			for (String a : args)
+				dos.writeUTF(a);
+			if (args.length > 0 && Tools.readsStandardInput(args[0]))
+			{
+				input = Common.getBinaryContents(System.in);
+				dos.writeInt(input.length);
+				dos.write(input);
+			}
+			else
+				dos.writeInt(0);
+			dos.flush();
+
+			byte[] buffer = new byte[8192];
+			while (true)
+			{
+				int frame = dis.readByte();
+				if (frame == DaemonServer.FRAME_EXIT)
+				{
+					out.flush();
+					err.flush();
+					return dis.readInt();
+				}
+				else if (frame == DaemonServer.FRAME_REFUSED)
+				{
+					refusedReason = dis.readUTF();
+					return null;
+				}
+
+				PrintStream target = frame == DaemonServer.FRAME_ERR ? err : out;
+				int length = dis.readInt();
+				while (length > 0)
+				{
+					int n = dis.read(buffer, 0, Math.min(length, buffer.length));
+					if (n < 0)
+						throw new IOException("Connection to the daemon was lost.");
+					target.write(buffer, 0, n);
+					length -= n;
+				}
+				target.flush();
+			}
+		} finally {
+			Common.close(socket);
+		}
+	}
+
+	/**
+	 * Asks the server to stop. Requests that it is running are finished first.
+	 * @return true if a server was told to stop, false if there is no server.
+	 * @throws IOException if the server could not be told.
+	 */
+	public boolean stop() throws IOException
+	{
+		Socket socket = connect();
+		if (socket == null)
+			return false;
+
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			dos.writeUTF(readInfo()[1]);
+			dos.writeByte(DaemonServer.REQUEST_STOP);
+			dos.flush();
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			return dis.readByte() == DaemonServer.FRAME_EXIT;
+		} finally {
+			Common.close(socket);
+		}
+	}
+
+	/**
+	 * @return true if a server is running (its port can be connected to), false if not.
+	 */
+	public boolean isRunning()
+	{
+		Socket socket = connect();
+		Common.close(socket);
+		return socket != null;
+	}
+
+	/**
+	 * @return the reason why the last request was refused, or null if it wasn't.
+	 */
+	public String getRefusedReason()
+	{
+		return refusedReason;
+	}
+
+	/**
+	 * @return the standard input that was read for the last request, or null if none was read.
+	 * 		If the request was refused, this is what the utility should read instead.
+	 */
+	public byte[] getStandardInput()
+	{
+		return input;
+	}
+
+	// Connects to the server. Returns null if there is no server.
+	private Socket connect()
+	{
+		String[] info = readInfo();
+		if (info == null)
+			return null;
+		try {
+			return new Socket(InetAddress.getByName(null), Integer.parseInt(info[0]));
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Reads the port and token from the info file. Returns null if it can't be read.
+	private String[] readInfo()
+	{
+		if (!infoFile.exists())
+			return null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(infoFile), "UTF-8"));
+			String port = reader.readLine();
+			String token = reader.readLine();
+			if (port == null || token == null)
+				return null;
+			return new String[]{port.trim(), token.trim()};
+		} catch (IOException e) {
+			return null;
+		} finally {
+			Common.close(reader);
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.blackrook.commons.Common;
+import com.blackrook.utility.Utility;
+
+/**
+ * A server that runs utilities for {@link DaemonClient}s, in this JVM, so that each
+ * run does not pay for starting and warming up a new JVM.
+ * <p>
+ * The server only listens on the loopback address. Its port and a random token are
+ * written to an info file that only the current user can read, and each request must
+ * send the token. Each connection is one request: the client sends the utility's
+ * arguments and standard input (if it reads it), and the server sends back its
+ * output and error output as they are written, then its exit code.
+ * <p>
+ * Utilities run in the server's working directory, so a client in a different
+ * directory is refused (and runs the utility itself).
+ * @author Matthew Tropiano
+ */
+public class DaemonServer
+{
+	/** Request: run a utility. */
+	static final int REQUEST_RUN = 1;
+	/** Request: stop the server. */
+	static final int REQUEST_STOP = 2;
+
+	/** Response frame: standard output bytes. */
+	static final int FRAME_OUT = 1;
+	/** Response frame: standard error bytes. */
+	static final int FRAME_ERR = 2;
+	/** Response frame: exit code. Last frame. */
+	static final int FRAME_EXIT = 3;
+	/** Response frame: request refused, with a reason. Last frame. */
+	static final int FRAME_REFUSED = 4;
+
+	/** Token length in bytes. */
+	private static final int TOKEN_LENGTH = 16;
+
+	/** Info file. */
+	private File infoFile;
+	/** Working directory. */
+	private File workingDirectory;
+	/** Token. */
+	private String token;
+	/** Server socket. */
+	private ServerSocket serverSocket;
+	/** Request threads. */
+	private ExecutorService executor;
+
+	/**
+	 * Creates a new server.
+	 * @param infoFile the file to write the port and token to.
+	 */
+	public DaemonServer(File infoFile)
+	{
+		this.infoFile = infoFile;
+		this.workingDirectory = getCanonicalFile(new File("."));
+		this.token = createToken();
+		this.serverSocket = null;
+		this.executor = null;
+	}
+
+	/**
+	 * @return the default info file: ".doomd" in the user's home directory.
+	 */
+	public static File getDefaultInfoFile()
+	{
+		return new File(System.getProperty("user.home"), ".doomd");
+	}
+
+	/**
+	 * Starts listening, and writes the info file.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @return the port listened on.
+	 * @throws IOException if the socket could not be opened or the info file could not be written.
+	 */
+	public int start(int port) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		try {
+			writeInfoFile(serverSocket.getLocalPort());
+		} catch (IOException e) {
+			Common.close(serverSocket);
+			throw e;
+		}
+		executor = Executors.newCachedThreadPool();
+		StreamRouter.install();
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Takes requests until the server is stopped.
+	 * Requests that are still running when it stops are waited for.
+	 */
+	public void run()
+	{
+		try {
+			while (true)
+			{
+				final Socket socket = serverSocket.accept();
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handle(socket);
+					}
+				});
+			}
+		} catch (IOException e) {
+			// closed.
+		} finally {
+			infoFile.delete();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// done waiting.
+			}
+		}
+	}
+
+	/**
+	 * Stops taking requests.
+	 */
+	public void stop()
+	{
+		Common.close(serverSocket);
+	}
+
+	// Handles one connection.
+	private void handle(Socket socket)
+	{
+		DataOutputStream out = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			if (!token.equals(in.readUTF()))
+				return;
+
+			int request = in.readByte();
+			if (request == REQUEST_STOP)
+			{
+				writeExit(out, 0);
+				stop();
+				return;
+			}
+			else if (request != REQUEST_RUN)
+				return;
+
+			File directory = getCanonicalFile(new File(in.readUTF()));
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = in.readUTF();
+			byte[] input = new byte[in.readInt()];
+			in.readFully(input);
+
+			if (!directory.equals(workingDirectory))
+			{
+				writeRefused(out, "The daemon runs in " + workingDirectory.getPath() + ".");
+				return;
+			}
+			if (args.length == 0)
+			{
+				writeRefused(out, "No utility given.");
+				return;
+			}
+
+			Utility<?> utility = Tools.create(args[0]);
+			if (utility == null)
+			{
+				writeRefused(out, "Unknown utility: " + args[0]);
+				return;
+			}
+
+			writeExit(out, run(out, utility, Arrays.copyOfRange(args, 1, args.length), input));
+		} catch (EOFException e) {
+			// client only checked that the server is running, or went away.
+		} catch (SocketException e) {
+			// client went away.
+		} catch (IOException e) {
+			StreamRouter.getOriginalErr().println("ERROR: " + e.getMessage());
+		} finally {
+			Common.close(out);
+			Common.close(socket);
+		}
+	}
+
+	// Runs a utility with its output going to the client.
+	private static int run(DataOutputStream out, Utility<?> utility, String[] args, byte[] input) throws IOException
+	{
+		PrintStream stdout = new PrintStream(new FrameOutputStream(out, FRAME_OUT), true);
+		PrintStream stderr = new PrintStream(new FrameOutputStream(out, FRAME_ERR), true);
+		StreamRouter.set(stdout, stderr, new ByteArrayInputStream(input));
+		try {
+			return utility.go(args);
+		} catch (Throwable t) {
+			t.printStackTrace(stderr);
+			return -1;
+		} finally {
+			stdout.flush();
+			stderr.flush();
+			StreamRouter.clear();
+		}
+	}
+
+	// Writes the exit frame.
+	private static void writeExit(DataOutputStream out, int code) throws IOException
+	{
+		synchronized (out)
+		{
+			out.writeByte(FRAME_EXIT);
+			out.writeInt(code);
+			out.flush();
+		}
+	}
+
+	// Writes the refused frame.
+	private static void writeRefused(DataOutputStream out, String reason) throws IOException
+	{
+		synchronized (out)
+		{
+			out.writeByte(FRAME_REFUSED);
+			out.writeUTF(reason);
+			out.flush();
+		}
+	}
+
+	// Writes the port and token to the info file, readable only by this user.
+	private void writeInfoFile(int port) throws IOException
+	{
+		File parent = infoFile.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("Could not create " + parent.getPath());
+
+		infoFile.delete();
+		if (!infoFile.createNewFile())
+			throw new IOException("Could not create " + infoFile.getPath());
+		infoFile.setReadable(false, false);
+		infoFile.setReadable(true, true);
+		infoFile.setWritable(false, false);
+		infoFile.setWritable(true, true);
+
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(infoFile), "UTF-8");
+			writer.write(port + "\n" + token + "\n");
+		} finally {
+			Common.close(writer);
+		}
+	}
+
+	// Makes a random token.
+	private static String createToken()
+	{
+		byte[] b = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(b);
+		StringBuilder sb = new StringBuilder();
+		for (byte x : b)
+			sb.append(String.format("%02x", x & 0x0ff));
+		return sb.toString();
+	}
+
+	// Gets a canonical file, or the absolute one if that fails.
+	static File getCanonicalFile(File f)
+	{
+		try {
+			return f.getCanonicalFile();
+		} catch (IOException e) {
+			return f.getAbsoluteFile();
+		}
+	}
+
+	// Output stream that sends each write as a frame.
+	private static class FrameOutputStream extends OutputStream
+	{
+		private DataOutputStream out;
+		private int type;
+
+		private FrameOutputStream(DataOutputStream out, int type)
+		{
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return;
+			synchronized (out)
+			{
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			synchronized (out)
+			{
+				out.flush();
+			}
+		}
+
+	}
+
+}
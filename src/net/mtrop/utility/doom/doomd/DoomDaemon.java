@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.list.List;
+import com.blackrook.utility.Context;
+import com.blackrook.utility.Settings;
+import com.blackrook.utility.Utility;
+import com.blackrook.utility.Version;
+
+/**
+ * DoomD - runs the other utilities in one resident JVM.
+ * @author Matthew Tropiano
+ */
+public class DoomDaemon extends Utility<DoomDaemon.DaemonContext>
+{
+	private static final Version VERSION = new Version(1,0,0,0);
+
+	/** Start daemon. */
+	public static final String SETTING_START = "start";
+	/** Stop daemon. */
+	public static final String SETTING_STOP = "stop";
+	/** Daemon status. */
+	public static final String SETTING_STATUS = "status";
+	/** Daemon port. */
+	public static final String SETTING_PORT = "port";
+	/** Batch file. */
+	public static final String SETTING_BATCH = "batch";
+	/** Run batch in parallel. */
+	public static final String SETTING_PARALLEL = "parallel";
+	/** Utility name and arguments. */
+	public static final String SETTING_ARGS = "args";
+
+	/** Switch - start daemon. */
+	public static final String SWITCH_START = "-start";
+	/** Switch - stop daemon. */
+	public static final String SWITCH_STOP = "-stop";
+	/** Switch - daemon status. */
+	public static final String SWITCH_STATUS = "-status";
+	/** Switch - daemon port. */
+	public static final String SWITCH_PORT = "-port";
+	/** Switch - batch file. */
+	public static final String SWITCH_BATCH = "-batch";
+	/** Switch - run batch in parallel. */
+	public static final String SWITCH_PARALLEL = "-parallel";
+
+	/**
+	 * Context.
+	 */
+	public static class DaemonContext implements Context
+	{
+		/** Start daemon? */
+		private boolean start;
+		/** Stop daemon? */
+		private boolean stop;
+		/** Print status? */
+		private boolean status;
+		/** Port. */
+		private int port;
+		/** Batch file path. */
+		private String batch;
+		/** Run batch in parallel? */
+		private boolean parallel;
+
+		private DaemonContext()
+		{
+			start = false;
+			stop = false;
+			status = false;
+			port = 0;
+			batch = null;
+			parallel = false;
+		}
+	}
+
+	@Override
+	public Version getVersion()
+	{
+		return VERSION;
+	}
+
+	@Override
+	public Settings getSettingsFromCMDLINE(String... args)
+	{
+		Settings out = new Settings();
+
+		String next = null;
+		int i;
+		for (i = 0; i < args.length; i++)
+		{
+			String a = args[i];
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_START))
+				out.put(SETTING_START, true);
+			else if (a.equalsIgnoreCase(SWITCH_STOP))
+				out.put(SETTING_STOP, true);
+			else if (a.equalsIgnoreCase(SWITCH_STATUS))
+				out.put(SETTING_STATUS, true);
+			else if (a.equalsIgnoreCase(SWITCH_PORT))
+				next = SETTING_PORT;
+			else if (a.equalsIgnoreCase(SWITCH_BATCH))
+				next = SETTING_BATCH;
+			else if (a.equalsIgnoreCase(SWITCH_PARALLEL))
+				out.put(SETTING_PARALLEL, true);
+			else
+				break;
+		}
+
+		// everything from the utility name on is passed along.
+		out.put(SETTING_ARGS, Arrays.copyOfRange(args, i, args.length));
+		return out;
+	}
+
+	@Override
+	public DaemonContext createNewContext()
+	{
+		return new DaemonContext();
+	}
+
+	// Prints the usage message.
+	private void printUsage()
+	{
+		out.printf("DoomD v%s by Matt Tropiano\n", getVersion());
+		out.println("Usage: doomd -start [-port [port]]");
+		out.println("       doomd -stop");
+		out.println("       doomd -status");
+		out.println("       doomd -batch [file] [-parallel]");
+		out.println("       doomd [utility] [args]");
+		out.println("    -start     Starts the daemon in the current directory. It runs");
+		out.println("               until it is stopped.");
+		out.println("    -port      The port to listen on (on the loopback address only).");
+		out.println("               If not given, any free port is used.");
+		out.println("    -stop      Stops the daemon, after the utilities that it is");
+		out.println("               running are done.");
+		out.println("    -status    Prints whether the daemon is running.");
+		out.println("    -batch     Runs each line of a file (or \"-\" for standard input) as");
+		out.println("               a utility and its arguments, all in this JVM.");
+		out.println("    -parallel  Runs batch lines at once, on all processors. Lines that");
+		out.println("               name the same file still run in order.");
+		out.println("    [utility]  The utility to run on the daemon, with its arguments.");
+		out.println("               If no daemon is running (or it runs in a different");
+		out.println("               directory), the utility is run here instead.");
+		out.print("               Utilities:");
+		for (String name : Tools.NAMES)
+			out.print(" " + name);
+		out.println();
+	}
+
+	// Starts the daemon and runs it until it is stopped.
+	private int start(DaemonContext context)
+	{
+		DaemonClient client = new DaemonClient(DaemonServer.getDefaultInfoFile());
+		if (client.isRunning())
+		{
+			out.println("ERROR: A daemon is already running.");
+			return 1;
+		}
+
+		DaemonServer server = new DaemonServer(DaemonServer.getDefaultInfoFile());
+		int port;
+		try {
+			port = server.start(context.port);
+		} catch (IOException e) {
+			out.printf("ERROR: Could not start daemon: %s\n", e.getMessage());
+			return 1;
+		}
+
+		out.printf("DoomD listening on port %d.\n", port);
+		server.run();
+		out.println("DoomD stopped.");
+		return 0;
+	}
+
+	// Runs a batch of utilities here.
+	private int runBatch(DaemonContext context)
+	{
+		List<BatchRunner.Command> commands;
+		InputStream in = null;
+		try {
+			in = context.batch.equals("-") ? System.in : new FileInputStream(context.batch);
+			commands = BatchRunner.parse(in);
+		} catch (FileNotFoundException e) {
+			out.printf("ERROR: File %s not found.\n", context.batch);
+			return 2;
+		} catch (BatchRunner.ParseException e) {
+			out.printf("ERROR: %s\n", e.getMessage());
+			return 2;
+		} catch (IOException e) {
+			out.printf("ERROR: %s\n", e.getMessage());
+			return 1;
+		} finally {
+			if (in != System.in)
+				Common.close(in);
+		}
+
+		int threads = context.parallel ? Runtime.getRuntime().availableProcessors() : 1;
+		return new BatchRunner(out, System.err, threads).run(commands) ? 0 : 1;
+	}
+
+	// Runs a utility on the daemon, or here.
+	private int run(String[] args)
+	{
+		DaemonClient client = new DaemonClient(DaemonServer.getDefaultInfoFile());
+		try {
+			Integer code = client.run(args, out, System.err);
+			if (code != null)
+				return code;
+		} catch (IOException e) {
+			out.printf("ERROR: %s\n", e.getMessage());
+			return 1;
+		}
+
+		Utility<?> utility = Tools.create(args[0]);
+		if (utility == null)
+		{
+			out.printf("ERROR: Unknown utility: %s\n", args[0]);
+			return 2;
+		}
+		if (client.getStandardInput() != null)
+			System.setIn(new ByteArrayInputStream(client.getStandardInput()));
+		return utility.go(Arrays.copyOfRange(args, 1, args.length));
+	}
+
+	@Override
+	public int execute(DaemonContext context, Settings settings)
+	{
+		context.start = settings.getBoolean(SETTING_START);
+		context.stop = settings.getBoolean(SETTING_STOP);
+		context.status = settings.getBoolean(SETTING_STATUS);
+		context.batch = settings.getString(SETTING_BATCH);
+		context.parallel = settings.getBoolean(SETTING_PARALLEL);
+		String[] args = (String[])settings.get(SETTING_ARGS);
+
+		if (!Common.isEmpty(settings.getString(SETTING_PORT)))
+		{
+			try {
+				context.port = Integer.parseInt(settings.getString(SETTING_PORT));
+			} catch (NumberFormatException e) {
+				out.printf("ERROR: Bad port: %s\n", settings.getString(SETTING_PORT));
+				return 2;
+			}
+			if (context.port < 0 || context.port > 65535)
+			{
+				out.printf("ERROR: Bad port: %d\n", context.port);
+				return 2;
+			}
+		}
+
+		if (context.start)
+			return start(context);
+		else if (context.stop)
+		{
+			try {
+				if (new DaemonClient(DaemonServer.getDefaultInfoFile()).stop())
+				{
+					out.println("DoomD is stopping.");
+					return 0;
+				}
+				out.println("ERROR: No daemon is running.");
+				return 1;
+			} catch (IOException e) {
+				out.printf("ERROR: Could not stop daemon: %s\n", e.getMessage());
+				return 1;
+			}
+		}
+		else if (context.batch != null)
+			return runBatch(context);
+		else if (context.status)
+		{
+			if (new DaemonClient(DaemonServer.getDefaultInfoFile()).isRunning())
+				out.println("DoomD is running.");
+			else
+				out.println("DoomD is not running.");
+			return 0;
+		}
+		else if (args.length == 0)
+		{
+			out.println("ERROR: No utility specified.");
+			printUsage();
+			return 2;
+		}
+		else
+			return run(args);
+	}
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Replaces {@link System#out}, {@link System#err}, and {@link System#in} with streams
+ * that go to different places for each thread, so that many utilities can run at
+ * once in one JVM, each with its own output.
+ * <p>
+ * Streams are set for a thread with {@link #set(OutputStream, OutputStream, InputStream)},
+ * and threads started by that thread (like the workers of a thread pool made by a utility)
+ * get the same streams. Threads with no streams set use the original ones.
+ * @author Matthew Tropiano
+ */
+public final class StreamRouter
+{
+	/** Streams for the current thread. */
+	private static final InheritableThreadLocal<Routes> ROUTES = new InheritableThreadLocal<Routes>();
+
+	/** Original standard output. */
+	private static PrintStream originalOut = null;
+	/** Original standard error. */
+	private static PrintStream originalErr = null;
+	/** Original standard input. */
+	private static InputStream originalIn = null;
+
+	/** Streams for one thread. */
+	private static class Routes
+	{
+		OutputStream out;
+		OutputStream err;
+		InputStream in;
+	}
+
+	private StreamRouter() {}
+
+	/**
+	 * Replaces the standard streams with routed ones. Does nothing if this was already called.
+	 */
+	public static synchronized void install()
+	{
+		if (originalOut != null)
+			return;
+		originalOut = System.out;
+		originalErr = System.err;
+		originalIn = System.in;
+		System.setOut(new PrintStream(new RoutedOutputStream(false), true));
+		System.setErr(new PrintStream(new RoutedOutputStream(true), true));
+		System.setIn(new RoutedInputStream());
+	}
+
+	/**
+	 * Sets the streams for the current thread (and threads that it starts after this).
+	 * @param out the standard output.
+	 * @param err the standard error.
+	 * @param in the standard input.
+	 */
+	public static void set(OutputStream out, OutputStream err, InputStream in)
+	{
+		Routes routes = new Routes();
+		routes.out = out;
+		routes.err = err;
+		routes.in = in;
+		ROUTES.set(routes);
+	}
+
+	/**
+	 * Clears the streams for the current thread, so that it uses the original ones.
+	 */
+	public static void clear()
+	{
+		ROUTES.remove();
+	}
+
+	/**
+	 * @return the original standard output, from before {@link #install()}.
+	 */
+	public static synchronized PrintStream getOriginalOut()
+	{
+		return originalOut != null ? originalOut : System.out;
+	}
+
+	/**
+	 * @return the original standard error, from before {@link #install()}.
+	 */
+	public static synchronized PrintStream getOriginalErr()
+	{
+		return originalErr != null ? originalErr : System.err;
+	}
+
+	// Output stream that writes to the current thread's stream.
+	private static class RoutedOutputStream extends OutputStream
+	{
+		private boolean error;
+
+		private RoutedOutputStream(boolean error)
+		{
+			this.error = error;
+		}
+
+		private OutputStream get()
+		{
+			Routes routes = ROUTES.get();
+			if (routes == null)
+				return error ? originalErr : originalOut;
+			return error ? routes.err : routes.out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			get().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			get().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			get().flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// the real streams are closed by their owners.
+			flush();
+		}
+
+	}
+
+	// Input stream that reads from the current thread's stream.
+	private static class RoutedInputStream extends InputStream
+	{
+		private InputStream get()
+		{
+			Routes routes = ROUTES.get();
+			return routes == null ? originalIn : routes.in;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			return get().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return get().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return get().available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// the real streams are closed by their owners.
+		}
+
+	}
+
+}
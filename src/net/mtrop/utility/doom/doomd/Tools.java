@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomd;
+
+import net.mtrop.utility.doom.demospy.DemoSpy;
+import net.mtrop.utility.doom.doommerge.DoomMerge;
+import net.mtrop.utility.doom.doomsnd.SoundConvert;
+import net.mtrop.utility.doom.mapcount.MapCount;
+import net.mtrop.utility.doom.mapswap.MapSwap;
+import net.mtrop.utility.doom.palcnvrt.PaletteConvert;
+import net.mtrop.utility.doom.texspy.TextureSpy;
+import net.mtrop.utility.doom.textract.TextureExtractor;
+import net.mtrop.utility.doom.thingspy.ThingSpy;
+
+import com.blackrook.utility.Utility;
+
+/**
+ * The utilities that can be run in one JVM, by the names of their programs.
+ * @author Matthew Tropiano
+ */
+public final class Tools
+{
+	/** Names of all of the utilities. */
+	public static final String[] NAMES = {
+		"demospy",
+		"doommerge",
+		"doomsnd",
+		"mapcount",
+		"mapswap",
+		"palcnvrt",
+		"texspy",
+		"textract",
+		"thingspy",
+	};
+
+	private Tools() {}
+
+	/**
+	 * Creates a new instance of a utility. A new one should be made for each run,
+	 * since some keep state between runs.
+	 * @param name the program name (case-insensitive), like "mapcount".
+	 * @return the new utility, or null if there is no utility with that name.
+	 */
+	public static Utility<?> create(String name)
+	{
+		name = name.toLowerCase();
+		if (name.equals("demospy"))
+			return new DemoSpy();
+		else if (name.equals("doommerge"))
+			return new DoomMerge();
+		else if (name.equals("doomsnd"))
+			return new SoundConvert();
+		else if (name.equals("mapcount"))
+			return new MapCount();
+		else if (name.equals("mapswap"))
+			return new MapSwap();
+		else if (name.equals("palcnvrt"))
+			return new PaletteConvert();
+		else if (name.equals("texspy"))
+			return new TextureSpy();
+		else if (name.equals("textract"))
+			return new TextureExtractor();
+		else if (name.equals("thingspy"))
+			return new ThingSpy();
+		else
+			return null;
+	}
+
+	/**
+	 * Checks if there is a utility with a name.
+	 * @param name the program name (case-insensitive).
+	 * @return true if so, false if not.
+	 */
+	public static boolean exists(String name)
+	{
+		for (String n : NAMES)
+			if (n.equalsIgnoreCase(name))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Checks if a utility reads standard input (to the end), so it should be sent along with a request.
+	 * @param name the program name (case-insensitive).
+	 * @return true if so, false if not.
+	 */
+	public static boolean readsStandardInput(String name)
+	{
+		return name.equalsIgnoreCase("doommerge");
+	}
+
+}
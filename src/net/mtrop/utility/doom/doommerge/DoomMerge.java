@@ -11,14 +11,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
 
+import net.mtrop.doom.Wad;
 import net.mtrop.doom.WadBuffer;
 import net.mtrop.doom.WadEntry;
 import net.mtrop.doom.WadFile;
+import net.mtrop.doom.util.MapUtils;
+import net.mtrop.utility.doom.common.MapLumps;
+import net.mtrop.utility.doom.common.Stats;
 
 import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.CaseInsensitiveHash;
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
 import com.blackrook.commons.list.List;
 import com.blackrook.utility.Command;
 import com.blackrook.utility.Context;
@@ -34,8 +41,56 @@ import com.blackrook.utility.Version;
  */
 public class DoomMerge extends Utility<DoomMerge.MergeContext>
 {
-	private static final Version VERSION = new Version(2,0,1,0);
+	private static final Version VERSION = new Version(2,1,0,0);
+
+	/** Run independent output blocks in parallel. */
+	public static final String SETTING_PARALLEL = "parallel";
+
+	/** Re-run blocks when their inputs change. */
+	public static final String SETTING_WATCH = "watch";
+
+	/** Switch: parallel execution. */
+	public static final String SWITCH_PARALLEL = "-parallel";
+	/** Switch: watch inputs. */
+	public static final String SWITCH_WATCH = "-watch";
+
+	/** Namespace marker prefixes to PK3 directories. */
+	private static final CaseInsensitiveHashMap<String> NAMESPACE_DIRECTORIES = new CaseInsensitiveHashMap<String>()
+	{{
+		put("P", "patches");
+		put("PP", "patches");
+		put("P1", "patches");
+		put("P2", "patches");
+		put("P3", "patches");
+		put("F", "flats");
+		put("FF", "flats");
+		put("F1", "flats");
+		put("F2", "flats");
+		put("F3", "flats");
+		put("S", "sprites");
+		put("SS", "sprites");
+		put("TX", "textures");
+		put("HI", "hires");
+		put("C", "colormaps");
+		put("A", "acs");
+		put("V", "voices");
+		put("VX", "voxels");
+	}};
 	
+	/**
+	 * Thrown by the END command to stop the script without exiting the JVM
+	 * (which may be running other utilities, like on a DoomD daemon).
+	 */
+	private static class EndOfScript extends RuntimeException
+	{
+		private static final long serialVersionUID = 5405237726254412876L;
+
+		EndOfScript()
+		{
+			super("End of script.", null, false, false);
+		}
+	}
+
 	/**
 	 * Program context.
 	 */
@@ -47,6 +102,8 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 		List<File> inputFiles;
 		/** Current output. */
 		WadBuffer outWad;
+		/** Input cache (null if not caching). */
+		MergeCache cache;
 
 		MergeContext(PrintStream out)
 		{
@@ -59,7 +116,7 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 	/**
 	 * List of Doom Merge commands.
 	 */
-	private static enum MergeCommand implements Command<MergeContext>
+	static enum MergeCommand implements Command<MergeContext>
 	{
 		/** 
 		 * Echoes text to STDOUT.
@@ -84,15 +141,14 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 		},
 
 		/** 
-		 * Terminates the program.
+		 * Ends the script. The rest of it is not read.
 		 */
 		END
 		{
 			@Override
 			public boolean execute(MergeContext context, String ... args)
 			{
-				System.exit(0);
-				return true;
+				throw new EndOfScript();
 			}
 		},
 
@@ -148,7 +204,10 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 			public boolean execute(MergeContext context, String ... args)
 			{
 				try {
-					context.outWad = new WadBuffer(new File(args[0]));
+					File f = new File(args[0]);
+					context.outWad = new WadBuffer(f);
+					Stats.addFile();
+					Stats.addBytesRead(f.length());
 				} catch (IOException e) {
 					context.out.printf("ERROR: Could not open output WAD %s.", args[0]);
 					return false;
@@ -166,7 +225,30 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 			public boolean execute(MergeContext context, String ... args)
 			{
 				try {
-					context.outWad.writeToFile(new File(args[0]));
+					File f = new File(args[0]);
+					context.outWad.writeToFile(f);
+					Stats.addFile();
+					Stats.addBytesWritten(f.length());
+				} catch (IOException e) {
+					context.out.printf("ERROR: %s: %s", e.getClass().getName(), e.getLocalizedMessage());
+					return false;
+				}
+				return true;
+			}
+		},
+		
+		/**
+		 * Saves the contents of the current buffer to the output file as a PK3.
+		 * ARG0 is file path.
+		 */
+		SAVEPK3
+		{
+			@Override
+			public boolean execute(MergeContext context, String ... args)
+			{
+				try {
+					PK3Writer writer = createPK3(context.outWad, context.out);
+					writer.writeToFile(new File(args[0]), Runtime.getRuntime().availableProcessors());
 				} catch (IOException e) {
 					context.out.printf("ERROR: %s: %s", e.getClass().getName(), e.getLocalizedMessage());
 					return false;
@@ -219,40 +301,27 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 					{
 						if (f.isDirectory())
 						{
-							File[] files = f.listFiles();
-							Arrays.sort(files);
-							
-							for (File dirfile : files)
+							for (File dirfile : getDirectoryFiles(f))
 							{
-								if (dirfile.getName().startsWith(".") || dirfile.isHidden() || dirfile.isDirectory())
-									continue;
-								
-								String entryName = dirfile.getName().toUpperCase();
-								int extIndex = entryName.lastIndexOf('.');
-								entryName = extIndex >= 0 
-									? entryName.substring(0, Math.min(8, extIndex)) 
-									: entryName.substring(0, Math.min(8, entryName.length()));
-								
-								ByteArrayOutputStream bos = new ByteArrayOutputStream();
-								FileInputStream fis = null;
-								try {
-									fis = new FileInputStream(dirfile);
-									Common.relay(fis, bos);
-								} catch (IOException e) {
-									context.out.println("ERROR: Cannot import directory file "+dirfile.getPath());
-								} finally {
-									Common.close(fis);
-								}
-								context.outWad.addData(entryName, bos.toByteArray());
+								context.outWad.addData(getEntryName(dirfile), readDirectoryFile(context, dirfile));
 							}
 						}
+						else if (context.cache != null)
+						{
+							MergeCache.CachedWad wad = context.cache.getWad(f);
+							for (int i = 0; i < wad.getSize(); i++)
+								context.outWad.addData(wad.getName(i), wad.getData(i));
+						}
 						else
 						{
 							WadFile wad = new WadFile(f);
+							Stats.addFile();
 							for (int i = 0; i < wad.getSize(); i++)
 							{
 								WadEntry entry = wad.getEntry(i);
-								context.outWad.addData(entry.getName(), wad.getData(entry));
+								byte[] data = wad.getData(entry);
+								Stats.addLumpRead(data.length);
+								context.outWad.addData(entry.getName(), data);
 							}
 							wad.close();
 						}
@@ -266,11 +335,225 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 			}
 		},
 			
+		/**
+		 * Adds the contents of all of the "in" files to the output buffer,
+		 * collecting namespaced entries into one block per namespace.
+		 * Later entries replace earlier ones of the same name in a namespace.
+		 * ARG0, if "sort", sorts the entries in each namespace by name.
+		 */
+		MERGENS
+		{
+			@Override
+			public boolean execute(MergeContext context, String ... args)
+			{
+				if (context.outWad == null)
+				{
+					context.out.println("ERROR: No output file!");
+					return false;
+				}
+
+				boolean sort = args.length > 0 && args[0].equalsIgnoreCase("sort");
+				NamespaceMerger merger = new NamespaceMerger();
+
+				try {
+					merger.addWad(context.outWad);
+					for (File f : context.inputFiles)
+					{
+						if (f.isDirectory())
+						{
+							for (File dirfile : getDirectoryFiles(f))
+								merger.addEntry(getEntryName(dirfile), readDirectoryFile(context, dirfile));
+						}
+						else if (context.cache != null)
+						{
+							merger.addWad(context.cache.getWad(f));
+						}
+						else
+						{
+							WadFile wad = new WadFile(f);
+							Stats.addFile();
+							try {
+								merger.addWad(wad);
+							} finally {
+								wad.close();
+							}
+						}
+					}
+					context.outWad = merger.toWadBuffer(sort);
+				} catch (IOException e) {
+					context.out.printf("ERROR: %s: %s", e.getClass().getName(), e.getLocalizedMessage());
+					return false;
+				}
+				
+				return true;
+			}
+		},
+			
 		/* END COMMANDS */
 		;
 		
 	}
 	
+	// Returns the sorted list of importable files in a directory (no hidden files nor directories).
+	private static List<File> getDirectoryFiles(File dir)
+	{
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		
+		List<File> out = new List<File>(files.length);
+		for (File dirfile : files)
+		{
+			if (dirfile.getName().startsWith(".") || dirfile.isHidden() || dirfile.isDirectory())
+				continue;
+			out.add(dirfile);
+		}
+		return out;
+	}
+	
+	// Returns the entry name to use for a file imported from a directory.
+	private static String getEntryName(File dirfile)
+	{
+		String entryName = dirfile.getName().toUpperCase();
+		int extIndex = entryName.lastIndexOf('.');
+		return extIndex >= 0 
+			? entryName.substring(0, Math.min(8, extIndex)) 
+			: entryName.substring(0, Math.min(8, entryName.length()));
+	}
+	
+	// Reads the contents of a file imported from a directory.
+	private static byte[] readDirectoryFile(MergeContext context, File dirfile)
+	{
+		if (context.cache != null)
+		{
+			try {
+				return context.cache.getFile(dirfile);
+			} catch (IOException e) {
+				context.out.println("ERROR: Cannot import directory file "+dirfile.getPath());
+				return new byte[0];
+			}
+		}
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(dirfile);
+			Stats.addFile();
+			Common.relay(Stats.countInput(fis), bos);
+		} catch (IOException e) {
+			context.out.println("ERROR: Cannot import directory file "+dirfile.getPath());
+		} finally {
+			Common.close(fis);
+		}
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * Lays out the contents of a WAD as a PK3.
+	 * Known namespaces become directories, maps become WADs in "maps/",
+	 * and everything else is added to the root. Entries that would get the
+	 * same path as an earlier one get a number before their extension 
+	 * ("decorate.2.lmp"), which engines ignore in lump names, and are reported.
+	 * @param wad the source WAD.
+	 * @param log the stream to report renamed entries to.
+	 * @return a writer with all of the files added.
+	 * @throws IOException if the WAD data could not be read.
+	 */
+	static PK3Writer createPK3(Wad wad, PrintStream log) throws IOException
+	{
+		PK3Writer out = new PK3Writer();
+		
+		CaseInsensitiveHash mapHeaders = new CaseInsensitiveHash();
+		for (String m : MapUtils.getAllMapHeaders(wad))
+			mapHeaders.put(m);
+		
+		String directory = null;
+		int i = 0;
+		while (i < wad.getSize())
+		{
+			WadEntry entry = wad.getEntry(i);
+			String name = entry.getName();
+			
+			if (name.endsWith("_START") && NAMESPACE_DIRECTORIES.containsKey(name.substring(0, name.length() - 6)))
+			{
+				directory = NAMESPACE_DIRECTORIES.get(name.substring(0, name.length() - 6));
+				i++;
+			}
+			else if (name.endsWith("_END") && NAMESPACE_DIRECTORIES.containsKey(name.substring(0, name.length() - 4)))
+			{
+				directory = null;
+				i++;
+			}
+			else if (directory == null && mapHeaders.contains(name) && i + 1 < wad.getSize() && MapLumps.isMapLump(wad.getEntry(i + 1).getName()))
+			{
+				int end = MapLumps.getMapEnd(wad, i);
+				WadBuffer mapWad = new WadBuffer();
+				for (int m = i; m < end; m++)
+					mapWad.addData(wad.getEntry(m).getName(), wad.getData(m));
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				mapWad.writeToStream(bos);
+				addUniqueFile(out, log, "maps/" + getFileName(name), ".wad", bos.toByteArray());
+				i = end;
+			}
+			else
+			{
+				byte[] data = wad.getData(i);
+				String fileName = getFileName(name);
+				addUniqueFile(out, log, directory != null ? directory + "/" + fileName : fileName, getFileExtension(data), data);
+				i++;
+			}
+		}
+		
+		return out;
+	}
+	
+	// Adds a file to a PK3, numbering its name if the path is already taken.
+	private static void addUniqueFile(PK3Writer pk3, PrintStream log, String path, String extension, byte[] data)
+	{
+		String out = path + extension;
+		for (int n = 2; pk3.contains(out); n++)
+			out = path + "." + n + extension;
+		if (!out.equals(path + extension))
+			log.printf("WARNING: %s is already in the PK3; added as %s.\n", path + extension, out);
+		pk3.addFile(out, data);
+	}
+	
+	// Converts an entry name to a PK3 file name (without extension).
+	private static String getFileName(String entryName)
+	{
+		return entryName.toLowerCase().replace('\\', '^');
+	}
+	
+	// Guesses a file extension from a lump's header.
+	private static String getFileExtension(byte[] data)
+	{
+		if (startsWith(data, (byte)0x89, 'P', 'N', 'G'))
+			return ".png";
+		else if (startsWith(data, 'O', 'g', 'g', 'S'))
+			return ".ogg";
+		else if (startsWith(data, 'f', 'L', 'a', 'C'))
+			return ".flac";
+		else if (startsWith(data, 'I', 'D', '3'))
+			return ".mp3";
+		else if (startsWith(data, 'M', 'T', 'h', 'd'))
+			return ".mid";
+		else if (startsWith(data, 'M', 'U', 'S', 0x1a))
+			return ".mus";
+		else if (startsWith(data, 'R', 'I', 'F', 'F'))
+			return ".wav";
+		else
+			return ".lmp";
+	}
+	
+	private static boolean startsWith(byte[] data, int ... magic)
+	{
+		if (data.length < magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++)
+			if (data[i] != (byte)magic[i])
+				return false;
+		return true;
+	}
+	
 	@Override
 	public Version getVersion()
 	{
@@ -280,8 +563,23 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 	@Override
 	public Settings getSettingsFromCMDLINE(String... args)
 	{
-		// does not use command line.
-		return new Settings();
+		Settings out = new Settings();
+		String next = null;
+		for (String a : args)
+		{
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_PARALLEL))
+				out.put(SETTING_PARALLEL, true);
+			else if (a.equalsIgnoreCase(SWITCH_WATCH))
+				out.put(SETTING_WATCH, true);
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+				next = Stats.SETTING_STATS;
+		}
+		return out;
 	}
 
 	@Override
@@ -290,21 +588,100 @@ public class DoomMerge extends Utility<DoomMerge.MergeContext>
 		return new MergeContext(out);
 	}
 
+	// Parses the whole script, and runs independent jobs in parallel, or watches its inputs.
+	private int executeJobs(InputStream in, boolean parallel, boolean watch)
+	{
+		Stats.phase("Parsing script");
+		List<MergeJob> jobs;
+		try {
+			jobs = MergeScript.parse(in).createJobs();
+		} catch (MergeScript.ParseException e) {
+			System.err.println("ERROR: "+e.getMessage());
+			return 2;
+		} catch (IOException e) {
+			System.err.println("ERROR: "+e.getMessage());
+			return 1;
+		}
+		
+		int threads = parallel ? Runtime.getRuntime().availableProcessors() : 1;
+		Stats.phase(watch ? "Watching" : "Running jobs");
+		try {
+			if (watch)
+			{
+				MergeRunner runner = new MergeRunner(out, threads, new MergeCache());
+				new MergeWatcher(out, jobs, runner).watch();
+				return 0;
+			}
+			else
+			{
+				MergeRunner runner = new MergeRunner(out, threads, null);
+				return runner.run(jobs) ? 0 : 1;
+			}
+		} catch (InterruptedException e) {
+			System.err.println("ERROR: Interrupted.");
+			return 1;
+		} catch (IOException e) {
+			System.err.println("ERROR: "+e.getMessage());
+			return 1;
+		}
+	}
+	
 	@Override
-	public int execute(MergeContext context, Settings settings)
+	public int execute(final MergeContext context, final Settings settings)
 	{
 		out.printf("Doom Merge v%s by Matt Tropiano\n", getVersion());
+
+		return Stats.run("DoomMerge", settings.getString(Stats.SETTING_STATS), System.err, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return merge(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				return 2;
+			}
+		});
+	}
+
+	// Runs the script, one command at a time, or as jobs.
+	private int merge(MergeContext context, Settings settings)
+	{
+		if (settings.getBoolean(SETTING_PARALLEL) || settings.getBoolean(SETTING_WATCH))
+			return executeJobs(System.in, settings.getBoolean(SETTING_PARALLEL), settings.getBoolean(SETTING_WATCH));
+		
+		Stats.phase("Running script");
 		try {
 			Executor<MergeContext, MergeCommand> executor = 
 					new Executor<MergeContext, MergeCommand>(MergeCommand.class);
 			executor.execute(System.in, context);
+		} catch (EndOfScript e) {
+			// "end" was reached.
 		} catch (ScriptException e) {
-			System.err.println("ERROR: "+e.asErrorString());
-			return 2;
+			if (!isEndOfScript(e))
+			{
+				System.err.println("ERROR: "+e.asErrorString());
+				return 2;
+			}
 		} catch (Exception e) {
-			System.err.println("ERROR: "+e.getMessage());
-			return 1;
+			if (!isEndOfScript(e))
+			{
+				System.err.println("ERROR: "+e.getMessage());
+				return 1;
+			}
 		}
 		return 0;
 	}
+
+	// Checks if an exception was caused by the END command (the executor may wrap it).
+	private static boolean isEndOfScript(Throwable t)
+	{
+		for (; t != null; t = t.getCause())
+			if (t instanceof EndOfScript)
+				return true;
+		return false;
+	}
 }
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.mtrop.doom.WadEntry;
+import net.mtrop.doom.WadFile;
+
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.Common;
+
+/**
+ * A cache of input file contents, so that unchanged inputs
+ * do not need to be read again between runs.
+ * A cached file is reloaded if its length or modified date changes, and its old
+ * contents are dropped right away. The cache holds at most a set amount of bytes;
+ * past that, the least recently used files are dropped, so inputs that are no longer
+ * used (or no longer exist) do not stay in memory forever.
+ * This is safe to share between threads.
+ * @author Matthew Tropiano
+ */
+public class MergeCache
+{
+	/** Bytes counted for each WAD entry, besides its data. */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/** Cached contents, by kind and path, in order of use (oldest first). */
+	private LinkedHashMap<String, Cached> cacheMap;
+	/** Most bytes kept. */
+	private long capacity;
+	/** Bytes kept. */
+	private long size;
+
+	/** Something cached. */
+	private static abstract class Cached
+	{
+		/** Modified time at read. */
+		long modified;
+		/** Length at read. */
+		long length;
+		/** Bytes kept in memory. */
+		long size;
+
+		// Checks if a file is unchanged since this was read.
+		boolean matches(File f)
+		{
+			return modified == f.lastModified() && length == f.length();
+		}
+	}
+
+	/**
+	 * The read contents of a WAD file.
+	 */
+	public static class CachedWad extends Cached
+	{
+		/** Entry names. */
+		private String[] names;
+		/** Entry data. */
+		private byte[][] data;
+
+		/**
+		 * @return the amount of entries.
+		 */
+		public int getSize()
+		{
+			return names.length;
+		}
+
+		/**
+		 * @param i the entry index.
+		 * @return the entry name.
+		 */
+		public String getName(int i)
+		{
+			return names[i];
+		}
+
+		/**
+		 * @param i the entry index.
+		 * @return the entry data.
+		 */
+		public byte[] getData(int i)
+		{
+			return data[i];
+		}
+	}
+
+	/** The read contents of a plain file. */
+	private static class CachedFile extends Cached
+	{
+		byte[] data;
+	}
+
+	/**
+	 * Creates a new, empty cache that holds up to a quarter of the maximum heap.
+	 */
+	public MergeCache()
+	{
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Creates a new, empty cache.
+	 * @param capacity the most bytes of file contents to keep.
+	 */
+	public MergeCache(long capacity)
+	{
+		this.cacheMap = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+		this.capacity = capacity;
+		this.size = 0L;
+	}
+
+	/**
+	 * Gets the contents of a WAD, reading it if it changed since it was last read.
+	 * @param f the WAD file.
+	 * @return the WAD contents.
+	 * @throws IOException if the file could not be read, or is not a WAD.
+	 */
+	public CachedWad getWad(File f) throws IOException
+	{
+		String key = "wad:" + f.getAbsolutePath();
+		Cached cached = get(key, f);
+		if (cached != null)
+			return (CachedWad)cached;
+
+		CachedWad out = new CachedWad();
+		out.modified = f.lastModified();
+		out.length = f.length();
+
+		WadFile wad = new WadFile(f);
+		Stats.addFile();
+		try {
+			out.names = new String[wad.getSize()];
+			out.data = new byte[wad.getSize()][];
+			for (int i = 0; i < wad.getSize(); i++)
+			{
+				WadEntry entry = wad.getEntry(i);
+				out.names[i] = entry.getName();
+				out.data[i] = wad.getData(entry);
+				out.size += out.data[i].length + ENTRY_OVERHEAD;
+				Stats.addLumpRead(out.data[i].length);
+			}
+		} finally {
+			wad.close();
+		}
+
+		put(key, out);
+		return out;
+	}
+
+	/**
+	 * Gets the contents of a file, reading it if it changed since it was last read.
+	 * @param f the file.
+	 * @return the file contents.
+	 * @throws IOException if the file could not be read.
+	 */
+	public byte[] getFile(File f) throws IOException
+	{
+		String key = "file:" + f.getAbsolutePath();
+		Cached cached = get(key, f);
+		if (cached != null)
+			return ((CachedFile)cached).data;
+
+		CachedFile out = new CachedFile();
+		out.modified = f.lastModified();
+		out.length = f.length();
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int)Math.max(16, out.length));
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(f);
+			Stats.addFile();
+			Common.relay(Stats.countInput(fis), bos);
+		} finally {
+			Common.close(fis);
+		}
+		out.data = bos.toByteArray();
+		out.size = out.data.length;
+
+		put(key, out);
+		return out.data;
+	}
+
+	/**
+	 * @return the amount of bytes of file contents kept.
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	// Gets a cached file if it is unchanged, or drops it if it changed.
+	private synchronized Cached get(String key, File f)
+	{
+		Cached out = cacheMap.get(key);
+		if (out == null)
+			return null;
+		if (out.matches(f))
+			return out;
+		cacheMap.remove(key);
+		size -= out.size;
+		return null;
+	}
+
+	// Keeps read contents, then drops the least recently used ones past the capacity.
+	private synchronized void put(String key, Cached cached)
+	{
+		if (cached.size > capacity)
+			return;
+
+		Cached old = cacheMap.put(key, cached);
+		if (old != null)
+			size -= old.size;
+		size += cached.size;
+
+		Iterator<Cached> it = cacheMap.values().iterator();
+		while (size > capacity && it.hasNext())
+		{
+			size -= it.next().size;
+			it.remove();
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+
+import net.mtrop.utility.doom.doommerge.DoomMerge.MergeContext;
+import net.mtrop.utility.doom.doommerge.MergeScript.Statement;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * A block of script statements that builds one output buffer,
+ * starting from a CLEAROUT or LOAD, with its own context.
+ * @author Matthew Tropiano
+ */
+public class MergeJob
+{
+	/** Job index in the script. */
+	private int index;
+	/** Line that the job starts on. */
+	private int line;
+	/** Input files at the start of this job. */
+	private List<File> startingInputs;
+	/** Statements in this job. */
+	private List<Statement> statements;
+	/** Files (and directories) read by this job. */
+	private List<File> reads;
+	/** Files written by this job. */
+	private List<File> writes;
+	/** Jobs that need to finish before this one. */
+	private List<MergeJob> dependencies;
+
+	MergeJob(int index, int line, List<File> inputFiles)
+	{
+		this.index = index;
+		this.line = line;
+		this.startingInputs = new List<File>(inputFiles.size());
+		this.statements = new List<Statement>();
+		this.reads = new List<File>();
+		this.writes = new List<File>();
+		this.dependencies = new List<MergeJob>(2);
+
+		for (File f : inputFiles)
+		{
+			startingInputs.add(f);
+			reads.add(normalize(f));
+		}
+	}
+
+	/**
+	 * @return this job's index in the script.
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return the script line that this job starts on.
+	 */
+	public int getLine()
+	{
+		return line;
+	}
+
+	/**
+	 * @return the jobs that need to finish before this one.
+	 */
+	public List<MergeJob> getDependencies()
+	{
+		return dependencies;
+	}
+
+	/**
+	 * @return the files (and directories) that this job reads from.
+	 */
+	public List<File> getReads()
+	{
+		return reads;
+	}
+
+	/**
+	 * @return the files that this job writes to.
+	 */
+	public List<File> getWrites()
+	{
+		return writes;
+	}
+
+	// Adds a statement, and tracks the files that it touches.
+	void addStatement(Statement s)
+	{
+		statements.add(s);
+		switch (s.command)
+		{
+			case IN:
+			case LOAD:
+				reads.add(normalize(new File(s.args[0])));
+				break;
+			case SAVE:
+			case SAVEPK3:
+				writes.add(normalize(new File(s.args[0])));
+				break;
+			default:
+				break;
+		}
+	}
+
+	void addDependency(MergeJob job)
+	{
+		dependencies.add(job);
+	}
+
+	/**
+	 * Checks if this job needs to wait on another job.
+	 * That is, if it reads what the other writes, or writes what the other reads or writes.
+	 * @param other the other (earlier) job.
+	 * @return true if so, false if not.
+	 */
+	boolean dependsOn(MergeJob other)
+	{
+		for (File w : other.writes)
+		{
+			for (File r : reads)
+				if (contains(r, w))
+					return true;
+			for (File w2 : writes)
+				if (w2.equals(w))
+					return true;
+		}
+		for (File r : other.reads)
+		{
+			for (File w : writes)
+				if (contains(r, w))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a changed file is read by this job,
+	 * either directly or through an input directory.
+	 * @param f the file to test.
+	 * @return true if so, false if not.
+	 */
+	boolean readsFrom(File f)
+	{
+		File target = normalize(f);
+		for (File r : reads)
+			if (contains(r, target))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Creates a task that runs this job's statements in a new context.
+	 * The job's output is buffered, and is available after the task completes.
+	 * @param cache the input cache to use, or null for no cache.
+	 * @return a new task that returns true if all statements succeeded.
+	 */
+	Task createTask(MergeCache cache)
+	{
+		return new Task(cache);
+	}
+
+	// Returns true if the file is the same as the target, or is a directory that holds it.
+	private static boolean contains(File file, File target)
+	{
+		File f = target;
+		while (f != null)
+		{
+			if (f.equals(file))
+				return true;
+			f = f.getParentFile();
+		}
+		return false;
+	}
+
+	// Normalizes a path for comparison.
+	private static File normalize(File f)
+	{
+		return f.getAbsoluteFile().toPath().normalize().toFile();
+	}
+
+	/**
+	 * The runnable part of a job.
+	 */
+	class Task implements Callable<Boolean>
+	{
+		/** Buffered output. */
+		private ByteArrayOutputStream output;
+		/** Input cache. */
+		private MergeCache cache;
+
+		private Task(MergeCache cache)
+		{
+			this.output = new ByteArrayOutputStream();
+			this.cache = cache;
+		}
+
+		/**
+		 * @return the job that this task runs.
+		 */
+		MergeJob getJob()
+		{
+			return MergeJob.this;
+		}
+
+		/**
+		 * @return the buffered job output.
+		 */
+		byte[] getOutput()
+		{
+			return output.toByteArray();
+		}
+
+		@Override
+		public Boolean call()
+		{
+			PrintStream out = new PrintStream(output, true);
+			MergeContext context = new MergeContext(out);
+			context.cache = cache;
+			for (File f : startingInputs)
+				context.inputFiles.add(f);
+
+			for (Statement s : statements)
+			{
+				if (!s.command.execute(context, s.args))
+				{
+					out.println();
+					out.printf("ERROR: Line %d: %s failed.\n", s.line, s.command.name());
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
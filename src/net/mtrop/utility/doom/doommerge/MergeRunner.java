@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * Runs a set of merge jobs on a thread pool, respecting dependencies,
+ * and prints their output in script order.
+ * @author Matthew Tropiano
+ */
+public class MergeRunner
+{
+	/** Output stream. */
+	private PrintStream out;
+	/** Input cache (can be null). */
+	private MergeCache cache;
+	/** Thread count. */
+	private int threads;
+
+	/**
+	 * Creates a new runner.
+	 * @param out the stream to print job output to.
+	 * @param threads the amount of jobs to run at once.
+	 * @param cache the input cache to use, or null for no cache.
+	 */
+	public MergeRunner(PrintStream out, int threads, MergeCache cache)
+	{
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		this.cache = cache;
+	}
+
+	/**
+	 * Runs all of the provided jobs.
+	 * @param jobs the jobs to run (in script order).
+	 * @return true if all jobs succeeded, false otherwise.
+	 * @throws InterruptedException if this thread is interrupted while waiting on jobs.
+	 */
+	public boolean run(List<MergeJob> jobs) throws InterruptedException
+	{
+		boolean[] selected = new boolean[jobs.size()];
+		for (int i = 0; i < selected.length; i++)
+			selected[i] = true;
+		return run(jobs, selected);
+	}
+
+	/**
+	 * Runs a subset of jobs. Dependencies that are not selected are assumed to be complete.
+	 * @param jobs the full list of jobs (in script order).
+	 * @param selected flags for which jobs to run, by job index.
+	 * @return true if all selected jobs succeeded, false otherwise.
+	 * @throws InterruptedException if this thread is interrupted while waiting on jobs.
+	 */
+	public boolean run(List<MergeJob> jobs, boolean[] selected) throws InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// Jobs are submitted in script order, and only depend on earlier jobs, so waiting never deadlocks.
+			// The result list is filled up front, so it is never resized while tasks read it.
+			final List<Future<Boolean>> results = new List<Future<Boolean>>(jobs.size());
+			for (int i = 0; i < jobs.size(); i++)
+				results.add(null);
+			MergeJob.Task[] tasks = new MergeJob.Task[jobs.size()];
+			for (int i = 0; i < jobs.size(); i++)
+			{
+				if (!selected[i])
+					continue;
+
+				final MergeJob.Task task = tasks[i] = jobs.getByIndex(i).createTask(cache);
+				results.replace(i, executor.submit(Stats.wrap(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						for (MergeJob dependency : task.getJob().getDependencies())
+						{
+							Future<Boolean> result = results.getByIndex(dependency.getIndex());
+							if (result != null && !result.get())
+								return false;
+						}
+						return task.call();
+					}
+				})));
+			}
+
+			// print output in script order.
+			boolean success = true;
+			for (int i = 0; i < tasks.length; i++)
+			{
+				if (tasks[i] == null)
+					continue;
+
+				boolean result;
+				try {
+					result = results.getByIndex(i).get();
+				} catch (ExecutionException e) {
+					out.printf("ERROR: Line %d: %s\n", tasks[i].getJob().getLine(), e.getCause().getMessage());
+					result = false;
+				}
+				byte[] output = tasks[i].getOutput();
+				out.write(output, 0, output.length);
+				if (!result && output.length == 0)
+					out.printf("ERROR: Line %d: Skipped; a block it depends on failed.\n", tasks[i].getJob().getLine());
+				success = success && result;
+			}
+			out.flush();
+			return success;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import net.mtrop.utility.doom.doommerge.DoomMerge.MergeCommand;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * A Doom Merge script, parsed all at once and split into jobs.
+ * A job starts at each CLEAROUT or LOAD command (and at the start of the script),
+ * and runs until the next one. Jobs only depend on each other if one reads
+ * or writes a file that an earlier one writes (or reads, for writes).
+ * @author Matthew Tropiano
+ */
+public class MergeScript
+{
+	/** Parsed statements. */
+	private List<Statement> statements;
+
+	/**
+	 * A single parsed line.
+	 */
+	static class Statement
+	{
+		/** Source line number. */
+		int line;
+		/** Command. */
+		MergeCommand command;
+		/** Command arguments. */
+		String[] args;
+
+		Statement(int line, MergeCommand command, String[] args)
+		{
+			this.line = line;
+			this.command = command;
+			this.args = args;
+		}
+	}
+
+	/**
+	 * Thrown if a script could not be parsed.
+	 */
+	public static class ParseException extends Exception
+	{
+		private static final long serialVersionUID = 8432541209651553041L;
+
+		ParseException(int line, String message)
+		{
+			super("Line " + line + ": " + message);
+		}
+	}
+
+	private MergeScript()
+	{
+		this.statements = new List<Statement>();
+	}
+
+	/**
+	 * Reads and parses a full script. Parsing stops at EOF or an END command.
+	 * @param in the input stream to read.
+	 * @return the parsed script.
+	 * @throws IOException if the stream could not be read.
+	 * @throws ParseException if a line contains an unknown command or a bad argument list.
+	 */
+	public static MergeScript parse(InputStream in) throws IOException, ParseException
+	{
+		MergeScript out = new MergeScript();
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+
+		String line;
+		int lineNumber = 0;
+		while ((line = br.readLine()) != null)
+		{
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+
+			String[] tokens = tokenize(lineNumber, line);
+			MergeCommand command;
+			try {
+				command = MergeCommand.valueOf(tokens[0].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new ParseException(lineNumber, "Unknown command \"" + tokens[0] + "\".");
+			}
+
+			if (command == MergeCommand.END)
+				break;
+
+			String[] args = new String[tokens.length - 1];
+			System.arraycopy(tokens, 1, args, 0, args.length);
+			if (requiresArgument(command) && args.length == 0)
+				throw new ParseException(lineNumber, "Command " + command.name() + " requires an argument.");
+
+			out.statements.add(new Statement(lineNumber, command, args));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Splits this script into jobs, and figures out which jobs depend on each other.
+	 * @return the list of jobs, in script order.
+	 */
+	public List<MergeJob> createJobs()
+	{
+		List<MergeJob> out = new List<MergeJob>();
+		List<File> inputFiles = new List<File>();
+
+		MergeJob current = null;
+		for (Statement s : statements)
+		{
+			if (current == null || s.command == MergeCommand.CLEAROUT || s.command == MergeCommand.LOAD)
+			{
+				current = new MergeJob(out.size(), s.line, inputFiles);
+				out.add(current);
+			}
+
+			current.addStatement(s);
+
+			// input list carries over to later jobs.
+			switch (s.command)
+			{
+				case IN:
+					inputFiles.add(new File(s.args[0]));
+					break;
+				case CLEARIN:
+					inputFiles.clear();
+					break;
+				default:
+					break;
+			}
+		}
+
+		for (int i = 0; i < out.size(); i++)
+		{
+			MergeJob job = out.getByIndex(i);
+			for (int j = 0; j < i; j++)
+			{
+				MergeJob previous = out.getByIndex(j);
+				if (job.dependsOn(previous))
+					job.addDependency(previous);
+			}
+		}
+
+		return out;
+	}
+
+	// Returns true if a command needs at least one argument.
+	private static boolean requiresArgument(MergeCommand command)
+	{
+		switch (command)
+		{
+			case IN:
+			case LOAD:
+			case SAVE:
+			case SAVEPK3:
+			case MARKER:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// Splits a line into whitespace-separated tokens, honoring double quotes.
+	private static String[] tokenize(int lineNumber, String line) throws ParseException
+	{
+		List<String> out = new List<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		boolean inToken = false;
+
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (quoted)
+			{
+				if (c == '"')
+					quoted = false;
+				else
+					sb.append(c);
+			}
+			else if (c == '"')
+			{
+				quoted = true;
+				inToken = true;
+			}
+			else if (Character.isWhitespace(c))
+			{
+				if (inToken)
+				{
+					out.add(sb.toString());
+					sb.delete(0, sb.length());
+					inToken = false;
+				}
+			}
+			else
+			{
+				sb.append(c);
+				inToken = true;
+			}
+		}
+
+		if (quoted)
+			throw new ParseException(lineNumber, "Missing closing quote.");
+		if (inToken)
+			out.add(sb.toString());
+
+		String[] tokens = new String[out.size()];
+		out.toArray(tokens);
+		return tokens;
+	}
+
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * Watches the inputs of a set of merge jobs, and re-runs the jobs
+ * affected by a change (and the jobs that depend on those).
+ * @author Matthew Tropiano
+ */
+public class MergeWatcher
+{
+	/** Time to wait for more changes after one is seen, so that a multi-file save runs once. */
+	private static final long SETTLE_MILLIS = 250L;
+
+	/** Output stream. */
+	private PrintStream out;
+	/** Script jobs. */
+	private List<MergeJob> jobs;
+	/** The job runner. */
+	private MergeRunner runner;
+
+	/**
+	 * Creates a new watcher.
+	 * @param out the output stream for messages.
+	 * @param jobs the script jobs, in script order.
+	 * @param runner the runner to use for running jobs.
+	 */
+	public MergeWatcher(PrintStream out, List<MergeJob> jobs, MergeRunner runner)
+	{
+		this.out = out;
+		this.jobs = jobs;
+		this.runner = runner;
+	}
+
+	/**
+	 * Runs all jobs, and then waits for changes, forever (or until interrupted).
+	 * @throws IOException if the file system could not be watched.
+	 * @throws InterruptedException if this thread is interrupted.
+	 */
+	public void watch() throws IOException, InterruptedException
+	{
+		runner.run(jobs);
+
+		WatchService service = FileSystems.getDefault().newWatchService();
+		try {
+			HashMap<WatchKey, Path> keyMap = registerInputs(service);
+			if (keyMap.size() == 0)
+			{
+				out.println("ERROR: No input files or directories to watch.");
+				return;
+			}
+
+			Hash<File> outputs = new Hash<File>();
+			for (MergeJob job : jobs)
+				for (File f : job.getWrites())
+					outputs.put(f);
+
+			while (true)
+			{
+				out.println("Waiting for changes...");
+
+				Hash<File> changed = new Hash<File>();
+				boolean overflow = false;
+
+				WatchKey key = service.take();
+				while (key != null)
+				{
+					Path dir = keyMap.get(key);
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							overflow = true;
+						else if (dir != null)
+						{
+							File f = dir.resolve((Path)event.context()).toFile();
+							// ignore our own outputs.
+							if (!outputs.contains(f))
+								changed.put(f);
+						}
+					}
+					key.reset();
+					key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+
+				boolean[] selected = getAffectedJobs(changed, overflow);
+				int count = 0;
+				for (boolean b : selected)
+					if (b) count++;
+				if (count == 0)
+					continue;
+
+				for (File f : changed)
+					out.printf("Changed: %s\n", f.getPath());
+				out.printf("Rebuilding %d of %d block(s)...\n", count, jobs.size());
+				runner.run(jobs, selected);
+			}
+		} finally {
+			Common.close(service);
+		}
+	}
+
+	// Registers the directories of all job inputs.
+	private HashMap<WatchKey, Path> registerInputs(WatchService service) throws IOException
+	{
+		HashMap<WatchKey, Path> out = new HashMap<WatchKey, Path>();
+		Hash<File> registered = new Hash<File>();
+		for (MergeJob job : jobs)
+		{
+			for (File f : job.getReads())
+			{
+				File dir = f.isDirectory() ? f : f.getParentFile();
+				if (dir == null || registered.contains(dir))
+					continue;
+				if (!dir.isDirectory())
+				{
+					this.out.printf("WARNING: Cannot watch %s: not found.\n", dir.getPath());
+					continue;
+				}
+				registered.put(dir);
+				Path path = dir.toPath();
+				WatchKey key = path.register(service,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE
+				);
+				out.put(key, path);
+			}
+		}
+		return out;
+	}
+
+	// Figures out which jobs need to run again.
+	private boolean[] getAffectedJobs(Hash<File> changed, boolean all)
+	{
+		boolean[] out = new boolean[jobs.size()];
+		for (int i = 0; i < out.length; i++)
+		{
+			MergeJob job = jobs.getByIndex(i);
+			if (all)
+			{
+				out[i] = true;
+				continue;
+			}
+
+			for (File f : changed)
+			{
+				if (job.readsFrom(f))
+				{
+					out[i] = true;
+					break;
+				}
+			}
+
+			// jobs that depend on a re-run job also re-run.
+			if (!out[i])
+			{
+				for (MergeJob dependency : job.getDependencies())
+				{
+					if (out[dependency.getIndex()])
+					{
+						out[i] = true;
+						break;
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.mtrop.doom.Wad;
+import net.mtrop.doom.WadBuffer;
+import net.mtrop.doom.WadFile;
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * Merges WAD contents together, collecting namespaced entries
+ * (between X_START and X_END markers) into one block per namespace.
+ * Entries in a namespace replace earlier entries of the same name,
+ * keeping the original position. Entries outside of namespaces are
+ * kept in order, as-is.
+ * @author Matthew Tropiano
+ */
+public class NamespaceMerger
+{
+	/** Namespace marker pattern. Sub-namespaces (P1, F2, ...) are folded into their parent. */
+	private static final Pattern MARKER_PATTERN = Pattern.compile("([A-Z]+)[0-9]*_(START|END)", Pattern.CASE_INSENSITIVE);
+
+	/** Entries that are not in a namespace. */
+	private List<EntryData> rootEntries;
+	/** Namespaces in the order that they were first seen. */
+	private List<Namespace> namespaces;
+	/** Namespace lookup by normalized name. */
+	private CaseInsensitiveHashMap<Namespace> namespaceMap;
+
+	/** Current namespace while adding a WAD. */
+	private Namespace current;
+	/** Namespace depth while adding a WAD (handles sub-namespaces like P1_START inside of P_START). */
+	private int depth;
+
+	/** Entry name and data. */
+	private static class EntryData implements Comparable<EntryData>
+	{
+		String name;
+		byte[] data;
+		
+		EntryData(String name, byte[] data)
+		{
+			this.name = name;
+			this.data = data;
+		}
+
+		@Override
+		public int compareTo(EntryData o)
+		{
+			return name.compareToIgnoreCase(o.name);
+		}
+	}
+
+	/** A single namespace. */
+	private static class Namespace
+	{
+		/** Marker prefix to use for output. */
+		String markerName;
+		/** Entries in the namespace. */
+		List<EntryData> entries;
+		/** Entry name to list index. */
+		CaseInsensitiveHashMap<Integer> entryIndex;
+
+		Namespace(String markerName)
+		{
+			this.markerName = markerName;
+			this.entries = new List<EntryData>();
+			this.entryIndex = new CaseInsensitiveHashMap<Integer>();
+		}
+
+		void put(String name, byte[] data)
+		{
+			Integer index = entryIndex.get(name);
+			if (index != null)
+				entries.getByIndex(index).data = data;
+			else
+			{
+				entryIndex.put(name, entries.size());
+				entries.add(new EntryData(name, data));
+			}
+		}
+	}
+
+	/**
+	 * Creates a new, empty merger.
+	 */
+	public NamespaceMerger()
+	{
+		this.rootEntries = new List<EntryData>();
+		this.namespaces = new List<Namespace>();
+		this.namespaceMap = new CaseInsensitiveHashMap<Namespace>();
+	}
+
+	/**
+	 * Adds all of the entries in a WAD to this merger.
+	 * @param wad the WAD to read.
+	 * @throws IOException if the WAD could not be read.
+	 */
+	public void addWad(Wad wad) throws IOException
+	{
+		startWad();
+		for (int i = 0; i < wad.getSize(); i++)
+		{
+			byte[] data = wad.getData(i);
+			// the output buffer's entries are already in memory; only a file's are read.
+			if (wad instanceof WadFile)
+				Stats.addLumpRead(data.length);
+			addWadEntry(wad.getEntry(i).getName(), data);
+		}
+	}
+
+	/**
+	 * Adds all of the entries in a cached WAD to this merger.
+	 * @param wad the WAD contents.
+	 */
+	public void addWad(MergeCache.CachedWad wad)
+	{
+		startWad();
+		for (int i = 0; i < wad.getSize(); i++)
+			addWadEntry(wad.getName(i), wad.getData(i));
+	}
+
+	// Resets the namespace state for a new WAD.
+	private void startWad()
+	{
+		current = null;
+		depth = 0;
+	}
+	
+	// Adds the next entry in a WAD.
+	private void addWadEntry(String name, byte[] data)
+	{
+		Matcher m = MARKER_PATTERN.matcher(name);
+		if (m.matches())
+		{
+			String key = getNamespaceKey(m.group(1));
+			if (m.group(2).equalsIgnoreCase("START"))
+			{
+				if (depth++ == 0)
+				{
+					current = namespaceMap.get(key);
+					if (current == null)
+					{
+						current = new Namespace(m.group(1).toUpperCase());
+						namespaceMap.put(key, current);
+						namespaces.add(current);
+					}
+				}
+			}
+			else if (depth > 0 && --depth == 0)
+			{
+				current = null;
+			}
+			// stray END markers are dropped.
+			return;
+		}
+
+		if (current != null)
+			current.put(name, data);
+		else
+			rootEntries.add(new EntryData(name, data));
+	}
+
+	/**
+	 * Adds a single entry outside of any namespace.
+	 * @param name the entry name.
+	 * @param data the entry data.
+	 */
+	public void addEntry(String name, byte[] data)
+	{
+		rootEntries.add(new EntryData(name, data));
+	}
+
+	/**
+	 * Writes the merged contents to a new WAD buffer.
+	 * Non-namespace entries come first, followed by each namespace block.
+	 * @param sort if true, each namespace's entries are sorted by name.
+	 * @return a new WAD buffer.
+	 * @throws IOException if the buffer could not be written to.
+	 */
+	public WadBuffer toWadBuffer(boolean sort) throws IOException
+	{
+		WadBuffer out = new WadBuffer();
+		for (EntryData entry : rootEntries)
+			out.addData(entry.name, entry.data);
+
+		for (Namespace ns : namespaces)
+		{
+			if (ns.entries.size() == 0)
+				continue;
+			if (sort)
+			{
+				ns.entries.sort();
+				for (int i = 0; i < ns.entries.size(); i++)
+					ns.entryIndex.put(ns.entries.getByIndex(i).name, i);
+			}
+			out.addMarker(ns.markerName + "_START");
+			for (EntryData entry : ns.entries)
+				out.addData(entry.name, entry.data);
+			out.addMarker(ns.markerName + "_END");
+		}
+
+		return out;
+	}
+
+	// Normalizes namespace prefixes ("PP" and "P" are the same namespace).
+	private static String getNamespaceKey(String prefix)
+	{
+		String key = prefix.toUpperCase();
+		if (key.equals("PP"))
+			return "P";
+		else if (key.equals("FF"))
+			return "F";
+		else if (key.equals("SS"))
+			return "S";
+		return key;
+	}
+
+}
@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doommerge;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * Writes a set of named files to a PK3 (ZIP) archive.
+ * Entries are compressed in parallel, then written sequentially
+ * in the order that they were added, followed by the central directory.
+ * Data that is already compressed (PNG, OGG, etc.) is stored as-is.
+ * @author Matthew Tropiano
+ */
+public class PK3Writer
+{
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+	private static final int SIG_LOCAL_HEADER = 0x04034b50;
+	private static final int SIG_CENTRAL_HEADER = 0x02014b50;
+	private static final int SIG_END_OF_DIRECTORY = 0x06054b50;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final int ZIP_VERSION = 20;
+	/** General purpose flag: entry name is UTF-8. */
+	private static final int FLAG_UTF8 = 0x0800;
+
+	/** Formats that do not benefit from recompression (by header). */
+	private static final byte[][] COMPRESSED_MAGIC = {
+		{(byte)0x89, 'P', 'N', 'G'},
+		{'O', 'g', 'g', 'S'},
+		{'f', 'L', 'a', 'C'},
+		{'I', 'D', '3'},
+		{(byte)0xff, (byte)0xd8, (byte)0xff},
+		{'P', 'K', 0x03, 0x04},
+		{'R', 'a', 'r', '!'},
+		{0x1f, (byte)0x8b},
+	};
+
+	/** List of entries in add order. */
+	private List<Entry> entries;
+	/** Path to entry index. */
+	private CaseInsensitiveHashMap<Integer> entryIndex;
+	/** Compression level. */
+	private int level;
+
+	/**
+	 * A single archive entry.
+	 */
+	private static class Entry
+	{
+		/** Entry path. */
+		String path;
+		/** Uncompressed data. */
+		byte[] data;
+
+		/** Compression method. */
+		int method;
+		/** CRC32 of uncompressed data. */
+		int crc;
+		/** Output data (compressed or not). */
+		byte[] outData;
+		/** Output data length. */
+		int outLength;
+		/** Local header offset. */
+		long offset;
+
+		Entry(String path, byte[] data)
+		{
+			this.path = path;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Creates a new writer with the default compression level.
+	 */
+	public PK3Writer()
+	{
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a new writer.
+	 * @param level the Deflate compression level (0 to 9, or -1 for default).
+	 */
+	public PK3Writer(int level)
+	{
+		this.entries = new List<Entry>();
+		this.entryIndex = new CaseInsensitiveHashMap<Integer>();
+		this.level = level;
+	}
+
+	/**
+	 * Adds a file to the archive. If a file with the same path
+	 * was already added, its data is replaced, but it keeps its position.
+	 * @param path the file path inside the archive (separated with '/').
+	 * @param data the file data.
+	 */
+	public void addFile(String path, byte[] data)
+	{
+		Integer index = entryIndex.get(path);
+		if (index != null)
+			entries.getByIndex(index).data = data;
+		else
+		{
+			entryIndex.put(path, entries.size());
+			entries.add(new Entry(path, data));
+		}
+	}
+
+	/**
+	 * Checks if a file was already added to this archive (case-insensitive).
+	 * @param path the file path inside the archive.
+	 * @return true if so, false if not.
+	 */
+	public boolean contains(String path)
+	{
+		return entryIndex.containsKey(path);
+	}
+
+	/**
+	 * @return the amount of files added to this archive.
+	 */
+	public int getFileCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Compresses and writes the archive to a file.
+	 * @param f the output file.
+	 * @param threads the amount of threads to use for compression.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void writeToFile(File f, int threads) throws IOException
+	{
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(f);
+			Stats.addFile();
+			writeToStream(new BufferedOutputStream(Stats.countOutput(fos), 65536), threads);
+		} finally {
+			Common.close(fos);
+		}
+	}
+
+	/**
+	 * Compresses and writes the archive to a stream.
+	 * The stream is flushed, but not closed.
+	 * @param out the output stream.
+	 * @param threads the amount of threads to use for compression.
+	 * @throws IOException if the stream could not be written to.
+	 */
+	public void writeToStream(OutputStream out, int threads) throws IOException
+	{
+		if (entries.size() > 0x0ffff)
+			throw new IOException("Too many entries for a PK3: "+entries.size());
+
+		int[] dosTime = getDOSTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+
+			// start all compression jobs, in order.
+			List<Future<Entry>> jobs = new List<Future<Entry>>(entries.size());
+			for (int i = 0; i < entries.size(); i++)
+				jobs.add(executor.submit(Stats.wrap(new CompressJob(entries.getByIndex(i), level))));
+
+			// write local headers and data as each job completes, in order.
+			byte[] buf = new byte[46];
+			long offset = 0L;
+			for (Future<Entry> job : jobs)
+			{
+				Entry entry = waitFor(job);
+				byte[] name = entry.path.getBytes(NAME_CHARSET);
+				entry.offset = offset;
+
+				putInt(buf, 0, SIG_LOCAL_HEADER);
+				putShort(buf, 4, ZIP_VERSION);
+				putShort(buf, 6, getFlags(name));
+				putShort(buf, 8, entry.method);
+				putShort(buf, 10, dosTime[0]);
+				putShort(buf, 12, dosTime[1]);
+				putInt(buf, 14, entry.crc);
+				putInt(buf, 18, entry.outData.length);
+				putInt(buf, 22, entry.data.length);
+				putShort(buf, 26, name.length);
+				putShort(buf, 28, 0);
+				out.write(buf, 0, 30);
+				out.write(name);
+				out.write(entry.outData);
+
+				offset += 30 + name.length + entry.outData.length;
+				if (offset > 0x0ffffffffL)
+					throw new IOException("PK3 is too large (more than 4GB).");
+
+				// no longer needed.
+				entry.outLength = entry.outData.length;
+				entry.outData = null;
+			}
+
+			// write central directory.
+			long directoryOffset = offset;
+			for (int i = 0; i < entries.size(); i++)
+			{
+				Entry entry = entries.getByIndex(i);
+				byte[] name = entry.path.getBytes(NAME_CHARSET);
+
+				putInt(buf, 0, SIG_CENTRAL_HEADER);
+				putShort(buf, 4, ZIP_VERSION);
+				putShort(buf, 6, ZIP_VERSION);
+				putShort(buf, 8, getFlags(name));
+				putShort(buf, 10, entry.method);
+				putShort(buf, 12, dosTime[0]);
+				putShort(buf, 14, dosTime[1]);
+				putInt(buf, 16, entry.crc);
+				putInt(buf, 20, entry.outLength);
+				putInt(buf, 24, entry.data.length);
+				putShort(buf, 28, name.length);
+				putShort(buf, 30, 0);
+				putShort(buf, 32, 0);
+				putShort(buf, 34, 0);
+				putShort(buf, 36, 0);
+				putInt(buf, 38, 0);
+				putInt(buf, 42, (int)entry.offset);
+				out.write(buf, 0, 46);
+				out.write(name);
+
+				offset += 46 + name.length;
+			}
+
+			// write end of central directory.
+			putInt(buf, 0, SIG_END_OF_DIRECTORY);
+			putShort(buf, 4, 0);
+			putShort(buf, 6, 0);
+			putShort(buf, 8, entries.size());
+			putShort(buf, 10, entries.size());
+			putInt(buf, 12, (int)(offset - directoryOffset));
+			putInt(buf, 16, (int)directoryOffset);
+			putShort(buf, 20, 0);
+			out.write(buf, 0, 22);
+			out.flush();
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// Waits on a compression job, rethrowing its failure as an IOException.
+	private static Entry waitFor(Future<Entry> job) throws IOException
+	{
+		try {
+			return job.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing PK3 entries.");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress PK3 entry: "+e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Returns true if the provided data starts with the header
+	 * of a format that is already compressed.
+	 * @param data the data to inspect.
+	 */
+	static boolean isCompressedData(byte[] data)
+	{
+		for (byte[] magic : COMPRESSED_MAGIC)
+		{
+			if (data.length < magic.length)
+				continue;
+			boolean match = true;
+			for (int i = 0; i < magic.length && match; i++)
+				match = data[i] == magic[i];
+			if (match)
+				return true;
+		}
+		return false;
+	}
+
+	// Returns the general purpose flags for an entry name: UTF-8, if it is not all ASCII.
+	private static int getFlags(byte[] name)
+	{
+		for (byte b : name)
+			if (b < 0)
+				return FLAG_UTF8;
+		return 0;
+	}
+
+	// Returns the current time as {DOS time, DOS date}.
+	private static int[] getDOSTime()
+	{
+		Calendar c = Calendar.getInstance();
+		int time = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+		int date = ((c.get(Calendar.YEAR) - 1980) << 9) | ((c.get(Calendar.MONTH) + 1) << 5) | c.get(Calendar.DAY_OF_MONTH);
+		return new int[]{time, date};
+	}
+
+	private static void putShort(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte)(value & 0x0ff);
+		b[offset + 1] = (byte)((value >> 8) & 0x0ff);
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte)(value & 0x0ff);
+		b[offset + 1] = (byte)((value >> 8) & 0x0ff);
+		b[offset + 2] = (byte)((value >> 16) & 0x0ff);
+		b[offset + 3] = (byte)((value >> 24) & 0x0ff);
+	}
+
+	/**
+	 * Compresses a single entry.
+	 */
+	private static class CompressJob implements Callable<Entry>
+	{
+		private Entry entry;
+		private int level;
+
+		CompressJob(Entry entry, int level)
+		{
+			this.entry = entry;
+			this.level = level;
+		}
+
+		@Override
+		public Entry call() throws Exception
+		{
+			byte[] data = entry.data;
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length);
+			entry.crc = (int)crc.getValue();
+
+			if (level == 0 || data.length == 0 || isCompressedData(data))
+			{
+				entry.method = METHOD_STORED;
+				entry.outData = data;
+				return entry;
+			}
+
+			Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+				byte[] buf = new byte[8192];
+				while (!deflater.finished())
+				{
+					int n = deflater.deflate(buf);
+					bos.write(buf, 0, n);
+				}
+
+				// if compression did not help, store instead.
+				if (bos.size() >= data.length)
+				{
+					entry.method = METHOD_STORED;
+					entry.outData = data;
+				}
+				else
+				{
+					entry.method = METHOD_DEFLATED;
+					entry.outData = bos.toByteArray();
+				}
+			} finally {
+				deflater.end();
+			}
+			return entry;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomsnd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A streaming DMX (Doom sound) writer. The header is written on creation,
+ * and samples are quantized to 8 bits and written as they are given, so
+ * a sound of any length is written with the same (small) amount of memory.
+ * <p>
+ * The sample count is needed up front, since it is in the header. If fewer
+ * samples are written, the rest is filled with silence when finished.
+ * @author Matthew Tropiano
+ */
+public class DMXWriter
+{
+	/** DMX format number. */
+	private static final int FORMAT_SOUND = 3;
+	/** Padding bytes before and after the samples (counted in the header). */
+	private static final int PADDING = 16;
+	/** Header length in bytes. */
+	private static final int HEADER_LENGTH = 8;
+
+	/** Output stream. */
+	private OutputStream out;
+	/** Samples to write. */
+	private int sampleCount;
+	/** Samples written. */
+	private int written;
+	/** Last written sample (for the end padding). */
+	private int lastSample;
+	/** Quantized sample buffer. */
+	private byte[] buffer;
+
+	/**
+	 * Creates a new writer, and writes the DMX header.
+	 * @param out the output stream to write to. It is not closed.
+	 * @param sampleRate the sample rate in Hz (up to 65535).
+	 * @param sampleCount the amount of samples that will be written.
+	 * @throws IOException if the header could not be written.
+	 * @throws IllegalArgumentException if the sample rate or count can't be stored.
+	 */
+	public DMXWriter(OutputStream out, int sampleRate, int sampleCount) throws IOException
+	{
+		if (sampleRate < 1 || sampleRate > 65535)
+			throw new IllegalArgumentException("Sample rate must be from 1 to 65535 Hz for DMX sounds.");
+		if (sampleCount < 0 || sampleCount > Integer.MAX_VALUE - PADDING * 2 - HEADER_LENGTH)
+			throw new IllegalArgumentException("Too many samples for a DMX sound.");
+
+		this.out = out;
+		this.sampleCount = sampleCount;
+		this.written = 0;
+		this.lastSample = 128;
+		this.buffer = new byte[4096];
+
+		int length = sampleCount + PADDING * 2;
+		buffer[0] = (byte)FORMAT_SOUND;
+		buffer[1] = 0;
+		buffer[2] = (byte)sampleRate;
+		buffer[3] = (byte)(sampleRate >> 8);
+		buffer[4] = (byte)length;
+		buffer[5] = (byte)(length >> 8);
+		buffer[6] = (byte)(length >> 16);
+		buffer[7] = (byte)(length >> 24);
+		out.write(buffer, 0, HEADER_LENGTH);
+	}
+
+	/**
+	 * Gets the length of a DMX sound, in bytes.
+	 * @param sampleCount the amount of samples.
+	 * @return the length in bytes, with header and padding.
+	 */
+	public static int getLength(int sampleCount)
+	{
+		return HEADER_LENGTH + PADDING * 2 + sampleCount;
+	}
+
+	/**
+	 * Quantizes and writes samples. Samples past the sample count given on creation are ignored.
+	 * Samples are scaled by 128, the same as {@link WAVReader} reads 8-bit samples, so 8-bit sounds
+	 * come back unchanged.
+	 * @param samples the samples, from -1 to 1 (values past that are clipped).
+	 * @param offset the offset into the array.
+	 * @param count the amount of samples to write.
+	 * @throws IOException if the samples could not be written.
+	 */
+	public void write(float[] samples, int offset, int count) throws IOException
+	{
+		count = Math.min(count, sampleCount - written);
+		if (count <= 0)
+			return;
+		if (buffer.length < count)
+			buffer = new byte[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			int v = Math.round(samples[offset + i] * 128f) + 128;
+			buffer[i] = (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+		}
+
+		// the start padding repeats the first sample.
+		if (written == 0)
+			writeRepeated(buffer[0] & 0x0ff, PADDING);
+
+		out.write(buffer, 0, count);
+		lastSample = buffer[count - 1] & 0x0ff;
+		written += count;
+	}
+
+	/**
+	 * Finishes the sound: fills any missing samples with silence, and writes the end padding.
+	 * @throws IOException if the data could not be written.
+	 */
+	public void finish() throws IOException
+	{
+		if (written == 0)
+			writeRepeated(128, PADDING);
+		if (written < sampleCount)
+		{
+			writeRepeated(128, sampleCount - written);
+			lastSample = 128;
+			written = sampleCount;
+		}
+		writeRepeated(lastSample, PADDING);
+		out.flush();
+	}
+
+	// Writes a byte value many times.
+	private void writeRepeated(int value, int count) throws IOException
+	{
+		byte[] b = new byte[Math.min(count, 4096)];
+		Arrays.fill(b, (byte)value);
+		while (count > 0)
+		{
+			int n = Math.min(count, b.length);
+			out.write(b, 0, n);
+			count -= n;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomsnd;
+
+/**
+ * Measures the peak and RMS level of a sound, a block of samples at a time,
+ * and works out the gain that brings either one to a target level.
+ * <p>
+ * Levels are in dBFS: 0 dB is a full-scale sample (1.0), and quieter levels
+ * are negative. The loops only work on float arrays, with no branches in them,
+ * so they can be vectorized by the JIT.
+ * @author Matthew Tropiano
+ */
+public class LoudnessMeter
+{
+	/** Levels below this are taken as silence (and not normalized). */
+	private static final double SILENCE = 1e-6;
+
+	/** Highest absolute sample value. */
+	private float peak;
+	/** Sum of the squares of all samples. */
+	private double sumSquares;
+	/** Samples measured. */
+	private long sampleCount;
+
+	/**
+	 * Creates a new meter.
+	 */
+	public LoudnessMeter()
+	{
+		reset();
+	}
+
+	/**
+	 * Resets this meter for a new sound.
+	 */
+	public void reset()
+	{
+		this.peak = 0f;
+		this.sumSquares = 0.0;
+		this.sampleCount = 0;
+	}
+
+	/**
+	 * Measures a block of samples.
+	 * @param samples the samples.
+	 * @param offset the offset into the array.
+	 * @param count the amount of samples.
+	 */
+	public void add(float[] samples, int offset, int count)
+	{
+		float max = peak;
+		float squares = 0f;
+		int end = offset + count;
+		for (int i = offset; i < end; i++)
+		{
+			float s = samples[i];
+			max = Math.max(max, Math.abs(s));
+			squares += s * s;
+		}
+		peak = max;
+		// a block's sum is small enough for a float; the total is not.
+		sumSquares += squares;
+		sampleCount += count;
+	}
+
+	/**
+	 * @return the peak level (highest absolute sample), from 0 to 1 (or more, if clipped).
+	 */
+	public float getPeak()
+	{
+		return peak;
+	}
+
+	/**
+	 * @return the RMS level, from 0 to 1 (or more, if clipped).
+	 */
+	public double getRMS()
+	{
+		return sampleCount > 0 ? Math.sqrt(sumSquares / sampleCount) : 0.0;
+	}
+
+	/**
+	 * @return the amount of samples measured.
+	 */
+	public long getSampleCount()
+	{
+		return sampleCount;
+	}
+
+	/**
+	 * Gets the gain that brings the peak level to a target level.
+	 * @param targetDecibels the target level in dBFS.
+	 * @return the gain to multiply each sample by (1 if the sound is silent).
+	 */
+	public float getPeakGain(double targetDecibels)
+	{
+		if (peak < SILENCE)
+			return 1f;
+		return (float)(fromDecibels(targetDecibels) / peak);
+	}
+
+	/**
+	 * Gets the gain that brings the RMS level to a target level, but no higher
+	 * than the gain that brings the peak to full scale, so nothing is clipped.
+	 * @param targetDecibels the target level in dBFS.
+	 * @return the gain to multiply each sample by (1 if the sound is silent).
+	 */
+	public float getRMSGain(double targetDecibels)
+	{
+		double rms = getRMS();
+		if (rms < SILENCE)
+			return 1f;
+		return (float)Math.min(fromDecibels(targetDecibels) / rms, 1.0 / peak);
+	}
+
+	/**
+	 * Multiplies a block of samples by a gain.
+	 * @param samples the samples.
+	 * @param offset the offset into the array.
+	 * @param count the amount of samples.
+	 * @param gain the gain.
+	 */
+	public static void applyGain(float[] samples, int offset, int count, float gain)
+	{
+		int end = offset + count;
+		for (int i = offset; i < end; i++)
+			samples[i] *= gain;
+	}
+
+	/**
+	 * Converts a gain or level to decibels.
+	 * @param value the gain or level.
+	 * @return the value in decibels.
+	 */
+	public static double toDecibels(double value)
+	{
+		return 20.0 * Math.log10(value);
+	}
+
+	/**
+	 * Converts decibels to a gain or level.
+	 * @param decibels the value in decibels.
+	 * @return the gain or level.
+	 */
+	public static double fromDecibels(double decibels)
+	{
+		return Math.pow(10.0, decibels / 20.0);
+	}
+
+}
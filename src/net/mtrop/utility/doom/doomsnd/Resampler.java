@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomsnd;
+
+import java.util.Arrays;
+
+import com.blackrook.commons.hash.HashMap;
+
+/**
+ * A polyphase windowed-sinc resampler, for one channel of samples.
+ * <p>
+ * The output rate over the input rate is reduced to a ratio L/M, and each
+ * output sample falls on one of L phases between two input samples. The filter
+ * taps for every phase are worked out once (and shared by all resamplers with
+ * the same ratio), so each output sample is one dot product. When downsampling,
+ * the filter cutoff is lowered to the output rate, so there is no aliasing.
+ * <p>
+ * Samples are given in blocks with {@link #process(float[], int, int, float[], int)}
+ * and the rest is let out with {@link #flush(float[], int)}. Once the buffers are
+ * sized for the largest block, nothing else is allocated.
+ * @author Matthew Tropiano
+ */
+public class Resampler
+{
+	/** Sinc zero crossings on each side of the center, at the cutoff. */
+	private static final int ZERO_CROSSINGS = 16;
+	/** Cutoff, as a part of the lower Nyquist frequency. */
+	private static final double ROLLOFF = 0.94;
+	/** Kaiser window beta. */
+	private static final double KAISER_BETA = 8.0;
+	/** Most phases kept in a filter bank (ratios with more phases use the nearest one). */
+	private static final int MAX_PHASES = 1024;
+
+	/** Filter banks, by "L/M". */
+	private static final HashMap<String, float[]> BANK_CACHE = new HashMap<String, float[]>();
+
+	/** Upsampling factor. */
+	private int upFactor;
+	/** Downsampling factor. */
+	private int downFactor;
+	/** Phases in the bank. */
+	private int phases;
+	/** Taps per phase. */
+	private int taps;
+	/** Half of the taps (the taps before and including the current input sample). */
+	private int halfTaps;
+	/** Filter bank: all taps of phase 0, then phase 1, and so on. */
+	private float[] bank;
+
+	/** Input history. */
+	private float[] buffer;
+	/** Samples in the buffer. */
+	private int bufferLength;
+	/** Input index of buffer[0] (negative at the start, for the zeros before the first sample). */
+	private long bufferStart;
+
+	/** Input index of the next output sample. */
+	private long inputIndex;
+	/** Position of the next output sample past inputIndex, in 1/upFactor units. */
+	private int phaseNumerator;
+	/** Input samples given. */
+	private long inputCount;
+	/** Output samples made. */
+	private long outputCount;
+
+	/**
+	 * Creates a new resampler.
+	 * @param inputRate the input sample rate in Hz.
+	 * @param outputRate the output sample rate in Hz.
+	 * @throws IllegalArgumentException if a rate is not positive.
+	 */
+	public Resampler(int inputRate, int outputRate)
+	{
+		if (inputRate < 1 || outputRate < 1)
+			throw new IllegalArgumentException("Sample rates must be positive.");
+
+		int gcd = gcd(inputRate, outputRate);
+		this.upFactor = outputRate / gcd;
+		this.downFactor = inputRate / gcd;
+		this.phases = Math.min(upFactor, MAX_PHASES);
+
+		double scale = Math.min(1.0, (double)upFactor / downFactor) * ROLLOFF;
+		this.halfTaps = (int)Math.ceil(ZERO_CROSSINGS / scale);
+		this.taps = halfTaps * 2;
+		this.bank = getBank(upFactor, downFactor, phases, taps, scale);
+
+		this.buffer = new float[taps * 4];
+		reset();
+	}
+
+	/**
+	 * Resets this resampler for a new sound.
+	 */
+	public void reset()
+	{
+		// zeros before the first sample, so the first output has a full history.
+		Arrays.fill(buffer, 0f);
+		this.bufferLength = halfTaps - 1;
+		this.bufferStart = -(halfTaps - 1);
+		this.inputIndex = 0;
+		this.phaseNumerator = 0;
+		this.inputCount = 0;
+		this.outputCount = 0;
+	}
+
+	/**
+	 * Gets the amount of output samples for an amount of input samples.
+	 * @param inputRate the input sample rate in Hz.
+	 * @param outputRate the output sample rate in Hz.
+	 * @param inputSamples the amount of input samples.
+	 * @return the amount of output samples.
+	 */
+	public static long getOutputLength(int inputRate, int outputRate, long inputSamples)
+	{
+		int gcd = gcd(inputRate, outputRate);
+		long up = outputRate / gcd;
+		long down = inputRate / gcd;
+		return (inputSamples * up + down - 1) / down;
+	}
+
+	/**
+	 * Gets the most output samples that one call can make.
+	 * @param inputSamples the amount of input samples in one block.
+	 * @return the amount of output samples that an output array needs room for.
+	 */
+	public int getMaxOutputLength(int inputSamples)
+	{
+		return (int)((long)(inputSamples + taps * 2) * upFactor / downFactor) + 2;
+	}
+
+	/**
+	 * Adds a block of input samples, and makes all output samples that can be made with them.
+	 * @param in the input samples.
+	 * @param offset the offset into the input.
+	 * @param count the amount of input samples.
+	 * @param out the output array (see {@link #getMaxOutputLength(int)}).
+	 * @param outOffset the offset into the output.
+	 * @return the amount of output samples made.
+	 */
+	public int process(float[] in, int offset, int count, float[] out, int outOffset)
+	{
+		append(in, offset, count);
+		inputCount += count;
+		return drain(out, outOffset, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Makes the last output samples, as though the input is followed by silence.
+	 * @param out the output array (see {@link #getMaxOutputLength(int)}, with 0).
+	 * @param outOffset the offset into the output.
+	 * @return the amount of output samples made.
+	 */
+	public int flush(float[] out, int outOffset)
+	{
+		ensureCapacity(bufferLength + taps);
+		Arrays.fill(buffer, bufferLength, bufferLength + taps, 0f);
+		bufferLength += taps;
+		long total = (inputCount * upFactor + downFactor - 1) / downFactor;
+		return drain(out, outOffset, total);
+	}
+
+	// Appends input to the buffer.
+	private void append(float[] in, int offset, int count)
+	{
+		ensureCapacity(bufferLength + count);
+		System.arraycopy(in, offset, buffer, bufferLength, count);
+		bufferLength += count;
+	}
+
+	// Makes sure the buffer can hold an amount of samples (only allocates for bigger blocks).
+	private void ensureCapacity(int length)
+	{
+		if (buffer.length < length)
+			buffer = Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+	}
+
+	// Makes output samples while the buffer has all of their taps, up to a total amount.
+	private int drain(float[] out, int outOffset, long limit)
+	{
+		int n = 0;
+		long bufferEnd = bufferStart + bufferLength;
+		while (outputCount < limit && inputIndex + halfTaps < bufferEnd)
+		{
+			int phase = phaseNumerator;
+			int b = (int)(inputIndex - halfTaps + 1 - bufferStart);
+			if (phases != upFactor)
+			{
+				// nearest precomputed phase; rounding up past the last one is phase 0 of the next input sample.
+				phase = (int)(((long)phaseNumerator * phases + upFactor / 2) / upFactor);
+				if (phase == phases)
+				{
+					if (inputIndex + halfTaps + 1 >= bufferEnd)
+						break;
+					phase = 0;
+					b++;
+				}
+			}
+			int t = phase * taps;
+			float sum = 0f;
+			for (int k = 0; k < taps; k++)
+				sum += buffer[b + k] * bank[t + k];
+			out[outOffset + n++] = sum;
+			outputCount++;
+
+			phaseNumerator += downFactor;
+			if (phaseNumerator >= upFactor)
+			{
+				inputIndex += phaseNumerator / upFactor;
+				phaseNumerator %= upFactor;
+			}
+		}
+
+		// drop the history that no more outputs need.
+		int drop = (int)Math.min(inputIndex - halfTaps + 1 - bufferStart, bufferLength);
+		if (drop > 0)
+		{
+			System.arraycopy(buffer, drop, buffer, 0, bufferLength - drop);
+			bufferLength -= drop;
+			bufferStart += drop;
+		}
+		return n;
+	}
+
+	// Gets (or makes) a filter bank.
+	private static float[] getBank(int up, int down, int phases, int taps, double scale)
+	{
+		String key = up + "/" + down;
+		synchronized (BANK_CACHE)
+		{
+			float[] out = BANK_CACHE.get(key);
+			if (out == null)
+			{
+				out = makeBank(phases, taps, scale);
+				BANK_CACHE.put(key, out);
+			}
+			return out;
+		}
+	}
+
+	// Makes the taps of every phase: a windowed sinc, normalized so each phase has a gain of 1.
+	private static float[] makeBank(int phases, int taps, double scale)
+	{
+		int halfTaps = taps / 2;
+		float[] out = new float[phases * taps];
+		double windowNorm = besselI0(KAISER_BETA);
+		for (int p = 0; p < phases; p++)
+		{
+			double fraction = (double)p / phases;
+			double sum = 0.0;
+			double[] h = new double[taps];
+			for (int k = 0; k < taps; k++)
+			{
+				// distance from the output sample to input sample (k - halfTaps + 1).
+				double u = fraction - (k - halfTaps + 1);
+				double x = u / halfTaps;
+				double window = Math.abs(x) >= 1.0 ? 0.0 : besselI0(KAISER_BETA * Math.sqrt(1.0 - x * x)) / windowNorm;
+				h[k] = scale * sinc(scale * u) * window;
+				sum += h[k];
+			}
+			for (int k = 0; k < taps; k++)
+				out[p * taps + k] = (float)(h[k] / sum);
+		}
+		return out;
+	}
+
+	private static double sinc(double x)
+	{
+		if (x == 0.0)
+			return 1.0;
+		double px = Math.PI * x;
+		return Math.sin(px) / px;
+	}
+
+	// Modified Bessel function of the first kind, order 0 (for the Kaiser window).
+	private static double besselI0(double x)
+	{
+		double sum = 1.0;
+		double term = 1.0;
+		double half = x / 2.0;
+		for (int k = 1; k < 64; k++)
+		{
+			term *= (half / k) * (half / k);
+			sum += term;
+			if (term < sum * 1e-12)
+				break;
+		}
+		return sum;
+	}
+
+	private static int gcd(int a, int b)
+	{
+		while (b != 0)
+		{
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+}
@@ -7,37 +7,163 @@
  ******************************************************************************/
 package net.mtrop.utility.doom.doomsnd;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.mtrop.utility.doom.common.Resource;
+import net.mtrop.utility.doom.common.ResourceTree;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.WadWriter;
 
 import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.CaseInsensitiveHash;
+import com.blackrook.commons.linkedlist.Queue;
 import com.blackrook.commons.list.List;
-import com.blackrook.io.files.SoundFileInfo;
-import com.blackrook.io.files.wav.WAVFile;
 import com.blackrook.utility.Context;
 import com.blackrook.utility.Settings;
 import com.blackrook.utility.Utility;
 import com.blackrook.utility.Version;
 
-import net.mtrop.doom.sound.DMXSound;
-
 /**
  * Converts sound to Doom Format sounds.
  * @author Matthew Tropiano
  */
 public class SoundConvert extends Utility<SoundConvert.SoundContext>
 {
-	private static final Version VERSION = new Version(2,0,0,0);
+	private static final Version VERSION = new Version(2,1,0,0);
+
+	/** Sample frames read (and converted) at a time. */
+	private static final int BLOCK_FRAMES = 4096;
+	/** Amount of sounds that can be waiting to be printed (or added to a WAD), per thread. */
+	private static final int PENDING_PER_THREAD = 4;
+	/** DMX format number. */
+	private static final int DMX_FORMAT_SOUND = 3;
+	/** DMX header length. */
+	private static final int DMX_HEADER_LENGTH = 8;
+	/** DMX padding bytes before and after the samples. */
+	private static final int DMX_PADDING = 16;
+	/** Lowest sample rate for a lump to be taken as a DMX sound (to skip other lumps that start with 3). */
+	private static final int DMX_MIN_RATE = 1000;
+	
+	/** Normalize: none. */
+	public static final int NORMALIZE_NONE = 0;
+	/** Normalize: to a peak level. */
+	public static final int NORMALIZE_PEAK = 1;
+	/** Normalize: to an RMS level (limited by the peak). */
+	public static final int NORMALIZE_RMS = 2;
+	/** Default peak level in dBFS. */
+	private static final double DEFAULT_PEAK_LEVEL = 0.0;
+	/** Default RMS level in dBFS. */
+	private static final double DEFAULT_RMS_LEVEL = -12.0;
 
 	/** File path. */
 	public static final String SETTING_FILES = "files";
+	/** Output sample rate. */
+	public static final String SETTING_RATE = "rate";
+	/** Output WAD file. */
+	public static final String SETTING_WAD = "wad";
+	/** Extract sounds from WADs/PK3s. */
+	public static final String SETTING_EXTRACT = "extract";
+	/** Output directory for extracted sounds. */
+	public static final String SETTING_OUT = "out";
+	/** Output zip file for extracted sounds. */
+	public static final String SETTING_ZIP = "zip";
+	/** Normalization mode. */
+	public static final String SETTING_NORMALIZE = "normalize";
+	/** Normalization level. */
+	public static final String SETTING_LEVEL = "level";
+
+	/** Switch: output sample rate (next argument). */
+	public static final String SWITCH_RATE = "-rate";
+	/** Switch: output WAD file (next argument). */
+	public static final String SWITCH_WAD = "-wad";
+	/** Switch: extract sounds from WADs/PK3s to WAVs. */
+	public static final String SWITCH_EXTRACT = "-extract";
+	/** Switch: output directory for extracted sounds (next argument). */
+	public static final String SWITCH_OUT = "-out";
+	/** Switch: output zip file for extracted sounds (next argument). */
+	public static final String SWITCH_ZIP = "-zip";
+	/** Switch: normalization mode, peak or rms (next argument). */
+	public static final String SWITCH_NORMALIZE = "-normalize";
+	/** Switch: normalization level in dBFS (next argument). */
+	public static final String SWITCH_LEVEL = "-level";
 
 	/**
 	 * Context.
 	 */
 	public static class SoundContext implements Context
 	{
+		/** Output sample rate (0 is the same as each input). */
+		private int outputRate;
+		/** Normalization mode. */
+		private int normalize;
+		/** Normalization level in dBFS. */
+		private double level;
+		/** Output WAD (null if writing sound files). */
+		private WadWriter wad;
+		/** Output zip, for extracted sounds (null if writing WAV files). */
+		private ZipOutputStream zip;
+		/** Output directory, for extracted sounds. */
+		private File outDirectory;
+		/** Output names used so far, for extracted sounds. */
+		private CaseInsensitiveHash names;
+		/** Conversion threads. */
+		private ExecutorService executor;
+		/** Thread count. */
+		private int threads;
+		/** Results that are not printed yet, in input order. */
+		private Queue<Future<SoundResult>> pending;
+		/** Sounds converted. */
+		private int converted;
+		
+		private SoundContext()
+		{
+			this.outputRate = 0;
+			this.normalize = NORMALIZE_NONE;
+			this.level = 0.0;
+			this.wad = null;
+			this.zip = null;
+			this.names = new CaseInsensitiveHash();
+			this.threads = Runtime.getRuntime().availableProcessors();
+			this.pending = new Queue<Future<SoundResult>>();
+			this.converted = 0;
+		}
+	}
+	
+	/** The result of converting one sound. */
+	private static class SoundResult
+	{
+		/** Input path. */
+		private String path;
+		/** Output name (for extracted sounds). */
+		private String name;
+		/** Printed output. */
+		private byte[] output;
+		/** Converted sound (only if writing a WAD or zip). */
+		private byte[] data;
+		/** Converted successfully. */
+		private boolean success;
 	}
 
 	@Override
@@ -52,9 +178,32 @@ public class SoundConvert extends Utility<SoundConvert.SoundContext>
 		List<String> files = new List<String>();
 		Settings out = new Settings();
 
+		String next = null;
 		for (String a : args)
 		{
-			files.add(a);
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_RATE))
+				next = SETTING_RATE;
+			else if (a.equalsIgnoreCase(SWITCH_WAD))
+				next = SETTING_WAD;
+			else if (a.equalsIgnoreCase(SWITCH_NORMALIZE))
+				next = SETTING_NORMALIZE;
+			else if (a.equalsIgnoreCase(SWITCH_LEVEL))
+				next = SETTING_LEVEL;
+			else if (a.equalsIgnoreCase(SWITCH_OUT))
+				next = SETTING_OUT;
+			else if (a.equalsIgnoreCase(SWITCH_ZIP))
+				next = SETTING_ZIP;
+			else if (a.equalsIgnoreCase(SWITCH_EXTRACT))
+				out.put(SETTING_EXTRACT, true);
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+				next = Stats.SETTING_STATS;
+			else
+				files.add(a);
 		}
 				
 		String[] filePaths = new String[files.size()];
@@ -70,102 +219,562 @@ public class SoundConvert extends Utility<SoundConvert.SoundContext>
 		return new SoundContext();
 	}
 
-	// Opens a wave file.
-	private WAVFile openWAVFile(String path)
+	// Adds a conversion task, and prints the oldest results, if too many are waiting.
+	private void submit(SoundContext context, Callable<SoundResult> task)
 	{
-		WAVFile wav = null;
+		context.pending.enqueue(context.executor.submit(Stats.wrap(task)));
+		while (context.pending.size() > context.threads * PENDING_PER_THREAD)
+			printNext(context);
+	}
+	
+	// Waits for and prints the oldest result, and adds it to the WAD, if writing one.
+	private void printNext(SoundContext context)
+	{
+		Future<SoundResult> future = context.pending.dequeue();
+		SoundResult result;
 		try {
-			wav = new WAVFile(path);
-		} catch (SecurityException ex) {
-			out.printf("ERROR: Couldn't open %s. Access denied.\n", path);
+			result = future.get();
+		} catch (ExecutionException e) {
+			out.printf("ERROR: %s\n", e.getCause().getMessage());
+			return;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		out.write(result.output, 0, result.output.length);
+		if (!result.success)
+			return;
+		
+		if (context.wad != null)
+		{
+			String name = getLumpName(result.path);
+			if (context.wad.contains(name))
+			{
+				out.printf("ERROR: Lump name %s (from \"%s\") is already in the WAD. Skipped.\n", name, result.path);
+				return;
+			}
+			
+			try {
+				context.wad.addLump(name, result.data);
+			} catch (IOException e) {
+				// can't go on.
+				throw new ArchiveWriteException(e);
+			}
+			out.printf("Added \"%s\" as %s.\n", result.path, name);
+		}
+		else if (context.zip != null)
+		{
+			try {
+				context.zip.putNextEntry(new ZipEntry(result.name));
+				context.zip.write(result.data);
+				context.zip.closeEntry();
+			} catch (IOException e) {
+				// can't go on.
+				throw new ArchiveWriteException(e);
+			}
+			out.printf("Added \"%s\" as %s.\n", result.path, result.name);
+		}
+		context.converted++;
+	}
+	
+	// Prints all waiting results.
+	private void printPending(SoundContext context)
+	{
+		while (!context.pending.isEmpty())
+			printNext(context);
+	}
+	
+	/** Thrown when an output WAD or zip can't be written, to stop everything. */
+	private static class ArchiveWriteException extends RuntimeException
+	{
+		private static final long serialVersionUID = -8158474264611254331L;
+
+		private ArchiveWriteException(IOException cause)
+		{
+			super(cause.getMessage(), cause);
+		}
+	}
+	
+	// Adds a conversion task for a file.
+	private void processFile(final SoundContext context, final String path)
+	{
+		submit(context, new Callable<SoundResult>()
+		{
+			@Override
+			public SoundResult call()
+			{
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+				PrintStream out = new PrintStream(bos, true);
+				SoundResult result = new SoundResult();
+				result.path = path;
+				if (context.wad != null)
+				{
+					result.data = convertToLump(out, context, path);
+					result.success = result.data != null;
+				}
+				else
+				{
+					result.success = convertFile(out, context, path, getNewFileName(path));
+				}
+				result.output = bos.toByteArray();
+				return result;
+			}
+		});
+	}
+	
+	// Reads a WAV header. Returns null if it is not a (readable) WAV.
+	private static WAVReader openWAV(PrintStream out, String path, InputStream in)
+	{
+		try {
+			return new WAVReader(in);
 		} catch (IOException ex) {
 			out.printf("ERROR: Couldn't open %s. Read error encountered, or not a WAV.\n", path);
+			return null;
 		}
-		return wav;
 	}
 	
-	// Reads the samples in a WAV file (and does dumb mixing).
-	private double[] readSamples(String path, WAVFile wav)
+	// Converts a WAV file to DMX sound data, for a WAD. Returns null if it could not be converted.
+	private static byte[] convertToLump(PrintStream out, SoundContext context, String path)
 	{
-		SoundFileInfo info = wav.getSoundInfo();
-		double[][] inSamples = new double[info.getChannels()][((int)wav.getDataLength()) / info.getBytesPerSample() / info.getChannels()]; 
-		
-		int sampleCount = 0;
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(Stats.countInput(new FileInputStream(path)), 65536);
+			Stats.addFile();
+			WAVReader wav = openWAV(out, path, in);
+			if (wav == null)
+				return null;
+			float gain = getGain(context, path);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(65536);
+			writeSound(wav, bos, context.outputRate, gain);
+			return bos.toByteArray();
+		} catch (SecurityException e) {
+			out.printf("ERROR: Couldn't open %s. Access denied.\n", path);
+		} catch (FileNotFoundException e) {
+			out.printf("ERROR: Couldn't open %s. Read error encountered, or not a WAV.\n", path);
+		} catch (IllegalArgumentException e) {
+			out.printf("ERROR: Couldn't convert \"%s\": %s\n", path, e.getMessage());
+		} catch (IOException e) {
+			out.printf("ERROR: Couldn't convert \"%s\": %s\n", path, e.getMessage());
+		} finally {
+			Common.close(in);
+		}
+		return null;
+	}
+	
+	// Converts a WAV file to a DMX sound file, one block of samples at a time.
+	private static boolean convertFile(PrintStream out, SoundContext context, String path, String outPath)
+	{
+		InputStream in = null;
+		WAVReader wav = null;
+		try {
+			in = new BufferedInputStream(Stats.countInput(new FileInputStream(path)), 65536);
+			Stats.addFile();
+			wav = openWAV(out, path, in);
+		} catch (SecurityException e) {
+			out.printf("ERROR: Couldn't open %s. Access denied.\n", path);
+		} catch (FileNotFoundException e) {
+			out.printf("ERROR: Couldn't open %s. Read error encountered, or not a WAV.\n", path);
+		}
+		if (wav == null)
+		{
+			Common.close(in);
+			return false;
+		}
 		
+		File f = new File(outPath);
+		OutputStream fos = null;
+		boolean success = false;
 		try {
-			sampleCount = wav.readSamples(inSamples);
+			float gain = getGain(context, path);
+			fos = new BufferedOutputStream(Stats.countOutput(new FileOutputStream(f)), 65536);
+			Stats.addFile();
+			writeSound(wav, fos, context.outputRate, gain);
+			success = true;
+		} catch (SecurityException e) {
+			out.printf("ERROR: Couldn't write sound file \"%s\". Access denied.\n", outPath);
+		} catch (IllegalArgumentException e) {
+			out.printf("ERROR: Couldn't convert \"%s\": %s\n", path, e.getMessage());
 		} catch (IOException e) {
-			out.printf("ERROR: Couldn't read sound information from \"%s\".\n", path);
-			return null;
+			out.printf("ERROR: Couldn't convert \"%s\" to \"%s\": %s\n", path, outPath, e.getMessage());
+		} finally {
+			Common.close(fos);
+			Common.close(in);
+			// don't leave half a sound behind.
+			if (!success)
+				f.delete();
 		}
-
-		if (info.getChannels() == 1)
+		
+		if (success)
+			out.printf("Wrote \"%s\" successfully.\n", outPath);
+		return success;
+	}
+	
+	// Gets the gain for a sound, by measuring it (as it will be written) in a first pass over its WAV.
+	private static float getGain(SoundContext context, String path) throws IOException
+	{
+		if (context.normalize == NORMALIZE_NONE)
+			return 1f;
+		
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(Stats.countInput(new FileInputStream(path)), 65536);
+			Stats.addFile();
+			MonoStream stream = new MonoStream(new WAVReader(in), context.outputRate);
+			LoudnessMeter meter = new LoudnessMeter();
+			int n;
+			while ((n = stream.read()) > 0)
+				meter.add(stream.samples, 0, n);
+			return context.normalize == NORMALIZE_RMS ? meter.getRMSGain(context.level) : meter.getPeakGain(context.level);
+		} finally {
+			Common.close(in);
+		}
+	}
+	
+	// Writes all of the samples in a WAV as a DMX sound, with a gain applied before quantizing.
+	static void writeSound(WAVReader wav, OutputStream out, int outputRate, float gain) throws IOException
+	{
+		MonoStream stream = new MonoStream(wav, outputRate);
+		if (stream.sampleCount > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many samples for a DMX sound.");
+		
+		DMXWriter dmx = new DMXWriter(out, stream.sampleRate, (int)stream.sampleCount);
+		int n;
+		while ((n = stream.read()) > 0)
 		{
-			return inSamples[0];
+			if (gain != 1f)
+				LoudnessMeter.applyGain(stream.samples, 0, n, gain);
+			dmx.write(stream.samples, 0, n);
 		}
-		else
+		dmx.finish();
+	}
+	
+	/** Reads a WAV as blocks of mono samples: mixed down, and resampled (if needed). */
+	private static class MonoStream
+	{
+		/** Input WAV. */
+		private WAVReader wav;
+		/** Output sample rate. */
+		private int sampleRate;
+		/** Amount of samples that will be read. */
+		private long sampleCount;
+		/** Resampler (null if not resampling). */
+		private Resampler resampler;
+		/** Interleaved frames. */
+		private float[] block;
+		/** Mixed-down samples. */
+		private float[] mono;
+		/** Last block of samples read. */
+		private float[] samples;
+		/** If the WAV has been read to the end. */
+		private boolean done;
+		
+		private MonoStream(WAVReader wav, int outputRate)
 		{
-			// mix channels (lazily) if more than one.
-			double mixFactor = 1.0 / info.getChannels();
-			double[] out = new double[sampleCount];
-			for (int i = 0; i < out.length; i++)
+			int inputRate = wav.getSampleRate();
+			this.wav = wav;
+			this.sampleRate = outputRate == 0 ? inputRate : outputRate;
+			this.sampleCount = Resampler.getOutputLength(inputRate, sampleRate, wav.getFrameCount());
+			this.block = new float[BLOCK_FRAMES * wav.getChannels()];
+			this.mono = wav.getChannels() == 1 ? block : new float[BLOCK_FRAMES];
+			this.resampler = inputRate != sampleRate ? new Resampler(inputRate, sampleRate) : null;
+			this.samples = resampler != null ? new float[resampler.getMaxOutputLength(BLOCK_FRAMES)] : mono;
+			this.done = false;
+		}
+		
+		// Reads the next block of samples into samples[]. Returns the amount read, or 0 at the end.
+		private int read() throws IOException
+		{
+			while (!done)
 			{
-				for (double[] d : inSamples)
-					out[i] += mixFactor * d[i]; 
+				int frames = wav.readFrames(block, BLOCK_FRAMES);
+				if (frames == 0)
+				{
+					done = true;
+					return resampler != null ? resampler.flush(samples, 0) : 0;
+				}
+				if (wav.getChannels() > 1)
+					mixDown(block, wav.getChannels(), mono, frames);
+				if (resampler == null)
+					return frames;
+				int n = resampler.process(mono, 0, frames, samples, 0);
+				if (n > 0)
+					return n;
 			}
-			return out;
+			return 0;
 		}
 	}
 	
-	// Gets the new filename to use for an output file.
-	private String getNewFileName(String path)
+	// Mixes interleaved channels into one (lazily: an average).
+	private static void mixDown(float[] in, int channels, float[] out, int frames)
 	{
-		String extension = Common.getFileExtension(path);
-		if (extension.length() > 0)
+		float mixFactor = 1f / channels;
+		for (int i = 0, s = 0; i < frames; i++)
 		{
-			int index = path.indexOf("."+extension);
-			return path.substring(0, index) + ".snd";
+			float sum = 0f;
+			for (int c = 0; c < channels; c++)
+				sum += in[s++];
+			out[i] = sum * mixFactor;
 		}
-		else
-			return path + ".snd";
 	}
 	
-	// Writes to a new file.
-	private boolean writeOutputFile(DMXSound data, String path)
+	// Checks if the start of a lump is a DMX sound header.
+	private static boolean isDMXHeader(byte[] header, long lumpLength)
 	{
-		File f = new File(path);
-		FileOutputStream fos = null;
-		try {
-			fos = new FileOutputStream(f);
-			data.writeBytes(fos);
-		} catch (SecurityException e) {
-			out.printf("ERROR: Couldn't write sound file \"%s\". Access denied.\n", path);
+		if (lumpLength < DMX_HEADER_LENGTH)
 			return false;
-		} catch (IOException e){
-			out.printf("ERROR: Couldn't write sound file \"%s\".\n", path);
-			return false;
-		} finally {
-			Common.close(fos);
+		ByteBuffer b = ByteBuffer.wrap(header, 0, DMX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		int format = b.getShort() & 0x0ffff;
+		int rate = b.getShort() & 0x0ffff;
+		long count = b.getInt() & 0x0FFFFFFFFL;
+		return format == DMX_FORMAT_SOUND && rate >= DMX_MIN_RATE && count <= lumpLength - DMX_HEADER_LENGTH;
+	}
+	
+	// Writes a DMX sound as a WAV (8-bit mono, like the DMX samples), without the DMX padding.
+	private static void writeWAV(OutputStream out, byte[] dmx) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.wrap(dmx).order(ByteOrder.LITTLE_ENDIAN);
+		b.getShort();
+		int rate = b.getShort() & 0x0ffff;
+		int count = b.getInt();
+		int start = DMX_HEADER_LENGTH;
+		if (count > DMX_PADDING * 2)
+		{
+			start += DMX_PADDING;
+			count -= DMX_PADDING * 2;
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
+		header.putInt(36 + count + (count & 1));
+		header.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
+		header.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
+		header.putInt(16);
+		header.putShort((short)1); // PCM
+		header.putShort((short)1); // mono
+		header.putInt(rate);
+		header.putInt(rate); // byte rate
+		header.putShort((short)1); // block align
+		header.putShort((short)8); // bits
+		header.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
+		header.putInt(count);
+		out.write(header.array());
+		out.write(dmx, start, count);
+		if ((count & 1) != 0)
+			out.write(0);
+	}
+	
+	// Gets a file name for an extracted sound.
+	private static String getWAVFileName(String name)
+	{
+		return name.replaceAll("[^A-Za-z0-9_\\-\\[\\]]", "_") + ".wav";
+	}
+	
+	// Adds an extraction task for one sound.
+	private void extractSound(final SoundContext context, final String path, String lumpName, final Callable<byte[]> reader)
+	{
+		final String name = getWAVFileName(lumpName);
+		final boolean duplicate = context.names.contains(name);
+		context.names.put(name);
+		submit(context, new Callable<SoundResult>()
+		{
+			@Override
+			public SoundResult call()
+			{
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+				PrintStream out = new PrintStream(bos, true);
+				SoundResult result = new SoundResult();
+				result.path = path;
+				result.name = name;
+				result.success = false;
+				
+				if (duplicate)
+				{
+					out.printf("ERROR: %s (from \"%s\") was already extracted. Skipped.\n", name, path);
+					result.output = bos.toByteArray();
+					return result;
+				}
+				
+				File f = null;
+				OutputStream fos = null;
+				try {
+					byte[] dmx = reader.call();
+					if (context.zip != null)
+					{
+						ByteArrayOutputStream wav = new ByteArrayOutputStream(dmx.length + 44);
+						writeWAV(wav, dmx);
+						result.data = wav.toByteArray();
+					}
+					else
+					{
+						f = new File(context.outDirectory, name);
+						fos = new BufferedOutputStream(Stats.countOutput(new FileOutputStream(f)), 65536);
+						Stats.addFile();
+						writeWAV(fos, dmx);
+						fos.close();
+						out.printf("Wrote \"%s\" successfully.\n", f.getPath());
+					}
+					result.success = true;
+				} catch (Exception e) {
+					out.printf("ERROR: Couldn't extract \"%s\": %s\n", path, e.getMessage());
+				} finally {
+					Common.close(fos);
+					if (!result.success && f != null)
+						f.delete();
+				}
+				result.output = bos.toByteArray();
+				return result;
+			}
+		});
+	}
+	
+	// Finds the DMX sounds in a resource (and in everything in it, if it is a directory, WAD, or zip), and adds extraction tasks for them.
+	// Returns false if the resource is not a container or a sound.
+	private boolean extractResource(SoundContext context, final Resource r) throws IOException
+	{
+		if (r.isContainer())
+		{
+			for (Resource child : r.getChildren())
+			{
+				try {
+					extractResource(context, child);
+				} catch (IOException e) {
+					printPending(context);
+					out.printf("ERROR: Couldn't read %s: %s\n", child.getPath(), e.getMessage());
+				}
+			}
+			return true;
 		}
 		
-		out.printf("Wrote \"%s\" successfully.\n", path);
+		byte[] header = new byte[DMX_HEADER_LENGTH];
+		if (r.read(0L, header, 0, DMX_HEADER_LENGTH) < DMX_HEADER_LENGTH || !isDMXHeader(header, r.getSize()))
+			return false;
+		
+		String name = r.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		
+		extractSound(context, r.getPath(), name, new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				return r.getData();
+			}
+		});
 		return true;
 	}
 	
+	// Gets the lump name for a sound: its file name, with "DS" in front (if not already), up to 8 characters.
+	private static String getLumpName(String path)
+	{
+		String name = new File(path).getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		name = name.toUpperCase().replaceAll("[^A-Z0-9\\[\\]\\-_\\\\]", "_");
+		if (!name.startsWith("DS"))
+			name = "DS" + name;
+		return name.length() > 8 ? name.substring(0, 8) : name;
+	}
+	
+	// Adds the files to convert: files as given, and the WAV files in directories (and their subdirectories).
+	private static void addFiles(List<String> out, File f)
+	{
+		if (!f.isDirectory())
+		{
+			out.add(f.getPath());
+			return;
+		}
+		
+		File[] files = f.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File child : files)
+		{
+			if (child.isDirectory())
+				addFiles(out, child);
+			else if (child.getName().toLowerCase().endsWith(".wav"))
+				out.add(child.getPath());
+		}
+	}
+	
+	// Gets the new filename to use for an output file.
+	private static String getNewFileName(String path)
+	{
+		String extension = Common.getFileExtension(path);
+		if (extension.length() > 0)
+		{
+			int index = path.indexOf("."+extension);
+			return path.substring(0, index) + ".snd";
+		}
+		else
+			return path + ".snd";
+	}
+	
 	// Prints the usage message.
 	private void printUsage()
 	{
-		out.println("Usage: doomsnd [wavefiles]");
+		out.println("Usage: doomsnd [wavefiles] [-rate [hz]] [-normalize [peak|rms]] [-level [db]]");
+		out.println("               [-wad [wadfile]]");
+		out.println("       doomsnd -extract [wadfiles] [-out [directory] | -zip [zipfile]]");
 		out.println("    [wavefiles]: A valid WAV file or files. Accepts wildcards");
-		out.println("                 for multiple files.");
+		out.println("                 for multiple files. Directories are searched");
+		out.println("                 (with their subdirectories) for WAV files.");
+		out.println("    -rate [hz]:  Resamples each sound to this sample rate (1 to");
+		out.println("                 65535). Doom's own sounds are 11025 Hz. If not");
+		out.println("                 given, each sound keeps its WAV's sample rate.");
+		out.println("    -normalize [peak|rms]:");
+		out.println("                 Changes the level of each sound before it is");
+		out.println("                 made 8-bit, by its peak or its RMS (average)");
+		out.println("                 level. RMS normalizing never clips.");
+		out.println("    -level [db]: The level to normalize to, in dBFS (0 or less).");
+		out.println("                 Default is 0 for peak, -12 for RMS.");
+		out.println("    -wad [file]: Writes all of the sounds into one new WAD, as DS*");
+		out.println("                 lumps, instead of writing .snd files.");
+		out.println("    -extract:    Extracts every DMX sound in WAD or PK3 files to");
+		out.println("                 WAV files, named after each lump.");
+		out.println("    -out [dir]:  Directory for extracted WAVs. Default is the");
+		out.println("                 current directory.");
+		out.println("    -zip [file]: Writes extracted WAVs into one new zip file.");
+		out.println("    -stats [format]:");
+		out.println("                 Prints time and I/O stats for each phase to");
+		out.println("                 STDERR when done, as a \"table\" or \"json\".");
 	}
 	
 	@Override
-	public int execute(SoundContext context, Settings settings)
+	public int execute(final SoundContext context, final Settings settings)
 	{
 		out.printf("DoomSND v%s by Matt Tropiano\n", getVersion());
+
+		return Stats.run("DoomSND", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return convert(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Converts WAVs, or extracts sounds.
+	private int convert(SoundContext context, Settings settings)
+	{
 		String[] filePaths = (String[])settings.get(SETTING_FILES);
 		
+		if (settings.getBoolean(SETTING_EXTRACT))
+			return executeExtract(context, settings, filePaths);
+		
 		if (filePaths == null || filePaths.length == 0)
 		{
 			out.println("ERROR: No WAVs specified.");
@@ -173,29 +782,212 @@ public class SoundConvert extends Utility<SoundConvert.SoundContext>
 			return 2;
 		}
 
-		boolean successfulOnce = false;
-		
-		WAVFile wav = null;
+		if (settings.containsKey(SETTING_RATE))
+		{
+			try {
+				context.outputRate = Integer.parseInt(settings.getString(SETTING_RATE));
+			} catch (NumberFormatException e) {
+				context.outputRate = -1;
+			}
+			if (context.outputRate < 1 || context.outputRate > 65535)
+			{
+				out.printf("ERROR: Bad sample rate: %s. Must be from 1 to 65535.\n", settings.getString(SETTING_RATE));
+				printUsage();
+				return 2;
+			}
+		}
+
+		String normalize = settings.getString(SETTING_NORMALIZE);
+		if (normalize != null)
+		{
+			if (normalize.equalsIgnoreCase("peak"))
+			{
+				context.normalize = NORMALIZE_PEAK;
+				context.level = DEFAULT_PEAK_LEVEL;
+			}
+			else if (normalize.equalsIgnoreCase("rms"))
+			{
+				context.normalize = NORMALIZE_RMS;
+				context.level = DEFAULT_RMS_LEVEL;
+			}
+			else
+			{
+				out.printf("ERROR: Bad normalize mode: %s. Must be \"peak\" or \"rms\".\n", normalize);
+				printUsage();
+				return 2;
+			}
+		}
+
+		if (settings.containsKey(SETTING_LEVEL))
+		{
+			if (context.normalize == NORMALIZE_NONE)
+			{
+				out.println("ERROR: -level needs -normalize.");
+				printUsage();
+				return 2;
+			}
+			try {
+				context.level = Double.parseDouble(settings.getString(SETTING_LEVEL));
+			} catch (NumberFormatException e) {
+				context.level = Double.NaN;
+			}
+			if (!(context.level <= 0.0 && context.level >= -96.0))
+			{
+				out.printf("ERROR: Bad level: %s. Must be from -96 to 0 (dBFS).\n", settings.getString(SETTING_LEVEL));
+				printUsage();
+				return 2;
+			}
+		}
+
+		List<String> files = new List<String>();
 		for (String f : filePaths)
+			addFiles(files, new File(f));
+		
+		String wadPath = settings.getString(SETTING_WAD);
+		if (wadPath != null)
 		{
-			wav = openWAVFile(f);
-			if (wav != null)
+			try {
+				context.wad = new WadWriter(new File(wadPath));
+			} catch (IOException e) {
+				out.printf("ERROR: Couldn't create WAD \"%s\": %s\n", wadPath, e.getMessage());
+				return 1;
+			}
+		}
+		
+		context.executor = Executors.newFixedThreadPool(context.threads);
+		Stats.phase("Converting sounds");
+		try {
+			for (String f : files)
+				processFile(context, f);
+			printPending(context);
+			if (context.wad != null && context.converted > 0)
 			{
-				double[] samples = readSamples(f, wav);
-				if (samples != null)
-				{
-					DMXSound sd = new DMXSound(wav.getSoundInfo().getSampleRate(), samples);
-					if (writeOutputFile(sd, getNewFileName(f)))
-						successfulOnce = true;
+				Stats.phase("Writing WAD");
+				context.wad.finish();
+				out.printf("Wrote %d sound(s) to \"%s\".\n", context.wad.getLumpCount(), wadPath);
+			}
+		} catch (ArchiveWriteException e) {
+			out.printf("ERROR: Couldn't write WAD \"%s\": %s\n", wadPath, e.getMessage());
+			return 1;
+		} catch (IOException e) {
+			out.printf("ERROR: Couldn't write WAD \"%s\": %s\n", wadPath, e.getMessage());
+			return 1;
+		} finally {
+			context.executor.shutdownNow();
+			if (context.wad != null)
+				context.wad.abort();
+		}
+		
+		if (context.converted == 0)
+			return 1;
+
+		return 0;
+	}
+	
+	// Extracts the sounds in WADs and PK3s.
+	private int executeExtract(SoundContext context, Settings settings, String[] filePaths)
+	{
+		if (filePaths == null || filePaths.length == 0)
+		{
+			out.println("ERROR: No WADs specified.");
+			printUsage();
+			return 2;
+		}
+		
+		String zipPath = settings.getString(SETTING_ZIP);
+		String outPath = settings.getString(SETTING_OUT);
+		if (settings.getString(SETTING_WAD) != null)
+		{
+			out.println("ERROR: -wad can't be used with -extract.");
+			printUsage();
+			return 2;
+		}
+		if (zipPath != null && outPath != null)
+		{
+			out.println("ERROR: Use -out or -zip, not both.");
+			printUsage();
+			return 2;
+		}
+		
+		File zipFile = zipPath != null ? new File(zipPath).getAbsoluteFile() : null;
+		File zipTemp = null;
+		if (zipFile != null)
+		{
+			try {
+				zipTemp = File.createTempFile(zipFile.getName() + ".", ".tmp", zipFile.getParentFile());
+				context.zip = new ZipOutputStream(new BufferedOutputStream(Stats.countOutput(new FileOutputStream(zipTemp)), 65536));
+				Stats.addFile();
+			} catch (IOException e) {
+				out.printf("ERROR: Couldn't create zip \"%s\": %s\n", zipPath, e.getMessage());
+				if (zipTemp != null)
+					zipTemp.delete();
+				return 1;
+			}
+		}
+		else
+		{
+			context.outDirectory = new File(outPath != null ? outPath : ".");
+			if (!context.outDirectory.isDirectory() && !context.outDirectory.mkdirs())
+			{
+				out.printf("ERROR: Couldn't create directory \"%s\".\n", context.outDirectory.getPath());
+				return 1;
+			}
+		}
+		
+		// sounds are read as they are extracted, so the tree stays open until they're done.
+		ResourceTree tree = new ResourceTree();
+		context.executor = Executors.newFixedThreadPool(context.threads);
+		Stats.phase("Extracting sounds");
+		try {
+			for (String path : filePaths)
+			{
+				try {
+					if (!extractResource(context, tree.add(new File(path))))
+					{
+						printPending(context);
+						out.printf("ERROR: Couldn't read %s. Not a WAD, PK3, directory, or sound.\n", path);
+					}
+				} catch (FileNotFoundException e) {
+					printPending(context);
+					out.printf("ERROR: Couldn't read %s. File not found.\n", path);
+				} catch (IOException e) {
+					printPending(context);
+					out.printf("ERROR: Couldn't read %s. Read error encountered.\n", path);
 				}
 			}
+			printPending(context);
 			
-			Common.close(wav);
+			if (context.zip != null)
+			{
+				Stats.phase("Writing zip");
+				context.zip.close();
+				context.zip = null;
+				if (context.converted > 0)
+				{
+					Files.move(zipTemp.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					out.printf("Wrote %d sound(s) to \"%s\".\n", context.converted, zipPath);
+				}
+			}
+		} catch (ArchiveWriteException e) {
+			out.printf("ERROR: Couldn't write zip \"%s\": %s\n", zipPath, e.getMessage());
+			return 1;
+		} catch (IOException e) {
+			out.printf("ERROR: Couldn't write zip \"%s\": %s\n", zipPath, e.getMessage());
+			return 1;
+		} finally {
+			context.executor.shutdownNow();
+			tree.close();
+			Common.close(context.zip);
+			if (zipTemp != null && zipTemp.exists())
+				zipTemp.delete();
 		}
 		
-		if (!successfulOnce)
+		if (context.converted == 0)
+		{
+			out.println("No sounds extracted.");
 			return 1;
-
+		}
+		
 		return 0;
 	}
 	
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.doomsnd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A streaming WAV (RIFF) reader. The header is read on creation, and then
+ * sample frames are read in blocks with {@link #readFrames(float[], int)},
+ * so a WAV of any length is read with the same (small) amount of memory.
+ * <p>
+ * Reads integer PCM (8, 16, 24, or 32 bits) and IEEE float (32 or 64 bits)
+ * samples, including WAVE_FORMAT_EXTENSIBLE files of either kind.
+ * @author Matthew Tropiano
+ */
+public class WAVReader
+{
+	/** Format: integer PCM. */
+	private static final int FORMAT_PCM = 0x0001;
+	/** Format: IEEE float. */
+	private static final int FORMAT_FLOAT = 0x0003;
+	/** Format: extensible (real format is in the sub-format). */
+	private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/** Input stream. */
+	private InputStream in;
+
+	/** Sample format (PCM or FLOAT). */
+	private int format;
+	/** Channel count. */
+	private int channels;
+	/** Sample rate in Hz. */
+	private int sampleRate;
+	/** Bits per sample. */
+	private int bitsPerSample;
+	/** Bytes per frame (all channels). */
+	private int blockAlign;
+	/** Total frames in the data chunk. */
+	private long frameCount;
+	/** Frames left to read. */
+	private long framesLeft;
+
+	/** Raw read buffer. */
+	private byte[] buffer;
+
+	/**
+	 * Creates a new reader and reads the WAV header, up to the start of the sample data.
+	 * @param in the input stream to read from. It is read as needed, and not closed.
+	 * @throws IOException if the header can't be read, or this is not a (readable) WAV.
+	 */
+	public WAVReader(InputStream in) throws IOException
+	{
+		this.in = in;
+		this.buffer = new byte[0];
+		readHeader();
+	}
+
+	// Reads chunks up to the data chunk.
+	private void readHeader() throws IOException
+	{
+		byte[] id = new byte[4];
+		readFully(id, 0, 4);
+		if (!isId(id, "RIFF"))
+			throw new IOException("Not a RIFF file.");
+		readInt(); // RIFF length
+		readFully(id, 0, 4);
+		if (!isId(id, "WAVE"))
+			throw new IOException("Not a WAVE file.");
+
+		boolean gotFormat = false;
+		while (true)
+		{
+			readFully(id, 0, 4);
+			long length = readInt() & 0x0FFFFFFFFL;
+			if (isId(id, "fmt "))
+			{
+				if (length < 16)
+					throw new IOException("Bad format chunk.");
+				format = readShort();
+				channels = readShort();
+				sampleRate = readInt();
+				readInt(); // byte rate
+				blockAlign = readShort();
+				bitsPerSample = readShort();
+				long read = 16;
+				if (format == FORMAT_EXTENSIBLE)
+				{
+					if (length < 40)
+						throw new IOException("Bad extensible format chunk.");
+					readShort(); // extra length
+					readShort(); // valid bits
+					readInt(); // channel mask
+					format = readShort(); // first two bytes of the sub-format GUID
+					read += 10;
+				}
+				skip(length - read + (length & 1));
+				gotFormat = true;
+			}
+			else if (isId(id, "data"))
+			{
+				if (!gotFormat)
+					throw new IOException("Data chunk before format chunk.");
+				if (length == 0x0FFFFFFFFL)
+					throw new IOException("WAV data length is unknown (streamed WAV).");
+				frameCount = length / blockAlign;
+				framesLeft = frameCount;
+				break;
+			}
+			else
+			{
+				skip(length + (length & 1));
+			}
+		}
+
+		if (format != FORMAT_PCM && format != FORMAT_FLOAT)
+			throw new IOException("Unsupported WAV format: 0x" + Integer.toHexString(format) + " (not PCM or float).");
+		if (channels < 1)
+			throw new IOException("No channels in WAV.");
+		if (format == FORMAT_PCM && bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 24 && bitsPerSample != 32)
+			throw new IOException("Unsupported PCM sample size: " + bitsPerSample + " bits.");
+		if (format == FORMAT_FLOAT && bitsPerSample != 32 && bitsPerSample != 64)
+			throw new IOException("Unsupported float sample size: " + bitsPerSample + " bits.");
+		if (blockAlign != channels * (bitsPerSample / 8))
+			throw new IOException("Bad block alignment in WAV.");
+	}
+
+	/**
+	 * Reads sample frames, converting each sample to a float from -1 to 1.
+	 * Samples are interleaved: channel 0, channel 1, ..., for each frame.
+	 * If the WAV ends before its stated length, this just returns fewer frames.
+	 * @param out the output array. Must hold at least <code>frames * getChannels()</code> samples.
+	 * @param frames the maximum amount of frames to read.
+	 * @return the amount of frames read, or 0 if there are no more.
+	 * @throws IOException if a read error occurs.
+	 */
+	public int readFrames(float[] out, int frames) throws IOException
+	{
+		frames = (int)Math.min(frames, framesLeft);
+		int bytes = frames * blockAlign;
+		if (buffer.length < bytes)
+			buffer = new byte[bytes];
+
+		int total = 0;
+		int n;
+		while (total < bytes && (n = in.read(buffer, total, bytes - total)) > 0)
+			total += n;
+		frames = total / blockAlign;
+		// a short read means the file ended early.
+		framesLeft = total < bytes ? 0 : framesLeft - frames;
+
+		int samples = frames * channels;
+		int b = 0;
+		if (format == FORMAT_FLOAT)
+		{
+			if (bitsPerSample == 32)
+			{
+				for (int i = 0; i < samples; i++, b += 4)
+					out[i] = Float.intBitsToFloat(getInt(b));
+			}
+			else
+			{
+				for (int i = 0; i < samples; i++, b += 8)
+					out[i] = (float)Double.longBitsToDouble((getInt(b) & 0x0FFFFFFFFL) | ((long)getInt(b + 4) << 32));
+			}
+		}
+		else switch (bitsPerSample)
+		{
+			case 8:
+				for (int i = 0; i < samples; i++, b++)
+					out[i] = ((buffer[b] & 0x0ff) - 128) / 128f;
+				break;
+			case 16:
+				for (int i = 0; i < samples; i++, b += 2)
+					out[i] = (short)((buffer[b] & 0x0ff) | (buffer[b + 1] << 8)) / 32768f;
+				break;
+			case 24:
+				for (int i = 0; i < samples; i++, b += 3)
+					out[i] = ((buffer[b] & 0x0ff) | ((buffer[b + 1] & 0x0ff) << 8) | (buffer[b + 2] << 16)) / 8388608f;
+				break;
+			default:
+				for (int i = 0; i < samples; i++, b += 4)
+					out[i] = getInt(b) / 2147483648f;
+				break;
+		}
+		return frames;
+	}
+
+	/**
+	 * @return the amount of channels.
+	 */
+	public int getChannels()
+	{
+		return channels;
+	}
+
+	/**
+	 * @return the sample rate in Hz.
+	 */
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+
+	/**
+	 * @return the bits per sample.
+	 */
+	public int getBitsPerSample()
+	{
+		return bitsPerSample;
+	}
+
+	/**
+	 * @return true if the samples are floating-point, false if integer.
+	 */
+	public boolean isFloat()
+	{
+		return format == FORMAT_FLOAT;
+	}
+
+	/**
+	 * @return the amount of sample frames that the WAV says it has.
+	 */
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+	private static boolean isId(byte[] id, String name)
+	{
+		for (int i = 0; i < 4; i++)
+			if (id[i] != name.charAt(i))
+				return false;
+		return true;
+	}
+
+	private int getInt(int offset)
+	{
+		return (buffer[offset] & 0x0ff)
+			| ((buffer[offset + 1] & 0x0ff) << 8)
+			| ((buffer[offset + 2] & 0x0ff) << 16)
+			| (buffer[offset + 3] << 24);
+	}
+
+	private int readShort() throws IOException
+	{
+		byte[] b = new byte[2];
+		readFully(b, 0, 2);
+		return (b[0] & 0x0ff) | ((b[1] & 0x0ff) << 8);
+	}
+
+	private int readInt() throws IOException
+	{
+		byte[] b = new byte[4];
+		readFully(b, 0, 4);
+		return (b[0] & 0x0ff) | ((b[1] & 0x0ff) << 8) | ((b[2] & 0x0ff) << 16) | (b[3] << 24);
+	}
+
+	private void readFully(byte[] b, int offset, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			int n = in.read(b, offset, length);
+			if (n < 0)
+				throw new EOFException("Unexpected end of WAV.");
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void skip(long n) throws IOException
+	{
+		while (n > 0)
+		{
+			long s = in.skip(n);
+			if (s <= 0)
+			{
+				if (in.read() < 0)
+					throw new EOFException("Unexpected end of WAV.");
+				s = 1;
+			}
+			n -= s;
+		}
+	}
+
+}
@@ -8,20 +8,16 @@
 package net.mtrop.utility.doom.mapcount;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
-import net.mtrop.doom.Wad;
 import net.mtrop.doom.WadMap;
 import net.mtrop.doom.exception.WadException;
-import net.mtrop.doom.util.MapUtils;
+import net.mtrop.utility.doom.common.FileTypeDispatcher;
+import net.mtrop.utility.doom.common.LumpCache;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.WadDispatcher;
 
-import com.blackrook.commons.Common;
 import com.blackrook.commons.hash.CountMap;
 import com.blackrook.commons.list.List;
 import com.blackrook.utility.Context;
@@ -83,9 +79,18 @@ public class MapCount extends Utility<MapCount.MapCountContext>
 		List<String> files = new List<String>();
 		Settings out = new Settings();
 
+		String next = null;
 		for (String a : args)
 		{
-			files.add(a);
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+				next = Stats.SETTING_STATS;
+			else
+				files.add(a);
 		}
 				
 		String[] filePaths = new String[files.size()];
@@ -101,63 +106,36 @@ public class MapCount extends Utility<MapCount.MapCountContext>
 		return new MapCountContext();
 	}
 
-	// Process PK3/ZIP
-	private void processPK3(MapCountContext context, String fileName, File f) throws ZipException, IOException
+	// Creates the file dispatcher: PK3s and WADs, by their first bytes.
+	private FileTypeDispatcher createDispatcher(final MapCountContext context)
 	{
-		ZipFile zf = new ZipFile(f);
-		
-		@SuppressWarnings("unchecked")
-		Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
-		while (en.hasMoreElements())
+		return new WadDispatcher(new FileTypeDispatcher.Handler()
 		{
-			ZipEntry ze = en.nextElement();
-			if (ze.isDirectory())
-				continue;
-			if (ze.getName().toLowerCase().endsWith(".wad"))
+			@Override
+			public void handle(File f) throws IOException
 			{
-				InputStream zin = zf.getInputStream(ze);
-				WadMap wm = null;
-				try {
-					wm = new WadMap(zin);
-					inspectWAD(context, fileName+File.separator+ze.getName(), wm);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				}
-				Common.close(zin);
+				processWAD(context, f);
 			}
-			else if (ze.getName().toLowerCase().endsWith(".pk3"))
+		}, new WadDispatcher.EntryHandler()
+		{
+			@Override
+			public void handle(String path, InputStream in) throws IOException
 			{
-				File pk3 = File.createTempFile("mapcount", "pk3tmp");
-				InputStream zin = zf.getInputStream(ze);
-				FileOutputStream fos = new FileOutputStream(pk3);
-				try {
-					Common.relay(zin, fos);
-					Common.close(fos);
-					processPK3(context, fileName+File.separator+ze.getName(), pk3);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				} finally {
-					Common.close(fos);
-					Common.close(zin);
-				}
-				pk3.deleteOnExit();
+				inspectWAD(context, path, LumpCache.getMapHeaders(null, new WadMap(in)));
 			}
-		}
-		
-		zf.close();
+		}, out);
 	}
 
 	// Process WAD
 	private void processWAD(MapCountContext context, File f) throws WadException, IOException
 	{
-		inspectWAD(context, f.getPath(), new WadMap(f));
+		inspectWAD(context, f.getPath(), LumpCache.getMapHeaders(f));
 	}
 	
 	// Inspect WAD contents.
-	private void inspectWAD(MapCountContext context, String fileName, Wad wad) throws IOException
+	private void inspectWAD(MapCountContext context, String fileName, String[] mapHeaders)
 	{
 		context.wadCount++;
-		String[] mapHeaders = MapUtils.getAllMapHeaders(wad);
 		for (String mapName : mapHeaders)
 		{
 			context.mapCount.give(mapName);
@@ -173,13 +151,37 @@ public class MapCount extends Utility<MapCount.MapCountContext>
 	private void printUsage()
 	{
 		out.printf("MapCount v%s by Matt Tropiano\n", getVersion());
-		out.println("Usage: mapcount [files]");
+		out.println("Usage: mapcount [files] [switches]");
 		out.println("    [files]: A valid WAD/PK3/ZIP file. Accepts wildcards");
 		out.println("             for multiple files.");
+		out.println("    [switches]:");
+		out.println("        -stats [format] Print time and I/O stats for each phase");
+		out.println("                        to STDERR when done, as a \"table\" or");
+		out.println("                        \"json\".");
 	}
 	
 	@Override
-	public int execute(MapCountContext context, Settings settings)
+	public int execute(final MapCountContext context, final Settings settings)
+	{
+		return Stats.run("MapCount", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return countMaps(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Counts the maps in all of the files.
+	private int countMaps(MapCountContext context, Settings settings)
 	{
 		String[] filePaths = (String[])settings.get(SETTING_FILES);
 		
@@ -190,28 +192,24 @@ public class MapCount extends Utility<MapCount.MapCountContext>
 			return 2;
 		}
 
+		Stats.phase("Counting maps");
 		boolean successfulOnce = false;
+		FileTypeDispatcher dispatcher = createDispatcher(context);
 		
 		for (String f : filePaths)
 		{
 			try {
-				processPK3(context, f, new File(f));
-				successfulOnce = true;
-				out.printf("[FILE] %s: %d maps.\n", f, context.fileMapCount);
-				context.fileMapCount = 0;
-				context.fileCount++;
-			} catch (ZipException e) {
-				try {
-					processWAD(context, new File(f));
+				if (dispatcher.dispatch(new File(f)))
+				{
 					successfulOnce = true;
 					out.printf("[FILE] %s: %d maps.\n", f, context.fileMapCount);
 					context.fileMapCount = 0;
 					context.fileCount++;
-				} catch (WadException ex) {
-					out.printf("ERROR: Couldn't open %s: not a WAD or PK3.\n", f);
-				} catch (IOException ex) {
-					out.printf("ERROR: Couldn't open %s. Read error encountered.\n", f);
 				}
+				else
+					out.printf("ERROR: Couldn't open %s: not a WAD or PK3.\n", f);
+			} catch (WadException ex) {
+				out.printf("ERROR: Couldn't open %s: not a WAD or PK3.\n", f);
 			} catch (IOException ex) {
 				out.printf("ERROR: Couldn't open %s. Read error encountered.\n", f);
 			}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.mapswap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * A set of map moves, where each source map slot moves to a target slot.
+ * Maps that are moved onto are moved into the slots that are left empty,
+ * so the result is always a set of swaps and cycles.
+ * @author Matthew Tropiano
+ */
+public class MapPermutation
+{
+	/** Source map names, in order added. */
+	private List<String> sources;
+	/** Target map names, in order added. */
+	private List<String> targets;
+	/** Source to target. */
+	private CaseInsensitiveHashMap<String> sourceMap;
+	/** Target to source. */
+	private CaseInsensitiveHashMap<String> targetMap;
+	/** Amount of moves added with add(). */
+	private int requestedCount;
+
+	/**
+	 * Thrown on a bad mapping file line.
+	 */
+	public static class ParseException extends Exception
+	{
+		private static final long serialVersionUID = 2818830564237011695L;
+
+		public ParseException(int line, String message)
+		{
+			super("Line " + line + ": " + message);
+		}
+	}
+
+	/**
+	 * Creates a new, empty permutation.
+	 */
+	public MapPermutation()
+	{
+		this.sources = new List<String>();
+		this.targets = new List<String>();
+		this.sourceMap = new CaseInsensitiveHashMap<String>();
+		this.targetMap = new CaseInsensitiveHashMap<String>();
+		this.requestedCount = 0;
+	}
+
+	/**
+	 * Reads a mapping. Each line is "SOURCE=TARGET", like "MAP03=MAP07".
+	 * Blank lines and lines that start with "#" are skipped.
+	 * @param reader the reader to read from.
+	 * @return the read permutation, not yet completed.
+	 * @throws IOException if the reader could not be read.
+	 * @throws ParseException if a line is malformed, or a map is moved twice or onto twice.
+	 */
+	public static MapPermutation read(Reader reader) throws IOException, ParseException
+	{
+		MapPermutation out = new MapPermutation();
+		BufferedReader br = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = br.readLine()) != null)
+		{
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+
+			int eq = line.indexOf('=');
+			if (eq < 0)
+				throw new ParseException(lineNumber, "Expected SOURCE=TARGET.");
+
+			String source = line.substring(0, eq).trim();
+			String target = line.substring(eq + 1).trim();
+			try {
+				out.add(source, target);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException(lineNumber, e.getMessage());
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Adds a map move.
+	 * @param source the source map slot.
+	 * @param target the target map slot.
+	 * @throws IllegalArgumentException if a name is not a valid lump name,
+	 * 		or the source was already moved, or the target was already moved onto.
+	 */
+	public void add(String source, String target)
+	{
+		checkName(source);
+		checkName(target);
+		source = source.toUpperCase();
+		target = target.toUpperCase();
+		if (sourceMap.containsKey(source))
+			throw new IllegalArgumentException("Map " + source + " is already moved to " + sourceMap.get(source) + ".");
+		if (targetMap.containsKey(target))
+			throw new IllegalArgumentException("Map " + targetMap.get(target) + " is already moved to " + target + ".");
+
+		sources.add(source);
+		targets.add(target);
+		sourceMap.put(source, target);
+		targetMap.put(target, source);
+		requestedCount = sources.size();
+	}
+
+	/**
+	 * Closes every chain of moves into a cycle: the map in the last target
+	 * of a chain moves into the first (vacated) source of that chain.
+	 * With one move, A=B, this adds B=A, which is a swap.
+	 */
+	public void complete()
+	{
+		int count = sources.size();
+		for (int i = 0; i < count; i++)
+		{
+			String start = sources.getByIndex(i);
+			if (targetMap.containsKey(start))
+				continue;
+
+			// follow the chain to its end. It can't loop, since start is not a target.
+			String end = sourceMap.get(start);
+			while (sourceMap.containsKey(end))
+				end = sourceMap.get(end);
+
+			sources.add(end);
+			targets.add(start);
+			sourceMap.put(end, start);
+			targetMap.put(start, end);
+		}
+	}
+
+	/**
+	 * @return the amount of moves.
+	 */
+	public int size()
+	{
+		return sources.size();
+	}
+
+	/**
+	 * @param index the move index.
+	 * @return true if this move was added with {@link #add(String, String)}, false if added by {@link #complete()}.
+	 */
+	public boolean isRequested(int index)
+	{
+		return index < requestedCount;
+	}
+
+	/**
+	 * @param index the move index.
+	 * @return the source map of the move.
+	 */
+	public String getSource(int index)
+	{
+		return sources.getByIndex(index);
+	}
+
+	/**
+	 * @param index the move index.
+	 * @return the target map of the move.
+	 */
+	public String getTarget(int index)
+	{
+		return targets.getByIndex(index);
+	}
+
+	// Checks if a name is a usable lump name.
+	private static void checkName(String name)
+	{
+		if (name.length() == 0)
+			throw new IllegalArgumentException("Missing map name.");
+		if (name.length() > 8)
+			throw new IllegalArgumentException("Map name " + name + " is longer than 8 characters.");
+		for (int i = 0; i < name.length(); i++)
+			if (Character.isWhitespace(name.charAt(i)) || name.charAt(i) > 127)
+				throw new IllegalArgumentException("Map name " + name + " is not a valid lump name.");
+	}
+
+}
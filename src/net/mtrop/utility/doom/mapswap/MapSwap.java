@@ -7,15 +7,31 @@
  ******************************************************************************/
 package net.mtrop.utility.doom.mapswap;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import net.mtrop.doom.WadEntry;
 import net.mtrop.doom.WadFile;
 import net.mtrop.doom.exception.WadException;
 import net.mtrop.doom.util.MapUtils;
+import net.mtrop.utility.doom.common.MapLumps;
+import net.mtrop.utility.doom.common.Stats;
 
 import com.blackrook.commons.Common;
 import com.blackrook.commons.hash.CaseInsensitiveHash;
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.list.List;
 import com.blackrook.commons.math.Pair;
 import com.blackrook.utility.Context;
 import com.blackrook.utility.Settings;
@@ -23,16 +39,19 @@ import com.blackrook.utility.Utility;
 import com.blackrook.utility.Version;
 
 /**
- * MapSwap - swaps the position of two maps in a WAD file,
- * along with other map-specific info, if any.
+ * MapSwap - swaps the position of two maps in a WAD file (or moves 
+ * many maps at once), along with other map-specific info, if any.
+ * Can also copy a map from one WAD into another.
  * @author Matthew Tropiano
  */
 public class MapSwap extends Utility<MapSwap.MapSwapContext>
 {
-	private static final Version VERSION = new Version(2,0,0,0);
+	private static final Version VERSION = new Version(2,1,0,0);
 
 	/** File path. */
 	public static final String SETTING_FILE = "file";
+	/** All file paths (for batches). */
+	public static final String SETTING_FILES = "files";
 	/** First map. */
 	public static final String SETTING_MAP1 = "map1";
 	/** Second map. */
@@ -41,16 +60,29 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 	public static final String SETTING_NOGFX = "nographics";
 	/** No music setting. */
 	public static final String SETTING_NOMUS = "nomusic";
+	/** Map mapping file path. */
+	public static final String SETTING_MAPFILE = "mapfile";
+	/** Transplant target file path. */
+	public static final String SETTING_TRANSPLANT = "transplant";
 	
 	/** Switch: Don't swap graphics lumps. */
 	public static final String SWITCH_NO_GRAPHICS = "-nogfx";
 	/** Switch: Don't swap music lumps. */
 	public static final String SWITCH_NO_MUSIC = "-nomus";
+	/** Switch: Read map moves from a file (next argument). */
+	public static final String SWITCH_MAPFILE = "-mapfile";
+	/** Switch: Copy the map into another WAD (next argument). */
+	public static final String SWITCH_TRANSPLANT = "-transplant";
 
 	/** Regex pattern for Episode, Map. */
 	private static final Pattern EPISODE_PATTERN = Pattern.compile("E[1-5]M[1-9]");
 	/** Regex pattern for Map only. */
 	private static final Pattern MAP_PATTERN = Pattern.compile("MAP[0-9][0-9]");
+
+	/** Result of swapWad(): the WAD was changed and written. */
+	private static final int RESULT_CHANGED = 0;
+	/** Result of swapWad(): nothing in the WAD needed to change. */
+	private static final int RESULT_UNCHANGED = -1;
 	
 	private static final String[] DOOM2_MUSIC = new String[]{ 
 		"D_RUNNIN",
@@ -103,11 +135,30 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 	@Override
 	public Settings getSettingsFromCMDLINE(String... args)
 	{
+		List<String> files = new List<String>();
 		Settings out = new Settings();
 
+		boolean mapFileNext = false;
+		boolean transplantNext = false;
+		boolean statsNext = false;
 		for (String a : args)
 		{
-			if (a.equalsIgnoreCase(SWITCH_NO_GRAPHICS))
+			if (mapFileNext)
+			{
+				out.put(SETTING_MAPFILE, a);
+				mapFileNext = false;
+			}
+			else if (transplantNext)
+			{
+				out.put(SETTING_TRANSPLANT, a);
+				transplantNext = false;
+			}
+			else if (statsNext)
+			{
+				out.put(Stats.SETTING_STATS, a);
+				statsNext = false;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_NO_GRAPHICS))
 			{
 				out.put(SETTING_NOGFX, true);
 			}
@@ -115,8 +166,21 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 			{
 				out.put(SETTING_NOMUS, true);
 			}
+			else if (a.equalsIgnoreCase(SWITCH_MAPFILE))
+			{
+				mapFileNext = true;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_TRANSPLANT))
+			{
+				transplantNext = true;
+			}
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+			{
+				statsNext = true;
+			}
 			else
 			{
+				files.add(a);
 				if (!out.containsKey(SETTING_FILE))
 					out.put(SETTING_FILE, a);
 				else if (!out.containsKey(SETTING_MAP1))
@@ -125,6 +189,10 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 					out.put(SETTING_MAP2, a);
 			}
 		}
+		
+		String[] filePaths = new String[files.size()];
+		files.toArray(filePaths);
+		out.put(SETTING_FILES, filePaths);
 				
 		return out;
 	}
@@ -193,81 +261,370 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 		return null;
 	}
 	
-	private void swapMaps(WadFile wf, String sourceMap, String targetMap, boolean noGfx, boolean noMus) throws IOException
+	/**
+	 * Checks if an entry is a map header: that is, if it is followed by THINGS or TEXTMAP.
+	 * @param dir the WAD directory.
+	 * @param index the entry index.
+	 */
+	private boolean isMapHeader(WadDirectory dir, int index)
+	{
+		if (index < 0 || index + 1 >= dir.getEntryCount())
+			return false;
+		String next = dir.getEntryName(index + 1);
+		return next.equalsIgnoreCase("THINGS") || next.equalsIgnoreCase("TEXTMAP");
+	}
+
+	/**
+	 * Adds a pending rename, if the source lump exists and it was not already renamed.
+	 * All lookups are against the original names, so renames can overlap (swaps and cycles).
+	 */
+	private void addRename(PrintStream out, WadDirectory dir, String sourceLump, String targetLump, Hash<Integer> renamed, List<Integer> indices, List<String> names)
+	{
+		if (sourceLump == null || targetLump == null)
+			return;
+		int index = dir.getIndexOf(sourceLump);
+		if (index < 0 || renamed.contains(index))
+			return;
+		renamed.put(index);
+		indices.add(index);
+		names.add(targetLump);
+		out.printf("Swap %s --> %s...\n", sourceLump, targetLump);
+	}
+
+	/**
+	 * Moves all maps (and their music and title graphics) in a WAD directory.
+	 * Every rename is worked out against the original directory first,
+	 * and then they are all applied at once.
+	 * @param out the output stream for messages.
+	 * @param dir the WAD directory.
+	 * @param moves the completed set of map moves.
+	 * @param noGfx if true, don't move title graphics.
+	 * @param noMus if true, don't move music.
+	 */
+	private void swapMaps(PrintStream out, WadDirectory dir, MapPermutation moves, boolean noGfx, boolean noMus)
 	{
+		Hash<Integer> renamed = new Hash<Integer>();
+		List<Integer> indices = new List<Integer>(moves.size() * 3);
+		List<String> names = new List<String>(moves.size() * 3);
+
 		Pair src = new Pair();
 		Pair trg = new Pair();
-		
-		getEpisodeAndMap(sourceMap, src);
-		getEpisodeAndMap(targetMap, trg);
-		
-		int sourceHeaderIndex = wf.getIndexOf(sourceMap); 
-		int targetHeaderIndex = wf.getIndexOf(targetMap);
 
-		String sourceMusicLump = !noMus ? getMusicLump(src.x, src.y) : null; 
-		String targetMusicLump = !noMus ? getMusicLump(trg.x, trg.y) : null; 
-		
-		int sourceMusicIndex = sourceMusicLump != null ? wf.getIndexOf(sourceMusicLump) : -1; 
-		int targetMusicIndex = targetMusicLump != null ? wf.getIndexOf(targetMusicLump) : -1;
+		// swap maps
+		for (int i = 0; i < moves.size(); i++)
+		{
+			String sourceMap = moves.getSource(i);
+			if (isMapHeader(dir, dir.getIndexOf(sourceMap)))
+				addRename(out, dir, sourceMap, moves.getTarget(i), renamed, indices, names);
+		}
 
-		String sourceWILV = !noGfx ? getWILVLump(src.x, src.y) : null; 
-		String targetWILV = !noGfx ? getWILVLump(trg.x, trg.y) : null;
-		
-		int sourceWILVIndex = sourceWILV != null ? wf.getIndexOf(sourceWILV) : -1; 
-		int targetWILVIndex = targetWILV != null ? wf.getIndexOf(targetWILV) : -1;
+		for (int i = 0; i < moves.size(); i++)
+		{
+			src.x = src.y = -1;
+			trg.x = trg.y = -1;
+			getEpisodeAndMap(moves.getSource(i), src);
+			getEpisodeAndMap(moves.getTarget(i), trg);
 
-		// swap maps
-		out.printf("Swap %s --> %s...\n", sourceMap, targetMap);
-		wf.renameEntry(sourceHeaderIndex, targetMap);
-		if (targetHeaderIndex >= 0)
+			// swap music
+			if (!noMus)
+				addRename(out, dir, getMusicLump(src.x, src.y), getMusicLump(trg.x, trg.y), renamed, indices, names);
+			// swap graphics
+			if (!noGfx)
+				addRename(out, dir, getWILVLump(src.x, src.y), getWILVLump(trg.x, trg.y), renamed, indices, names);
+		}
+
+		for (int i = 0; i < indices.size(); i++)
+			dir.renameEntry(indices.getByIndex(i), names.getByIndex(i));
+	}
+
+	// Reads a mapping file.
+	private MapPermutation readMapFile(String path) throws IOException, MapPermutation.ParseException
+	{
+		InputStreamReader reader = null;
+		try {
+			reader = new InputStreamReader(Stats.countInput(new FileInputStream(path)), "UTF-8");
+			Stats.addFile();
+			return MapPermutation.read(reader);
+		} finally {
+			Common.close(reader);
+		}
+	}
+
+	/**
+	 * Gets the WAD files to change in a batch.
+	 * Directories are searched (recursively) for files ending in ".wad".
+	 * Each file is only returned once.
+	 */
+	private List<File> getWadFiles(String[] paths)
+	{
+		List<File> out = new List<File>();
+		Hash<File> seen = new Hash<File>();
+		for (String path : paths)
 		{
-			out.printf("Swap %s --> %s...\n", targetMap, sourceMap);
-			wf.renameEntry(targetHeaderIndex, sourceMap);
+			File f = new File(path);
+			File[] files = f.isDirectory() ? Common.explodeFiles(f) : new File[]{f};
+			for (File wad : files)
+			{
+				if (f.isDirectory() && !Common.getFileExtension(wad).equalsIgnoreCase("wad"))
+					continue;
+				File key = wad.getAbsoluteFile().toPath().normalize().toFile();
+				if (seen.contains(key))
+					continue;
+				seen.put(key);
+				out.add(wad);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Moves the maps in one WAD file.
+	 * @param out the output stream for messages.
+	 * @param file the WAD file.
+	 * @param moves the completed set of map moves.
+	 * @param noGfx if true, don't move title graphics.
+	 * @param noMus if true, don't move music.
+	 * @return {@link #RESULT_CHANGED} or {@link #RESULT_UNCHANGED} on success, positive on error.
+	 */
+	private int swapWad(PrintStream out, File file, MapPermutation moves, boolean noGfx, boolean noMus)
+	{
+		String filePath = file.getPath();
+		try {
+			
+			out.printf("Opening %s...\n", filePath);
+			WadDirectory dir = WadDirectory.read(file);
+
+			boolean hasMaps = false;
+			for (int i = 0; !hasMaps && i < dir.getEntryCount(); i++)
+				hasMaps = isMapHeader(dir, i);
+			
+			if (!hasMaps)
+			{
+				out.println("ERROR: WAD file contains no maps; nothing to do.");
+				return 1;
+			}
+			
+			for (int i = 0; i < moves.size(); i++)
+			{
+				String sourceMap = moves.getSource(i);
+				if (moves.isRequested(i) && !isMapHeader(dir, dir.getIndexOf(sourceMap)))
+				{
+					out.printf("ERROR: Map header %s not found; nothing to do.\n", sourceMap);
+					return 1;
+				}
+			}
+
+			swapMaps(out, dir, moves, noGfx, noMus);
+			if (!dir.isChanged())
+			{
+				out.println("Nothing to change.");
+				return RESULT_UNCHANGED;
+			}
+			out.println("Writing directory...");
+			dir.writeDirectory();
+			out.println("Done!");
+			
+		} catch (WadException e) {
+			out.printf("ERROR: %s is not a WAD file.\n", filePath);
+			return 1;
+		} catch (SecurityException e) {
+			out.printf("ERROR: %s could not be read/written to. Access was denied.\n", filePath);
+			return 1;
+		} catch (IOException e) {
+			out.printf("ERROR: %s could not be read/written to.\n", filePath);
+			return 1;
 		}
 		
-		// swap music
-		if (!noMus && sourceMusicIndex >= 0)
-		{
-			out.printf("Swap %s --> %s...\n", sourceMusicLump, targetMusicLump);
-			wf.renameEntry(sourceMusicIndex, targetMusicLump);
-			if (targetMusicIndex >= 0)
+		return RESULT_CHANGED;
+	}
+
+	/**
+	 * Moves the maps in many WAD files at once, one WAD per thread.
+	 * Each WAD's messages are printed together, in the order that the WADs were listed.
+	 * @return 0 if all WADs were changed, nonzero on error.
+	 */
+	private int swapWads(List<File> files, final MapPermutation moves, final boolean noGfx, final boolean noMus)
+	{
+		int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new List<Future<Integer>>(files.size());
+			ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[files.size()];
+			for (int i = 0; i < files.size(); i++)
+			{
+				final File file = files.getByIndex(i);
+				final ByteArrayOutputStream output = outputs[i] = new ByteArrayOutputStream();
+				results.add(executor.submit(Stats.wrap(new Callable<Integer>()
+				{
+					@Override
+					public Integer call() throws Exception
+					{
+						return swapWad(new PrintStream(output, true), file, moves, noGfx, noMus);
+					}
+				})));
+			}
+
+			int changed = 0;
+			int failed = 0;
+			for (int i = 0; i < results.size(); i++)
 			{
-				out.printf("Swap %s --> %s...\n", targetMusicLump, sourceMusicLump);
-				wf.renameEntry(targetMusicIndex, sourceMusicLump);
+				int result;
+				try {
+					result = results.getByIndex(i).get();
+				} catch (ExecutionException e) {
+					outputs[i].reset();
+					new PrintStream(outputs[i], true).printf("ERROR: %s: %s\n", files.getByIndex(i).getPath(), e.getCause().getMessage());
+					result = 1;
+				} catch (InterruptedException e) {
+					out.println("ERROR: Interrupted.");
+					return 1;
+				}
+				byte[] output = outputs[i].toByteArray();
+				out.write(output, 0, output.length);
+				if (result == RESULT_CHANGED)
+					changed++;
+				else if (result > 0)
+					failed++;
 			}
+			
+			if (failed > 0)
+				out.printf("%d of %d WAD(s) changed, %d failed.\n", changed, files.size(), failed);
+			else
+				out.printf("%d of %d WAD(s) changed.\n", changed, files.size());
+			return failed > 0 ? 1 : 0;
+		} finally {
+			executor.shutdownNow();
 		}
+	}
+
+	/**
+	 * Copies a map from one WAD into another, replacing the map of the same name, if any.
+	 * The map's lumps are copied file-to-file, and the target's directory is written once.
+	 * @param sourceFile the WAD to copy from.
+	 * @param sourceMap the map to copy.
+	 * @param targetFile the WAD to copy into.
+	 * @param targetMap the name of the map in the target WAD.
+	 * @return 0 on success, nonzero on error.
+	 */
+	private int transplantMap(File sourceFile, String sourceMap, File targetFile, String targetMap)
+	{
+		String filePath = sourceFile.getPath();
+		WadFile source = null;
+		try {
 			
-		// swap graphics
-		if (!noGfx && sourceWILVIndex >= 0)
-		{
-			out.printf("Swap %s --> %s...\n", sourceWILV, targetWILV);
-			wf.renameEntry(sourceWILVIndex, targetWILV);
-			if (targetWILVIndex >= 0)
+			Stats.phase("Reading WADs");
+			out.printf("Opening %s...\n", filePath);
+			source = new WadFile(sourceFile);
+			Stats.addFile();
+
+			CaseInsensitiveHash mapnames = new CaseInsensitiveHash();
+			for (String m : MapUtils.getAllMapHeaders(source))
+				mapnames.put(m);
+			
+			if (!mapnames.contains(sourceMap))
+			{
+				out.printf("ERROR: Map header %s not found; nothing to do.\n", sourceMap);
+				return 1;
+			}
+			
+			int start = source.getIndexOf(sourceMap);
+			int end = MapLumps.getMapEnd(source, start);
+
+			filePath = targetFile.getPath();
+			out.printf("Opening %s...\n", filePath);
+			WadDirectory dir = WadDirectory.read(targetFile);
+
+			int index = dir.getIndexOf(targetMap);
+			if (isMapHeader(dir, index))
 			{
-				out.printf("Swap %s --> %s...\n", targetWILV, sourceWILV);
-				wf.renameEntry(targetWILVIndex, sourceWILV);
+				out.printf("Replace %s...\n", targetMap);
+				dir.removeEntries(index, MapLumps.getMapEnd(dir, index));
 			}
+			else
+			{
+				index = dir.getEntryCount();
+			}
+			
+			out.printf("Copy %s (%d lumps) --> %s...\n", sourceMap, end - start, targetMap);
+			for (int i = start; i < end; i++)
+			{
+				WadEntry entry = source.getEntry(i);
+				String name = i == start ? targetMap : entry.getName();
+				dir.addEntry(index + (i - start), name, sourceFile, entry.getOffset(), entry.getSize());
+			}
+			
+			Stats.phase("Writing directory");
+			out.println("Writing directory...");
+			dir.writeDirectory();
+			out.println("Done!");
+			
+		} catch (WadException e) {
+			out.printf("ERROR: %s is not a WAD file.\n", filePath);
+			return 1;
+		} catch (SecurityException e) {
+			out.printf("ERROR: %s could not be read/written to. Access was denied.\n", filePath);
+			return 1;
+		} catch (IOException e) {
+			out.printf("ERROR: %s could not be read/written to.\n", filePath);
+			return 1;
+		} finally {
+			Common.close(source);
 		}
 		
+		return 0;
 	}
 
 	// Prints the usage message.
 	private void printUsage()
 	{
 		out.println("Usage: mapswap [file] [map1] [map2] [switches]");
+		out.println("       mapswap [files] -mapfile [mapfile] [switches]");
+		out.println("       mapswap [file] [map1] [map2] -transplant [target]");
 		out.println("    [file]    :         A valid WAD file.");
+		out.println("    [files]   :         One or more WAD files, or directories of WAD");
+		out.println("                        files. Each WAD is changed on its own thread.");
 		out.println("    [map1]    :         The source map lump.");
-		out.println("    [map2]    :         The target map lump.");
+		out.println("    [map2]    :         The target map lump. Optional with -transplant");
+		out.println("                        (default is the same as [map1]).");
+		out.println("    [mapfile] :         A text file of map moves, one per line, as");
+		out.println("                        SOURCE=TARGET (for example, MAP03=MAP07).");
+		out.println("                        Lines that start with # are ignored.");
+		out.println("    [target]  :         A WAD file to copy [map1] into, as [map2].");
+		out.println("                        A map already named [map2] is replaced.");
 		out.println("    [switches]: -nogfx  If specified, will not swap relevant graphics");
 		out.println("                        lumps.");
 		out.println("                -nomus  If specified, will not swap relevant music");
 		out.println("                        lumps.");
+		out.println("                -stats  Followed by \"table\" or \"json\". Prints time");
+		out.println("                        and I/O stats for each phase to STDERR when");
+		out.println("                        done.");
 	}
 	
 	@Override
-	public int execute(MapSwapContext context, Settings settings)
+	public int execute(final MapSwapContext context, final Settings settings)
 	{
 		out.printf("MapSwap v%s by Matt Tropiano\n", getVersion());
+
+		return Stats.run("MapSwap", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return swap(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Swaps maps, or transplants one.
+	private int swap(MapSwapContext context, Settings settings)
+	{
 		String filePath = settings.getString(SETTING_FILE);
 		
 		if (Common.isEmpty(filePath))
@@ -277,64 +634,108 @@ public class MapSwap extends Utility<MapSwap.MapSwapContext>
 			return 2;
 		}
 
-		String sourceMap = settings.getString(SETTING_MAP1);
-		String targetMap = settings.getString(SETTING_MAP2);
-		
-		if (Common.isEmpty(sourceMap))
+		String transplantPath = settings.getString(SETTING_TRANSPLANT);
+		if (!Common.isEmpty(transplantPath))
 		{
-			out.println("ERROR: Source map name not specified.");
-			printUsage();
-			return 2;
+			String sourceMap = settings.getString(SETTING_MAP1);
+			String targetMap = settings.getString(SETTING_MAP2);
+			if (Common.isEmpty(sourceMap))
+			{
+				out.println("ERROR: Source map name not specified.");
+				printUsage();
+				return 2;
+			}
+			if (Common.isEmpty(targetMap))
+				targetMap = sourceMap;
+			if (targetMap.length() > 8)
+			{
+				out.printf("ERROR: Map name %s is longer than 8 characters.\n", targetMap);
+				return 2;
+			}
+			
+			File sourceFile = new File(filePath);
+			File targetFile = new File(transplantPath);
+			if (sourceFile.getAbsoluteFile().equals(targetFile.getAbsoluteFile()))
+			{
+				out.println("ERROR: Source and target WAD are the same file.");
+				return 2;
+			}
+			return transplantMap(sourceFile, sourceMap, targetFile, targetMap);
 		}
+
+		String mapFilePath = settings.getString(SETTING_MAPFILE);
+		MapPermutation moves;
+		List<File> files;
 		
-		if (Common.isEmpty(targetMap))
+		if (!Common.isEmpty(mapFilePath))
 		{
-			out.println("ERROR: Target map name not specified.");
-			printUsage();
-			return 2;
-		}
-		
-		boolean noGfx = settings.getBoolean(SETTING_NOGFX);
-		boolean noMus = settings.getBoolean(SETTING_NOMUS);
-		
-		WadFile wf = null;
-		try {
-			
-			out.printf("Opening %s...\n", filePath);
-			wf = new WadFile(filePath);
-
-			CaseInsensitiveHash mapnames = new CaseInsensitiveHash();
-			for (String m : MapUtils.getAllMapHeaders(wf))
-				mapnames.put(m);
+			Stats.phase("Reading map file");
+			try {
+				moves = readMapFile(mapFilePath);
+			} catch (FileNotFoundException e) {
+				out.printf("ERROR: Map file %s not found.\n", mapFilePath);
+				return 2;
+			} catch (MapPermutation.ParseException e) {
+				out.printf("ERROR: %s: %s\n", mapFilePath, e.getMessage());
+				return 2;
+			} catch (IOException e) {
+				out.printf("ERROR: %s could not be read.\n", mapFilePath);
+				return 1;
+			}
 			
-			if (Common.isEmpty(mapnames))
+			if (moves.size() == 0)
 			{
-				out.println("ERROR: WAD file contains no maps; nothing to do.");
+				out.printf("ERROR: Map file %s contains no moves; nothing to do.\n", mapFilePath);
 				return 1;
 			}
-			else if (!mapnames.contains(sourceMap))
+			
+			files = getWadFiles((String[])settings.get(SETTING_FILES));
+			if (files.isEmpty())
 			{
-				out.printf("ERROR: Map header %s not found; nothing to do.\n", sourceMap);
+				out.println("ERROR: No WADs found; nothing to do.");
 				return 1;
 			}
-
-			swapMaps(wf, sourceMap, targetMap, noGfx, noMus);
-			out.println("Done!");
+		}
+		else
+		{
+			String sourceMap = settings.getString(SETTING_MAP1);
+			String targetMap = settings.getString(SETTING_MAP2);
 			
-		} catch (WadException e) {
-			out.printf("ERROR: %s is not a WAD file.\n", filePath);
-			return 1;
-		} catch (SecurityException e) {
-			out.printf("ERROR: %s could not be read/written to. Access was denied.\n", filePath);
-			return 1;
-		} catch (IOException e) {
-			out.printf("ERROR: %s could not be read/written to.\n", filePath);
-			return 1;
-		} finally {
-			Common.close(wf);
+			if (Common.isEmpty(sourceMap))
+			{
+				out.println("ERROR: Source map name not specified.");
+				printUsage();
+				return 2;
+			}
+			
+			if (Common.isEmpty(targetMap))
+			{
+				out.println("ERROR: Target map name not specified.");
+				printUsage();
+				return 2;
+			}
+			
+			moves = new MapPermutation();
+			try {
+				moves.add(sourceMap, targetMap);
+			} catch (IllegalArgumentException e) {
+				out.printf("ERROR: %s\n", e.getMessage());
+				return 2;
+			}
+			
+			files = new List<File>(1);
+			files.add(new File(filePath));
 		}
 		
-		return 0;
+		boolean noGfx = settings.getBoolean(SETTING_NOGFX);
+		boolean noMus = settings.getBoolean(SETTING_NOMUS);
+		
+		moves.complete();
+		Stats.phase("Swapping maps");
+		if (files.size() == 1)
+			return Math.max(0, swapWad(out, files.getByIndex(0), moves, noGfx, noMus));
+		else
+			return swapWads(files, moves, noGfx, noMus);
 	}
 	
 }
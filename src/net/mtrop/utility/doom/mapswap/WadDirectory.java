@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.mapswap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.mtrop.doom.exception.WadException;
+import net.mtrop.utility.doom.common.FileIdentity;
+import net.mtrop.utility.doom.common.MapLumps;
+import net.mtrop.utility.doom.common.Stats;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.CaseInsensitiveHashMap;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.list.List;
+
+/**
+ * The directory of a WAD file, read into memory all at once.
+ * Entries can be renamed, removed, or added (with data from other files)
+ * in memory, and the changes are written to a copy that replaces the original,
+ * so that a failed write never leaves a half-changed WAD.
+ * <p>
+ * Read directories are kept in memory by file identity (path, size, modified time,
+ * and file key, where the platform has one), so a program that runs MapSwap many times
+ * in one JVM reads each directory once. Since written files are replaced, not changed
+ * in place, a changed file never matches an old directory.
+ * @author Matthew Tropiano
+ */
+public class WadDirectory implements MapLumps.Directory
+{
+	private static final Charset ASCII = Charset.forName("ASCII");
+
+	/** WAD header length. */
+	static final int HEADER_LENGTH = 12;
+	/** Directory entry length. */
+	static final int ENTRY_LENGTH = 16;
+	/** Most directory entries kept in memory, across all kept directories. */
+	private static final int CACHE_ENTRY_CAPACITY = 262144;
+
+	/** Kept directories, by file identity, in order of use (oldest first). */
+	private static final LinkedHashMap<String, WadDirectory> CACHE = new LinkedHashMap<String, WadDirectory>(16, 0.75f, true);
+	/** Directory entries in the kept directories. */
+	private static int cacheEntryCount = 0;
+
+	/** The WAD file. */
+	private File file;
+	/** Directory offset. */
+	private int directoryOffset;
+	/** Entry count in the file's directory. */
+	private int fileEntryCount;
+
+	/** Entries. */
+	private List<Entry> entries;
+	/** Name to first index (rebuilt when null). */
+	private CaseInsensitiveHashMap<Integer> nameIndex;
+	/** Has anything changed? */
+	private boolean changed;
+
+	/** A single entry. */
+	private static class Entry
+	{
+		/** Entry name. */
+		String name;
+		/** Data offset (in the source file, if there is one). */
+		int offset;
+		/** Data size. */
+		int size;
+		/** If not null, the file that this entry's data is copied from on write. */
+		File source;
+
+		Entry(String name, int offset, int size, File source)
+		{
+			this.name = name;
+			this.offset = offset;
+			this.size = size;
+			this.source = source;
+		}
+	}
+
+	private WadDirectory(File file)
+	{
+		this.file = file;
+		this.entries = new List<Entry>();
+		this.nameIndex = null;
+		this.changed = false;
+	}
+
+	/**
+	 * Reads the directory of a WAD file.
+	 * @param f the WAD file.
+	 * @return the read directory.
+	 * @throws WadException if the file is not a WAD.
+	 * @throws IOException if the file could not be read.
+	 */
+	public static WadDirectory read(File f) throws IOException
+	{
+		String key = FileIdentity.get(f);
+		synchronized (CACHE)
+		{
+			WadDirectory cached = key != null ? CACHE.get(key) : null;
+			if (cached != null)
+				return cached.copy(f);
+		}
+
+		WadDirectory out = readFile(f);
+		if (key != null)
+			keep(key, out);
+		return out;
+	}
+
+	// Reads the directory from the file.
+	private static WadDirectory readFile(File f) throws IOException
+	{
+		WadDirectory out = new WadDirectory(f);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			Stats.addFile();
+
+			byte[] header = new byte[HEADER_LENGTH];
+			if (raf.length() < HEADER_LENGTH)
+				throw new WadException("Not a WAD file.");
+			raf.readFully(header);
+			if ((header[0] != 'I' && header[0] != 'P') || header[1] != 'W' || header[2] != 'A' || header[3] != 'D')
+				throw new WadException("Not a WAD file.");
+
+			int count = getInt(header, 4);
+			out.directoryOffset = getInt(header, 8);
+			if (count < 0 || out.directoryOffset < HEADER_LENGTH || (long)out.directoryOffset + (long)count * ENTRY_LENGTH > raf.length())
+				throw new WadException("WAD directory is corrupt.");
+
+			byte[] directory = new byte[count * ENTRY_LENGTH];
+			raf.seek(out.directoryOffset);
+			raf.readFully(directory);
+			Stats.addBytesRead(HEADER_LENGTH + directory.length);
+
+			for (int i = 0; i < count; i++)
+			{
+				int p = i * ENTRY_LENGTH;
+				int len = 0;
+				while (len < 8 && directory[p + 8 + len] != 0)
+					len++;
+				out.entries.add(new Entry(new String(directory, p + 8, len, ASCII), getInt(directory, p), getInt(directory, p + 4), null));
+			}
+			out.fileEntryCount = count;
+		} finally {
+			Common.close(raf);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the WAD file that this directory belongs to.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the amount of entries.
+	 */
+	@Override
+	public int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @param index the entry index.
+	 * @return the name of the entry.
+	 */
+	@Override
+	public String getEntryName(int index)
+	{
+		return entries.getByIndex(index).name;
+	}
+
+	/**
+	 * @param index the entry index.
+	 * @return the offset of the entry's data (in its source file, if it was added and not written yet).
+	 */
+	public int getEntryOffset(int index)
+	{
+		return entries.getByIndex(index).offset;
+	}
+
+	/**
+	 * @param index the entry index.
+	 * @return the size of the entry's data.
+	 */
+	public int getEntrySize(int index)
+	{
+		return entries.getByIndex(index).size;
+	}
+
+	/**
+	 * Returns the index of the first entry with a name.
+	 * @param name the entry name (case-insensitive).
+	 * @return the index, or -1 if not found.
+	 */
+	public int getIndexOf(String name)
+	{
+		if (nameIndex == null)
+		{
+			nameIndex = new CaseInsensitiveHashMap<Integer>(entries.size());
+			for (int i = entries.size() - 1; i >= 0; i--)
+				nameIndex.put(entries.getByIndex(i).name, i);
+		}
+		Integer out = nameIndex.get(name);
+		return out != null ? out : -1;
+	}
+
+	/**
+	 * Renames an entry in memory.
+	 * @param index the entry index.
+	 * @param name the new name.
+	 * @throws IllegalArgumentException if the name is longer than 8 characters.
+	 */
+	public void renameEntry(int index, String name)
+	{
+		checkName(name);
+		entries.getByIndex(index).name = name.toUpperCase();
+		nameIndex = null;
+		changed = true;
+	}
+
+	/**
+	 * Removes a range of entries in memory.
+	 * The entries' data is left in the file, unreferenced.
+	 * @param start the first entry index.
+	 * @param end the index after the last entry.
+	 */
+	public void removeEntries(int start, int end)
+	{
+		for (int i = end - 1; i >= start; i--)
+			entries.removeIndex(i);
+		nameIndex = null;
+		changed = true;
+	}
+
+	/**
+	 * Adds an entry in memory, whose data is a range of bytes in another file.
+	 * The data is copied file-to-file when this directory is written.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param source the file that holds the entry's data.
+	 * @param offset the offset of the data in the source file.
+	 * @param size the size of the data.
+	 * @throws IllegalArgumentException if the name is longer than 8 characters.
+	 */
+	public void addEntry(int index, String name, File source, int offset, int size)
+	{
+		checkName(name);
+		entries.add(index, new Entry(name.toUpperCase(), offset, size, source));
+		nameIndex = null;
+		changed = true;
+	}
+
+	/**
+	 * @return true if any entry was changed since this was read or last written.
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+
+	/**
+	 * Writes the directory back to the WAD file.
+	 * The WAD is copied to a temporary file next to it, and the new directory is written
+	 * to the copy in one write. If the entry count is the same, and no entries were added,
+	 * the directory is written over the old one; otherwise, added entry data and
+	 * the directory are written to the end of the copy. The copy then replaces the original.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void writeDirectory() throws IOException
+	{
+		boolean inPlace = entries.size() == fileEntryCount;
+		for (Entry e : entries)
+			inPlace = inPlace && e.source == null;
+
+		int[] offsets = new int[entries.size()];
+		int newDirectoryOffset = directoryOffset;
+
+		File target = file.getAbsoluteFile();
+		File temp = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+		try {
+			FileInputStream in = null;
+			RandomAccessFile raf = null;
+			List<FileInputStream> opened = new List<FileInputStream>(2);
+			HashMap<File, FileChannel> sources = new HashMap<File, FileChannel>();
+			try {
+				in = new FileInputStream(target);
+				Stats.addFile();
+				raf = new RandomAccessFile(temp, "rw");
+				Stats.addFile();
+				FileChannel dest = raf.getChannel();
+				transfer(in.getChannel(), 0L, in.getChannel().size(), dest);
+
+				for (int i = 0; i < offsets.length; i++)
+				{
+					Entry e = entries.getByIndex(i);
+					if (e.source == null)
+					{
+						offsets[i] = e.offset;
+						continue;
+					}
+
+					FileChannel source = sources.get(e.source);
+					if (source == null)
+					{
+						FileInputStream sourceIn = new FileInputStream(e.source);
+						opened.add(sourceIn);
+						Stats.addFile();
+						sources.put(e.source, source = sourceIn.getChannel());
+					}
+					offsets[i] = checkOffset(dest.position());
+					transfer(source, e.offset, e.size, dest);
+				}
+
+				if (!inPlace)
+				{
+					newDirectoryOffset = checkOffset(dest.position());
+					checkOffset(dest.position() + (long)entries.size() * ENTRY_LENGTH);
+					byte[] header = new byte[8];
+					putInt(header, 0, entries.size());
+					putInt(header, 4, newDirectoryOffset);
+					dest.write(ByteBuffer.wrap(header), 4L);
+					Stats.addBytesWritten(header.length);
+				}
+
+				byte[] directory = getDirectoryBytes(offsets);
+				dest.write(ByteBuffer.wrap(directory), newDirectoryOffset);
+				Stats.addBytesWritten(directory.length);
+				dest.force(true);
+			} finally {
+				Common.close(raf);
+				Common.close(in);
+				for (FileInputStream sourceIn : opened)
+					Common.close(sourceIn);
+			}
+
+			replaceFile(temp, target);
+		} finally {
+			if (temp.exists())
+				temp.delete();
+		}
+
+		for (int i = 0; i < offsets.length; i++)
+		{
+			Entry e = entries.getByIndex(i);
+			e.offset = offsets[i];
+			e.source = null;
+		}
+		directoryOffset = newDirectoryOffset;
+		fileEntryCount = entries.size();
+		changed = false;
+
+		String key = FileIdentity.get(file);
+		if (key != null)
+			keep(key, this);
+	}
+
+	// Copies this directory (as it is in its file) for another File object.
+	private WadDirectory copy(File f)
+	{
+		WadDirectory out = new WadDirectory(f);
+		out.directoryOffset = directoryOffset;
+		out.fileEntryCount = fileEntryCount;
+		for (Entry e : entries)
+			out.entries.add(new Entry(e.name, e.offset, e.size, e.source));
+		return out;
+	}
+
+	// Keeps a copy of an unchanged directory, dropping the least-recently-used ones if too many entries are kept.
+	private static void keep(String key, WadDirectory dir)
+	{
+		WadDirectory copy = dir.copy(dir.file);
+		synchronized (CACHE)
+		{
+			WadDirectory old = CACHE.put(key, copy);
+			if (old != null)
+				cacheEntryCount -= old.entries.size();
+			cacheEntryCount += copy.entries.size();
+
+			Iterator<WadDirectory> it = CACHE.values().iterator();
+			while (cacheEntryCount > CACHE_ENTRY_CAPACITY && it.hasNext())
+			{
+				cacheEntryCount -= it.next().entries.size();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Replaces a file with another, atomically if the file system can.
+	 * The replacement gets the original file's permissions, where supported.
+	 * @param source the new file.
+	 * @param target the file to replace.
+	 * @throws IOException if the file could not be replaced.
+	 */
+	static void replaceFile(File source, File target) throws IOException
+	{
+		try {
+			Files.setPosixFilePermissions(source.toPath(), Files.getPosixFilePermissions(target.toPath()));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system.
+		}
+
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Copies a range of one file channel to the current position of another,
+	 * without going through the heap where the platform allows it.
+	 */
+	private static void transfer(FileChannel source, long position, long length, FileChannel dest) throws IOException
+	{
+		long end = position + length;
+		while (position < end)
+		{
+			long n = source.transferTo(position, end - position, dest);
+			if (n <= 0)
+				throw new IOException("Unexpected end of file while copying.");
+			Stats.addBytesRead(n);
+			Stats.addBytesWritten(n);
+			position += n;
+		}
+	}
+
+	// Checks if a file position still fits in a WAD.
+	private static int checkOffset(long position) throws IOException
+	{
+		if (position > Integer.MAX_VALUE)
+			throw new IOException("WAD would be too large.");
+		return (int)position;
+	}
+
+	// Checks if a name is a usable entry name.
+	private static void checkName(String name)
+	{
+		if (name.length() > 8)
+			throw new IllegalArgumentException("Entry name is too long: " + name);
+	}
+
+	/**
+	 * @return the directory as bytes, as it would be written to the WAD.
+	 */
+	private byte[] getDirectoryBytes(int[] offsets)
+	{
+		byte[] out = new byte[entries.size() * ENTRY_LENGTH];
+		for (int i = 0; i < offsets.length; i++)
+		{
+			Entry e = entries.getByIndex(i);
+			int p = i * ENTRY_LENGTH;
+			putInt(out, p, offsets[i]);
+			putInt(out, p + 4, e.size);
+			byte[] name = e.name.getBytes(ASCII);
+			System.arraycopy(name, 0, out, p + 8, Math.min(8, name.length));
+		}
+		return out;
+	}
+
+	private static int getInt(byte[] b, int offset)
+	{
+		return (b[offset] & 0x0ff)
+			| ((b[offset + 1] & 0x0ff) << 8)
+			| ((b[offset + 2] & 0x0ff) << 16)
+			| ((b[offset + 3] & 0x0ff) << 24);
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte)(value & 0x0ff);
+		b[offset + 1] = (byte)((value >> 8) & 0x0ff);
+		b[offset + 2] = (byte)((value >> 16) & 0x0ff);
+		b[offset + 3] = (byte)((value >> 24) & 0x0ff);
+	}
+
+}
@@ -12,6 +12,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -22,6 +23,8 @@ import net.mtrop.doom.WadFile;
 import net.mtrop.doom.exception.WadException;
 import net.mtrop.doom.graphics.Flat;
 import net.mtrop.doom.graphics.Picture;
+import net.mtrop.utility.doom.common.LumpCache;
+import net.mtrop.utility.doom.common.Stats;
 
 import com.blackrook.commons.Common;
 import com.blackrook.commons.list.List;
@@ -68,6 +71,9 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 	public static final String SWITCH_PATCHES = "-patch";
 	/** Switch: Read flats. */
 	public static final String SWITCH_FLATS = "-flat";
+
+	/** Lump cache entry kind for a WAD/PK3's palette and brightmask. */
+	private static final String CACHE_KIND = "palcnvrt.palette.1";
 	
 	/**
 	 * Converter context. 
@@ -98,6 +104,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		final int STATE_COLORMAP_TRG_FILE = 4;
 		final int STATE_WAD_SRC_FILE = 5;
 		final int STATE_WAD_TRG_FILE = 6;
+		final int STATE_STATS = 7;
 		
 		int state = 0;
 		
@@ -128,6 +135,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 						settings.put(SETTING_GRAPHICMODE, SETTING_GRAPHICMODE_FLATS);
 					else if (arg.equalsIgnoreCase(SWITCH_PATCHES))
 						settings.put(SETTING_GRAPHICMODE, SETTING_GRAPHICMODE_PATCHES);
+					else if (arg.equalsIgnoreCase(Stats.SWITCH_STATS))
+						state = STATE_STATS;
 					else
 					{
 						inputFileList.add(new File(arg));
@@ -161,6 +170,10 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 					settings.put(SETTING_COLORMAP_TARGET, arg);
 					state = STATE_FILES;
 					break;
+				case STATE_STATS:
+					settings.put(Stats.SETTING_STATS, arg);
+					state = STATE_FILES;
+					break;
 			}
 		}
 		
@@ -203,7 +216,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 	{
 		InputStream in = null;
 		try {
-			in = wadFile.getInputStream("PLAYPAL");
+			in = Stats.countInput(wadFile.getInputStream("PLAYPAL"));
+			Stats.addLump();
 			return readPaletteFromRawFile(context, source, in);
 		} finally {
 			Common.close(in);
@@ -219,7 +233,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 			{
 				InputStream in = null;
 				try {
-					in = pk3File.getInputStream(ze);
+					in = Stats.countInput(pk3File.getInputStream(ze));
+					Stats.addLump();
 					return readPaletteFromRawFile(context, source, in);
 				} finally {
 					Common.close(in);
@@ -263,7 +278,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 	{
 		InputStream in = null;
 		try {
-			in = wadFile.getInputStream("COLORMAP");
+			in = Stats.countInput(wadFile.getInputStream("COLORMAP"));
+			Stats.addLump();
 			return readBrightmaskFromRawFile(context, source, in);
 		} finally {
 			Common.close(in);
@@ -279,7 +295,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 			{
 				InputStream in = null;
 				try {
-					in = pk3File.getInputStream(ze);
+					in = Stats.countInput(pk3File.getInputStream(ze));
+					Stats.addLump();
 					return readBrightmaskFromRawFile(context, source, in);
 				} finally {
 					Common.close(in);
@@ -289,6 +306,53 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		return false;
 	}
 
+	/** Reads a WAD/PK3's palette and brightmask from the lump cache, if it is on. */
+	private boolean readInfoFromCache(PSContext context, boolean source, File f)
+	{
+		LumpCache cache = LumpCache.getShared();
+		byte[] data = cache != null ? cache.get(LumpCache.getKey(f, 0L, f.length(), CACHE_KIND)) : null;
+		if (data == null || data.length != 256 * 4)
+			return false;
+		
+		byte[][] palette = new byte[256][];
+		boolean[] mask = new boolean[256];
+		for (int i = 0; i < 256; i++)
+		{
+			palette[i] = Arrays.copyOfRange(data, i * 3, i * 3 + 3);
+			mask[i] = data[768 + i] != 0;
+		}
+		
+		if (source)
+		{
+			context.sourcePalette = palette;
+			context.sourceBrightmask = mask;
+		}
+		else
+		{
+			context.targetPalette = palette;
+			context.targetBrightmask = mask;
+		}
+		return true;
+	}
+	
+	/** Adds a WAD/PK3's palette and brightmask to the lump cache, if it is on. */
+	private void cacheInfo(PSContext context, boolean source, File f)
+	{
+		LumpCache cache = LumpCache.getShared();
+		if (cache == null)
+			return;
+		
+		byte[][] palette = source ? context.sourcePalette : context.targetPalette;
+		boolean[] mask = source ? context.sourceBrightmask : context.targetBrightmask;
+		byte[] data = new byte[256 * 4];
+		for (int i = 0; i < 256; i++)
+		{
+			System.arraycopy(palette[i], 0, data, i * 3, 3);
+			data[768 + i] = (byte)(mask[i] ? 1 : 0);
+		}
+		cache.put(LumpCache.getKey(f, 0L, f.length(), CACHE_KIND), data);
+	}
+
 	/** Reads the palette info files. */
 	private int readInfo(PSContext context, boolean source, Settings settings)
 	{
@@ -323,10 +387,17 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 			
 			if (palfile.equals(cmapfile))
 			{
+				if (readInfoFromCache(context, source, palfile))
+				{
+					out.printf("Read %s palette and brightmask/colormap from %s (cached).\n", srcstr, palfile.getPath());
+					return 0;
+				}
+				
 				// wad file
 				WadFile wadFile = null;
 				try {
 					wadFile = new WadFile(palfile);
+					Stats.addFile();
 					
 					out.printf("Reading %s palette from %s...\n", srcstr, palfile.getPath());
 					
@@ -343,6 +414,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 						return 5;
 					}
 					
+					cacheInfo(context, source, palfile);
 					return 0;
 				} catch (WadException e) {
 					// not a wad.
@@ -357,6 +429,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 				DoomPK3 pk3 = null;
 				try {
 					pk3 = new DoomPK3(palfile);
+					Stats.addFile();
 					out.printf("Reading %s palette from %s...\n", srcstr, palfile.getPath());
 					if (!readPaletteFromPK3(context, source, pk3))
 					{
@@ -369,6 +442,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 						out.printf("ERROR: File %s : Colormap not found!\n", palfile.getPath());
 						return 5;
 					}
+					cacheInfo(context, source, palfile);
 					return 0;
 				} catch (ZipException e) {
 					// not a zip.
@@ -389,8 +463,9 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 				
 				try {
 					rawFile = new FileInputStream(palfile);
+					Stats.addFile();
 					out.printf("Reading %s palette from %s...\n", srcstr, palfile.getPath());
-					if (!readPaletteFromRawFile(context, source, rawFile))
+					if (!readPaletteFromRawFile(context, source, Stats.countInput(rawFile)))
 					{
 						out.printf("ERROR: File %s : Palette not found!\n", palfile.getPath());
 						return 5;
@@ -404,8 +479,9 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 				
 				try {
 					rawFile = new FileInputStream(cmapfile);
+					Stats.addFile();
 					out.printf("Reading %s brightmask/colormap from %s...\n", srcstr, cmapfile.getPath());
-					if (!readBrightmaskFromRawFile(context, source, rawFile))
+					if (!readBrightmaskFromRawFile(context, source, Stats.countInput(rawFile)))
 					{
 						out.printf("ERROR: File %s : Colormap not found!\n", palfile.getPath());
 						return 5;
@@ -430,7 +506,9 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		FileInputStream fis = null;
 		try {
 			fis = new FileInputStream(f);
-			inPatch = Picture.read(fis);
+			Stats.addFile();
+			inPatch = Picture.read(Stats.countInput(fis));
+			Stats.addLump();
 		} catch (IOException e) {
 			out.printf("\rERROR: Trouble reading %s. %s: %s\n", f.getName(), e.getClass().getSimpleName(), e.getLocalizedMessage());
 		} finally {
@@ -458,7 +536,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		FileOutputStream fos = null;
 		try {
 			fos = new FileOutputStream(f);
-			inPatch.writeBytes(fos);
+			Stats.addFile();
+			inPatch.writeBytes(Stats.countOutput(fos));
 		} catch (IOException e) {
 			out.printf("\rERROR: Trouble reading %s. %s: %s\n", f.getName(), e.getClass().getSimpleName(), e.getLocalizedMessage());
 		} finally {
@@ -474,8 +553,10 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		FileInputStream fis = null;
 		try {
 			fis = new FileInputStream(f);
+			Stats.addFile();
 			long len = f.length();
-			inFlat = Flat.read((int)len, 1, fis);  // load as one-dimensional because who cares.
+			inFlat = Flat.read((int)len, 1, Stats.countInput(fis));  // load as one-dimensional because who cares.
+			Stats.addLump();
 		} catch (IOException e) {
 			out.printf("\rERROR: Trouble reading %s. %s: %s\n", f.getName(), e.getClass().getSimpleName(), e.getLocalizedMessage());
 			return;
@@ -501,7 +582,8 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		FileOutputStream fos = null;
 		try {
 			fos = new FileOutputStream(f);
-			inFlat.writeBytes(fos);
+			Stats.addFile();
+			inFlat.writeBytes(Stats.countOutput(fos));
 		} catch (IOException e) {
 			out.printf("\rERROR: Trouble reading %s. %s: %s\n", f.getName(), e.getClass().getSimpleName(), e.getLocalizedMessage());
 			return;
@@ -520,7 +602,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 	 * @param isPatch true, is patch, false, is flat. patch = ignore color 255 always. flat = ignore color 0 always.
 	 * @return the closest matching index.
 	 */
-	private int matchColor(int argbIn, byte[][] palette, boolean[] brightmask, boolean brightbit, boolean isPatch)
+	static int matchColor(int argbIn, byte[][] palette, boolean[] brightmask, boolean brightbit, boolean isPatch)
 	{
 		double bestdist = Double.MAX_VALUE;
 		int best = -1;
@@ -582,7 +664,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 	private void printUsage()
 	{
 		out.printf("Palette Convert v%s by Matt Tropiano\n", getVersion());
-		out.println("Usage: palcnvrt [files] [type] [srcargs] [trgargs] ");
+		out.println("Usage: palcnvrt [files] [type] [srcargs] [trgargs] [switches]");
 		out.println("    [files]  :         Valid Doom graphic files or a directory name");
 		out.println("                       for multiple files.");
 		out.println();
@@ -603,10 +685,34 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 		out.println("                       raw file.");
 		out.println("               -trgwad If specified, next argument is palette and colormap");
 		out.println("                       target WAD/PK3.");
+		out.println();
+		out.println("    [switches]: -stats If specified, next argument is \"table\" or \"json\".");
+		out.println("                       Prints time and I/O stats for each phase to STDERR");
+		out.println("                       when done.");
 	}
 	
 	@Override
-	public int execute(PSContext context, Settings settings)
+	public int execute(final PSContext context, final Settings settings)
+	{
+		return Stats.run("PaletteConvert", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return convert(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 4;
+			}
+		});
+	}
+
+	/** Reads the palettes and converts the graphics. */
+	private int convert(PSContext context, Settings settings)
 	{
 		int err = 0;
 		
@@ -621,6 +727,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 
 		/* Step 1: Read palette info files. */
 		
+		Stats.phase("Reading palettes");
 		out.println("Getting palette info...");
 		if ((err = readInfo(context, true, settings)) > 0)
 			return err;
@@ -629,6 +736,7 @@ public class PaletteConvert extends Utility<PaletteConvert.PSContext>
 
 		/* Step 2: Process graphics. */
 
+		Stats.phase("Converting graphics");
 		out.println("Processing graphics...");
 		if ((err = convertGraphics(context, settings)) > 0)
 			return err;
@@ -8,14 +8,9 @@
 package net.mtrop.utility.doom.texspy;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import net.mtrop.doom.Wad;
 import net.mtrop.doom.WadBuffer;
@@ -31,8 +26,13 @@ import net.mtrop.doom.map.udmf.attributes.UDMFCommonSectorAttributes;
 import net.mtrop.doom.map.udmf.attributes.UDMFCommonSidedefAttributes;
 import net.mtrop.doom.util.MapUtils;
 import net.mtrop.doom.util.NameUtils;
+import net.mtrop.utility.doom.common.FileTypeDispatcher;
+import net.mtrop.utility.doom.common.LumpCache;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.WadDispatcher;
 
 import com.blackrook.commons.Common;
+import com.blackrook.commons.hash.Hash;
 import com.blackrook.commons.list.List;
 import com.blackrook.commons.list.SortedList;
 import com.blackrook.commons.math.Pair;
@@ -126,9 +126,19 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 
 		boolean noswitch = true;
 		
+		String next = null;
 		for (String a : args)
 		{
-			if (a.equalsIgnoreCase(SWITCH_TEXTRACT))
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+			{
+				next = Stats.SETTING_STATS;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_TEXTRACT))
 			{
 				out.put(SETTING_TEXTRACT, true);
 			}
@@ -172,66 +182,41 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		return new TextureSpyContext();
 	}
 
-	// Process PK3/ZIP
-	private void processPK3(TextureSpyContext context, String fileName, File f) throws ZipException, IOException
+	// Creates the file dispatcher: PK3s and WADs, by their first bytes.
+	private FileTypeDispatcher createDispatcher(final TextureSpyContext context)
 	{
-		ZipFile zf = new ZipFile(f);
-		
-		@SuppressWarnings("unchecked")
-		Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
-		while (en.hasMoreElements())
+		return new WadDispatcher(new FileTypeDispatcher.Handler()
 		{
-			ZipEntry ze = en.nextElement();
-			if (ze.isDirectory())
-				continue;
-			if (ze.getName().toLowerCase().endsWith(".wad"))
+			@Override
+			public void handle(File f) throws IOException
 			{
-				InputStream zin = zf.getInputStream(ze);
-				WadBuffer wm = null;
-				try {
-					wm = new WadBuffer(zin);
-					inspectWAD(context, wm);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				}
-				Common.close(zin);
+				processWAD(context, f);
 			}
-			else if (ze.getName().toLowerCase().endsWith(".pk3"))
+		}, new WadDispatcher.EntryHandler()
+		{
+			@Override
+			public void handle(String path, InputStream in) throws IOException
 			{
-				File pk3 = File.createTempFile("texspy", "pk3tmp");
-				InputStream zin = zf.getInputStream(ze);
-				FileOutputStream fos = new FileOutputStream(pk3);
-				try {
-					Common.relay(zin, fos);
-					Common.close(fos);
-					processPK3(context, fileName+File.separator+ze.getName(), pk3);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				} finally {
-					Common.close(fos);
-					Common.close(zin);
-				}
-				pk3.deleteOnExit();
+				inspectWAD(context, null, new WadBuffer(in));
 			}
-		}
-		
-		zf.close();
+		}, out);
 	}
 
 	// Process WAD
 	private void processWAD(TextureSpyContext context, File f) throws WadException, IOException
 	{
 		WadFile wf = new WadFile(f);
-		inspectWAD(context, wf);
+		Stats.addFile();
+		inspectWAD(context, f, wf);
 		wf.close();
 	}
 	
 	// Inspect WAD contents.
-	private void inspectWAD(TextureSpyContext context, Wad wad) throws IOException
+	private void inspectWAD(TextureSpyContext context, File f, Wad wad) throws IOException
 	{
-		String[] mapHeaders = MapUtils.getAllMapHeaders(wad);
+		String[] mapHeaders = LumpCache.getMapHeaders(f, wad);
 		for (String mapName : mapHeaders)
-			inspectMap(context, wad, mapName);
+			inspectMap(context, f, wad, mapName);
 	}
 
 	/**
@@ -255,8 +240,8 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		}
 	}
 	
-	// Inspect a map in a WAD.
-	private void inspectMap(TextureSpyContext context, Wad wad, String mapName) throws IOException
+	// Inspect a map in a WAD. The file is null if the WAD is not a file.
+	private void inspectMap(TextureSpyContext context, File f, Wad wad, String mapName) throws IOException
 	{
 		if (!context.nomessage)
 			out.println(context.tcomment() + "    Opening map "+mapName+"...");
@@ -272,42 +257,48 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		if (!context.nomessage)
 			out.println(context.tcomment() + "    Format is "+format.name()+"...");
 
-		// filled in if UDMF.
+		// filled in if UDMF, and not all from the cache.
 		UDMFTable udmf = null;
 		
-		if (format == MapFormat.UDMF)
-		{
-			InputStream in = wad.getInputStream("TEXTMAP", wad.getLastIndexOf(mapName));
-			udmf = UDMFReader.readData(in);
-			Common.close(in);
-		}
-				
 		if (context.outputTextures)
 		{
 			if (!context.nomessage)
 				out.println(context.tcomment() + "        Reading SIDEDEFS...");
 
-			switch (format)
+			String key = getCacheKey(f, wad, mapName, format == MapFormat.UDMF ? "TEXTMAP" : "SIDEDEFS", "texspy.textures");
+			String[] textures = key != null ? LumpCache.getShared().getStrings(key) : null;
+			if (textures == null)
 			{
-				default:
-				case DOOM:
-				case HEXEN:
-				case STRIFE:
+				List<String> names = new List<String>();
+				switch (format)
 				{
-					byte[] in = wad.getData("SIDEDEFS", wad.getLastIndexOf(mapName));
-					DoomSidedef[] sidedefs = DoomSidedef.create(in, in.length / DoomSidedef.LENGTH);
-					inspectSidedefs(context, sidedefs);
-				}
-				break;
+					default:
+					case DOOM:
+					case HEXEN:
+					case STRIFE:
+					{
+						byte[] in = wad.getData("SIDEDEFS", wad.getLastIndexOf(mapName));
+						Stats.addLumpRead(in.length);
+						DoomSidedef[] sidedefs = DoomSidedef.create(in, in.length / DoomSidedef.LENGTH);
+						inspectSidedefs(names, sidedefs);
+					}
+					break;
 
-				case UDMF:
-				{
-					inspectSidedefs(context, udmf.getObjects("sidedef"));
+					case UDMF:
+					{
+						udmf = readUDMF(wad, mapName);
+						inspectSidedefs(names, udmf.getObjects("sidedef"));
+					}
+					break;
+						
 				}
-				break;
-					
+				textures = toArray(names);
+				if (key != null)
+					LumpCache.getShared().putStrings(key, textures);
 			}
 
+			for (String t : textures)
+				addTexture(context, t);
 		}
 
 		if (context.outputFlats)
@@ -315,26 +306,41 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 			if (!context.nomessage)
 				out.println(context.tcomment() + "        Reading SECTORS...");
 
-			switch (format)
+			String key = getCacheKey(f, wad, mapName, format == MapFormat.UDMF ? "TEXTMAP" : "SECTORS", "texspy.flats");
+			String[] flats = key != null ? LumpCache.getShared().getStrings(key) : null;
+			if (flats == null)
 			{
-				default:
-				case DOOM:
-				case HEXEN:
-				case STRIFE:
+				List<String> names = new List<String>();
+				switch (format)
 				{
-					byte[] in = wad.getData("SECTORS", wad.getLastIndexOf(mapName));
-					DoomSector[] sectors = DoomSector.create(in, in.length / DoomSector.LENGTH);
-					inspectSectors(context, sectors);
-				}
-				break;
+					default:
+					case DOOM:
+					case HEXEN:
+					case STRIFE:
+					{
+						byte[] in = wad.getData("SECTORS", wad.getLastIndexOf(mapName));
+						Stats.addLumpRead(in.length);
+						DoomSector[] sectors = DoomSector.create(in, in.length / DoomSector.LENGTH);
+						inspectSectors(names, sectors);
+					}
+					break;
 
-				case UDMF:
-				{
-					inspectSectors(context, udmf.getObjects("sector"));
+					case UDMF:
+					{
+						if (udmf == null)
+							udmf = readUDMF(wad, mapName);
+						inspectSectors(names, udmf.getObjects("sector"));
+					}
+					break;
+						
 				}
-				break;
-					
+				flats = toArray(names);
+				if (key != null)
+					LumpCache.getShared().putStrings(key, flats);
 			}
+
+			for (String t : flats)
+				addFlat(context, t);
 		}
 		
 		if (!context.noskies)
@@ -344,6 +350,43 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		
 	}
 	
+	// Reads a UDMF map's TEXTMAP.
+	private static UDMFTable readUDMF(Wad wad, String mapName) throws IOException
+	{
+		InputStream in = Stats.countInput(wad.getInputStream("TEXTMAP", wad.getLastIndexOf(mapName)));
+		Stats.addLump();
+		try {
+			return UDMFReader.readData(in);
+		} finally {
+			Common.close(in);
+		}
+	}
+	
+	// Gets the lump cache key for names read from a map lump, or null if the cache is off or the WAD is not a file.
+	private static String getCacheKey(File f, Wad wad, String mapName, String lumpName, String kind)
+	{
+		if (f == null || LumpCache.getShared() == null)
+			return null;
+		int index = wad.getIndexOf(lumpName, wad.getLastIndexOf(mapName));
+		if (index < 0)
+			return null;
+		return LumpCache.getKey(f, wad.getEntry(index), kind);
+	}
+	
+	// Gets the different names in a list, without empty ones.
+	private static String[] toArray(List<String> names)
+	{
+		Hash<String> unique = new Hash<String>();
+		for (String name : names)
+			if (!Common.isEmpty(name))
+				unique.put(name);
+		String[] out = new String[unique.size()];
+		int i = 0;
+		for (String name : unique)
+			out[i++] = name;
+		return out;
+	}
+	
 	private void inspectMap(TextureSpyContext context, String mapName)
 	{
 		Pair p = new Pair();
@@ -396,44 +439,44 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 	}
 	
 	// Adds sidedef textures to the list.
-	private void inspectSidedefs(TextureSpyContext context, DoomSidedef[] sidedefs)
+	private void inspectSidedefs(List<String> names, DoomSidedef[] sidedefs)
 	{
 		for (DoomSidedef s : sidedefs)
 		{
-			addTexture(context, s.getTextureTop());
-			addTexture(context, s.getTextureMiddle());
-			addTexture(context, s.getTextureBottom());
+			names.add(s.getTextureTop());
+			names.add(s.getTextureMiddle());
+			names.add(s.getTextureBottom());
 		}
 	}
 	
 	// Adds sidedef textures to the list.
-	private void inspectSidedefs(TextureSpyContext context, UDMFObject[] sidedefs)
+	private void inspectSidedefs(List<String> names, UDMFObject[] sidedefs)
 	{
 		for (UDMFObject s : sidedefs)
 		{
-			addTexture(context, s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_TOP, NameUtils.EMPTY_TEXTURE_NAME));
-			addTexture(context, s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_MIDDLE, NameUtils.EMPTY_TEXTURE_NAME));
-			addTexture(context, s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_BOTTOM, NameUtils.EMPTY_TEXTURE_NAME));
+			names.add(s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_TOP, NameUtils.EMPTY_TEXTURE_NAME));
+			names.add(s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_MIDDLE, NameUtils.EMPTY_TEXTURE_NAME));
+			names.add(s.getString(UDMFCommonSidedefAttributes.ATTRIB_TEXTURE_BOTTOM, NameUtils.EMPTY_TEXTURE_NAME));
 		}
 	}
 	
 	// Adds sector textures to the list.
-	private void inspectSectors(TextureSpyContext context, DoomSector[] sectors)
+	private void inspectSectors(List<String> names, DoomSector[] sectors)
 	{
 		for (DoomSector s : sectors)
 		{
-			addFlat(context, s.getFloorTexture());
-			addFlat(context, s.getCeilingTexture());
+			names.add(s.getFloorTexture());
+			names.add(s.getCeilingTexture());
 		}
 	}
 	
 	// Adds sector textures to the list.
-	private void inspectSectors(TextureSpyContext context, UDMFObject[] sectors)
+	private void inspectSectors(List<String> names, UDMFObject[] sectors)
 	{
 		for (UDMFObject s : sectors)
 		{
-			addFlat(context, s.getString(UDMFCommonSectorAttributes.ATTRIB_TEXTURE_FLOOR));
-			addFlat(context, s.getString(UDMFCommonSectorAttributes.ATTRIB_TEXTURE_CEILING));
+			names.add(s.getString(UDMFCommonSectorAttributes.ATTRIB_TEXTURE_FLOOR));
+			names.add(s.getString(UDMFCommonSectorAttributes.ATTRIB_TEXTURE_CEILING));
 		}
 	}
 	
@@ -464,10 +507,32 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		out.println("                          into TEXtract.");
 		out.println("                -noskies  If specified, this will skip adding map skies to");
 		out.println("                          the output list.");
+		out.println("                -stats    Followed by \"table\" or \"json\". Prints time and");
+		out.println("                          I/O stats for each phase to STDERR when done.");
 	}
 	
 	@Override
-	public int execute(TextureSpyContext context, Settings settings)
+	public int execute(final TextureSpyContext context, final Settings settings)
+	{
+		return Stats.run("TextureSpy", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return spy(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Reads the textures and flats in all of the files, and prints them.
+	private int spy(TextureSpyContext context, Settings settings)
 	{
 		String[] filePaths = (String[])settings.get(SETTING_FILES);
 		
@@ -484,24 +549,21 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		context.nomessage = settings.getBoolean(SETTING_NOMESSAGES);
 		context.noskies = settings.getBoolean(SETTING_NOSKIES);
 
+		Stats.phase("Reading maps");
 		boolean successfulOnce = false;
+		FileTypeDispatcher dispatcher = createDispatcher(context);
 		
 		for (String f : filePaths)
 		{
 			if (!context.nomessage)
 				out.println(context.tcomment() + "Opening file "+f+"...");
 			try {
-				processPK3(context, f, new File(f));
-				successfulOnce = true;
-			} catch (ZipException e) {
-				try {
-					processWAD(context, new File(f));
+				if (dispatcher.dispatch(new File(f)))
 					successfulOnce = true;
-				} catch (WadException ex) {
+				else
 					out.printf("%sERROR: Couldn't open %s: not a WAD or PK3.\n", context.tcomment(), f);
-				} catch (IOException ex) {
-					out.printf("%sERROR: Couldn't open %s. Read error encountered.\n", context.tcomment(), f);
-				}
+			} catch (WadException ex) {
+				out.printf("%sERROR: Couldn't open %s: not a WAD or PK3.\n", context.tcomment(), f);
 			} catch (IOException ex) {
 				out.printf("%sERROR: Couldn't open %s. Read error encountered.\n", context.tcomment(), f);
 			}
@@ -510,6 +572,8 @@ public class TextureSpy extends Utility<TextureSpy.TextureSpyContext>
 		if (!successfulOnce)
 			return 1;
 		
+		Stats.phase("Printing");
+
 		// Print texture list.
 		if (context.textureList.size() > 0)
 			out.println("-TEXTURE");
@@ -18,7 +18,6 @@ import net.mtrop.doom.WadFile;
 import net.mtrop.doom.exception.TextureException;
 import net.mtrop.doom.exception.WadException;
 import net.mtrop.doom.texture.Animated;
-import net.mtrop.doom.texture.CommonTexture;
 import net.mtrop.doom.texture.CommonTextureList;
 import net.mtrop.doom.texture.DoomTextureList;
 import net.mtrop.doom.texture.PatchNames;
@@ -28,7 +27,8 @@ import net.mtrop.doom.texture.TextureSet;
 import net.mtrop.doom.texture.TextureSet.Texture;
 import net.mtrop.doom.util.GraphicUtils;
 import net.mtrop.doom.util.NameUtils;
-import net.mtrop.doom.util.WadUtils;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.TextureLumps;
 
 import com.blackrook.commons.AbstractSet;
 import com.blackrook.commons.Common;
@@ -284,6 +284,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		final int STATE_BASE = 1;
 		final int STATE_OUT = 2;
 		final int STATE_NULLTEX = 3;
+		final int STATE_STATS = 4;
 		
 		int state = STATE_INIT;
 		for (String a : args)
@@ -303,6 +304,11 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 				state = STATE_NULLTEX;
 				continue;
 			}
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+			{
+				state = STATE_STATS;
+				continue;
+			}
 			else if (a.equalsIgnoreCase(SWITCH_NOANIMATED))
 			{
 				out.put(SETTING_NOANIMATED, true);
@@ -333,6 +339,10 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 				case STATE_NULLTEX:
 					out.put(SETTING_NULLTEXTURE, a);
 					break;
+				case STATE_STATS:
+					out.put(Stats.SETTING_STATS, a);
+					state = STATE_INIT;
+					break;
 				default:
 					files.add(a);
 					break;
@@ -364,7 +374,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		WadUnit unit = new WadUnit(wf);
 		
 		try {
-			if (!scanTexturesAndPNames(context, unit, wf))
+			if (!scanTexturesAndPNames(context, unit, f, wf))
 				return false;
 		} catch (IOException e) {
 			out.printf("ERROR: \"%s\" could not be read.\n", f.getPath());
@@ -420,21 +430,16 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		return true;
 	}
 
-	// Scan for TEXTUREx and PNAMES.
-	private boolean scanTexturesAndPNames(ExtractorContext context, WadUnit unit, WadFile wf) throws IOException
+	// Scan for TEXTUREx and PNAMES (through the lump cache, if it is on).
+	private boolean scanTexturesAndPNames(ExtractorContext context, WadUnit unit, File f, WadFile wf) throws IOException
 	{
 		if (!wf.contains("TEXTURE1"))
 			return true;
 		out.println("    Scanning TEXTUREx/PNAMES...");
 		
-		
-		PatchNames patchNames = null;
-		CommonTextureList<?> textureList1 = null;
-		CommonTextureList<?> textureList2 = null;
-		byte[] textureData = null;
-		
+		TextureLumps lumps = null;
 		try {
-			textureData = wf.getData("TEXTURE1");
+			lumps = TextureLumps.read(f, wf);
 		} catch (WadException e) {
 			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
 			return false;
@@ -442,69 +447,17 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
 			return false;
 		}
-
-		// figure out if Strife or Doom Texture Lump.
-		if (WadUtils.isStrifeTextureData(textureData))
-		{
-			textureList1 = StrifeTextureList.create(textureData);
-			unit.strife = true;
-		}
-		else
-		{
-			textureList1 = DoomTextureList.create(textureData);
-			unit.strife = false;
-		}
-
-		unit.tex1names = new Hash<String>(textureList1.size());
-		for (CommonTexture<?> ct : textureList1)
-			unit.tex1names.put(ct.getName());
-
-		out.printf("        %d entries in TEXTURE1.\n", textureList1.size());
-
-		try {
-			textureData = wf.getData("TEXTURE2");
-		} catch (WadException e) {
-			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
-			return false;
-		} catch (IOException e) {
-			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
-			return false;
-		}
-
-		if (textureData != null)
+		
+		unit.strife = lumps.isStrife();
+		unit.tex1names = lumps.getTexture1Names();
+		out.printf("        %d entries in TEXTURE1.\n", lumps.getTexture1Count());
+		if (lumps.hasTexture2())
 		{
-			// figure out if Strife or Doom Texture Lump.
-			if (WadUtils.isStrifeTextureData(textureData))
-				textureList2 = StrifeTextureList.create(textureData);
-			else
-				textureList2 = DoomTextureList.create(textureData);
-			
-			out.printf("        %d entries in TEXTURE2.\n", textureList2.size());
+			out.printf("        %d entries in TEXTURE2.\n", lumps.getTexture2Count());
 			unit.tex2exists = true;
 		}
-		
-		try {
-			textureData = wf.getData("PNAMES");
-			if (textureData == null)
-			{
-				out.printf("ERROR: %s: TEXTUREx without PNAMES!\n", wf.getFilePath());
-				return false;
-			}
-			patchNames = PatchNames.create(textureData);
-		} catch (WadException e) {
-			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
-			return false;
-		} catch (IOException e) {
-			out.printf("ERROR: %s: %s\n", wf.getFilePath(), e.getMessage());
-			return false;
-		}
-		
-		out.printf("        %d entries in PNAMES.\n", patchNames.size());
-
-		if (textureList2 != null)
-			unit.textureSet = new TextureSet(patchNames, textureList1, textureList2);
-		else
-			unit.textureSet = new TextureSet(patchNames, textureList1);
+		out.printf("        %d entries in PNAMES.\n", lumps.getPatchNameCount());
+		unit.textureSet = lumps.getTextureSet();
 		
 		return true;
 	}
@@ -517,7 +470,8 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 			if (wf.contains("ANIMATED"))
 			{
 				out.println("    Scanning ANIMATED...");
-				unit.animated.readBytes(wf.getInputStream("ANIMATED"));
+				unit.animated.readBytes(Stats.countInput(wf.getInputStream("ANIMATED")));
+				Stats.addLump();
 				processAnimated(unit, unit.animated);
 			}
 			
@@ -529,7 +483,8 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 			if (wf.contains("SWITCHES"))
 			{
 				out.println("    Scanning SWITCHES...");
-				unit.switches.readBytes(wf.getInputStream("SWITCHES"));
+				unit.switches.readBytes(Stats.countInput(wf.getInputStream("SWITCHES")));
+				Stats.addLump();
 				
 				for (Switches.Entry entry : unit.switches)
 				{
@@ -821,6 +776,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 						try {
 							out.printf("        Extracting flat %s...\n", flat);
 							EntryData data = new EntryData(flat, unit.wad.getData(pidx));
+							Stats.addLumpRead(data.getValue().length);
 							exportSet.flatData.add(data);
 							exportSet.flatHash.put(flat);
 						} catch (IOException e) {
@@ -864,6 +820,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 							try {
 								out.printf("        Extracting patch %s...\n", pname);
 								EntryData data = new EntryData(pname, unit.wad.getData(pidx));
+								Stats.addLumpRead(data.getValue().length);
 								exportSet.patchData.add(data);
 								exportSet.patchHash.put(pname);
 							} catch (IOException e) {
@@ -909,6 +866,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 						try {
 							out.printf("        Extracting namespace texture %s...\n", textureName);
 							EntryData data = new EntryData(textureName, unit.wad.getData(pidx));
+							Stats.addLumpRead(data.getValue().length);
 							exportSet.textureData.add(data);
 						} catch (IOException e) {
 							out.printf("ERROR: %s: Could not read entry %s.\n", unit.wad.getFilePath(), textureName);
@@ -1091,11 +1049,20 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 
 		ExportSet exportSet = new ExportSet();
 		try {
-			exportSet.textureSet = GraphicUtils.importTextureSet(baseWadFile);
+			Stats.phase("Extracting textures");
+			// the base WAD's texture lumps were just scanned, so they are likely in the lump cache.
+			TextureLumps baseTextures = TextureLumps.read(baseFile, baseWadFile);
+			exportSet.textureSet = baseTextures != null ? baseTextures.getTextureSet() : GraphicUtils.importTextureSet(baseWadFile);
 			extractTextures(context, exportSet);
+			Stats.phase("Extracting flats");
 			extractFlats(context, exportSet);
+			Stats.phase("Merging ANIMATED/SWITCHES");
 			mergeAnimatedAndSwitches(context, exportSet);
+			Stats.phase("Writing output WAD");
+			// the library writes the entries, so only what the file grew by is counted.
+			long outLength = outFile.length();
 			dumpToOutputWad(context, exportSet, outWadFile);
+			Stats.addBytesWritten(Math.max(0L, outFile.length() - outLength));
 		} catch (TextureException | IOException e) {
 			out.printf("ERROR: %s: %s\n", baseWadFile.getFilePath(), e.getMessage());
 			return false;
@@ -1113,6 +1080,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		WadFile outWad = null;
 		try {
 			outWad = WadFile.createWadFile(f);
+			Stats.addFile();
 		} catch (SecurityException e) {
 			out.printf("ERROR: \"%s\" could not be created. Access denied.\n", f.getPath());
 			return null;
@@ -1135,6 +1103,8 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 				outWad = WadFile.createWadFile(f);
 			else
 				out.printf("ERROR: \"%s\" could not be opened.\n", f.getPath());
+			if (outWad != null)
+				Stats.addFile();
 		} catch (SecurityException e) {
 			out.printf("ERROR: \"%s\" could not be read. Access denied.\n", f.getPath());
 			return null;
@@ -1179,10 +1149,34 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		out.println();
 		out.println("                -nulltex If specified, the next argument is the null");
 		out.println("                         texture that is always sorted first.");
+		out.println();
+		out.println("                -stats   If specified, the next argument is \"table\" or");
+		out.println("                         \"json\". Prints time and I/O stats for each phase");
+		out.println("                         to STDERR when done.");
 	}
 	
 	@Override
-	public int execute(ExtractorContext context, Settings settings)
+	public int execute(final ExtractorContext context, final Settings settings)
+	{
+		return Stats.run("TEXtract", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return extract(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Scans the WADs, reads the list, and extracts.
+	private int extract(ExtractorContext context, Settings settings)
 	{
 		/* STEP 0 : Get yo' shit together. */
 
@@ -1220,6 +1214,8 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 		
 		/* STEP 1 : Scan all incoming WADs so we know where crap is. */
 		
+		Stats.phase("Scanning WADs");
+
 		// scan base.
 		if (!scanWAD(context, context.baseWad, true))
 			return 1;
@@ -1231,6 +1227,7 @@ public class TextureExtractor extends Utility<TextureExtractor.ExtractorContext>
 
 		/* STEP 2 : Read list of what we want. */
 
+		Stats.phase("Reading texture list");
 		out.println("Input texture/flat list:");
 		try {
 			if (!readTexturesAndFlats(context))
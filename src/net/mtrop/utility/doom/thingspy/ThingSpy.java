@@ -8,13 +8,8 @@
 package net.mtrop.utility.doom.thingspy;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import net.mtrop.doom.Wad;
 import net.mtrop.doom.WadBuffer;
@@ -29,6 +24,10 @@ import net.mtrop.doom.map.udmf.UDMFReader;
 import net.mtrop.doom.map.udmf.UDMFTable;
 import net.mtrop.doom.map.udmf.attributes.UDMFCommonThingAttributes;
 import net.mtrop.doom.util.MapUtils;
+import net.mtrop.utility.doom.common.FileTypeDispatcher;
+import net.mtrop.utility.doom.common.LumpCache;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.WadDispatcher;
 
 import com.blackrook.commons.Common;
 import com.blackrook.commons.ObjectPair;
@@ -110,9 +109,19 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 
 		boolean searchState = false;
 		
+		String next = null;
 		for (String a : args)
 		{
-			if (a.equalsIgnoreCase(SWITCH_SEARCH))
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+			{
+				next = Stats.SETTING_STATS;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_SEARCH))
 			{
 				out.put(SETTING_SEARCH, true);
 				searchState = true;
@@ -153,64 +162,39 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 		return new ThingSpyContext();
 	}
 
-	// Process PK3/ZIP
-	private void processPK3(ThingSpyContext context, String fileName, File f) throws ZipException, IOException
+	// Creates the file dispatcher: PK3s and WADs, by their first bytes.
+	private FileTypeDispatcher createDispatcher(final ThingSpyContext context)
 	{
-		ZipFile zf = new ZipFile(f);
-		
-		@SuppressWarnings("unchecked")
-		Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
-		while (en.hasMoreElements())
+		return new WadDispatcher(new FileTypeDispatcher.Handler()
 		{
-			ZipEntry ze = en.nextElement();
-			if (ze.isDirectory())
-				continue;
-			if (ze.getName().toLowerCase().endsWith(".wad"))
+			@Override
+			public void handle(File f) throws IOException
 			{
-				InputStream zin = zf.getInputStream(ze);
-				WadBuffer wm = null;
-				try {
-					wm = new WadBuffer(zin);
-					inspectWAD(context, wm);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				}
-				Common.close(zin);
+				processWAD(context, f);
 			}
-			else if (ze.getName().toLowerCase().endsWith(".pk3"))
+		}, new WadDispatcher.EntryHandler()
+		{
+			@Override
+			public void handle(String path, InputStream in) throws IOException
 			{
-				File pk3 = File.createTempFile("thingspy", "pk3tmp");
-				InputStream zin = zf.getInputStream(ze);
-				FileOutputStream fos = new FileOutputStream(pk3);
-				try {
-					Common.relay(zin, fos);
-					Common.close(fos);
-					processPK3(context, fileName+File.separator+ze.getName(), pk3);
-				} catch (IOException e) {
-					out.println("ERROR: Could not read entry "+ze.getName()+".");
-				} finally {
-					Common.close(fos);
-					Common.close(zin);
-				}
-				pk3.deleteOnExit();
+				inspectWAD(context, null, new WadBuffer(in));
 			}
-		}
-		
-		zf.close();
+		}, out);
 	}
 
 	// Process WAD
 	private void processWAD(ThingSpyContext context, File f) throws WadException, IOException
 	{
 		WadFile wf = new WadFile(f);
-		inspectWAD(context, wf);
+		Stats.addFile();
+		inspectWAD(context, f, wf);
 		wf.close();
 	}
 	
 	// Inspect WAD contents.
-	private void inspectWAD(ThingSpyContext context, Wad wad) throws IOException
+	private void inspectWAD(ThingSpyContext context, File f, Wad wad) throws IOException
 	{
-		String[] mapHeaders = MapUtils.getAllMapHeaders(wad);
+		String[] mapHeaders = LumpCache.getMapHeaders(f, wad);
 		for (String mapName : mapHeaders)
 			inspectMap(context, wad, mapName);
 	}
@@ -237,7 +221,8 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 		
 		if (type == MapFormat.UDMF)
 		{
-			InputStream in = wad.getInputStream("TEXTMAP", wad.getLastIndexOf(mapName));
+			InputStream in = Stats.countInput(wad.getInputStream("TEXTMAP", wad.getLastIndexOf(mapName)));
+			Stats.addLump();
 			udmf = UDMFReader.readData(in);
 			Common.close(in);
 		}
@@ -256,6 +241,7 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 			case DOOM:
 			{
 				byte[] in = wad.getData("THINGS", wad.getLastIndexOf(mapName));
+				Stats.addLumpRead(in.length);
 				dthings = DoomThing.create(in, in.length / DoomThing.LENGTH);
 			}
 			break;
@@ -263,6 +249,7 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 			case HEXEN:
 			{
 				byte[] in = wad.getData("THINGS", wad.getLastIndexOf(mapName));
+				Stats.addLumpRead(in.length);
 				hthings = HexenThing.create(in, in.length / HexenThing.LENGTH);
 			}
 			break;
@@ -270,6 +257,7 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 			case STRIFE:
 			{
 				byte[] in = wad.getData("THINGS", wad.getLastIndexOf(mapName));
+				Stats.addLumpRead(in.length);
 				sthings = StrifeThing.create(in, in.length / StrifeThing.LENGTH);
 			}
 			break;
@@ -482,10 +470,33 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 		out.println("                -a     If SEARCH mode, must match ALL things provided");
 		out.println("                       instead of just one.");
 		out.println("                -nomsg Suppresses non-error messages during execution.");
+		out.println("                -stats Followed by \"table\" or \"json\". Prints time");
+		out.println("                       and I/O stats for each phase to STDERR");
+		out.println("                       when done.");
 	}
 	
 	@Override
-	public int execute(ThingSpyContext context, Settings settings)
+	public int execute(final ThingSpyContext context, final Settings settings)
+	{
+		return Stats.run("ThingSpy", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return spy(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Reads the things in all of the files, and prints them.
+	private int spy(ThingSpyContext context, Settings settings)
 	{
 		String[] filePaths = (String[])settings.get(SETTING_FILES);
 		
@@ -514,24 +525,21 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 		
 		context.nomessage = settings.getBoolean(SETTING_NOMESSAGES);
 		
+		Stats.phase("Reading things");
 		boolean successfulOnce = false;
+		FileTypeDispatcher dispatcher = createDispatcher(context);
 		
 		for (String f : filePaths)
 		{
 			if (!context.nomessage)
 				out.println("Opening file "+f+"...");
 			try {
-				processPK3(context, f, new File(f));
-				successfulOnce = true;
-			} catch (ZipException e) {
-				try {
-					processWAD(context, new File(f));
+				if (dispatcher.dispatch(new File(f)))
 					successfulOnce = true;
-				} catch (WadException ex) {
+				else
 					out.printf("ERROR: Couldn't open %s: not a WAD or PK3.\n", f);
-				} catch (IOException ex) {
-					out.printf("ERROR: Couldn't open %s. Read error encountered.\n", f);
-				}
+			} catch (WadException ex) {
+				out.printf("ERROR: Couldn't open %s: not a WAD or PK3.\n", f);
 			} catch (IOException ex) {
 				out.printf("ERROR: Couldn't open %s. Read error encountered.\n", f);
 			}
@@ -540,6 +548,7 @@ public class ThingSpy extends Utility<ThingSpy.ThingSpyContext>
 		if (!successfulOnce)
 			return 1;
 		
+		Stats.phase("Printing");
 		if (context.thingList.size() == 0)
 		{
 			if (!context.nomessage)
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.wadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Makes synthetic demos: Doom 1.4 to 1.9 (versions 104 to 110), "longtics" (version 111),
+ * Boom/MBF (versions 200 to 213), and PrBoom+ "longtics" (version 214). The inputs are
+ * random, so they will not play back in sync, but they decode like real ones.
+ * @author Matthew Tropiano
+ */
+public class DemoGenerator
+{
+	/** Boom demo signature (after the version byte). */
+	private static final byte[] BOOM_SIGNATURE = {0x1d, 'B', 'o', 'o', 'm', (byte)0xe6};
+	/** Boom option bytes. */
+	private static final int BOOM_OPTIONS_LENGTH = 64;
+	/** Boom player flag bytes. */
+	private static final int BOOM_PLAYERS_LENGTH = 32;
+	/** Vanilla player flag bytes. */
+	private static final int VANILLA_PLAYERS_LENGTH = 4;
+	/** End-of-demo marker. */
+	private static final int DEMO_END = 0x80;
+
+	/** Random source. */
+	private Random random;
+
+	/**
+	 * Creates a new demo generator.
+	 * @param random the random source.
+	 */
+	public DemoGenerator(Random random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Checks if a demo version can be made.
+	 * @param version the version.
+	 * @return true if so, false if not.
+	 */
+	public static boolean isSupportedVersion(int version)
+	{
+		return (version >= 104 && version <= 111) || (version >= 200 && version <= 214);
+	}
+
+	/**
+	 * Gets the length of a demo.
+	 * @param version the demo version.
+	 * @param players the amount of players.
+	 * @param tics the amount of tics.
+	 * @return the length in bytes.
+	 */
+	public static long getDemoLength(int version, int players, long tics)
+	{
+		int header = version >= 200 ? 1 + BOOM_SIGNATURE.length + 6 + BOOM_OPTIONS_LENGTH + BOOM_PLAYERS_LENGTH : 9 + VANILLA_PLAYERS_LENGTH;
+		return header + tics * players * (version == 111 || version == 214 ? 5 : 4) + 1;
+	}
+
+	/**
+	 * Makes a demo in memory.
+	 * @param version the demo version (see {@link #isSupportedVersion(int)}).
+	 * @param players the amount of players (1 to 4).
+	 * @param tics the amount of tics.
+	 * @return the demo.
+	 */
+	public byte[] createDemo(int version, int players, int tics)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int)getDemoLength(version, players, tics));
+		try {
+			writeDemo(out, version, players, tics);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream.
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes a demo to a stream, one tic at a time, so demos of any length can be made.
+	 * @param out the output stream.
+	 * @param version the demo version (see {@link #isSupportedVersion(int)}).
+	 * @param players the amount of players (1 to 4).
+	 * @param tics the amount of tics.
+	 * @throws IOException if the demo could not be written.
+	 * @throws IllegalArgumentException if the version or amount of players is bad.
+	 */
+	public void writeDemo(OutputStream out, int version, int players, long tics) throws IOException
+	{
+		if (!isSupportedVersion(version))
+			throw new IllegalArgumentException("Unsupported demo version: " + version);
+		if (players < 1 || players > VANILLA_PLAYERS_LENGTH)
+			throw new IllegalArgumentException("Players must be from 1 to 4.");
+
+		out.write(version);
+		if (version >= 200)
+		{
+			out.write(BOOM_SIGNATURE);
+			out.write(0); // compatibility
+		}
+		out.write(random.nextInt(5));
+		out.write(1);
+		out.write(1 + random.nextInt(9));
+		out.write(players > 1 ? random.nextInt(3) : 0);
+		if (version >= 200)
+		{
+			out.write(0); // console player
+			out.write(new byte[BOOM_OPTIONS_LENGTH]);
+		}
+		else
+		{
+			out.write(0);
+			out.write(random.nextInt(2));
+			out.write(0);
+			out.write(0); // console player
+		}
+		int playerFlags = version >= 200 ? BOOM_PLAYERS_LENGTH : VANILLA_PLAYERS_LENGTH;
+		for (int i = 0; i < playerFlags; i++)
+			out.write(i < players ? 1 : 0);
+
+		// inputs change every few tics, like a player's do.
+		boolean longtics = version == 111 || version == 214;
+		byte[] command = new byte[longtics ? 5 : 4];
+		for (long t = 0; t < tics; t++)
+		{
+			for (int p = 0; p < players; p++)
+			{
+				if (t == 0 || random.nextInt(4) == 0)
+				{
+					command[0] = (byte)(random.nextInt(101) - 50);
+					command[1] = (byte)(random.nextInt(81) - 40);
+					if (longtics)
+					{
+						int turn = random.nextInt(65536);
+						command[2] = (byte)turn;
+						command[3] = (byte)(turn >> 8);
+						command[4] = (byte)random.nextInt(4);
+					}
+					else
+					{
+						command[2] = (byte)random.nextInt(256);
+						command[3] = (byte)random.nextInt(4);
+					}
+				}
+				out.write(command);
+			}
+		}
+		out.write(DEMO_END);
+	}
+
+}
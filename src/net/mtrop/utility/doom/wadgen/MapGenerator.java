@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.wadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import net.mtrop.doom.enums.MapFormat;
+import net.mtrop.utility.doom.common.WadWriter;
+
+/**
+ * Makes synthetic maps in any map format. The maps are not playable: the
+ * lines join vertices at random, and the node lumps are empty. They only have
+ * the lumps, sizes, and names that the utilities read.
+ * @author Matthew Tropiano
+ */
+public class MapGenerator
+{
+	/** Most vertices, linedefs, or sidedefs in a binary map (0xFFFF means "none"). */
+	public static final int MAX_BINARY_INDEX = 65535;
+	/** Most sectors in a binary map (sidedefs refer to them with a signed short). */
+	public static final int MAX_BINARY_SECTORS = 32767;
+
+	/** Doom thing types. */
+	private static final int[] DOOM_THINGS = {
+		1, 2, 3, 4, 11, 9, 58, 64, 65, 66, 68, 69, 71, 84, 3001, 3002, 3003, 3004, 3005, 3006,
+		2001, 2002, 2003, 2004, 2005, 2006, 2007, 2008, 2010, 2011, 2012, 2013, 2014, 2015, 2048, 2049,
+		5, 6, 13, 38, 39, 40, 8, 17, 83, 2018, 2019, 2022, 2023, 2024, 2025, 2026, 2028, 35, 44, 45, 46, 48,
+	};
+	/** Hexen thing types. */
+	private static final int[] HEXEN_THINGS = {
+		1, 2, 3, 4, 11, 14, 107, 114, 121, 8020, 8080, 10030, 10060, 10080, 10100, 10200, 34, 31,
+		8005, 8009, 8010, 30, 82, 81, 8041, 8042, 8043, 8000, 8002, 8004, 8006, 8007, 10040,
+	};
+	/** Strife thing types. */
+	private static final int[] STRIFE_THINGS = {
+		1, 2, 3, 4, 11, 3001, 3002, 3003, 3004, 3005, 3006, 26, 27, 52, 53, 54, 56, 58, 2001, 2002,
+		2003, 2004, 2005, 2006, 2007, 2010, 2011, 2018, 2019, 2024, 2025, 2026, 2027, 2028, 140, 141,
+	};
+
+	/** Binary lump entry lengths. */
+	private static final int
+		DOOM_THING_LENGTH = 10,
+		HEXEN_THING_LENGTH = 20,
+		DOOM_LINEDEF_LENGTH = 14,
+		HEXEN_LINEDEF_LENGTH = 16,
+		SIDEDEF_LENGTH = 30,
+		VERTEX_LENGTH = 4,
+		SECTOR_LENGTH = 26;
+
+	/** About how many TEXTMAP bytes each kind of object takes. */
+	private static final int
+		UDMF_THING_LENGTH = 118,
+		UDMF_VERTEX_LENGTH = 36,
+		UDMF_LINEDEF_LENGTH = 70,
+		UDMF_SIDEDEF_LENGTH = 68,
+		UDMF_SECTOR_LENGTH = 122;
+
+	/** An empty ACS BEHAVIOR lump (no scripts, no strings), for Hexen-format maps. */
+	private static final byte[] EMPTY_BEHAVIOR = {'A', 'C', 'S', 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	/** Size of the pieces that lumps are written in. */
+	private static final int CHUNK_LENGTH = 65536;
+
+	/** Random source. */
+	private Random random;
+	/** Texture names for sidedefs. */
+	private String[] textures;
+	/** Flat names for sectors. */
+	private String[] flats;
+	/** Buffer for the piece of a lump being made. */
+	private ByteBuffer chunk;
+
+	/**
+	 * Creates a new map generator.
+	 * @param random the random source.
+	 * @param textures the texture names to put on sidedefs.
+	 * @param flats the flat names to put on sectors.
+	 */
+	public MapGenerator(Random random, String[] textures, String[] flats)
+	{
+		this.random = random;
+		this.textures = textures;
+		this.flats = flats;
+		this.chunk = ByteBuffer.allocate(CHUNK_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Gets the name of a map by number, in the MAPxx style.
+	 * @param number the map number, from 1 to 99.
+	 * @return the map name.
+	 */
+	public static String getMapName(int number)
+	{
+		return String.format("MAP%02d", number);
+	}
+
+	/**
+	 * Gets about how many bytes a map takes.
+	 * Binary maps are exact. UDMF maps are close.
+	 * @param format the map format.
+	 * @param things the amount of things.
+	 * @param sidedefs the amount of sidedefs (and linedefs, and vertices).
+	 * @param sectors the amount of sectors.
+	 * @return the length in bytes.
+	 */
+	public static long getMapLength(MapFormat format, long things, long sidedefs, long sectors)
+	{
+		switch (format)
+		{
+			case UDMF:
+				return things * UDMF_THING_LENGTH + sidedefs * (UDMF_VERTEX_LENGTH + UDMF_LINEDEF_LENGTH + UDMF_SIDEDEF_LENGTH) + sectors * UDMF_SECTOR_LENGTH;
+			case HEXEN:
+				return things * HEXEN_THING_LENGTH + sidedefs * (HEXEN_LINEDEF_LENGTH + SIDEDEF_LENGTH + VERTEX_LENGTH) + sectors * SECTOR_LENGTH + EMPTY_BEHAVIOR.length;
+			default:
+				return things * DOOM_THING_LENGTH + sidedefs * (DOOM_LINEDEF_LENGTH + SIDEDEF_LENGTH + VERTEX_LENGTH) + sectors * SECTOR_LENGTH;
+		}
+	}
+
+	/**
+	 * Gets the length of one thing in a map format, for filling out a map to a size.
+	 * @param format the map format.
+	 * @return the length in bytes.
+	 */
+	public static int getThingLength(MapFormat format)
+	{
+		switch (format)
+		{
+			case UDMF:
+				return UDMF_THING_LENGTH;
+			case HEXEN:
+				return HEXEN_THING_LENGTH;
+			default:
+				return DOOM_THING_LENGTH;
+		}
+	}
+
+	/**
+	 * Writes a map: its header and all of its lumps.
+	 * @param wad the WAD to add the map to.
+	 * @param name the map name.
+	 * @param format the map format.
+	 * @param things the amount of things.
+	 * @param sidedefs the amount of sidedefs (and linedefs, and vertices). At least 1.
+	 * @param sectors the amount of sectors. At least 1.
+	 * @throws IOException if the lumps could not be written.
+	 * @throws IllegalArgumentException if the counts are too big for a binary map, or a lump is over 2 GB.
+	 */
+	public void writeMap(WadWriter wad, String name, MapFormat format, int things, int sidedefs, int sectors) throws IOException
+	{
+		if (format != MapFormat.UDMF && (sidedefs > MAX_BINARY_INDEX || sectors > MAX_BINARY_SECTORS))
+			throw new IllegalArgumentException("Too many sidedefs or sectors for a binary map.");
+		if (getMapLength(format, things, sidedefs, sectors) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Map is too big (over 2 GB).");
+
+		wad.addLump(name, new byte[0]);
+		if (format == MapFormat.UDMF)
+		{
+			writeTextMap(wad, things, sidedefs, sectors);
+			wad.addLump("ENDMAP", new byte[0]);
+			return;
+		}
+
+		boolean hexen = format == MapFormat.HEXEN;
+		if (hexen)
+			writeHexenThings(wad, things);
+		else
+			writeThings(wad, things, format == MapFormat.STRIFE ? STRIFE_THINGS : DOOM_THINGS);
+		if (hexen)
+			writeHexenLinedefs(wad, sidedefs);
+		else
+			writeLinedefs(wad, sidedefs);
+		writeSidedefs(wad, sidedefs, sectors);
+		writeVertices(wad, sidedefs);
+		wad.addLump("SEGS", new byte[0]);
+		wad.addLump("SSECTORS", new byte[0]);
+		wad.addLump("NODES", new byte[0]);
+		writeSectors(wad, sectors);
+		wad.addLump("REJECT", new byte[0]);
+		wad.addLump("BLOCKMAP", new byte[0]);
+		if (hexen)
+			wad.addLump("BEHAVIOR", EMPTY_BEHAVIOR);
+	}
+
+	// Writes Doom-format THINGS.
+	private void writeThings(WadWriter wad, int count, int[] types) throws IOException
+	{
+		wad.beginLump("THINGS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, DOOM_THING_LENGTH);
+			out.putShort(randomCoordinate());
+			out.putShort(randomCoordinate());
+			out.putShort((short)(random.nextInt(8) * 45));
+			out.putShort((short)types[random.nextInt(types.length)]);
+			out.putShort((short)random.nextInt(32));
+		}
+		endLump(wad);
+	}
+
+	// Writes Hexen-format THINGS.
+	private void writeHexenThings(WadWriter wad, int count) throws IOException
+	{
+		wad.beginLump("THINGS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, HEXEN_THING_LENGTH);
+			out.putShort((short)(random.nextInt(8) == 0 ? 1 + random.nextInt(100) : 0));
+			out.putShort(randomCoordinate());
+			out.putShort(randomCoordinate());
+			out.putShort((short)0);
+			out.putShort((short)(random.nextInt(8) * 45));
+			out.putShort((short)HEXEN_THINGS[random.nextInt(HEXEN_THINGS.length)]);
+			out.putShort((short)(0x0700 | random.nextInt(32)));
+			out.put((byte)0);
+			putZeroes(out, 5);
+		}
+		endLump(wad);
+	}
+
+	// Writes Doom-format LINEDEFS, each one joining two vertices, with one sidedef.
+	private void writeLinedefs(WadWriter wad, int count) throws IOException
+	{
+		wad.beginLump("LINEDEFS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, DOOM_LINEDEF_LENGTH);
+			out.putShort((short)i);
+			out.putShort((short)((i + 1) % count));
+			out.putShort((short)1);
+			out.putShort((short)(random.nextInt(8) == 0 ? 1 + random.nextInt(140) : 0));
+			out.putShort((short)0);
+			out.putShort((short)i);
+			out.putShort((short)-1);
+		}
+		endLump(wad);
+	}
+
+	// Writes Hexen-format LINEDEFS, each one joining two vertices, with one sidedef.
+	private void writeHexenLinedefs(WadWriter wad, int count) throws IOException
+	{
+		wad.beginLump("LINEDEFS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, HEXEN_LINEDEF_LENGTH);
+			out.putShort((short)i);
+			out.putShort((short)((i + 1) % count));
+			out.putShort((short)1);
+			out.put((byte)(random.nextInt(8) == 0 ? 1 + random.nextInt(120) : 0));
+			putZeroes(out, 5);
+			out.putShort((short)i);
+			out.putShort((short)-1);
+		}
+		endLump(wad);
+	}
+
+	// Writes SIDEDEFS.
+	private void writeSidedefs(WadWriter wad, int count, int sectors) throws IOException
+	{
+		wad.beginLump("SIDEDEFS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, SIDEDEF_LENGTH);
+			out.putShort((short)0);
+			out.putShort((short)0);
+			putName(out, random.nextInt(4) == 0 ? randomTexture() : "-");
+			putName(out, random.nextInt(4) == 0 ? randomTexture() : "-");
+			putName(out, randomTexture());
+			out.putShort((short)random.nextInt(sectors));
+		}
+		endLump(wad);
+	}
+
+	// Writes VERTEXES.
+	private void writeVertices(WadWriter wad, int count) throws IOException
+	{
+		wad.beginLump("VERTEXES");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, VERTEX_LENGTH);
+			out.putShort(randomCoordinate());
+			out.putShort(randomCoordinate());
+		}
+		endLump(wad);
+	}
+
+	// Writes SECTORS.
+	private void writeSectors(WadWriter wad, int count) throws IOException
+	{
+		wad.beginLump("SECTORS");
+		for (int i = 0; i < count; i++)
+		{
+			ByteBuffer out = reserve(wad, SECTOR_LENGTH);
+			out.putShort((short)0);
+			out.putShort((short)128);
+			putName(out, randomFlat());
+			putName(out, randomFlat());
+			out.putShort((short)(random.nextInt(16) * 16));
+			out.putShort((short)0);
+			out.putShort((short)0);
+		}
+		endLump(wad);
+	}
+
+	// Writes a UDMF TEXTMAP with the same contents as the binary lumps, a chunk of text at a time.
+	private void writeTextMap(WadWriter wad, int things, int sidedefs, int sectors) throws IOException
+	{
+		wad.beginLump("TEXTMAP");
+		StringBuilder sb = new StringBuilder(CHUNK_LENGTH + 256);
+		sb.append("namespace = \"doom\";\n");
+		for (int i = 0; i < things; i++)
+		{
+			sb.append("thing { x = ").append(randomCoordinate()).append(".0; y = ").append(randomCoordinate())
+				.append(".0; angle = ").append(random.nextInt(8) * 45).append("; type = ").append(DOOM_THINGS[random.nextInt(DOOM_THINGS.length)])
+				.append("; skill1 = true; skill2 = true; skill3 = true; single = true; }\n");
+			flushText(wad, sb, false);
+		}
+		for (int i = 0; i < sidedefs; i++)
+		{
+			sb.append("vertex { x = ").append(randomCoordinate()).append(".0; y = ").append(randomCoordinate()).append(".0; }\n");
+			flushText(wad, sb, false);
+		}
+		for (int i = 0; i < sidedefs; i++)
+		{
+			sb.append("linedef { v1 = ").append(i).append("; v2 = ").append((i + 1) % sidedefs).append("; sidefront = ").append(i).append("; blocking = true; }\n");
+			flushText(wad, sb, false);
+		}
+		for (int i = 0; i < sidedefs; i++)
+		{
+			sb.append("sidedef { sector = ").append(random.nextInt(sectors)).append("; texturemiddle = \"").append(randomTexture()).append('"');
+			if (random.nextInt(4) == 0)
+				sb.append("; texturetop = \"").append(randomTexture()).append('"');
+			if (random.nextInt(4) == 0)
+				sb.append("; texturebottom = \"").append(randomTexture()).append('"');
+			sb.append("; }\n");
+			flushText(wad, sb, false);
+		}
+		for (int i = 0; i < sectors; i++)
+		{
+			sb.append("sector { heightfloor = 0; heightceiling = 128; texturefloor = \"").append(randomFlat())
+				.append("\"; textureceiling = \"").append(randomFlat())
+				.append("\"; lightlevel = ").append(random.nextInt(16) * 16).append("; }\n");
+			flushText(wad, sb, false);
+		}
+		flushText(wad, sb, true);
+		wad.endLump();
+	}
+
+	// Gets the chunk buffer with room for a record, writing out what is in it first if it is full.
+	private ByteBuffer reserve(WadWriter wad, int length) throws IOException
+	{
+		if (chunk.remaining() < length)
+			flushChunk(wad);
+		return chunk;
+	}
+
+	// Writes out what is in the chunk buffer, and empties it.
+	private void flushChunk(WadWriter wad) throws IOException
+	{
+		chunk.flip();
+		wad.writeLump(chunk);
+		chunk.clear();
+	}
+
+	// Writes out the rest of the chunk buffer, and ends the lump.
+	private void endLump(WadWriter wad) throws IOException
+	{
+		flushChunk(wad);
+		wad.endLump();
+	}
+
+	// Writes out the text in a builder as ASCII once it is a chunk long (or always, if last), and empties it.
+	private void flushText(WadWriter wad, StringBuilder sb, boolean last) throws IOException
+	{
+		if (!last && sb.length() < CHUNK_LENGTH)
+			return;
+		int length = sb.length();
+		for (int i = 0; i < length; i++)
+		{
+			if (!chunk.hasRemaining())
+				flushChunk(wad);
+			chunk.put((byte)sb.charAt(i));
+		}
+		flushChunk(wad);
+		sb.setLength(0);
+	}
+
+	private short randomCoordinate()
+	{
+		return (short)(random.nextInt(8192) - 4096);
+	}
+
+	private String randomTexture()
+	{
+		return textures[random.nextInt(textures.length)];
+	}
+
+	private String randomFlat()
+	{
+		return flats[random.nextInt(flats.length)];
+	}
+
+	// Adds an amount of zero bytes.
+	private static void putZeroes(ByteBuffer out, int count)
+	{
+		for (int i = 0; i < count; i++)
+			out.put((byte)0);
+	}
+
+	// Adds an 8-character name, padded with zeroes.
+	static void putName(ByteBuffer out, String name)
+	{
+		for (int i = 0; i < 8; i++)
+			out.put(i < name.length() ? (byte)name.charAt(i) : 0);
+	}
+
+}
@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.wadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.mtrop.utility.doom.common.WadWriter;
+
+/**
+ * Makes synthetic graphics and texture lumps: palettes, colormaps, patches, flats,
+ * PNAMES, TEXTUREx, ANIMATED, and SWITCHES.
+ * @author Matthew Tropiano
+ */
+public class TextureGenerator
+{
+	/** Most textures put in TEXTURE1. The rest go in TEXTURE2, like in Doom's registered IWAD. */
+	public static final int TEXTURE1_LENGTH = 256;
+	/** Patch width. Each texture is two patches side by side. */
+	public static final int PATCH_WIDTH = 64;
+	/** Patch height. */
+	public static final int PATCH_HEIGHT = 128;
+
+	/** Random source. */
+	private Random random;
+
+	/**
+	 * Creates a new texture generator.
+	 * @param random the random source.
+	 */
+	public TextureGenerator(Random random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Makes names like "TX000000", "TX000001", and so on: a prefix, and a number that fills the rest of 8 characters.
+	 * @param prefix the name prefix (up to 7 characters).
+	 * @param count the amount of names.
+	 * @return the names.
+	 */
+	public static String[] getNames(String prefix, int count)
+	{
+		String[] out = new String[count];
+		for (int i = 0; i < count; i++)
+			out[i] = String.format("%s%0" + (8 - prefix.length()) + "d", prefix, i);
+		return out;
+	}
+
+	/**
+	 * Makes switch texture names, in off/on pairs: "SW1" and "SW2", the patch prefix, and a number.
+	 * @param patchPrefix the patch prefix (up to 3 characters).
+	 * @param switches the amount of switches.
+	 * @return the names, off then on, for each switch.
+	 */
+	public static String[] getSwitchNames(String patchPrefix, int switches)
+	{
+		String[] switchOff = getNames("SW1" + patchPrefix, switches);
+		String[] switchOn = getNames("SW2" + patchPrefix, switches);
+		String[] out = new String[switches * 2];
+		for (int i = 0; i < switches; i++)
+		{
+			out[i * 2] = switchOff[i];
+			out[i * 2 + 1] = switchOn[i];
+		}
+		return out;
+	}
+
+	/**
+	 * Makes a PLAYPAL palette (one palette, 768 bytes).
+	 * @return the palette.
+	 */
+	public byte[] createPalette()
+	{
+		byte[] out = new byte[768];
+		random.nextBytes(out);
+		return out;
+	}
+
+	/**
+	 * Makes a COLORMAP (34 maps of 256 bytes), with the last 16 colors fullbright
+	 * (the same in all 32 light levels).
+	 * @return the colormap.
+	 */
+	public byte[] createColormap()
+	{
+		byte[] out = new byte[34 * 256];
+		random.nextBytes(out);
+		for (int map = 1; map < 32; map++)
+			System.arraycopy(out, 240, out, map * 256 + 240, 16);
+		return out;
+	}
+
+	/**
+	 * Makes a Doom-format picture. Columns are split into posts with a few gaps.
+	 * @param width the width.
+	 * @param height the height (up to 254).
+	 * @return the picture.
+	 */
+	public byte[] createPicture(int width, int height)
+	{
+		ByteArrayOutputStream columns = new ByteArrayOutputStream();
+		int[] offsets = new int[width];
+		int headerLength = 8 + width * 4;
+		for (int x = 0; x < width; x++)
+		{
+			offsets[x] = headerLength + columns.size();
+			int y = random.nextInt(4);
+			while (y < height)
+			{
+				int length = Math.min(height - y, 1 + random.nextInt(64));
+				columns.write(y);
+				columns.write(length);
+				columns.write(0);
+				for (int i = 0; i < length; i++)
+					columns.write(random.nextInt(255));
+				columns.write(0);
+				y += length + random.nextInt(4);
+			}
+			columns.write(0x0ff);
+		}
+
+		ByteBuffer out = allocate(headerLength + columns.size());
+		out.putShort((short)width);
+		out.putShort((short)height);
+		out.putShort((short)(width / 2));
+		out.putShort((short)(height - 4));
+		for (int offset : offsets)
+			out.putInt(offset);
+		out.put(columns.toByteArray());
+		return out.array();
+	}
+
+	/**
+	 * Makes a 64x64 flat.
+	 * @return the flat.
+	 */
+	public byte[] createFlat()
+	{
+		byte[] out = new byte[4096];
+		random.nextBytes(out);
+		return out;
+	}
+
+	/**
+	 * Makes PNAMES.
+	 * @param patches the patch names.
+	 * @return the lump.
+	 */
+	public static byte[] createPatchNames(String[] patches)
+	{
+		ByteBuffer out = allocate(4 + patches.length * 8);
+		out.putInt(patches.length);
+		for (String p : patches)
+			MapGenerator.putName(out, p);
+		return out.array();
+	}
+
+	/**
+	 * Makes a TEXTUREx lump from part of a texture list,
+	 * where texture i (in the whole list) is made of patches 2i and 2i+1, side by side.
+	 * @param textures the texture names.
+	 * @param offset the index of the first texture in the lump.
+	 * @param count the amount of textures in the lump.
+	 * @return the lump.
+	 */
+	public static byte[] createTextures(String[] textures, int offset, int count)
+	{
+		int textureLength = 22 + 2 * 10;
+		int headerLength = 4 + count * 4;
+		ByteBuffer out = allocate(headerLength + count * textureLength);
+		out.putInt(count);
+		for (int i = 0; i < count; i++)
+			out.putInt(headerLength + i * textureLength);
+		for (int i = offset; i < offset + count; i++)
+		{
+			MapGenerator.putName(out, textures[i]);
+			out.putInt(0);
+			out.putShort((short)(PATCH_WIDTH * 2));
+			out.putShort((short)PATCH_HEIGHT);
+			out.putInt(0);
+			out.putShort((short)2);
+			for (int p = 0; p < 2; p++)
+			{
+				out.putShort((short)(p * PATCH_WIDTH));
+				out.putShort((short)0);
+				out.putShort((short)(i * 2 + p));
+				out.putShort((short)1);
+				out.putShort((short)0);
+			}
+		}
+		return out.array();
+	}
+
+	/**
+	 * Makes ANIMATED: textures and flats 0-3 and 4-7 are animations.
+	 * @param textures the texture names.
+	 * @param flats the flat names.
+	 * @return the lump.
+	 */
+	public static byte[] createAnimated(String[] textures, String[] flats)
+	{
+		ByteBuffer out = allocate(23 * 4 + 1);
+		for (int i = 0; i + 3 < Math.min(textures.length, 8); i += 4)
+			putAnimation(out, true, textures[i + 3], textures[i]);
+		for (int i = 0; i + 3 < Math.min(flats.length, 8); i += 4)
+			putAnimation(out, false, flats[i + 3], flats[i]);
+		out.put((byte)0x0ff);
+		byte[] b = new byte[out.position()];
+		System.arraycopy(out.array(), 0, b, 0, b.length);
+		return b;
+	}
+
+	/**
+	 * Makes SWITCHES from pairs of names.
+	 * @param names the switch names, off then on, for each switch.
+	 * @return the lump.
+	 */
+	public static byte[] createSwitches(String[] names)
+	{
+		ByteBuffer out = allocate((names.length / 2 + 1) * 20);
+		for (int i = 0; i + 1 < names.length; i += 2)
+		{
+			putName(out, names[i], 9);
+			putName(out, names[i + 1], 9);
+			out.putShort((short)1);
+		}
+		out.put(new byte[18]);
+		out.putShort((short)0);
+		return out.array();
+	}
+
+	/**
+	 * Writes a palette and colormap to a WAD.
+	 * @param wad the WAD.
+	 * @throws IOException if the lumps could not be written.
+	 */
+	public void writePalette(WadWriter wad) throws IOException
+	{
+		wad.addLump("PLAYPAL", createPalette());
+		wad.addLump("COLORMAP", createColormap());
+	}
+
+	/**
+	 * Writes a texture set to a WAD: PLAYPAL, COLORMAP, PNAMES, TEXTURE1 (and TEXTURE2 if there
+	 * are more than {@link #TEXTURE1_LENGTH} textures), ANIMATED, SWITCHES, patches, and flats.
+	 * @param wad the WAD.
+	 * @param textures the texture names. The first 8 are animated in groups of 4.
+	 * @param flats the flat names. The first 8 are animated in groups of 4.
+	 * @param patchPrefix the prefix for patch names (up to 3 characters).
+	 * @param switches the amount of switch texture pairs to add (see {@link #getSwitchNames(String, int)}).
+	 * @throws IOException if the lumps could not be written.
+	 */
+	public void writeTextures(WadWriter wad, String[] textures, String[] flats, String patchPrefix, int switches) throws IOException
+	{
+		String[] switchNames = getSwitchNames(patchPrefix, switches);
+		String[] allTextures = getAllTextures(textures, switchNames);
+		String[] patches = getNames(patchPrefix, allTextures.length * 2);
+
+		writePalette(wad);
+		wad.addLump("PNAMES", createPatchNames(patches));
+		int texture1 = Math.min(allTextures.length, TEXTURE1_LENGTH);
+		wad.addLump("TEXTURE1", createTextures(allTextures, 0, texture1));
+		if (allTextures.length > texture1)
+			wad.addLump("TEXTURE2", createTextures(allTextures, texture1, allTextures.length - texture1));
+		wad.addLump("ANIMATED", createAnimated(textures, flats));
+		wad.addLump("SWITCHES", createSwitches(switchNames));
+		wad.addLump("P_START", new byte[0]);
+		for (String p : patches)
+			wad.addLump(p, createPicture(PATCH_WIDTH, PATCH_HEIGHT));
+		wad.addLump("P_END", new byte[0]);
+		wad.addLump("F_START", new byte[0]);
+		for (String s : flats)
+			wad.addLump(s, createFlat());
+		wad.addLump("F_END", new byte[0]);
+	}
+
+	/**
+	 * Writes a texture set to a PK3, laid out like a ZDoom PK3: the same lumps as
+	 * {@link #writeTextures(WadWriter, String[], String[], String, int)}, but with
+	 * patches in "patches/" and flats in "flats/".
+	 * @param zip the PK3.
+	 * @param textures the texture names. The first 8 are animated in groups of 4.
+	 * @param flats the flat names. The first 8 are animated in groups of 4.
+	 * @param patchPrefix the prefix for patch names (up to 3 characters).
+	 * @param switches the amount of switch texture pairs to add (see {@link #getSwitchNames(String, int)}).
+	 * @throws IOException if the entries could not be written.
+	 */
+	public void writeTextures(ZipOutputStream zip, String[] textures, String[] flats, String patchPrefix, int switches) throws IOException
+	{
+		String[] switchNames = getSwitchNames(patchPrefix, switches);
+		String[] allTextures = getAllTextures(textures, switchNames);
+		String[] patches = getNames(patchPrefix, allTextures.length * 2);
+
+		putEntry(zip, "PLAYPAL", createPalette());
+		putEntry(zip, "COLORMAP", createColormap());
+		putEntry(zip, "PNAMES", createPatchNames(patches));
+		int texture1 = Math.min(allTextures.length, TEXTURE1_LENGTH);
+		putEntry(zip, "TEXTURE1", createTextures(allTextures, 0, texture1));
+		if (allTextures.length > texture1)
+			putEntry(zip, "TEXTURE2", createTextures(allTextures, texture1, allTextures.length - texture1));
+		putEntry(zip, "ANIMATED", createAnimated(textures, flats));
+		putEntry(zip, "SWITCHES", createSwitches(switchNames));
+		for (String p : patches)
+			putEntry(zip, "patches/" + p + ".lmp", createPicture(PATCH_WIDTH, PATCH_HEIGHT));
+		for (String s : flats)
+			putEntry(zip, "flats/" + s + ".lmp", createFlat());
+	}
+
+	// Gets the textures and the switch textures, in TEXTUREx order. Texture i uses patches 2i and 2i+1.
+	private static String[] getAllTextures(String[] textures, String[] switchNames)
+	{
+		String[] out = new String[textures.length + switchNames.length];
+		System.arraycopy(textures, 0, out, 0, textures.length);
+		System.arraycopy(switchNames, 0, out, textures.length, switchNames.length);
+		return out;
+	}
+
+	// Adds a zip entry.
+	private static void putEntry(ZipOutputStream zip, String name, byte[] data) throws IOException
+	{
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(data);
+		zip.closeEntry();
+	}
+
+	// Adds an ANIMATED entry.
+	private static void putAnimation(ByteBuffer out, boolean texture, String last, String first)
+	{
+		out.put((byte)(texture ? 1 : 0));
+		putName(out, last, 9);
+		putName(out, first, 9);
+		out.putInt(8);
+	}
+
+	// Adds a name, padded with zeroes.
+	private static void putName(ByteBuffer out, String name, int length)
+	{
+		for (int i = 0; i < length; i++)
+			out.put(i < name.length() ? (byte)name.charAt(i) : 0);
+	}
+
+	private static ByteBuffer allocate(int length)
+	{
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -0,0 +1,662 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2016 Matt Tropiano
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package net.mtrop.utility.doom.wadgen;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.mtrop.doom.enums.MapFormat;
+import net.mtrop.utility.doom.common.Stats;
+import net.mtrop.utility.doom.common.WadWriter;
+
+import com.blackrook.commons.Common;
+import com.blackrook.commons.list.List;
+import com.blackrook.utility.Context;
+import com.blackrook.utility.Settings;
+import com.blackrook.utility.Utility;
+import com.blackrook.utility.Version;
+
+/**
+ * WadGen - makes a corpus of synthetic WADs, PK3s, and demos from a seed,
+ * for benchmarks and load tests of the other utilities.
+ * @author Matthew Tropiano
+ */
+public class WadGen extends Utility<WadGen.GenContext>
+{
+	private static final Version VERSION = new Version(1,0,0,0);
+
+	/** Demo versions made, in turn. */
+	private static final int[] DEMO_VERSIONS = {109, 111, 202};
+	/** Texture name prefix. */
+	private static final String TEXTURE_PREFIX = "TX";
+	/** Flat name prefix. */
+	private static final String FLAT_PREFIX = "FL";
+	/** Patch name prefix. */
+	private static final String PATCH_PREFIX = "PT";
+	/** Most maps in a WAD or PK3 (MAP01 to MAP99). */
+	private static final int MAX_MAPS = 99;
+	/** Most textures (so that patch indices fit in TEXTUREx). */
+	private static final int MAX_TEXTURES = 16000;
+	/** Most switches. */
+	private static final int MAX_SWITCHES = 100;
+	/** Most PK3 depth. */
+	private static final int MAX_DEPTH = 8;
+
+	/** Output directory. */
+	public static final String SETTING_DIRECTORY = "directory";
+	/** Seed. */
+	public static final String SETTING_SEED = "seed";
+	/** Maps per format. */
+	public static final String SETTING_MAPS = "maps";
+	/** Map formats. */
+	public static final String SETTING_FORMATS = "formats";
+	/** Things per map. */
+	public static final String SETTING_THINGS = "things";
+	/** Sidedefs per map. */
+	public static final String SETTING_SIDEDEFS = "sidedefs";
+	/** Sectors per map. */
+	public static final String SETTING_SECTORS = "sectors";
+	/** Map WAD size. */
+	public static final String SETTING_SIZE = "size";
+	/** Textures. */
+	public static final String SETTING_TEXTURES = "textures";
+	/** Flats. */
+	public static final String SETTING_FLATS = "flats";
+	/** Switches. */
+	public static final String SETTING_SWITCHES = "switches";
+	/** Demos. */
+	public static final String SETTING_DEMOS = "demos";
+	/** Tics per demo. */
+	public static final String SETTING_TICS = "tics";
+	/** PK3 depth. */
+	public static final String SETTING_PK3 = "pk3";
+
+	/** Switch - seed. */
+	public static final String SWITCH_SEED = "-seed";
+	/** Switch - maps per format. */
+	public static final String SWITCH_MAPS = "-maps";
+	/** Switch - map formats. */
+	public static final String SWITCH_FORMATS = "-formats";
+	/** Switch - things per map. */
+	public static final String SWITCH_THINGS = "-things";
+	/** Switch - sidedefs per map. */
+	public static final String SWITCH_SIDEDEFS = "-sidedefs";
+	/** Switch - sectors per map. */
+	public static final String SWITCH_SECTORS = "-sectors";
+	/** Switch - map WAD size. */
+	public static final String SWITCH_SIZE = "-size";
+	/** Switch - textures. */
+	public static final String SWITCH_TEXTURES = "-textures";
+	/** Switch - flats. */
+	public static final String SWITCH_FLATS = "-flats";
+	/** Switch - switches. */
+	public static final String SWITCH_SWITCHES = "-switches";
+	/** Switch - demos. */
+	public static final String SWITCH_DEMOS = "-demos";
+	/** Switch - tics per demo. */
+	public static final String SWITCH_TICS = "-tics";
+	/** Switch - PK3 depth. */
+	public static final String SWITCH_PK3 = "-pk3";
+
+	/**
+	 * Context.
+	 */
+	public static class GenContext implements Context
+	{
+		/** Output directory. */
+		private File directory;
+		/** Random source. */
+		private Random random;
+		/** Maps per format. */
+		private int maps;
+		/** Map formats. */
+		private MapFormat[] formats;
+		/** Things per map, by format. */
+		private int[] things;
+		/** Sidedefs per map, by format. */
+		private int[] sidedefs;
+		/** Sectors per map, by format. */
+		private int[] sectors;
+		/** Texture names. */
+		private String[] textures;
+		/** Flat names. */
+		private String[] flats;
+		/** Switches. */
+		private int switches;
+		/** Demos. */
+		private int demos;
+		/** Tics per demo. */
+		private long tics;
+		/** PK3 depth (0 is no PK3). */
+		private int depth;
+
+		private GenContext()
+		{
+			directory = null;
+			random = null;
+			maps = 4;
+			formats = MapFormat.values();
+			things = null;
+			sidedefs = null;
+			sectors = null;
+			textures = null;
+			flats = null;
+			switches = 8;
+			demos = 8;
+			tics = 35 * 60 * 5;
+			depth = 2;
+		}
+	}
+
+	@Override
+	public Version getVersion()
+	{
+		return VERSION;
+	}
+
+	@Override
+	public Settings getSettingsFromCMDLINE(String... args)
+	{
+		Settings out = new Settings();
+
+		String next = null;
+		for (String a : args)
+		{
+			if (next != null)
+			{
+				out.put(next, a);
+				next = null;
+			}
+			else if (a.equalsIgnoreCase(SWITCH_SEED))
+				next = SETTING_SEED;
+			else if (a.equalsIgnoreCase(SWITCH_MAPS))
+				next = SETTING_MAPS;
+			else if (a.equalsIgnoreCase(SWITCH_FORMATS))
+				next = SETTING_FORMATS;
+			else if (a.equalsIgnoreCase(SWITCH_THINGS))
+				next = SETTING_THINGS;
+			else if (a.equalsIgnoreCase(SWITCH_SIDEDEFS))
+				next = SETTING_SIDEDEFS;
+			else if (a.equalsIgnoreCase(SWITCH_SECTORS))
+				next = SETTING_SECTORS;
+			else if (a.equalsIgnoreCase(SWITCH_SIZE))
+				next = SETTING_SIZE;
+			else if (a.equalsIgnoreCase(SWITCH_TEXTURES))
+				next = SETTING_TEXTURES;
+			else if (a.equalsIgnoreCase(SWITCH_FLATS))
+				next = SETTING_FLATS;
+			else if (a.equalsIgnoreCase(SWITCH_SWITCHES))
+				next = SETTING_SWITCHES;
+			else if (a.equalsIgnoreCase(SWITCH_DEMOS))
+				next = SETTING_DEMOS;
+			else if (a.equalsIgnoreCase(SWITCH_TICS))
+				next = SETTING_TICS;
+			else if (a.equalsIgnoreCase(SWITCH_PK3))
+				next = SETTING_PK3;
+			else if (a.equalsIgnoreCase(Stats.SWITCH_STATS))
+				next = Stats.SETTING_STATS;
+			else
+				out.put(SETTING_DIRECTORY, a);
+		}
+
+		return out;
+	}
+
+	@Override
+	public GenContext createNewContext()
+	{
+		return new GenContext();
+	}
+
+	// Prints the usage message.
+	private void printUsage()
+	{
+		out.println("Usage: wadgen [directory] [switches]");
+		out.println("    [directory]        The directory to write the corpus to. It is");
+		out.println("                       created if it does not exist.");
+		out.println("    -seed [n]          The random seed. The same seed and switches");
+		out.println("                       always make the same files. Default is 0.");
+		out.println("    -maps [n]          Maps in each map WAD (1 to 99). Default is 4.");
+		out.println("    -formats [list]    Map formats, with commas between them: doom,");
+		out.println("                       hexen, strife, udmf. Default is all four.");
+		out.println("    -things [n]        Things in each map. Default is 500.");
+		out.println("    -sidedefs [n]      Sidedefs in each map. Each one has its own");
+		out.println("                       linedef and vertex. Default is 2000.");
+		out.println("    -sectors [n]       Sectors in each map. Default is 200.");
+		out.println("    -size [n][K|M|G]   The size of each map WAD, up to 2G. Things,");
+		out.println("                       sidedefs, and sectors are scaled up or down");
+		out.println("                       (keeping their ratio) to fill it.");
+		out.println("    -textures [n]      Textures (1 to 16000). Default is 256.");
+		out.println("    -flats [n]         Flats (1 to 65535). Default is 64.");
+		out.println("    -switches [n]      Switch textures (0 to 100). Default is 8.");
+		out.println("    -demos [n]         Demos. Default is 8.");
+		out.println("    -tics [n]          Tics in each demo. Default is 10500 (5 minutes).");
+		out.println("    -pk3 [n]           PK3 nesting depth (0 to 8). 0 is no PK3, 1 is");
+		out.println("                       one PK3, 2 is a PK3 with a PK3 in it, and so");
+		out.println("                       on. Default is 2.");
+		out.println("    -stats [format]    Prints time and I/O stats for each phase to");
+		out.println("                       STDERR when done, as a \"table\" or \"json\".");
+	}
+
+	// Parses a whole number, or returns -1 (after printing an error) if it is bad.
+	private long getNumber(Settings settings, String setting, String name, long defaultValue, long min, long max)
+	{
+		String value = settings.getString(setting);
+		if (value == null)
+			return defaultValue;
+		long n;
+		try {
+			n = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			n = min - 1;
+		}
+		if (n < min || n > max)
+		{
+			out.printf("ERROR: Bad %s: %s. Must be from %d to %d.\n", name, value, min, max);
+			return -1;
+		}
+		return n;
+	}
+
+	/**
+	 * Parses a size, like "64K", "200M", or "1G".
+	 * @param value the size.
+	 * @return the size in bytes, or -1 if it is bad.
+	 */
+	public static long parseSize(String value)
+	{
+		if (Common.isEmpty(value))
+			return -1;
+		long scale = 1;
+		switch (Character.toUpperCase(value.charAt(value.length() - 1)))
+		{
+			case 'K':
+				scale = 1L << 10;
+				break;
+			case 'M':
+				scale = 1L << 20;
+				break;
+			case 'G':
+				scale = 1L << 30;
+				break;
+		}
+		try {
+			long n = Long.parseLong(scale > 1 ? value.substring(0, value.length() - 1) : value);
+			return n >= 0 && n <= Long.MAX_VALUE / scale ? n * scale : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Parses the list of map formats, or returns null (after printing an error) if it is bad.
+	private MapFormat[] getFormats(String value)
+	{
+		List<MapFormat> formats = new List<MapFormat>();
+		for (String name : value.split(","))
+		{
+			MapFormat format;
+			try {
+				format = MapFormat.valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				out.printf("ERROR: Bad map format: %s. Must be doom, hexen, strife, or udmf.\n", name);
+				return null;
+			}
+			if (formats.contains(format))
+				continue;
+			formats.add(format);
+		}
+		MapFormat[] out = new MapFormat[formats.size()];
+		formats.toArray(out);
+		return out;
+	}
+
+	// Scales map contents up or down to fill a map WAD of a size.
+	private static void setMapSize(GenContext context, int f, long size, long things, long sidedefs, long sectors)
+	{
+		MapFormat format = context.formats[f];
+		boolean binary = format != MapFormat.UDMF;
+		long budget = size / context.maps;
+		double scale = (double)budget / MapGenerator.getMapLength(format, things, sidedefs, sectors);
+
+		sidedefs = Math.max(1L, (long)(sidedefs * scale));
+		sectors = Math.max(1L, (long)(sectors * scale));
+		if (binary)
+		{
+			sidedefs = Math.min(sidedefs, MapGenerator.MAX_BINARY_INDEX);
+			sectors = Math.min(sectors, MapGenerator.MAX_BINARY_SECTORS);
+		}
+		// things take up the rest, so binary maps bigger than their index limits still fill out.
+		long rest = budget - MapGenerator.getMapLength(format, 0, sidedefs, sectors);
+		things = Math.max(0L, rest / MapGenerator.getThingLength(format));
+
+		context.things[f] = (int)things;
+		context.sidedefs[f] = (int)sidedefs;
+		context.sectors[f] = (int)sectors;
+	}
+
+	// Writes the map WAD for one format.
+	private void writeMapWAD(GenContext context, int f, File file) throws IOException
+	{
+		MapFormat format = context.formats[f];
+		MapGenerator maps = new MapGenerator(context.random, context.textures, context.flats);
+		WadWriter wad = new WadWriter(file);
+		try {
+			for (int m = 1; m <= context.maps; m++)
+				maps.writeMap(wad, MapGenerator.getMapName(m), format, context.things[f], context.sidedefs[f], context.sectors[f]);
+			wad.finish();
+		} finally {
+			wad.abort();
+		}
+	}
+
+	// Writes the texture WAD.
+	private void writeTextureWAD(GenContext context, File file) throws IOException
+	{
+		WadWriter wad = new WadWriter(file);
+		try {
+			new TextureGenerator(context.random).writeTextures(wad, context.textures, context.flats, PATCH_PREFIX, context.switches);
+			wad.finish();
+		} finally {
+			wad.abort();
+		}
+	}
+
+	// Gets the name of a demo file.
+	private static String getDemoName(int index)
+	{
+		return String.format("DEMO%02d.lmp", index + 1);
+	}
+
+	// Writes a demo.
+	private void writeDemo(GenContext context, OutputStream out, int index) throws IOException
+	{
+		new DemoGenerator(context.random).writeDemo(out, DEMO_VERSIONS[index % DEMO_VERSIONS.length], 1 + context.random.nextInt(4), context.tics);
+	}
+
+	// Writes a demo file.
+	private void writeDemoFile(GenContext context, File file, int index) throws IOException
+	{
+		OutputStream out = null;
+		boolean success = false;
+		try {
+			out = new BufferedOutputStream(Stats.countOutput(new FileOutputStream(file)), 65536);
+			Stats.addFile();
+			writeDemo(context, out, index);
+			out.flush();
+			success = true;
+		} finally {
+			Common.close(out);
+			// don't leave half a demo behind.
+			if (!success)
+				file.delete();
+		}
+	}
+
+	// Writes a PK3 of maps, textures, and demos, with a nested PK3 in it if the depth is more than 1.
+	private void writePK3(GenContext context, File file, int depth) throws IOException
+	{
+		ZipOutputStream zip = null;
+		boolean success = false;
+		try {
+			zip = new ZipOutputStream(new BufferedOutputStream(Stats.countOutput(new FileOutputStream(file)), 65536));
+			Stats.addFile();
+
+			// each map is its own WAD, numbered on from the last format's maps.
+			MapGenerator maps = new MapGenerator(context.random, context.textures, context.flats);
+			int number = 1;
+			for (int f = 0; f < context.formats.length; f++)
+			{
+				for (int m = 0; m < context.maps; m++)
+				{
+					String name = MapGenerator.getMapName(number++);
+					File temp = File.createTempFile(name + ".", ".tmp", context.directory);
+					try {
+						WadWriter wad = new WadWriter(temp);
+						try {
+							maps.writeMap(wad, name, context.formats[f], context.things[f], context.sidedefs[f], context.sectors[f]);
+							wad.finish();
+						} finally {
+							wad.abort();
+						}
+						putEntry(zip, "maps/" + name + ".wad", temp);
+					} finally {
+						temp.delete();
+					}
+				}
+			}
+
+			new TextureGenerator(context.random).writeTextures(zip, context.textures, context.flats, PATCH_PREFIX, context.switches);
+
+			for (int i = 0; i < context.demos; i++)
+			{
+				zip.putNextEntry(new ZipEntry("demos/" + getDemoName(i)));
+				// demos are written a few bytes at a time.
+				OutputStream out = new BufferedOutputStream(zip, 65536);
+				writeDemo(context, out, i);
+				out.flush();
+				zip.closeEntry();
+			}
+
+			if (depth > 1)
+			{
+				File temp = File.createTempFile("nested.", ".tmp", context.directory);
+				try {
+					writePK3(context, temp, depth - 1);
+					putEntry(zip, "nested.pk3", temp);
+				} finally {
+					temp.delete();
+				}
+			}
+
+			zip.finish();
+			success = true;
+		} finally {
+			Common.close(zip);
+			// don't leave half a PK3 behind.
+			if (!success)
+				file.delete();
+		}
+	}
+
+	// Adds a file to a zip.
+	private static void putEntry(ZipOutputStream zip, String name, File file) throws IOException
+	{
+		zip.putNextEntry(new ZipEntry(name));
+		Stats.addFile();
+		Stats.addBytesRead(Files.copy(file.toPath(), zip));
+		zip.closeEntry();
+	}
+
+	@Override
+	public int execute(final GenContext context, final Settings settings)
+	{
+		out.printf("WadGen v%s by Matt Tropiano\n", getVersion());
+
+		return Stats.run("WadGen", settings.getString(Stats.SETTING_STATS), out, new Stats.Task()
+		{
+			@Override
+			public int run()
+			{
+				return generate(context, settings);
+			}
+
+			@Override
+			public int badFormat()
+			{
+				printUsage();
+				return 2;
+			}
+		});
+	}
+
+	// Checks the settings and writes the corpus.
+	private int generate(GenContext context, Settings settings)
+	{
+		String directory = settings.getString(SETTING_DIRECTORY);
+		if (Common.isEmpty(directory))
+		{
+			out.println("ERROR: No output directory specified.");
+			printUsage();
+			return 2;
+		}
+		context.directory = new File(directory);
+
+		long seed = 0L;
+		if (settings.containsKey(SETTING_SEED))
+		{
+			try {
+				seed = Long.parseLong(settings.getString(SETTING_SEED));
+			} catch (NumberFormatException e) {
+				out.printf("ERROR: Bad seed: %s. Must be a whole number.\n", settings.getString(SETTING_SEED));
+				printUsage();
+				return 2;
+			}
+		}
+		context.random = new Random(seed);
+
+		if (settings.containsKey(SETTING_FORMATS) && (context.formats = getFormats(settings.getString(SETTING_FORMATS))) == null)
+		{
+			printUsage();
+			return 2;
+		}
+
+		long maps, things, sidedefs, sectors, textures, flats, switches, demos, tics, depth;
+		if ((maps = getNumber(settings, SETTING_MAPS, "map count", context.maps, 1, MAX_MAPS)) < 0
+			|| (things = getNumber(settings, SETTING_THINGS, "thing count", 500, 0, Integer.MAX_VALUE)) < 0
+			|| (sidedefs = getNumber(settings, SETTING_SIDEDEFS, "sidedef count", 2000, 1, Integer.MAX_VALUE)) < 0
+			|| (sectors = getNumber(settings, SETTING_SECTORS, "sector count", 200, 1, Integer.MAX_VALUE)) < 0
+			|| (textures = getNumber(settings, SETTING_TEXTURES, "texture count", 256, 1, MAX_TEXTURES)) < 0
+			|| (flats = getNumber(settings, SETTING_FLATS, "flat count", 64, 1, 65535)) < 0
+			|| (switches = getNumber(settings, SETTING_SWITCHES, "switch count", context.switches, 0, MAX_SWITCHES)) < 0
+			|| (demos = getNumber(settings, SETTING_DEMOS, "demo count", context.demos, 0, 9999)) < 0
+			|| (tics = getNumber(settings, SETTING_TICS, "tic count", context.tics, 0, Integer.MAX_VALUE)) < 0
+			|| (depth = getNumber(settings, SETTING_PK3, "PK3 depth", context.depth, 0, MAX_DEPTH)) < 0)
+		{
+			printUsage();
+			return 2;
+		}
+		context.maps = (int)maps;
+		context.switches = (int)switches;
+		context.demos = (int)demos;
+		context.tics = tics;
+		context.depth = (int)depth;
+		context.textures = TextureGenerator.getNames(TEXTURE_PREFIX, (int)textures);
+		context.flats = TextureGenerator.getNames(FLAT_PREFIX, (int)flats);
+
+		if (context.depth > 0 && context.maps * context.formats.length > MAX_MAPS)
+		{
+			out.printf("ERROR: Too many maps for a PK3: %d. All formats' maps together must be %d or less.\n", context.maps * context.formats.length, MAX_MAPS);
+			printUsage();
+			return 2;
+		}
+
+		long size = 0L;
+		if (settings.containsKey(SETTING_SIZE))
+		{
+			size = parseSize(settings.getString(SETTING_SIZE));
+			if (size < 1 || size > Integer.MAX_VALUE)
+			{
+				out.printf("ERROR: Bad size: %s. Must be from 1 to 2G (the most a WAD can hold).\n", settings.getString(SETTING_SIZE));
+				printUsage();
+				return 2;
+			}
+		}
+
+		context.things = new int[context.formats.length];
+		context.sidedefs = new int[context.formats.length];
+		context.sectors = new int[context.formats.length];
+		for (int f = 0; f < context.formats.length; f++)
+		{
+			MapFormat format = context.formats[f];
+			if (size > 0)
+				setMapSize(context, f, size, things, sidedefs, sectors);
+			else if (format != MapFormat.UDMF && (sidedefs > MapGenerator.MAX_BINARY_INDEX || sectors > MapGenerator.MAX_BINARY_SECTORS))
+			{
+				out.printf("ERROR: Too many sidedefs or sectors for %s maps. Must be up to %d sidedefs and %d sectors.\n", format.name(), MapGenerator.MAX_BINARY_INDEX, MapGenerator.MAX_BINARY_SECTORS);
+				return 2;
+			}
+			else if (MapGenerator.getMapLength(format, things, sidedefs, sectors) * context.maps > Integer.MAX_VALUE)
+			{
+				out.printf("ERROR: %s maps are too big. A map WAD must be under 2G.\n", format.name());
+				return 2;
+			}
+			else
+			{
+				context.things[f] = (int)things;
+				context.sidedefs[f] = (int)sidedefs;
+				context.sectors[f] = (int)sectors;
+			}
+		}
+
+		if (!context.directory.exists() && !context.directory.mkdirs())
+		{
+			out.printf("ERROR: Couldn't create directory \"%s\".\n", context.directory.getPath());
+			return 1;
+		}
+
+		out.printf("Seed: %d\n", seed);
+		File current = null;
+		try {
+			Stats.phase("Writing map WADs");
+			for (int f = 0; f < context.formats.length; f++)
+			{
+				current = new File(context.directory, "maps-" + context.formats[f].name().toLowerCase() + ".wad");
+				writeMapWAD(context, f, current);
+				out.printf("Wrote \"%s\": %d maps, %d things, %d sidedefs, %d sectors each, %d bytes.\n",
+					current.getPath(), context.maps, context.things[f], context.sidedefs[f], context.sectors[f], current.length());
+			}
+
+			Stats.phase("Writing texture WAD");
+			current = new File(context.directory, "textures.wad");
+			writeTextureWAD(context, current);
+			out.printf("Wrote \"%s\": %d textures, %d flats, %d switches, %d bytes.\n",
+				current.getPath(), context.textures.length, context.flats.length, context.switches, current.length());
+
+			if (context.demos > 0)
+			{
+				Stats.phase("Writing demos");
+				File demoDirectory = new File(context.directory, "demos");
+				current = demoDirectory;
+				if (!demoDirectory.exists() && !demoDirectory.mkdirs())
+					throw new IOException("Could not create directory.");
+				long length = 0L;
+				for (int i = 0; i < context.demos; i++)
+				{
+					current = new File(demoDirectory, getDemoName(i));
+					writeDemoFile(context, current, i);
+					length += current.length();
+				}
+				out.printf("Wrote %d demos to \"%s\": %d bytes.\n", context.demos, demoDirectory.getPath(), length);
+			}
+
+			if (context.depth > 0)
+			{
+				Stats.phase("Writing PK3");
+				current = new File(context.directory, "corpus.pk3");
+				writePK3(context, current, context.depth);
+				out.printf("Wrote \"%s\": %d bytes.\n", current.getPath(), current.length());
+			}
+		} catch (SecurityException e) {
+			out.printf("ERROR: Couldn't write \"%s\". Access denied.\n", current.getPath());
+			return 1;
+		} catch (IOException e) {
+			out.printf("ERROR: Couldn't write \"%s\": %s\n", current.getPath(), e.getMessage());
+			return 1;
+		}
+
+		return 0;
+	}
+
+}